@@ -44,6 +44,8 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -52,10 +54,12 @@ import java.util.List;
 import java.util.Map;
 
 import org.mpisws.p2p.transport.ClosedChannelException;
+import org.mpisws.p2p.transport.ZeroCopySocket;
 
 import rice.Continuation;
 import rice.environment.Environment;
 import rice.environment.logging.Logger;
+import rice.environment.params.Parameters;
 import rice.environment.processing.Processor;
 import rice.environment.processing.WorkRequest;
 import rice.p2p.commonapi.appsocket.AppSocket;
@@ -121,6 +125,36 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
    */
   protected int FILE_CACHE = 10;
   
+  /**
+   * The largest a file chunk grows to, while it is the only outgoing transfer.
+   * 
+   * Chunks start at CHUNK_SIZE.  Receivers older than this class can't read a chunk 
+   * bigger than their CHUNK_SIZE, so this defaults to CHUNK_SIZE (no growth).
+   */
+  protected int MAX_CHUNK_SIZE = 0;
+  
+  /**
+   * Send files with FileChannel.transferTo(), and receive them into mapped regions of the 
+   * file, if the socket can zero copy.
+   */
+  protected boolean ZERO_COPY = true;
+  
+  /**
+   * How much of the file to map at a time when receiving.
+   */
+  protected int MAPPED_REGION_SIZE = 16*1024*1024;
+  
+  /**
+   * True if we are using ZERO_COPY on this socket.
+   */
+  protected boolean zeroCopy = false;
+  
+  /**
+   * Buffers to read file chunks into when we can't zero copy.  These are heap buffers, 
+   * because the layers that change the bytes (such as the EncryptedSocket) need array(). 
+   */
+  protected LinkedList<byte[]> chunkPool = new LinkedList<byte[]>();
+  
   ByteBuffer byteBuffer;
   protected SelectorManager selectorManager;
   protected Logger logger;
@@ -159,6 +193,12 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
     if (numChunksToWriteToNetwork > 0) {
       NUM_OUTSTANDING_CHUNKS_TO_WRITE_TO_NETWORK = numChunksToWriteToNetwork;
     }
+    Parameters params = env.getParameters();
+    if (params.contains("p2p_filetransfer_maxChunkSize")) MAX_CHUNK_SIZE = params.getInt("p2p_filetransfer_maxChunkSize");
+    if (params.contains("p2p_filetransfer_zeroCopy")) ZERO_COPY = params.getBoolean("p2p_filetransfer_zeroCopy");
+    if (MAX_CHUNK_SIZE < CHUNK_SIZE) MAX_CHUNK_SIZE = CHUNK_SIZE;
+    
+    this.zeroCopy = ZERO_COPY && (socket instanceof ZeroCopySocket) && ((ZeroCopySocket)socket).canZeroCopy();
     this.socket = socket;
     this.callback = callback;
     this.fileAllocater = fileAllocater;
@@ -210,6 +250,32 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
     for (ReceiptImpl r : new ArrayList<ReceiptImpl>(outgoingData.values())) {
       r.failed();
     }
+    synchronized(chunkPool) {
+      chunkPool.clear();
+    }
+  }
+  
+  /**
+   * Get a buffer for a chunk of size bytes (including the header).
+   * 
+   * Only the big chunks come from the pool.
+   */
+  protected byte[] getChunkBytes(int size) {
+    if (size <= 9+CHUNK_SIZE) return new byte[size];
+    synchronized(chunkPool) {
+      if (!chunkPool.isEmpty()) return chunkPool.removeFirst();
+    }
+    return new byte[9+MAX_CHUNK_SIZE];
+  }
+  
+  /**
+   * Return a buffer from getChunkBytes() when it has been written.
+   */
+  protected void returnChunkBytes(byte[] chunkBytes) {
+    if (chunkBytes.length != 9+MAX_CHUNK_SIZE) return;
+    synchronized(chunkPool) {
+      if (!failed && chunkPool.size() < NUM_OUTSTANDING_CHUNKS_TO_WRITE_TO_NETWORK) chunkPool.addFirst(chunkBytes);
+    }
   }
   
   int seq = Integer.MIN_VALUE;
@@ -439,6 +505,10 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
     int uid;
     boolean cancelled = false;    
     boolean completed = false;
+    /**
+     * The receiver has no record of this until we start writing it.
+     */
+    boolean started = false;
     
     public ReceiptImpl(byte priority, int uid) {
       this.priority = priority;
@@ -470,8 +540,7 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
       cancelled = true;
       // TODO: remove from table
       outgoingData.remove(uid);
-      // TODO: send cancel msg
-      sendCancel(uid);
+      if (started) sendCancel(uid);
       return !completed;
     }
 
@@ -608,7 +677,12 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
   /**
    * Keep up to FILE_CACHE of chunks scheduled, and every time one finishes, read some more to schedule more.
    * 
-   * TODO: Make more than 1 outstanding chunk
+   * If zeroCopy, the chunks are sent straight from the FileChannel when they are written, 
+   * otherwise they are read into a buffer on the blocking IO thread.
+   * 
+   * The chunks start at CHUNK_SIZE, and double up to MAX_CHUNK_SIZE while this is the only 
+   * outgoing transfer.  A chunk can't be preempted, so it goes back to CHUNK_SIZE as soon as 
+   * there is something else to send.
    * 
    * @author Jeff Hoye
    * 
@@ -618,6 +692,7 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
      * The whole message to send.
      */
     FileInputStream file;
+    FileChannel channel;
     
     File f;
     byte[] metadata;
@@ -633,6 +708,14 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
     long ptr; // managed on the selector thread
     long length;
     long initialPosition;
+    int chunkSize = CHUNK_SIZE;
+    
+    /**
+     * zeroCopy: a chunk is being written, so we can't close the file yet.
+     * Managed on the selector thread.
+     */
+    boolean transferring = false;
+    boolean closeDeferred = false;
 //    ByteBuffer header;
     
     
@@ -653,7 +736,7 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
         failed();
         throw new RuntimeException(t);
       }
-      file.skip(offset);
+      channel = file.getChannel();
       lastByte = offset+length;
       
       this.deliverAckToMe = c;
@@ -703,7 +786,12 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
     }
 
     public void scheduleNewFileReaderIfNecessary() {
-      // call me on the selector
+      // call me on the selector, sendFile() may be called on any thread, and the chunk's 
+      // seq must be in the same order as its position in the file
+      if (!selectorManager.isSelectorThread()) {
+        selectorManager.invoke(new Runnable() { public void run() {scheduleNewFileReaderIfNecessary();}});
+        return;
+      }
       
       if (cancelled) return;
       
@@ -711,10 +799,19 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
       if (ptr < lastByte) {
         // Construct a chunk (note that we reuse all the objects...)
         
-        final int amtToRead = (int)Math.min(CHUNK_SIZE,lastByte-ptr);
+        final int amtToRead = (int)Math.min(chunkSize,lastByte-ptr);
         final long seq = wrapperSeq++;
+        final long pos = ptr;
 
         ptr+=amtToRead;
+        adaptChunkSize();
+        
+        if (zeroCopy) {
+          // the file is closed when the last chunk is written
+          enqueue(new TransferMessageWrapper(this,seq,pos,amtToRead));
+          return;
+        }
+        
         Continuation<Object, Exception> c = new Continuation<Object, Exception>() {
           
           public void receiveResult(Object result) {
@@ -730,27 +827,35 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
         
         };
         
-        processor.processBlockingIO(new WorkRequest<Object>(c, environment.getSelectorManager()) {
+        processor.processBlockingIO(new WorkRequest<Object>(c, environment.getSelectorManager(), FileReceiptImpl.this) {
           
           @Override
           public Object doWork() throws Exception {
             //logger.log("doing "+seq);
-            byte[] chunkBytes = new byte[1+4+4+amtToRead];
+            final byte[] chunkBytes = getChunkBytes(1+4+4+amtToRead);
             
             chunkBytes[0] = MSG_CHUNK;
             MathUtils.intToByteArray(uid,chunkBytes,1);
             MathUtils.intToByteArray(amtToRead,chunkBytes,5);
             
             // blocking
-            long ret = file.read(chunkBytes,9,amtToRead);
-            if (ret < 0) {
-              throw new EOFException("Unexpected EOF... cancelling "+uid+" "+f+".");
+            ByteBuffer bb = ByteBuffer.wrap(chunkBytes,9,amtToRead);
+            while (bb.hasRemaining()) {
+              if (channel.read(bb,pos+bb.position()-9) < 0) {
+                throw new EOFException("Unexpected EOF... cancelling "+uid+" "+f+".");
+              }
             }
             
 //            logger.log("enqueuing "+seq);
             ArrayList<ByteBuffer> foo = new ArrayList<ByteBuffer>();
-            foo.add(ByteBuffer.wrap(chunkBytes));
-            enqueue(new MessageWrapperImpl(FileReceiptImpl.this,seq,foo));
+            foo.add(ByteBuffer.wrap(chunkBytes,0,9+amtToRead));
+            enqueue(new MessageWrapperImpl(FileReceiptImpl.this,seq,foo) {
+              @Override
+              public void complete() {
+                returnChunkBytes(chunkBytes);
+                super.complete();
+              }
+            });
             return null;
           }          
         });
@@ -762,6 +867,32 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
       }      
     }
 
+    /**
+     * Only grow the chunks while nothing else is being sent.
+     */
+    void adaptChunkSize() {
+      if (outgoingData.size() <= 1) {
+        chunkSize = Math.min(chunkSize*2, MAX_CHUNK_SIZE);
+      } else {
+        chunkSize = CHUNK_SIZE;
+      }
+    }
+    
+    /**
+     * zeroCopy: don't close the file while a chunk is being written from it.
+     */
+    void scheduleCloseWhenIdle() {
+      if (!selectorManager.isSelectorThread()) {
+        selectorManager.invoke(new Runnable() { public void run() {scheduleCloseWhenIdle();}});
+        return;
+      }
+      if (transferring) {
+        closeDeferred = true;
+        return;
+      }
+      scheduleClose();
+    }
+    
     boolean closing = false;
     void scheduleClose() {
       synchronized (this) {
@@ -780,7 +911,7 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
         }
       
       };
-      processor.processBlockingIO(new WorkRequest<Object>(c2, environment.getSelectorManager()) {
+      processor.processBlockingIO(new WorkRequest<Object>(c2, environment.getSelectorManager(), FileReceiptImpl.this) {
         @Override
         public Object doWork() throws Exception {
           file.close();
@@ -790,8 +921,20 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
     }
     
     void complete(MessageWrapper wrapper) {
-      // notify listener
-      notifyListenersSendFileProgress(this,ptr-initialPosition, length);
+      if (wrapper instanceof TransferMessageWrapper) {
+        transferring = false;
+        long sent = ((TransferMessageWrapper)wrapper).end;
+        
+        // notify listener
+        notifyListenersSendFileProgress(this,sent-initialPosition, length);
+        
+        if (closeDeferred || sent == lastByte) {
+          scheduleClose();
+        }
+      } else {
+        // notify listener
+        notifyListenersSendFileProgress(this,ptr-initialPosition, length);
+      }
       
       // called on the selector, no worries about cancelled, it will work out
       if (cancelled) return;
@@ -877,7 +1020,11 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
         mri.cancel();
       }
        
-      scheduleClose();
+      if (zeroCopy) {
+        scheduleCloseWhenIdle();
+      } else {
+        scheduleClose();
+      }
 
       // this is weird, but we have to run a message through the 
       // processor to make sure that cancel is called after all the pending
@@ -901,7 +1048,7 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
         }      
       };
       
-      processor.processBlockingIO(new WorkRequest<Object>(c,environment.getSelectorManager()) {
+      processor.processBlockingIO(new WorkRequest<Object>(c,environment.getSelectorManager(), FileReceiptImpl.this) {
 
         @Override
         public Object doWork() throws Exception {
@@ -1009,6 +1156,7 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
         return true;
       } else {
         started = true;
+        receipt.started = true;
         long bytesWritten;
         if ((bytesWritten = socket.write(message.get(0))) == -1) {
           // socket was closed, panic
@@ -1049,6 +1197,76 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
     }
   }
 
+  /**
+   * Writes a chunk of the file straight from the FileChannel, if zeroCopy.
+   * 
+   * @author agent
+   */
+  class TransferMessageWrapper extends MessageWrapperImpl {
+    FileReceiptImpl fileReceipt;
+    ByteBuffer header;
+    long position;
+    long end;
+    
+    public TransferMessageWrapper(FileReceiptImpl receipt, long seq, long position, int length) {
+      super(receipt, seq, null);
+      this.fileReceipt = receipt;
+      this.position = position;
+      this.end = position+length;
+      
+      // byte MSG_CHUNK, int UID, int chunk_length
+      header = ByteBuffer.allocate(9);
+      header.put(MSG_CHUNK);
+      header.put(MathUtils.intToByteArray(receipt.uid));
+      header.put(MathUtils.intToByteArray(length));
+      header.clear();
+    }
+    
+    /**
+     * @return true if should keep writing
+     */
+    public boolean receiveSelectResult(AppSocket socket) throws IOException {
+      if (logger.level <= Logger.FINEST) logger.log(this+".receiveSelectResult("+socket+")");
+      
+      if (receipt.isCancelled() && !started) {
+        if (logger.level <= Logger.FINEST) logger.log(this+".rsr("+socket+") cancelled"); 
+        messageThatIsBeingWritten = null;
+        return true;
+      } 
+      
+      started = true;
+      receipt.started = true;
+      fileReceipt.transferring = true;
+      if (header.hasRemaining()) {
+        if (socket.write(header) == -1) {
+          // socket was closed, panic
+          socketClosed();
+          return false;
+        }
+        if (header.hasRemaining()) return false;
+      }
+      
+      while (position < end) {
+        long bytesWritten = ((ZeroCopySocket)socket).transferFrom(fileReceipt.channel, position, end-position);
+        if (bytesWritten == -1) {
+          // socket was closed, panic
+          socketClosed();
+          return false;
+        }
+        if (bytesWritten == 0) {
+          // we already sent the header, so we can't just cancel
+          if (position >= fileReceipt.channel.size()) throw new EOFException("Unexpected EOF sending "+fileReceipt.f+" at "+position);
+          if (logger.level <= Logger.FINEST) logger.log(this+".rsr("+socket+") has remaining"); 
+          return false;
+        }
+        position+=bytesWritten;
+      }
+      
+      // notify that this MsgWrapper is complete
+      return FileTransferImpl.this.complete(this); 
+    }
+  }
+  
   public void receiveSelectResult(AppSocket socket, boolean canRead, boolean canWrite) {
 //    if (canRead || !canWrite) throw new IllegalStateException(this+" Expected only to write. canRead:"+canRead+" canWrite:"+canWrite+" socket:"+socket);
     
@@ -1081,12 +1299,22 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
   }
 
   protected void incrementFileChunksInMemory() {
-    if (!environment.getSelectorManager().isSelectorThread()) throw new IllegalStateException("Must be called on selector thread to maintain sync.");
-    fileChunksInMemory++;
+    incrementFileChunksInMemory(1);
   }
   protected void decrementFileChunksInMemory() {
+    decrementFileChunksInMemory(1);
+  }
+  
+  /**
+   * @param num the size of the chunk in units of CHUNK_SIZE
+   */
+  protected void incrementFileChunksInMemory(int num) {
+    if (!environment.getSelectorManager().isSelectorThread()) throw new IllegalStateException("Must be called on selector thread to maintain sync.");
+    fileChunksInMemory+=num;
+  }
+  protected void decrementFileChunksInMemory(int num) {
     if (!environment.getSelectorManager().isSelectorThread()) throw new IllegalStateException("Must be called on selector thread to maintain sync.");
-    fileChunksInMemory--;
+    fileChunksInMemory-=num;
     registerToReadIfPossible();
   }
   
@@ -1422,12 +1650,25 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
     }
   }
   
+  /**
+   * If zeroCopy, reads the chunks straight into a mapped region of the file, 
+   * on the selector thread.  Otherwise it copies each chunk, and writes it on the 
+   * blocking IO thread.
+   */
   public class FileDataReader implements DataReader, FileReceipt {
     protected int uid;
     protected byte[] bytes;
     protected ByteBuffer curReader;
     protected RandomAccessFile file;
     
+    /**
+     * zeroCopy: the part of the file we are reading into
+     */
+    protected FileChannel channel;
+    protected MappedByteBuffer region;
+    protected int chunkRemaining;
+    protected long originalLength;
+    
     protected File f;    
     protected byte[] metadata;
     protected long offset;
@@ -1451,9 +1692,14 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
       this.length = length;
       file = new RandomAccessFile(f, "rw");
       this.metadata = metadata;
-      file.seek(offset);
-      bytes = new byte[CHUNK_SIZE];
-      curReader = ByteBuffer.wrap(bytes);   
+      if (zeroCopy) {
+        channel = file.getChannel();
+        originalLength = channel.size();
+      } else {
+        file.seek(offset);
+        bytes = new byte[CHUNK_SIZE];
+        curReader = ByteBuffer.wrap(bytes);   
+      }
     }
 
     public String toString() {
@@ -1461,13 +1707,22 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
     }
     
     public boolean read(AppSocket socket, int numToRead) throws IOException {
+      reader = this;
+      if (zeroCopy) {
+        chunkRemaining = numToRead;
+        return read(socket);
+      }
       if (curReader.position() != 0) throw new IllegalStateException("curReader has "+curReader.remaining()+" bytes remaining. "+numToRead);
+      if (numToRead > bytes.length) {
+        bytes = new byte[numToRead];
+        curReader = ByteBuffer.wrap(bytes);
+      }
       curReader.limit(numToRead);
-      reader = this;
       return read(socket);
     }
 
     public boolean read(AppSocket socket) throws IOException {
+      if (zeroCopy) return readMapped(socket);
       long ret = socket.read(curReader);
       if (ret < 0) {
         socketClosed();
@@ -1482,6 +1737,33 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
       return true;
     }
 
+    protected boolean readMapped(AppSocket socket) throws IOException {
+      while (chunkRemaining > 0) {
+        if (region == null || !region.hasRemaining()) {
+          long size = Math.min(MAPPED_REGION_SIZE, offset+length-ptr);
+          if (size <= 0) throw new IOException(this+" received more than "+length+" bytes.");
+          region = channel.map(FileChannel.MapMode.READ_WRITE, ptr, size);
+        }
+        int limit = region.limit();
+        if (region.remaining() > chunkRemaining) region.limit(region.position()+chunkRemaining);
+        long ret = socket.read(region);
+        region.limit(limit);
+        if (ret < 0) {
+          socketClosed();
+          return false;
+        }
+        if (ret == 0) return false;
+        chunkRemaining-=ret;
+        ptr+=ret;
+      }
+      
+      reader = msgTypeReader;
+      if (cancelled) return true;
+      notifyListenersReceiveFileProgress(this, ptr-offset, length);
+      if (ptr == offset+length) complete();
+      return true;
+    }
+    
     public void completeChunk() {
       curReader.flip();
       
@@ -1489,14 +1771,15 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
       final byte[] writeMe = new byte[curReader.remaining()];
       curReader.get(writeMe);
       curReader.clear();
-      incrementFileChunksInMemory();
+      final int weight = (writeMe.length+CHUNK_SIZE-1)/CHUNK_SIZE;
+      incrementFileChunksInMemory(weight);
       // schedule them to be written, then notified on the blockingIOThread
       
       // note, that it is required that these are in order
       WorkRequest<Long> wr = new WorkRequest<Long>(new Continuation<Long, Exception>() {
       
         public void receiveResult(Long myPtrL) {
-          decrementFileChunksInMemory();
+          decrementFileChunksInMemory(weight);
           if (cancelled) return;
           // notify listeners
           long myPtr = myPtrL.longValue();
@@ -1508,9 +1791,9 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
         public void receiveException(Exception exception) {
           if (logger.level <= Logger.WARNING) logger.logException("Error writing file "+f+" "+metadata.length, exception);
           FileDataReader.this.cancel();
-          decrementFileChunksInMemory();
+          decrementFileChunksInMemory(weight);
         }      
-      },environment.getSelectorManager()) {
+      },environment.getSelectorManager(), FileDataReader.this) {
       
         @Override
         public Long doWork() throws Exception {
@@ -1529,6 +1812,7 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
     
     public void complete() {
       incomingData.remove(uid);
+      region = null;
       try {
         file.close();
       } catch (IOException ioe) {
@@ -1550,7 +1834,7 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
     }
 
     public long getSize() {
-      return bytes.length;
+      return length;
     }
 
     public int getUID() {
@@ -1582,6 +1866,7 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
     // called when actually cancelled
     public void cancelled(final DataReader reader) {
       cancelled = true;
+      region = null;
       
       // Don't close the file on the wrong thread.
       WorkRequest<RandomAccessFile> wr = new WorkRequest<RandomAccessFile>(new Continuation<RandomAccessFile, Exception>() {
@@ -1595,10 +1880,19 @@ public class FileTransferImpl implements FileTransfer, AppSocketReceiver {
         public void receiveException(Exception exception) {
           if (logger.level <= Logger.WARNING) logger.logException("Error closing file "+file, exception);
         }      
-      },environment.getSelectorManager()) {
+      },environment.getSelectorManager(), FileDataReader.this) {
       
         @Override
         public RandomAccessFile doWork() throws Exception {
+          if (channel != null) {
+            // mapping the last region may have grown the file past what we received
+            try {
+              long size = Math.max(originalLength, ptr);
+              if (channel.size() > size) channel.truncate(size);
+            } catch (IOException ioe) {
+              if (logger.level <= Logger.WARNING) logger.logException("Error truncating file "+f, ioe);
+            }
+          }
           file.close();
           return file;
         }
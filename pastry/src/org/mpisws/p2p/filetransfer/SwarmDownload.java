@@ -0,0 +1,687 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package org.mpisws.p2p.filetransfer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import rice.Continuation;
+import rice.environment.Environment;
+import rice.environment.logging.Logger;
+import rice.environment.params.Parameters;
+import rice.environment.processing.WorkRequest;
+import rice.p2p.commonapi.appsocket.AppSocket;
+import rice.p2p.util.MathUtils;
+import rice.p2p.util.rawserialization.SimpleInputBuffer;
+import rice.p2p.util.rawserialization.SimpleOutputBuffer;
+import rice.selector.SelectorManager;
+import rice.selector.TimerTask;
+
+/**
+ * Downloads a file from several sources at once, each running a SwarmServer.  
+ * 
+ * The file is split into the pieces of its SwarmManifest.  Each source is kept 
+ * PIPELINE_DEPTH pieces ahead, so faster sources come back for more pieces sooner.  
+ * Every piece is checked against the manifest before it is accepted, and a source that 
+ * sends MAX_BAD_PIECES bad pieces is dropped.  
+ * 
+ * Once there are no pieces left to request, an idle source takes a piece away from a 
+ * source which (at its measured throughput) would take more than STEAL_FACTOR times as 
+ * long to finish it.  A source that makes no progress for STALL_TIMEOUT is dropped.
+ * 
+ * The pieces are written into dest.part, and each verified piece is appended to dest.swarm, 
+ * so a new SwarmDownload of the same manifest to the same dest resumes where this one 
+ * stopped.  When all of the pieces are verified, dest.part is renamed to dest.
+ * 
+ * @author agent
+ */
+public class SwarmDownload {
+  public static final byte STATE_VERSION = 0;
+  
+  /**
+   * Requests to keep outstanding at each source.
+   */
+  public int PIPELINE_DEPTH = 2;
+  
+  /**
+   * Take a piece away from a source if another source could finish it this many times sooner.
+   */
+  public double STEAL_FACTOR = 2.0;
+  
+  /**
+   * Drop a source which makes no progress for this long.
+   */
+  public int STALL_TIMEOUT = 30000;
+  
+  /**
+   * Drop a source which sends this many pieces which don't match the manifest.
+   */
+  public int MAX_BAD_PIECES = 3;
+  
+  /**
+   * How often to look for stalled sources.
+   */
+  public int CHECK_INTERVAL = 1000;
+  
+  protected String name;
+  protected SwarmManifest manifest;
+  protected File dest;
+  protected File partFile;
+  protected File stateFile;
+  
+  protected RandomAccessFile part;
+  protected FileChannel partChannel;
+  protected FileOutputStream stateLog;
+  
+  /**
+   * Verified pieces.
+   */
+  protected BitSet done;
+  
+  /**
+   * Pieces which are verified, being verified, or requested.
+   */
+  protected BitSet taken;
+  protected int numDone = 0;
+  protected int numResumed = 0;
+  
+  protected List<Source> sources = new ArrayList<Source>();
+  protected boolean finished = false;
+  protected TimerTask checker;
+  
+  protected Continuation<File, Exception> deliverResultToMe;
+  protected Environment environment;
+  protected SelectorManager selectorManager;
+  protected Logger logger;
+  
+  /**
+   * @param name what to ask the SwarmServers for
+   * @param manifest the description of the file
+   * @param dest where to put the file
+   * @param deliverResultToMe gets dest when the whole file is verified
+   * @throws IOException if the partial file can't be created
+   */
+  public SwarmDownload(String name, SwarmManifest manifest, File dest, Continuation<File, Exception> deliverResultToMe, Environment env) throws IOException {
+    this.name = name;
+    this.manifest = manifest;
+    this.dest = dest;
+    this.deliverResultToMe = deliverResultToMe;
+    this.environment = env;
+    this.selectorManager = env.getSelectorManager();
+    this.logger = env.getLogManager().getLogger(SwarmDownload.class, null);
+    
+    Parameters p = env.getParameters();
+    if (p.contains("p2p_filetransfer_swarm_pipelineDepth")) PIPELINE_DEPTH = p.getInt("p2p_filetransfer_swarm_pipelineDepth");
+    if (p.contains("p2p_filetransfer_swarm_stealFactor")) STEAL_FACTOR = p.getDouble("p2p_filetransfer_swarm_stealFactor");
+    if (p.contains("p2p_filetransfer_swarm_stallTimeout")) STALL_TIMEOUT = p.getInt("p2p_filetransfer_swarm_stallTimeout");
+    
+    partFile = new File(dest.getPath()+".part");
+    stateFile = new File(dest.getPath()+".swarm");
+    done = new BitSet(manifest.getNumPieces());
+    taken = new BitSet(manifest.getNumPieces());
+    
+    boolean resumed = readState();
+    part = new RandomAccessFile(partFile, "rw");
+    // so all of the pieces can be written at once
+    if (part.length() != manifest.getLength()) part.setLength(manifest.getLength());
+    partChannel = part.getChannel();
+    stateLog = new FileOutputStream(stateFile, resumed);
+    if (!resumed) {
+      SimpleOutputBuffer sob = new SimpleOutputBuffer();
+      sob.writeByte(STATE_VERSION);
+      sob.writeUTF(name);
+      manifest.serialize(sob);
+      stateLog.write(sob.getBytes(), 0, sob.getWritten());
+    }
+    if (logger.level <= Logger.INFO) logger.log(this+" starting with "+numResumed+" pieces");
+    
+    checker = new TimerTask() {
+      @Override
+      public void run() {
+        checkSources();
+      }
+    };
+    selectorManager.getTimer().schedule(checker, CHECK_INTERVAL, CHECK_INTERVAL);
+    
+    if (numDone == manifest.getNumPieces()) {
+      selectorManager.invoke(new Runnable() { public void run() {finish();}});
+    }
+  }
+  
+  /**
+   * Reads the verified pieces from the stateFile, if it's for the same download.
+   * 
+   * @return true if we are resuming
+   */
+  protected boolean readState() {
+    if (!stateFile.exists()) return false;
+    try {
+      if (partFile.length() == manifest.getLength()) {
+        byte[] bytes = new byte[(int)stateFile.length()];
+        FileInputStream fis = new FileInputStream(stateFile);
+        try {
+          int read = 0;
+          while (read < bytes.length) {
+            int ret = fis.read(bytes, read, bytes.length-read);
+            if (ret < 0) break;
+            read+=ret;
+          }
+        } finally {
+          fis.close();
+        }
+        
+        SimpleInputBuffer sib = new SimpleInputBuffer(bytes);
+        if (sib.readByte() == STATE_VERSION && sib.readUTF().equals(name) && new SwarmManifest(sib).equals(manifest)) {
+          // a torn piece number at the end is ignored
+          while (sib.bytesRemaining() >= 4) {
+            int piece = sib.readInt();
+            if (piece >= 0 && piece < manifest.getNumPieces() && !done.get(piece)) {
+              done.set(piece);
+              taken.set(piece);
+              numDone++;
+            }
+          }
+          numResumed = numDone;
+          return true;
+        }
+      }
+    } catch (IOException ioe) {
+      if (logger.level <= Logger.INFO) logger.logException("Can't resume "+this+" from "+stateFile, ioe);
+    }
+    // start over
+    done.clear();
+    taken.clear();
+    numDone = 0;
+    stateFile.delete();
+    partFile.delete();
+    return false;
+  }
+  
+  /**
+   * Download from the SwarmServer on the other end of socket too.
+   */
+  public void addSource(final AppSocket socket) {
+    if (!selectorManager.isSelectorThread()) {
+      selectorManager.invoke(new Runnable() { public void run() {addSource(socket);}});
+      return;
+    }
+    if (finished) {
+      socket.close();
+      return;
+    }
+    Source s = new Source(socket);
+    sources.add(s);
+    if (logger.level <= Logger.FINE) logger.log(this+".addSource("+s+")");
+    fill(s);
+  }
+  
+  /**
+   * Stop downloading, the continuation isn't called.  The partial file is kept, 
+   * so the download can be resumed.
+   */
+  public void cancel() {
+    if (!selectorManager.isSelectorThread()) {
+      selectorManager.invoke(new Runnable() { public void run() {cancel();}});
+      return;
+    }
+    if (finished) return;
+    shutdown(null);
+  }
+  
+  /**
+   * Fills the pipelines of the idle sources, fastest first.
+   */
+  protected void fill() {
+    if (finished) return;
+    List<Source> ordered = new ArrayList<Source>(sources);
+    Collections.sort(ordered, new Comparator<Source>() {
+      public int compare(Source a, Source b) {
+        return Double.compare(b.rate, a.rate);
+      }
+    });
+    for (Source s : ordered) {
+      fill(s);
+    }
+  }
+  
+  protected void fill(Source s) {
+    while (!finished && !s.dead && s.outstanding.size() < PIPELINE_DEPTH) {
+      int piece = taken.nextClearBit(0);
+      if (piece >= manifest.getNumPieces()) {
+        steal(s);
+        return;
+      }
+      s.request(piece);
+    }
+  }
+  
+  /**
+   * Called when s has room for more pieces, but all of them are taken.  Cancel the 
+   * piece which is furthest from done, if s could do it a lot sooner.  
+   * 
+   * The piece is given to the fastest idle source when the cancel comes back.
+   */
+  protected void steal(Source s) {
+    // one at a time for each source
+    if (s.stealing != null || s.rate <= 0) return;
+    long now = environment.getTimeSource().currentTimeMillis();
+    double myTime = (s.outstanding.size()+1)*manifest.getPieceSize()/s.rate;
+    
+    Request slowest = null;
+    double slowestTime = STEAL_FACTOR*myTime;
+    for (Source other : sources) {
+      if (other == s) continue;
+      for (Request r : other.outstanding.values()) {
+        if (r.cancelling) continue;
+        double time = r.timeRemaining(now);
+        if (time > slowestTime) {
+          slowest = r;
+          slowestTime = time;
+        }
+      }
+    }
+    if (slowest != null) {
+      if (logger.level <= Logger.FINE) logger.log(this+" taking piece "+slowest.piece+" from "+slowest.source+" ("+slowestTime+" millis) for "+s+" ("+myTime+" millis)");
+      slowest.cancel(s);
+    }
+  }
+  
+  /**
+   * Drop stalled sources, and see if anything should be stolen now.
+   */
+  protected void checkSources() {
+    if (finished) return;
+    long now = environment.getTimeSource().currentTimeMillis();
+    for (Source s : new ArrayList<Source>(sources)) {
+      if (!s.outstanding.isEmpty() && now-s.lastProgress > STALL_TIMEOUT) {
+        if (logger.level <= Logger.INFO) logger.log(this+" dropping stalled source "+s);
+        drop(s);
+      }
+    }
+    fill();
+  }
+  
+  /**
+   * Checks the piece against the manifest on the blocking IO thread.  Accepts it, or 
+   * gives it back.
+   */
+  protected void verify(final Source s, final int piece) {
+    environment.getProcessor().processBlockingIO(new WorkRequest<Boolean>(new Continuation<Boolean, Exception>() {
+      public void receiveResult(Boolean result) {
+        if (finished) return;
+        if (result.booleanValue()) {
+          done.set(piece);
+          numDone++;
+          if (numDone == manifest.getNumPieces()) {
+            finish();
+            return;
+          }
+        } else {
+          if (logger.level <= Logger.WARNING) logger.log(SwarmDownload.this+" bad piece "+piece+" from "+s);
+          taken.clear(piece);
+          s.badPieces++;
+          if (s.badPieces >= MAX_BAD_PIECES) {
+            drop(s);
+            return;
+          }
+        }
+        fill();
+      }
+      
+      public void receiveException(Exception exception) {
+        if (finished) return;
+        if (logger.level <= Logger.WARNING) logger.logException(SwarmDownload.this+" error verifying piece "+piece, exception);
+        shutdown(exception);
+      }
+    }, selectorManager, this) {
+      @Override
+      public Boolean doWork() throws Exception {
+        ByteBuffer data = partChannel.map(FileChannel.MapMode.READ_ONLY, manifest.getPieceOffset(piece), manifest.getPieceLength(piece));
+        if (!manifest.verify(piece, data)) return false;
+        stateLog.write(MathUtils.intToByteArray(piece));
+        return true;
+      }
+    });
+  }
+  
+  /**
+   * Gives back the pieces of s, and closes it.
+   */
+  protected void drop(Source s) {
+    if (s.dead) return;
+    s.dead = true;
+    sources.remove(s);
+    for (Request r : s.outstanding.values()) {
+      r.cancelled();
+      taken.clear(r.piece);
+    }
+    s.outstanding.clear();
+    s.socket.close();
+    
+    if (finished) return;
+    if (sources.isEmpty()) {
+      shutdown(new IOException("No sources left for "+this));
+      return;
+    }
+    fill();
+  }
+  
+  protected void finish() {
+    if (logger.level <= Logger.INFO) logger.log(this+" complete");
+    finished = true;
+    closeSources();
+    environment.getProcessor().processBlockingIO(new WorkRequest<File>(deliverResultToMe, selectorManager, this) {
+      @Override
+      public File doWork() throws Exception {
+        stateLog.close();
+        part.close();
+        if (dest.exists() && !dest.delete()) throw new IOException("Can't replace "+dest);
+        if (!partFile.renameTo(dest)) throw new IOException("Can't rename "+partFile+" to "+dest);
+        stateFile.delete();
+        return dest;
+      }
+    });
+  }
+  
+  /**
+   * Stops the download, and keeps the partial file.
+   * 
+   * @param reason the exception to give the continuation, null if none
+   */
+  protected void shutdown(final Exception reason) {
+    finished = true;
+    closeSources();
+    environment.getProcessor().processBlockingIO(new WorkRequest<Object>(new Continuation<Object, Exception>() {
+      public void receiveResult(Object result) {
+        if (reason != null && deliverResultToMe != null) deliverResultToMe.receiveException(reason);
+      }
+      
+      public void receiveException(Exception exception) {
+        if (logger.level <= Logger.WARNING) logger.logException("Error closing "+partFile, exception);
+        if (deliverResultToMe != null) deliverResultToMe.receiveException(reason == null ? exception : reason);
+      }
+    }, selectorManager, this) {
+      @Override
+      public Object doWork() throws Exception {
+        stateLog.close();
+        part.close();
+        return null;
+      }
+    });
+  }
+  
+  protected void closeSources() {
+    checker.cancel();
+    for (Source s : new ArrayList<Source>(sources)) {
+      drop(s);
+    }
+  }
+  
+  public SwarmManifest getManifest() {
+    return manifest;
+  }
+  
+  public File getFile() {
+    return dest;
+  }
+  
+  public int getNumPiecesDone() {
+    return numDone;
+  }
+  
+  /**
+   * @return the number of pieces that were already done when this started
+   */
+  public int getNumPiecesResumed() {
+    return numResumed;
+  }
+  
+  public int getNumSources() {
+    return sources.size();
+  }
+  
+  public String toString() {
+    return "SwarmDownload<"+name+"> "+numDone+"/"+manifest.getNumPieces();
+  }
+  
+  /**
+   * A piece we asked a source for.
+   */
+  class Request {
+    int piece;
+    Source source;
+    long requestTime;
+    long startTime = 0;
+    long received = 0;
+    boolean cancelling = false;
+    
+    /**
+     * The source that took this piece.
+     */
+    Source thief;
+    
+    public Request(int piece, Source source, long requestTime) {
+      this.piece = piece;
+      this.source = source;
+      this.requestTime = requestTime;
+    }
+    
+    /**
+     * @return the estimated millis until the source finishes this piece, including 
+     * the pieces it has to send first.
+     */
+    double timeRemaining(long now) {
+      long bytes = 0;
+      for (Request r : source.outstanding.values()) {
+        if (r.requestTime <= requestTime) bytes += manifest.getPieceLength(r.piece)-r.received;
+      }
+      double rate = source.rate;
+      if (rate <= 0) {
+        // haven't finished a piece yet
+        if (startTime == 0 || received == 0) return now-requestTime;
+        rate = (1.0*received)/Math.max(1, now-startTime);
+      }
+      return bytes/rate;
+    }
+    
+    void cancel(Source thief) {
+      cancelling = true;
+      this.thief = thief;
+      thief.stealing = this;
+      source.send(SwarmServer.MSG_CANCEL, piece, null);
+    }
+    
+    /**
+     * Called when this is no longer outstanding.
+     */
+    void cancelled() {
+      if (thief != null && thief.stealing == this) thief.stealing = null;
+    }
+  }
+  
+  /**
+   * One of the SwarmServers we are downloading from.
+   */
+  class Source implements FileTransferCallback, FileAllocationStrategy, FileTransferListener {
+    AppSocket socket;
+    FileTransfer fileTransfer;
+    Map<Integer, Request> outstanding = new HashMap<Integer, Request>();
+    
+    /**
+     * Measured throughput in bytes/milli, -1 until the first piece.
+     */
+    double rate = -1;
+    long lastCompletion = 0;
+    long lastProgress;
+    int badPieces = 0;
+    int piecesReceived = 0;
+    boolean dead = false;
+    
+    /**
+     * The piece we are taking from another source.
+     */
+    Request stealing;
+    
+    public Source(AppSocket socket) {
+      this.socket = socket;
+      this.lastProgress = environment.getTimeSource().currentTimeMillis();
+      fileTransfer = new FileTransferImpl(socket, this, this, environment);
+      fileTransfer.addListener(this);
+    }
+    
+    void request(int piece) {
+      long now = environment.getTimeSource().currentTimeMillis();
+      if (outstanding.isEmpty()) lastProgress = now;
+      taken.set(piece);
+      outstanding.put(piece, new Request(piece, this, now));
+      send(SwarmServer.MSG_REQUEST, piece, name);
+    }
+    
+    void send(byte type, int piece, String name) {
+      try {
+        SimpleOutputBuffer sob = new SimpleOutputBuffer();
+        sob.writeByte(type);
+        sob.writeInt(piece);
+        if (name != null) {
+          sob.writeLong(manifest.getPieceOffset(piece));
+          sob.writeInt(manifest.getPieceLength(piece));
+          sob.writeUTF(name);
+        }
+        fileTransfer.sendMsg(sob.getByteBuffer(), FileTransferImpl.HIGH_PRIORITY, null);
+      } catch (IOException ioe) {
+        // SimpleOutputBuffer doesn't throw
+        throw new RuntimeException(ioe);
+      }
+    }
+    
+    public void messageReceived(ByteBuffer bb) {
+      if (dead) return;
+      byte type = bb.get();
+      int piece = bb.getInt();
+      Request r = outstanding.remove(piece);
+      if (r == null) return;
+      r.cancelled();
+      taken.clear(piece);
+      switch (type) {
+      case SwarmServer.MSG_CANCELLED:
+        fill();
+        break;
+      case SwarmServer.MSG_NOT_FOUND:
+        if (logger.level <= Logger.INFO) logger.log(SwarmDownload.this+" "+this+" doesn't have piece "+piece);
+        drop(this);
+        break;
+      }
+    }
+
+    public void fileReceived(File f, ByteBuffer metadata) {
+      if (dead) return;
+      int piece = metadata.getInt();
+      Request r = outstanding.remove(piece);
+      // we gave it away
+      if (r == null) return;
+      r.cancelled();
+      
+      long now = environment.getTimeSource().currentTimeMillis();
+      double sample = (1.0*manifest.getPieceLength(piece))/Math.max(1, now-Math.max(r.requestTime, lastCompletion));
+      rate = (rate < 0) ? sample : 0.7*rate+0.3*sample;
+      lastCompletion = now;
+      lastProgress = now;
+      piecesReceived++;
+      
+      verify(this, piece);
+      fill(this);
+    }
+
+    public void receiveException(Exception ioe) {
+      if (logger.level <= Logger.FINE) logger.logException(SwarmDownload.this+" "+this+".receiveException()", ioe);
+      drop(this);
+    }
+
+    public File getFile(ByteBuffer metadata, long offset, long length) throws IOException {
+      return partFile;
+    }
+
+    public void fileCancelled(ByteBuffer metadata, File f, long offset, long downloadedLength, long requestedLength, Exception reason) {
+      // the piece will be downloaded again, don't touch partFile
+    }
+
+    public void fileTransferred(FileReceipt receipt, long bytesTransferred, long total, boolean incoming) {
+      if (!incoming) return;
+      Request r = outstanding.get(receipt.getMetadata().getInt());
+      if (r == null) return;
+      long now = environment.getTimeSource().currentTimeMillis();
+      if (r.startTime == 0) r.startTime = now;
+      r.received = bytesTransferred;
+      lastProgress = now;
+    }
+
+    public void transferCancelled(Receipt receipt, boolean incoming) {
+      // the SwarmServer gave up on a piece without us asking
+      if (!incoming || !(receipt instanceof FileReceipt)) return;
+      int piece = ((FileReceipt)receipt).getMetadata().getInt();
+      Request r = outstanding.get(piece);
+      if (r == null || r.cancelling) return;
+      outstanding.remove(piece);
+      r.cancelled();
+      taken.clear(piece);
+      fill();
+    }
+
+    public void msgTransferred(BBReceipt receipt, int bytesTransferred, int total, boolean incoming) {
+    }
+
+    public void transferFailed(Receipt receipt, boolean incoming) {
+      // receiveException() will drop us
+    }
+    
+    public String toString() {
+      return "Source["+socket+" rate:"+rate+" pieces:"+piecesReceived+" bad:"+badPieces+"]";
+    }
+  }
+}
@@ -0,0 +1,172 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package org.mpisws.p2p.filetransfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import rice.p2p.commonapi.rawserialization.InputBuffer;
+import rice.p2p.commonapi.rawserialization.OutputBuffer;
+import rice.p2p.util.SecurityUtils;
+
+/**
+ * Describes a file to be downloaded from several sources by a SwarmDownload: its length, 
+ * how it is split into pieces, and the hash of each piece.
+ * 
+ * The manifest must come from somewhere the downloader trusts (for example, it can be 
+ * stored alongside the content), since it's what the pieces are checked against.
+ * 
+ * @author agent
+ */
+public class SwarmManifest {
+  public static final byte VERSION = 0;
+  
+  protected long length;
+  protected int pieceSize;
+  protected byte[][] hashes;
+  
+  public SwarmManifest(long length, int pieceSize, byte[][] hashes) {
+    if (pieceSize <= 0) throw new IllegalArgumentException("pieceSize must be positive "+pieceSize);
+    if (hashes.length != numPieces(length, pieceSize)) throw new IllegalArgumentException("Expected "+numPieces(length, pieceSize)+" hashes, not "+hashes.length);
+    this.length = length;
+    this.pieceSize = pieceSize;
+    this.hashes = hashes;
+  }
+  
+  public SwarmManifest(InputBuffer buf) throws IOException {
+    byte version = buf.readByte();
+    if (version != VERSION) throw new IOException("Unknown SwarmManifest version "+version);
+    length = buf.readLong();
+    pieceSize = buf.readInt();
+    int numHashes = buf.readInt();
+    if (pieceSize <= 0 || numHashes != numPieces(length, pieceSize)) throw new IOException("Invalid SwarmManifest length:"+length+" pieceSize:"+pieceSize+" pieces:"+numHashes);
+    hashes = new byte[numHashes][];
+    for (int i = 0; i < numHashes; i++) {
+      hashes[i] = new byte[buf.readByte() & 0xFF];
+      buf.read(hashes[i]);
+    }
+  }
+  
+  public void serialize(OutputBuffer buf) throws IOException {
+    buf.writeByte(VERSION);
+    buf.writeLong(length);
+    buf.writeInt(pieceSize);
+    buf.writeInt(hashes.length);
+    for (byte[] hash : hashes) {
+      buf.writeByte((byte)hash.length);
+      buf.write(hash, 0, hash.length);
+    }
+  }
+  
+  /**
+   * Hashes the pieces of f.  Blocks.
+   */
+  public static SwarmManifest build(File f, int pieceSize) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(f, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      long length = channel.size();
+      byte[][] hashes = new byte[numPieces(length, pieceSize)][];
+      for (int i = 0; i < hashes.length; i++) {
+        long offset = (long)i*pieceSize;
+        hashes[i] = SecurityUtils.hash(channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(pieceSize, length-offset)));
+      }
+      return new SwarmManifest(length, pieceSize, hashes);
+    } finally {
+      file.close();
+    }
+  }
+  
+  static int numPieces(long length, int pieceSize) {
+    long ret = (length+pieceSize-1)/pieceSize;
+    if (ret > Integer.MAX_VALUE) throw new IllegalArgumentException("Too many pieces "+ret+", use a bigger pieceSize than "+pieceSize);
+    return (int)ret;
+  }
+  
+  /**
+   * @param data the bytes of the piece
+   * @return true if data hashes to the hash of the piece
+   */
+  public boolean verify(int piece, ByteBuffer data) {
+    if (data.remaining() != getPieceLength(piece)) return false;
+    return Arrays.equals(hashes[piece], SecurityUtils.hash(data));
+  }
+  
+  public long getLength() {
+    return length;
+  }
+  
+  public int getPieceSize() {
+    return pieceSize;
+  }
+  
+  public int getNumPieces() {
+    return hashes.length;
+  }
+  
+  public long getPieceOffset(int piece) {
+    return (long)piece*pieceSize;
+  }
+  
+  public int getPieceLength(int piece) {
+    return (int)Math.min(pieceSize, length-getPieceOffset(piece));
+  }
+  
+  public byte[] getHash(int piece) {
+    return hashes[piece];
+  }
+  
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof SwarmManifest)) return false;
+    SwarmManifest that = (SwarmManifest)o;
+    return (this.length == that.length) && (this.pieceSize == that.pieceSize) && Arrays.deepEquals(this.hashes, that.hashes);
+  }
+  
+  @Override
+  public int hashCode() {
+    return (int)length ^ pieceSize ^ Arrays.deepHashCode(hashes);
+  }
+  
+  public String toString() {
+    return "SwarmManifest["+length+" bytes, "+hashes.length+" pieces of "+pieceSize+"]";
+  }
+}
@@ -0,0 +1,164 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package org.mpisws.p2p.filetransfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import rice.Continuation;
+import rice.environment.Environment;
+import rice.environment.logging.Logger;
+import rice.p2p.commonapi.appsocket.AppSocket;
+import rice.p2p.util.rawserialization.SimpleInputBuffer;
+import rice.p2p.util.rawserialization.SimpleOutputBuffer;
+
+/**
+ * Serves pieces of files to a SwarmDownload on the other end of the socket.
+ * 
+ * Each piece is sent with FileTransfer.sendFile() with the piece number as the metadata.
+ * 
+ * @author agent
+ */
+public class SwarmServer implements FileTransferCallback {
+  /**
+   * Contains int piece, long offset, int length, UTF name
+   */
+  public static final byte MSG_REQUEST = 1;
+  
+  /**
+   * Contains int piece.  The reply to MSG_REQUEST if we don't have the file.
+   */
+  public static final byte MSG_NOT_FOUND = 2;
+  
+  /**
+   * Contains int piece.  Stop sending the piece.
+   */
+  public static final byte MSG_CANCEL = 3;
+  
+  /**
+   * Contains int piece.  The reply to MSG_CANCEL, nothing more will be sent for the piece.
+   */
+  public static final byte MSG_CANCELLED = 4;
+  
+  protected FileTransfer fileTransfer;
+  protected SwarmFileProvider provider;
+  protected Logger logger;
+  
+  /**
+   * The pieces we are sending, managed on the selector.
+   */
+  protected Map<Integer, FileReceipt> sending = new HashMap<Integer, FileReceipt>();
+  
+  public SwarmServer(AppSocket socket, SwarmFileProvider provider, Environment env) {
+    this.provider = provider;
+    this.logger = env.getLogManager().getLogger(SwarmServer.class, null);
+    this.fileTransfer = new FileTransferImpl(socket, this, env);
+  }
+  
+  public void messageReceived(ByteBuffer bb) {
+    try {
+      SimpleInputBuffer sib = new SimpleInputBuffer(bb);
+      byte type = sib.readByte();
+      final int piece = sib.readInt();
+      switch (type) {
+      case MSG_REQUEST:
+        long offset = sib.readLong();
+        int length = sib.readInt();
+        String name = sib.readUTF();
+        if (offset < 0 || length < 0) {
+          if (logger.level <= Logger.WARNING) logger.log("Illegal request for "+name+" "+offset+" "+length);
+          reply(MSG_NOT_FOUND, piece);
+          return;
+        }
+        File f = provider.getFile(name);
+        // f.length()-length can't overflow, offset+length can
+        if (f == null || offset > f.length()-length) {
+          if (logger.level <= Logger.INFO) logger.log("Don't have "+name+" "+offset+" "+length+" "+f);
+          reply(MSG_NOT_FOUND, piece);
+          return;
+        }
+        
+        ByteBuffer metadata = ByteBuffer.allocate(4);
+        metadata.putInt(piece);
+        metadata.clear();
+        try {
+          sending.put(piece, fileTransfer.sendFile(f, metadata, FileTransferImpl.DEFAULT_PRIORITY, offset, length, 
+              new Continuation<FileReceipt, Exception>() {
+            public void receiveResult(FileReceipt result) {
+              if (sending.get(piece) == result) sending.remove(piece);
+            }
+            
+            public void receiveException(Exception exception) {
+              sending.remove(piece);
+            }
+          }));
+        } catch (IOException ioe) {
+          if (logger.level <= Logger.WARNING) logger.logException("Error sending "+f, ioe);
+          reply(MSG_NOT_FOUND, piece);
+        }
+        break;
+      case MSG_CANCEL:
+        FileReceipt receipt = sending.remove(piece);
+        if (receipt != null) receipt.cancel();
+        reply(MSG_CANCELLED, piece);
+        break;
+      default:
+        if (logger.level <= Logger.WARNING) logger.log("Unknown message type "+type);
+      }
+    } catch (IOException ioe) {
+      if (logger.level <= Logger.WARNING) logger.logException("Error reading request", ioe);
+    }
+  }
+  
+  protected void reply(byte type, int piece) throws IOException {
+    SimpleOutputBuffer sob = new SimpleOutputBuffer(5);
+    sob.writeByte(type);
+    sob.writeInt(piece);
+    fileTransfer.sendMsg(sob.getByteBuffer(), FileTransferImpl.HIGH_PRIORITY, null);
+  }
+
+  public void fileReceived(File f, ByteBuffer metadata) {
+    if (logger.level <= Logger.WARNING) logger.log("Unexpected file "+f);
+  }
+
+  public void receiveException(Exception ioe) {
+    if (logger.level <= Logger.FINE) logger.logException("receiveException()", ioe);
+  }
+}
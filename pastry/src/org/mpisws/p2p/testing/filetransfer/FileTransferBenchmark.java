@@ -0,0 +1,254 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package org.mpisws.p2p.testing.filetransfer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import org.mpisws.p2p.filetransfer.FileReceipt;
+import org.mpisws.p2p.filetransfer.FileTransfer;
+import org.mpisws.p2p.filetransfer.FileTransferCallback;
+import org.mpisws.p2p.filetransfer.FileTransferImpl;
+import org.mpisws.p2p.transport.ClosedChannelException;
+import org.mpisws.p2p.transport.P2PSocket;
+import org.mpisws.p2p.transport.SocketCallback;
+import org.mpisws.p2p.transport.SocketRequestHandle;
+import org.mpisws.p2p.transport.TransportLayer;
+import org.mpisws.p2p.transport.TransportLayerCallback;
+import org.mpisws.p2p.transport.ZeroCopySocket;
+import org.mpisws.p2p.transport.liveness.LivenessTransportLayerImpl;
+import org.mpisws.p2p.transport.rc4.RC4TransportLayer;
+import org.mpisws.p2p.transport.simpleidentity.InetSocketAddressSerializer;
+import org.mpisws.p2p.transport.simpleidentity.SimpleIdentityTransportLayer;
+import org.mpisws.p2p.transport.util.DefaultErrorHandler;
+import org.mpisws.p2p.transport.wire.WireTransportLayerImpl;
+
+import rice.Continuation;
+import rice.environment.Environment;
+import rice.environment.logging.Logger;
+import rice.p2p.commonapi.appsocket.AppSocket;
+import rice.pastry.transport.SocketAdapter;
+
+/**
+ * Sends a file over loopback with and without p2p_filetransfer_zeroCopy, and prints the 
+ * throughput.  Checks that the received file matches.
+ * 
+ * Usage: FileTransferBenchmark [-mb 256] [-trials 3] [-port 9001] [-encrypt]
+ * 
+ * -encrypt puts the RC4TransportLayer on the stack, which can't zero copy.
+ * 
+ * @author agent
+ */
+public class FileTransferBenchmark {
+  
+  static File received;
+  
+  public static void main(String[] args) throws Exception {
+    int mb = 256;
+    int trials = 3;
+    int port = 9001;
+    boolean encrypt = false;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-mb") && i+1 < args.length) mb = Integer.parseInt(args[++i]);
+      if (args[i].equals("-trials") && i+1 < args.length) trials = Integer.parseInt(args[++i]);
+      if (args[i].equals("-port") && i+1 < args.length) port = Integer.parseInt(args[++i]);
+      if (args[i].equals("-encrypt")) encrypt = true;
+    }
+    
+    File f = File.createTempFile("ftbench", ".dat");
+    f.deleteOnExit();
+    Random r = new Random(1);
+    FileOutputStream fos = new FileOutputStream(f);
+    byte[] foo = new byte[1024*1024];
+    for (int ctr = 0; ctr < mb; ctr++) {
+      r.nextBytes(foo);      
+      fos.write(foo);
+    }      
+    fos.close();
+    
+    final Environment env = new Environment();
+    // both ends are this version, so they can use big chunks
+    env.getParameters().setInt("p2p_filetransfer_maxChunkSize", 1048576);
+    Logger logger = env.getLogManager().getLogger(FileTransferBenchmark.class, null);
+    InetAddress local = InetAddress.getByName("127.0.0.1");
+    
+    InetSocketAddress addr1 = new InetSocketAddress(local, port);
+    InetSocketAddress addr2 = new InetSocketAddress(local, port+1);
+    TransportLayer<InetSocketAddress, ByteBuffer> tl1 = buildStack(addr1, encrypt, env, logger);
+    TransportLayer<InetSocketAddress, ByteBuffer> tl2 = buildStack(addr2, encrypt, env, logger);
+    
+    // the receiver
+    tl1.setCallback(new TransportLayerCallback<InetSocketAddress, ByteBuffer>() {
+      public void incomingSocket(P2PSocket<InetSocketAddress> s) throws IOException {
+        new FileTransferImpl(new SocketAdapter<InetSocketAddress>(s, env), new FileTransferCallback() {
+          public void fileReceived(File f, ByteBuffer metadata) {
+            synchronized(FileTransferBenchmark.class) {
+              received = f;
+              FileTransferBenchmark.class.notifyAll();
+            }
+          }
+          
+          public void messageReceived(ByteBuffer bb) {
+          }
+          
+          public void receiveException(Exception ioe) {
+            // we close the socket after each trial
+            if (!(ioe instanceof ClosedChannelException)) ioe.printStackTrace();
+          }
+        }, env);
+      }
+      
+      public void messageReceived(InetSocketAddress i, ByteBuffer m, Map<String, Object> options) throws IOException {
+      }
+    });
+    
+    System.out.println("Sending "+mb+" MB over loopback"+(encrypt ? " encrypted" : ""));
+    for (int trial = 0; trial < trials; trial++) {
+      for (boolean zeroCopy : new boolean[] {true, false}) {
+        env.getParameters().setBoolean("p2p_filetransfer_zeroCopy", zeroCopy);
+        
+        AppSocket sock = openSocket(tl2, addr1, env);
+        FileTransfer ft = new FileTransferImpl(sock, new FileTransferCallback() {
+          public void fileReceived(File f, ByteBuffer metadata) {
+          }
+          
+          public void messageReceived(ByteBuffer bb) {
+          }
+          
+          public void receiveException(Exception ioe) {
+            // we close the socket after each trial
+            if (!(ioe instanceof ClosedChannelException)) ioe.printStackTrace();
+          }
+        }, env);
+        
+        long start = System.nanoTime();
+        ft.sendFile(f, ByteBuffer.allocate(0), FileTransferImpl.DEFAULT_PRIORITY, new Continuation<FileReceipt, Exception>() {
+          public void receiveResult(FileReceipt result) {
+          }
+          
+          public void receiveException(Exception exception) {
+            exception.printStackTrace();
+          }
+        });
+        File got;
+        synchronized(FileTransferBenchmark.class) {
+          while (received == null) FileTransferBenchmark.class.wait();
+          got = received;
+          received = null;
+        }
+        long time = System.nanoTime()-start;
+        
+        boolean canZeroCopy = (sock instanceof ZeroCopySocket) && ((ZeroCopySocket)sock).canZeroCopy();
+        System.out.println((zeroCopy ? "zeroCopy" : "copy    ")+(zeroCopy && !canZeroCopy ? "(n/a)" : "")+
+            " "+(time/1000000)+" millis "+
+            ((1.0*f.length()/(1<<30))/(time/1000000000.0))+" GB/s "+
+            (sameContents(f, got) ? "ok" : "CORRUPT"));
+        got.delete();
+        sock.close();
+      }
+    }
+    env.destroy();
+  }
+  
+  static TransportLayer<InetSocketAddress, ByteBuffer> buildStack(InetSocketAddress addr, boolean encrypt, Environment env, Logger logger) throws Exception {
+    DefaultErrorHandler<InetSocketAddress> errorHandler = new DefaultErrorHandler<InetSocketAddress>(logger);
+    TransportLayer<InetSocketAddress, ByteBuffer> tl = new WireTransportLayerImpl(addr,env,errorHandler);
+    tl = new SimpleIdentityTransportLayer<InetSocketAddress, ByteBuffer>(tl,new InetSocketAddressSerializer(), null ,env,errorHandler);
+    tl = new LivenessTransportLayerImpl<InetSocketAddress>(tl,env,errorHandler,300000);
+    if (encrypt) {
+      tl = new RC4TransportLayer<InetSocketAddress, ByteBuffer>(tl,env,"badpassword", errorHandler);
+    }
+    return tl;
+  }
+  
+  static AppSocket openSocket(TransportLayer<InetSocketAddress, ByteBuffer> tl, InetSocketAddress addr, final Environment env) throws Exception {
+    final AppSocket[] ret = new AppSocket[1];
+    final Exception[] ex = new Exception[1];
+    tl.openSocket(addr, new SocketCallback<InetSocketAddress>() {
+      public void receiveResult(SocketRequestHandle<InetSocketAddress> cancellable, P2PSocket<InetSocketAddress> s) {
+        synchronized(ret) {
+          ret[0] = new SocketAdapter<InetSocketAddress>(s, env);
+          ret.notifyAll();
+        }
+      }
+      
+      public void receiveException(SocketRequestHandle<InetSocketAddress> s, Exception e) {
+        synchronized(ret) {
+          ex[0] = e;
+          ret.notifyAll();
+        }
+      }
+    }, null);
+    synchronized(ret) {
+      while (ret[0] == null && ex[0] == null) ret.wait();
+    }
+    if (ex[0] != null) throw ex[0];
+    return ret[0];
+  }
+  
+  static boolean sameContents(File a, File b) throws IOException {
+    if (a.length() != b.length()) return false;
+    FileInputStream ina = new FileInputStream(a);
+    FileInputStream inb = new FileInputStream(b);
+    try {
+      byte[] bufa = new byte[1024*1024];
+      byte[] bufb = new byte[bufa.length];
+      int len;
+      while ((len = ina.read(bufa)) > 0) {
+        int off = 0;
+        while (off < len) {
+          int ret = inb.read(bufb, off, len-off);
+          if (ret < 0) return false;
+          off+=ret;
+        }
+        if (!Arrays.equals(bufa, bufb)) return false;
+      }
+      return true;
+    } finally {
+      ina.close();
+      inb.close();
+    }
+  }
+}
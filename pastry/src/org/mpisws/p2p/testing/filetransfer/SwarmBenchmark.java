@@ -0,0 +1,194 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package org.mpisws.p2p.testing.filetransfer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Random;
+
+import org.mpisws.p2p.filetransfer.SwarmDownload;
+import org.mpisws.p2p.filetransfer.SwarmFileProvider;
+import org.mpisws.p2p.filetransfer.SwarmManifest;
+import org.mpisws.p2p.filetransfer.SwarmServer;
+import org.mpisws.p2p.transport.P2PSocket;
+import org.mpisws.p2p.transport.TransportLayer;
+import org.mpisws.p2p.transport.TransportLayerCallback;
+
+import rice.Continuation;
+import rice.environment.Environment;
+import rice.environment.logging.Logger;
+import rice.pastry.transport.SocketAdapter;
+import rice.tutorial.transportlayer.BandwidthLimitingTransportLayer;
+
+/**
+ * Downloads a file over loopback from 1 to -sources SwarmServers at once, and prints the 
+ * aggregate throughput.  Each server is limited to -limit MB/s (0 for no limit), so the 
+ * scaling isn't hidden by the cpu.  With -slow, the last server only gets 1/8 of the limit.
+ * 
+ * Then cancels a download half way, and checks that a new SwarmDownload resumes it.
+ * 
+ * Usage: SwarmBenchmark [-mb 64] [-sources 4] [-limit 8] [-piece 1024 (KB)] [-slow] [-port 9101]
+ * 
+ * @author agent
+ */
+public class SwarmBenchmark {
+  
+  public static void main(String[] args) throws Exception {
+    int mb = 64;
+    int numSources = 4;
+    int limit = 8;
+    int pieceSize = 1024*1024;
+    boolean slow = false;
+    int port = 9101;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-mb") && i+1 < args.length) mb = Integer.parseInt(args[++i]);
+      if (args[i].equals("-sources") && i+1 < args.length) numSources = Integer.parseInt(args[++i]);
+      if (args[i].equals("-limit") && i+1 < args.length) limit = Integer.parseInt(args[++i]);
+      if (args[i].equals("-piece") && i+1 < args.length) pieceSize = Integer.parseInt(args[++i])*1024;
+      if (args[i].equals("-port") && i+1 < args.length) port = Integer.parseInt(args[++i]);
+      if (args[i].equals("-slow")) slow = true;
+    }
+    
+    final File f = File.createTempFile("swarmbench", ".dat");
+    f.deleteOnExit();
+    Random r = new Random(1);
+    FileOutputStream fos = new FileOutputStream(f);
+    byte[] foo = new byte[1024*1024];
+    for (int ctr = 0; ctr < mb; ctr++) {
+      r.nextBytes(foo);      
+      fos.write(foo);
+    }      
+    fos.close();
+    SwarmManifest manifest = SwarmManifest.build(f, pieceSize);
+    
+    final Environment env = new Environment();
+    Logger logger = env.getLogManager().getLogger(SwarmBenchmark.class, null);
+    InetAddress local = InetAddress.getByName("127.0.0.1");
+    
+    final SwarmFileProvider provider = new SwarmFileProvider() {
+      public File getFile(String name) {
+        return name.equals("bench") ? f : null;
+      }
+    };
+    
+    InetSocketAddress[] servers = new InetSocketAddress[numSources];
+    for (int i = 0; i < numSources; i++) {
+      servers[i] = new InetSocketAddress(local, port+1+i);
+      TransportLayer<InetSocketAddress, ByteBuffer> tl = FileTransferBenchmark.buildStack(servers[i], false, env, logger);
+      if (limit > 0) {
+        // refill every 100 millis
+        int bytes = limit*1024*1024/10;
+        if (slow && i == numSources-1) bytes /= 8;
+        tl = new BandwidthLimitingTransportLayer<InetSocketAddress>(tl, bytes, 100, env);
+      }
+      tl.setCallback(new TransportLayerCallback<InetSocketAddress, ByteBuffer>() {
+        public void incomingSocket(P2PSocket<InetSocketAddress> s) throws IOException {
+          new SwarmServer(new SocketAdapter<InetSocketAddress>(s, env), provider, env);
+        }
+        
+        public void messageReceived(InetSocketAddress i, ByteBuffer m, Map<String, Object> options) throws IOException {
+        }
+      });
+    }
+    TransportLayer<InetSocketAddress, ByteBuffer> tl = FileTransferBenchmark.buildStack(new InetSocketAddress(local, port), false, env, logger);
+    
+    System.out.println("Downloading "+mb+" MB in "+manifest.getNumPieces()+" pieces, "+
+        (limit > 0 ? limit+" MB/s per source"+(slow ? ", the last at 1/8" : "") : "no limit"));
+    File dest = new File(f.getPath()+".download");
+    for (int k = 1; k <= numSources; k++) {
+      Waiter waiter = new Waiter();
+      long start = System.nanoTime();
+      SwarmDownload download = new SwarmDownload("bench", manifest, dest, waiter, env);
+      for (int i = 0; i < k; i++) {
+        download.addSource(FileTransferBenchmark.openSocket(tl, servers[i], env));
+      }
+      waiter.waitFor();
+      long time = System.nanoTime()-start;
+      System.out.println(k+" sources "+(time/1000000)+" millis "+
+          ((1.0*f.length()/(1<<20))/(time/1000000000.0))+" MB/s "+
+          (FileTransferBenchmark.sameContents(f, dest) ? "ok" : "CORRUPT"));
+      dest.delete();
+    }
+    
+    // resume
+    Waiter waiter = new Waiter();
+    SwarmDownload download = new SwarmDownload("bench", manifest, dest, waiter, env);
+    for (int i = 0; i < numSources; i++) {
+      download.addSource(FileTransferBenchmark.openSocket(tl, servers[i], env));
+    }
+    while (download.getNumPiecesDone() < manifest.getNumPieces()/2) Thread.sleep(10);
+    download.cancel();
+    Thread.sleep(500);
+    waiter = new Waiter();
+    download = new SwarmDownload("bench", manifest, dest, waiter, env);
+    int resumed = download.getNumPiecesResumed();
+    for (int i = 0; i < numSources; i++) {
+      download.addSource(FileTransferBenchmark.openSocket(tl, servers[i], env));
+    }
+    waiter.waitFor();
+    System.out.println("resumed with "+resumed+" of "+manifest.getNumPieces()+" pieces "+
+        (FileTransferBenchmark.sameContents(f, dest) ? "ok" : "CORRUPT"));
+    dest.delete();
+    env.destroy();
+  }
+  
+  static class Waiter implements Continuation<File, Exception> {
+    boolean done = false;
+    Exception exception;
+    
+    public synchronized void receiveResult(File result) {
+      done = true;
+      notifyAll();
+    }
+    
+    public synchronized void receiveException(Exception exception) {
+      this.exception = exception;
+      done = true;
+      notifyAll();
+    }
+    
+    public synchronized void waitFor() throws Exception {
+      while (!done) wait();
+      if (exception != null) throw exception;
+    }
+  }
+}
@@ -0,0 +1,321 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package org.mpisws.p2p.testing.transportlayer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import org.mpisws.p2p.transport.*;
+import org.mpisws.p2p.transport.direct.EventSimulator;
+import org.mpisws.p2p.transport.liveness.*;
+import org.mpisws.p2p.transport.util.MessageRequestHandleImpl;
+import org.mpisws.p2p.transport.util.SocketRequestHandleImpl;
+
+import rice.environment.Environment;
+import rice.selector.TimerTask;
+
+/**
+ * Measures the probe traffic and the failure detection time of the LivenessTransportLayerImpl 
+ * under churn, in simulated time.  One observer monitors HOSTS hosts with NODES_PER_HOST 
+ * nodes each over a lossy network with a different latency to every host.  After a warm up, 
+ * it runs three rounds of liveness checks on every node: after some individual nodes die, 
+ * after some whole hosts become unreachable, and after those hosts come back.  
+ * 
+ * Compares the fixed schedule (pastry_socket_scm_phi_threshold = 0, no shared host state)
+ * against the phi accrual detector with state shared per host.
+ * 
+ * Usage: LivenessBenchmark [-hosts h] [-nodes n] [-loss percent] [-seed s]
+ * 
+ * @author agent
+ */
+public class LivenessBenchmark {
+  public static final int KILLED_NODES = 10;
+  public static final int KILLED_HOSTS = 5;
+  
+  int numHosts;
+  int nodesPerHost;
+  double loss;
+  Random random;
+  
+  Environment env;
+  EventSimulator simulator;
+  
+  // one way latency to each host
+  int[] latency;
+  
+  // the reachable hosts and live nodes
+  boolean[] hostUp;
+  Map<SimAddress, SimTL> nodes = new HashMap<SimAddress, SimTL>();
+  Set<SimAddress> dead = new HashSet<SimAddress>();
+  
+  SimAddress observerAddress = new SimAddress(-1, 0);
+  LivenessTransportLayerImpl<SimAddress> observer;
+  List<SimAddress> monitored = new ArrayList<SimAddress>();
+  
+  // the current round
+  int pings;
+  long roundStart;
+  Map<SimAddress, Long> detected = new HashMap<SimAddress, Long>();
+  int falsePositives;
+  
+  public LivenessBenchmark(int numHosts, int nodesPerHost, double loss, long seed, double phi, boolean shareHosts) throws IOException {
+    this.numHosts = numHosts;
+    this.nodesPerHost = nodesPerHost;
+    this.loss = loss;
+    this.random = new Random(seed);
+    
+    env = Environment.directEnvironment((int)seed);
+    env.getParameters().setDouble("pastry_socket_scm_phi_threshold", phi);
+    simulator = new EventSimulator(env, env.getRandomSource(), env.getLogManager().getLogger(EventSimulator.class, null));
+    simulator.setFullSpeed();
+    
+    latency = new int[numHosts];
+    hostUp = new boolean[numHosts];
+    for (int h = 0; h < numHosts; h++) {
+      latency[h] = 5+random.nextInt(150);
+      hostUp[h] = true;
+      for (int n = 0; n < nodesPerHost; n++) {
+        SimAddress a = new SimAddress(h, n);
+        // the monitored nodes only have to answer pings
+        new LivenessTransportLayerImpl<SimAddress>(new SimTL(a), env, null, 0);
+        monitored.add(a);
+      }
+    }
+    
+    observer = new LivenessTransportLayerImpl<SimAddress>(new SimTL(observerAddress), env, null, 0);
+    if (shareHosts) {
+      observer.setPhysicalAddressMapper(new PhysicalAddressMapper<SimAddress>() {
+        public Object getPhysicalAddress(SimAddress i) {
+          return i.host;
+        }
+      });
+    }
+    observer.addLivenessListener(new LivenessListener<SimAddress>() {
+      public void livenessChanged(SimAddress i, int val, Map<String, Object> options) {
+        if (val < LIVENESS_DEAD) return;
+        if (isReachable(i)) {
+          falsePositives++;
+        } else if (!detected.containsKey(i)) {
+          detected.put(i, env.getTimeSource().currentTimeMillis()-roundStart);
+        }
+      }
+    });
+    simulator.start();
+  }
+  
+  boolean isReachable(SimAddress a) {
+    return (a.host < 0 || hostUp[a.host]) && !dead.contains(a);
+  }
+  
+  int latency(SimAddress a) {
+    return a.host < 0 ? 0 : latency[a.host];
+  }
+  
+  /**
+   * Checks the liveness of every monitored node, and waits for the checks to finish.
+   * 
+   * @return {pings, nodes detected dead, mean detection time, max detection time, false positives}
+   */
+  public long[] round() throws InterruptedException {
+    // a timer task rather than invoke(), so it happens before the simulator advances the clock
+    env.getSelectorManager().getTimer().schedule(new TimerTask() {
+      public void run() {
+        pings = 0;
+        falsePositives = 0;
+        detected.clear();
+        roundStart = env.getTimeSource().currentTimeMillis();
+        for (SimAddress a : monitored) {
+          observer.checkLiveness(a, null);
+        }
+      }
+    }, 0);
+    // long enough for the slowest check
+    env.getTimeSource().sleep(120000);
+    
+    final long[] ret = new long[5];
+    synchronized(env.getSelectorManager()) {
+      ret[0] = pings;
+      ret[1] = detected.size();
+      for (long t : detected.values()) {
+        ret[2] += t;
+        ret[3] = Math.max(ret[3], t);
+      }
+      if (ret[1] > 0) ret[2] /= ret[1];
+      ret[4] = falsePositives;
+    }
+    return ret;
+  }
+  
+  public void run(String mode) throws InterruptedException {
+    // learn the RTT and loss of every host
+    for (int i = 0; i < 5; i++) {
+      round();
+      env.getTimeSource().sleep(30000);
+    }
+    
+    ArrayList<SimAddress> candidates = new ArrayList<SimAddress>(monitored);
+    Collections.shuffle(candidates, random);
+    for (int i = 0; i < KILLED_NODES; i++) {
+      dead.add(candidates.get(i));
+    }
+    print(mode, "node churn", round());
+    
+    ArrayList<Integer> hosts = new ArrayList<Integer>();
+    for (int h = 0; h < numHosts; h++) hosts.add(h);
+    Collections.shuffle(hosts, random);
+    for (int i = 0; i < KILLED_HOSTS; i++) {
+      hostUp[hosts.get(i)] = false;
+    }
+    print(mode, "host failure", round());
+    
+    for (int h = 0; h < numHosts; h++) hostUp[h] = true;
+    print(mode, "heal", round());
+    
+    simulator.stop();
+    env.destroy();
+  }
+  
+  void print(String mode, String round, long[] r) {
+    System.out.println("RESULT: mode="+mode+" round=\""+round+"\" pings="+r[0]+" detected="+r[1]+
+        " meanDetection="+r[2]+"ms maxDetection="+r[3]+"ms falsePositives="+r[4]);
+  }
+  
+  static class SimAddress {
+    int host;
+    int port;
+    
+    public SimAddress(int host, int port) {
+      this.host = host;
+      this.port = port;
+    }
+    
+    public int hashCode() {
+      return host*31+port;
+    }
+    
+    public boolean equals(Object o) {
+      if (!(o instanceof SimAddress)) return false;
+      SimAddress that = (SimAddress)o;
+      return host == that.host && port == that.port;
+    }
+    
+    public String toString() {
+      return host+":"+port;
+    }
+  }
+  
+  /**
+   * Delivers messages after the latency of both ends, unless either end is unreachable, 
+   * or the message is lost.  No sockets.
+   */
+  class SimTL implements TransportLayer<SimAddress, ByteBuffer> {
+    SimAddress local;
+    TransportLayerCallback<SimAddress, ByteBuffer> callback;
+    
+    public SimTL(SimAddress local) {
+      this.local = local;
+      nodes.put(local, this);
+    }
+    
+    public MessageRequestHandle<SimAddress, ByteBuffer> sendMessage(final SimAddress i, final ByteBuffer m, 
+        MessageCallback<SimAddress, ByteBuffer> deliverAckToMe, final Map<String, Object> options) {
+      MessageRequestHandleImpl<SimAddress, ByteBuffer> ret = new MessageRequestHandleImpl<SimAddress, ByteBuffer>(i, m, options);
+      if (local == observerAddress && m.get(m.position()) == LivenessTransportLayerImpl.HDR_PING) pings++;
+      if (isReachable(local) && isReachable(i) && random.nextDouble() >= loss) {
+        int delay = latency(local)+latency(i);
+        delay += random.nextInt(delay/5+1);
+        env.getSelectorManager().getTimer().schedule(new TimerTask() {
+          public void run() {
+            // the end could have gone down in the meantime
+            if (!isReachable(local) || !isReachable(i)) return;
+            try {
+              nodes.get(i).callback.messageReceived(local, m, options);
+            } catch (IOException ioe) {
+              throw new RuntimeException(ioe);
+            }
+          }
+        }, delay);
+      }
+      if (deliverAckToMe != null) deliverAckToMe.ack(ret);
+      return ret;
+    }
+    
+    public SocketRequestHandle<SimAddress> openSocket(SimAddress i, SocketCallback<SimAddress> deliverSocketToMe, Map<String, Object> options) {
+      SocketRequestHandleImpl<SimAddress> ret = new SocketRequestHandleImpl<SimAddress>(i, options, env.getLogManager().getLogger(SimTL.class, null));
+      deliverSocketToMe.receiveException(ret, new IOException("Sockets are not simulated."));
+      return ret;
+    }
+    
+    public SimAddress getLocalIdentifier() {
+      return local;
+    }
+    
+    public void setCallback(TransportLayerCallback<SimAddress, ByteBuffer> callback) {
+      this.callback = callback;
+    }
+
+    public void setErrorHandler(ErrorHandler<SimAddress> handler) {
+    }
+
+    public void acceptMessages(boolean b) {
+    }
+
+    public void acceptSockets(boolean b) {
+    }
+
+    public void destroy() {
+    }
+  }
+  
+  public static void main(String[] args) throws Exception {
+    int hosts = 25;
+    int nodes = 4;
+    double loss = 0.02;
+    long seed = 1;
+    for (int i = 0; i < args.length - 1; i++) {
+      if (args[i].equals("-hosts")) hosts = Integer.parseInt(args[i+1]);
+      if (args[i].equals("-nodes")) nodes = Integer.parseInt(args[i+1]);
+      if (args[i].equals("-loss")) loss = Integer.parseInt(args[i+1])/100.0;
+      if (args[i].equals("-seed")) seed = Long.parseLong(args[i+1]);
+    }
+    
+    new LivenessBenchmark(hosts, nodes, loss, seed, 0, false).run("fixed");
+    new LivenessBenchmark(hosts, nodes, loss, seed, 4, true).run("phi+shared");
+    System.exit(0);
+  }
+}
@@ -0,0 +1,69 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package org.mpisws.p2p.transport;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * A socket which can send the bytes of a file without copying them through the 
+ * heap, with FileChannel.transferTo(), and can read into any ByteBuffer, such as a 
+ * region of a file mapped with FileChannel.map().  
+ * 
+ * This only works if every layer below sends the bytes unchanged, so check 
+ * canZeroCopy() first.  A layer which encrypts the bytes can't do this.
+ * 
+ * @author agent
+ */
+public interface ZeroCopySocket {
+  /**
+   * @return true if transferFrom() can be called, and read() takes any ByteBuffer
+   */
+  boolean canZeroCopy();
+  
+  /**
+   * Writes up to count bytes of file, starting at position, like 
+   * FileChannel.transferTo().  Doesn't block.
+   * 
+   * @param file the file to send from
+   * @param position the first byte to send
+   * @param count the most bytes to send
+   * @return the number of bytes written, or -1 if the socket is closed
+   * @throws IOException
+   */
+  long transferFrom(FileChannel file, long position, long count) throws IOException;
+}
@@ -38,6 +38,7 @@ package org.mpisws.p2p.transport.bandwidthmeasure;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -246,6 +247,24 @@ public class BandwidthMeasuringTransportLayer<Identifier> implements
       return ret;
     }
     
+    @Override
+    public boolean canZeroCopy() {
+      return socketCanZeroCopy();
+    }
+    
+    @Override
+    public long transferFrom(FileChannel file, long position, long count) throws IOException {
+      long ret = super.transferFrom(file, position, count);
+      synchronized(measured) {
+        int[] vals = getVals(getIdentifier()).a();
+        if (ret < count) {
+          vals[CUR_SATURATED] = SATURATED;
+        }
+        vals[CUR_UP]+=ret;
+      }
+      return ret;
+    }
+    
     @Override
     public long read(ByteBuffer srcs) throws IOException {
       // TODO Auto-generated method stub
@@ -49,6 +49,7 @@ import org.mpisws.p2p.transport.SocketRequestHandle;
 import org.mpisws.p2p.transport.TransportLayer;
 import org.mpisws.p2p.transport.TransportLayerCallback;
 import org.mpisws.p2p.transport.exception.NodeIsFaultyException;
+import org.mpisws.p2p.transport.priority.PriorityTransportLayer;
 import org.mpisws.p2p.transport.priority.QueueOverflowException;
 import org.mpisws.p2p.transport.util.DefaultCallback;
 import org.mpisws.p2p.transport.util.DefaultErrorHandler;
@@ -59,6 +60,8 @@ import rice.environment.Environment;
 import rice.environment.logging.Logger;
 import rice.p2p.commonapi.NodeHandle;
 import rice.p2p.commonapi.rawserialization.RawMessage;
+import rice.p2p.util.rawserialization.MarkingOutputBuffer;
+import rice.p2p.util.rawserialization.MarkingOutputBuffer.Marks;
 import rice.p2p.util.rawserialization.SimpleInputBuffer;
 import rice.p2p.util.rawserialization.SimpleOutputBuffer;
 
@@ -166,12 +169,19 @@ public class CommonAPITransportLayerImpl<Identifier extends NodeHandle> implemen
 
     final MessageRequestHandleImpl<Identifier, RawMessage> handle 
       = new MessageRequestHandleImpl<Identifier, RawMessage>(i, m, options);
-    final ByteBuffer buf;
+    ByteBuffer buf = null;
     
+    // a message we are just forwarding may be able to reuse the bytes it was received in
+    if (m instanceof CutThroughMessage) {
+      buf = ((CutThroughMessage)m).getCutThroughBuffer();
+      if (buf != null && logger.level <= Logger.FINEST) logger.log("sendMessage("+i+","+m+") cut through:"+buf);
+    }
+    
+    if (buf == null) {
     // we only serialize the Id, we assume the underlieing layer got the address of the NodeHandle correct
 //    SimpleOutputBuffer sob = new SimpleOutputBuffer(4+localAddress.getId().getByteArrayLength());
-    SimpleOutputBuffer sob = new SimpleOutputBuffer();
-    try {
+      MarkingOutputBuffer sob = new MarkingOutputBuffer();
+      try {
       // TODO: maybe we should write my entire address to be compatible with the lower levels, why do we need to do this at all?  
       // Is the contract that the lower level's identifier is proper?  
       // What about the fact that the priorityTL will establish end to end connectivity?  
@@ -186,22 +196,27 @@ public class CommonAPITransportLayerImpl<Identifier extends NodeHandle> implemen
 //          logger.log(m.toString());
 ////       }
 //      }
-      deserializer.serialize(m, sob);
+        deserializer.serialize(m, sob);
 //      m.serialize(sob);
-    } catch (IOException ioe) {
-      if (ioe instanceof NodeIsFaultyException) {
-        ioe = new NodeIsFaultyException(i,m, ioe); 
-      }
-      if (deliverAckToMe == null) {
-        errorHandler.receivedException(i, ioe);
-      } else {
-        deliverAckToMe.sendFailed(handle, ioe);
+      } catch (IOException ioe) {
+        if (ioe instanceof NodeIsFaultyException) {
+          ioe = new NodeIsFaultyException(i,m, ioe); 
+        }
+        if (deliverAckToMe == null) {
+          errorHandler.receivedException(i, ioe);
+        } else {
+          deliverAckToMe.sendFailed(handle, ioe);
+        }
+        return handle;
       }
-      return handle;
-    }
     
-    buf = ByteBuffer.wrap(sob.getBytes());
-    if (logger.level <= Logger.FINEST) logger.log("sendMessage("+i+","+m+") serizlized:"+buf);
+      buf = ByteBuffer.wrap(sob.getBytes());
+      if (logger.level <= Logger.FINEST) logger.log("sendMessage("+i+","+m+") serizlized:"+buf);
+      
+      // where the NodeHandles are, so the PriorityTransportLayer can send them as dictionary indexes
+      Marks marks = sob.getMarks();
+      if (marks != null) options = OptionsFactory.addOption(options, PriorityTransportLayer.OPTION_DICTIONARY_SEGMENTS, marks);
+    }
 
     handle.setSubCancellable(tl.sendMessage(
         i, 
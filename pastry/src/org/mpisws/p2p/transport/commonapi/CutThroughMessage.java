@@ -0,0 +1,60 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package org.mpisws.p2p.transport.commonapi;
+
+import java.nio.ByteBuffer;
+
+import rice.p2p.commonapi.rawserialization.RawMessage;
+
+/**
+ * A RawMessage which was received serialized, and which may be forwarded 
+ * by handing its received bytes to the transport, rather than serializing it 
+ * again.
+ * 
+ * @author agent
+ */
+public interface CutThroughMessage extends RawMessage {
+  /**
+   * Returns the message exactly as the RawMessageDeserializer would serialize 
+   * it (including the header that precedes the message itself), or null if 
+   * the message must be serialized normally.  The returned buffer may share 
+   * its contents with the received message, and must not be modified.
+   * 
+   * @return the serialized message, or null
+   */
+  public ByteBuffer getCutThroughBuffer();
+}
@@ -42,6 +42,7 @@ import rice.environment.random.RandomSource;
 import rice.environment.time.TimeSource;
 import rice.environment.time.simulated.DirectTimeSource;
 import rice.selector.SelectorManager;
+import rice.selector.SelectorWatchdog;
 
 public class EventSimulator {
 
@@ -99,6 +100,17 @@ public class EventSimulator {
     setMaxSpeed(-1.0f);
   }
   
+  /**
+   * Waits on the manager (the caller holds its lock), without the SelectorWatchdog 
+   * taking the wait for a stalled callback.
+   */
+  protected void idle(long millis) throws InterruptedException {
+    SelectorWatchdog watchdog = manager.getWatchdog();
+    if (watchdog != null) watchdog.pause();
+    manager.wait(millis);
+    if (watchdog != null) watchdog.resume(SelectorWatchdog.INVOCATION, this);
+  }
+  
   /**
    * Delivers 1 message. Will advance the clock if necessary.
    * 
@@ -130,7 +142,7 @@ public class EventSimulator {
             long neededSysDelay = (long)((newSimTime-maxSimTime)/maxSpeed);
 //            logger.log("Waiting for "+neededSysDelay+" at "+timeSource.currentTimeMillis());
             if (neededSysDelay >= 1) {
-              manager.wait(neededSysDelay);          
+              idle(neededSysDelay);          
               long now = System.currentTimeMillis();
               long delay = now-sysTime;
   //            System.out.println("Woke up after "+delay);
@@ -186,7 +198,7 @@ public class EventSimulator {
             if (!simulate()) {
               synchronized(manager) {
                 try {
-                  manager.wait(100); // must wait on the real clock, because the simulated clock can only be advanced by simulate()
+                  idle(100); // must wait on the real clock, because the simulated clock can only be advanced by simulate()
                 } catch (InterruptedException ie) {
                   logger.logException("BasicNetworkSimulator interrupted.",ie); 
                 }
@@ -38,6 +38,7 @@ package org.mpisws.p2p.transport.limitsockets;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
@@ -232,6 +233,23 @@ public class LimitSocketsTransportLayer<Identifier, MessageType> implements Tran
       }
     }
 
+    @Override
+    public boolean canZeroCopy() {
+      return socketCanZeroCopy();
+    }
+
+    @Override
+    public long transferFrom(FileChannel file, long position, long count) throws IOException {
+      if (forcedClose) throw new ClosedChannelException("Limit Sockets forced close. "+this);        
+      if (!closed) touch(this);      
+      try {
+        return super.transferFrom(file, position, count);
+      } catch (IOException ioe) {
+        close();
+        throw ioe;
+      }
+    }
+
     @Override
     public String toString() {
       return LimitSocketsTransportLayer.this.toString()+"$LSSocket<"+identifier+">["+(closed?"closed":"open")+"]@"+System.identityHashCode(this)+socket.toString();
@@ -48,6 +48,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.WeakHashMap;
 
 import org.mpisws.p2p.transport.ClosedChannelException;
 import org.mpisws.p2p.transport.MessageRequestHandle;
@@ -138,6 +139,39 @@ public class LivenessTransportLayerImpl<Identifier> implements
    */
   double gainG;// = 0.125;
 
+  /**
+   * The suspicion level (phi) at which a liveness check gives up on a path.  Each 
+   * probe waits until its response is this unlikely to still arrive (given the RTT
+   * distribution of the host), and the path is declared dead once the unanswered probes 
+   * are this unlikely to all have been lost (given the loss rate of the host), so a 
+   * live path is declared dead with probability about 10^-PHI_THRESHOLD.  
+   * 
+   * 0 uses the fixed schedule of NUM_PING_TRIES probes, backing off from PING_DELAY.
+   */
+  public double PHI_THRESHOLD;
+  
+  /**
+   * The fewest probes before a path is declared dead, however reliable the host is.
+   */
+  public static final int MIN_PING_TRIES = 2;
+  
+  /**
+   * The loss estimate of a host we haven't probed yet, and the bounds on the estimate.
+   */
+  public static final double INITIAL_LOSS = 0.1;
+  public static final double MIN_LOSS = 0.03;
+  public static final double MAX_LOSS = 0.5;
+  
+  /**
+   * How fast the loss estimate follows new probes.
+   */
+  public static final double LOSS_GAIN = 0.05;
+  
+  /**
+   * The number of deviations above the mean RTT at which phi reaches PHI_THRESHOLD.
+   */
+  protected double phiDeviations;
+
 
   protected TransportLayer<Identifier, ByteBuffer> tl;
   protected Logger logger;
@@ -157,6 +191,15 @@ public class LivenessTransportLayerImpl<Identifier> implements
    * Holds only pending DeadCheckers
    */
   Map<Identifier, EntityManager> managers;
+  
+  /**
+   * The shared state of each physical address.  This is only a cache: if a key is 
+   * collected while managers still point to its HostState, newer managers for that
+   * address just start a new one.
+   */
+  Map<Object, HostState> hosts;
+  
+  protected PhysicalAddressMapper<Identifier> physicalAddressMapper;
 
   private TransportLayerCallback<Identifier, ByteBuffer> callback;
   
@@ -194,6 +237,11 @@ public class LivenessTransportLayerImpl<Identifier> implements
     RTO_LBOUND = p.getInt("pastry_socket_srm_rto_lbound");//1000;
     gainH = p.getDouble("pastry_socket_srm_gain_h");//0.25;
     gainG = p.getDouble("pastry_socket_srm_gain_g");//0.125;
+    if (p.contains("pastry_socket_scm_phi_threshold")) {
+      PHI_THRESHOLD = p.getDouble("pastry_socket_scm_phi_threshold");
+    }
+    phiDeviations = getPhiDeviations(PHI_THRESHOLD);
+    this.hosts = new WeakHashMap<Object, HostState>();
 
     tl.setCallback(this);
     this.errorHandler = errorHandler;
@@ -202,6 +250,57 @@ public class LivenessTransportLayerImpl<Identifier> implements
     }
   }
   
+  /**
+   * Share RTT/loss estimates and liveness probes between the identifiers that this 
+   * maps to the same physical address.  Set this before sending any messages.
+   * 
+   * @param mapper null to keep separate state for every identifier
+   */
+  public void setPhysicalAddressMapper(PhysicalAddressMapper<Identifier> mapper) {
+    this.physicalAddressMapper = mapper;
+  }
+  
+  protected HostState getHostState(Identifier i) {
+    Object address = null;
+    if (physicalAddressMapper != null) address = physicalAddressMapper.getPhysicalAddress(i);
+    if (address == null) return new HostState();
+    synchronized(hosts) {
+      HostState ret = hosts.get(address);
+      if (ret == null) {
+        ret = new HostState();
+        hosts.put(address, ret);
+      }
+      return ret;
+    }
+  }
+  
+  /**
+   * The logistic approximation of the normal distribution (as used by phi accrual failure 
+   * detectors): the probability that a sample is more than y deviations above the mean.
+   */
+  protected static double probabilityLater(double y) {
+    double e = Math.exp(-y*(1.5976+0.070566*y*y));
+    return e/(1.0+e);
+  }
+  
+  /**
+   * Inverts probabilityLater() for 10^-phi.
+   */
+  protected static double getPhiDeviations(double phi) {
+    if (phi <= 0) return 0;
+    double target = Math.pow(10, -phi);
+    double lo = 0, hi = 40;
+    for (int i = 0; i < 60; i++) {
+      double mid = (lo+hi)/2;
+      if (probabilityLater(mid) > target) {
+        lo = mid;
+      } else {
+        hi = mid;
+      }
+    }
+    return hi;
+  }
+  
   public void clearState(Identifier i) {
     if (logger.level <= Logger.FINE) logger.log("clearState("+i+")");
     deleteManager(i);
@@ -595,6 +694,9 @@ public class LivenessTransportLayerImpl<Identifier> implements
     
     Map<String, Object> options;
     
+    // true if this gave up on the path
+    protected boolean expired = false;
+    
     /**
      * Constructor for DeadChecker.
      *
@@ -628,6 +730,7 @@ public class LivenessTransportLayerImpl<Identifier> implements
      */
     public void pingResponse(long RTT, Map<String, Object> options) {
 //      logger.log(this+".pingResponse()");
+      manager.host.probeAnswered(tries);
       if (!cancelled) {
         if (tries > 1) {
           long delay = time.currentTimeMillis()-startTime;
@@ -640,6 +743,57 @@ public class LivenessTransportLayerImpl<Identifier> implements
       cancel();
     }
 
+    /**
+     * Sends the first probe, then waits for it.  If another path to the same host is 
+     * already being probed, waits for that check instead of scheduling more probes: if 
+     * it finds the host unreachable, this path is dead too.
+     */
+    public void start() {
+      Identifier temp = manager.identifier.get();
+      if (temp != null) {
+        ping(temp, options);
+      }
+      if (manager.host.join(this)) {
+        timer.schedule(this, initialDelay);
+      } else {
+        if (logger.level <= Logger.FINE) logger.log("DeadChecker@"+System.identityHashCode(this)+"(" +temp+") following "+manager.host.lead);
+      }
+    }
+    
+    /**
+     * Called when the check that this was following ended without finding the host
+     * unreachable; continue to probe this path on its own.
+     */
+    protected void release() {
+      if (logger.level <= Logger.FINE) logger.log("DeadChecker@"+System.identityHashCode(this)+"(" + manager.identifier.get() + ") released");
+      long waited = time.currentTimeMillis()-startTime;
+      timer.schedule(this, Math.max(1, initialDelay-waited));
+    }
+    
+    /**
+     * @return true if we should stop probing and declare the path dead
+     */
+    protected boolean giveUp() {
+      if (tries >= numTries) return true;
+      if (PHI_THRESHOLD <= 0) return false;
+      return tries >= MIN_PING_TRIES && manager.host.phi(tries) >= PHI_THRESHOLD;
+    }
+    
+    /**
+     * @return how long to wait for the probe we are about to send
+     */
+    protected int nextDelay() {
+      int absPD;
+      if (PHI_THRESHOLD > 0 && manager.host.hasSamples()) {
+        absPD = (int)Math.min(RTO_UBOUND, ((long)manager.host.probeTimeout()) << (tries-1));
+      } else {
+        absPD = (int)(PING_DELAY*Math.pow(2,tries-1));
+      }
+      int jitterAmt = (int)(((float)absPD)*PING_JITTER);
+      if (jitterAmt <= 0) return absPD;
+      return absPD-jitterAmt+random.nextInt(jitterAmt*2);
+    }
+
     /**
      * Main processing method for the DeadChecker object
      * 
@@ -655,7 +809,7 @@ public class LivenessTransportLayerImpl<Identifier> implements
     public void run() {
       if (destroyed) return;
 //      logger.log(this+".run()");
-      if (tries < numTries) {
+      if (!giveUp()) {
         tries++;
 //        if (manager.getLiveness(path.getLastHop()) == SocketNodeHandle.LIVENESS_ALIVE)
         manager.markSuspected(options);        
@@ -665,14 +819,13 @@ public class LivenessTransportLayerImpl<Identifier> implements
           if (logger.level <= Logger.FINER) logger.log("DeadChecker@"+System.identityHashCode(this)+"(" +temp+") pinging "+tries+" "+manager.getPending());
           ping(temp, options);
         }
-        int absPD = (int)(PING_DELAY*Math.pow(2,tries-1));
-        int jitterAmt = (int)(((float)absPD)*PING_JITTER);
-        int scheduledTime = absPD-jitterAmt+random.nextInt(jitterAmt*2);
+        int scheduledTime = nextDelay();
 //        logger.log(this+".run():scheduling for "+scheduledTime);
         timer.schedule(this,scheduledTime);
       } else {
         if (logger.level <= Logger.FINE) logger.log("DeadChecker@"+System.identityHashCode(this)+"(" + manager.identifier.get() + ") expired - marking as dead.");
 //        cancel(); // done in markDead()
+        expired = true;
         manager.markDead(options);
       }
     }
@@ -681,6 +834,7 @@ public class LivenessTransportLayerImpl<Identifier> implements
       synchronized(manager) {
         manager.setPending(null);
       }
+      manager.host.leave(this);
       return super.cancel();
     }
     
@@ -690,12 +844,11 @@ public class LivenessTransportLayerImpl<Identifier> implements
   }
   
   /**
-   * Internal class which is charges with managing the remote connection via
-   * a specific route
-   * 
+   * The RTT and loss estimates, and the liveness check in progress, for all of the 
+   * paths to one physical address (or for a single path if there is no 
+   * PhysicalAddressMapper).
    */
-  public class EntityManager {
-    
+  protected class HostState {
     /**
      * Retransmission Time Out
      */
@@ -711,6 +864,146 @@ public class LivenessTransportLayerImpl<Identifier> implements
      */
     double standardD = RTO/4.0;  // RFC1122 recommends choose value to target RTO = 3 seconds
     
+    // the number of RTT samples
+    int samples = 0;
+    
+    // the estimated probability that a probe or its response is lost
+    double loss = INITIAL_LOSS;
+    
+    // the last time any path to this host answered a probe
+    long lastHeard = Long.MIN_VALUE;
+    
+    // the check which is probing this host, and the checks waiting for it
+    DeadChecker lead;
+    List<DeadChecker> followers = new ArrayList<DeadChecker>();
+    
+    public synchronized int rto() {
+      return RTO;
+    }
+    
+    public synchronized boolean hasSamples() {
+      return samples > 0;
+    }
+    
+    /**
+     * Adds a new round trip time datapoint to our RTT estimate, and 
+     * updates RTO and standardD accordingly.
+     * 
+     * @param m new RTT
+     */
+    protected synchronized void updateRTO(long m) {      
+      if (m < 0) throw new IllegalArgumentException("rtt must be >= 0, was:"+m);
+      lastHeard = time.currentTimeMillis();
+      
+      if (samples++ == 0) {
+        // rfc 2988: start from the first measurement rather than from 0
+        RTT = m;
+        standardD = m/2.0;
+      } else {
+        // rfc 1122
+        double err = m-RTT;
+        double absErr = err;
+        if (absErr < 0) {
+          absErr *= -1;
+        }
+        RTT = RTT+gainG*err;
+        standardD = standardD + gainH*(absErr-standardD);
+      }
+      RTO = (int)(RTT+(4.0*standardD));
+      if (RTO > RTO_UBOUND) {
+        RTO = RTO_UBOUND;
+      }
+      if (RTO < RTO_LBOUND) {
+        RTO = RTO_LBOUND;
+      }
+    }
+    
+    /**
+     * How long to wait for the response to a probe: until the phi of the outstanding 
+     * probe reaches PHI_THRESHOLD.  
+     */
+    public synchronized int probeTimeout() {
+      if (PHI_THRESHOLD <= 0 || samples == 0) return RTO;
+      // don't trust a deviation of almost nothing from a few samples on a quiet link
+      double deviation = Math.max(standardD, Math.max(RTT/10.0, 1.0));
+      return (int)Math.max(RTO_LBOUND, Math.min(RTO_UBOUND, RTT+phiDeviations*deviation));
+    }
+    
+    /**
+     * The suspicion level of a path that hasn't answered this many probes, each of which 
+     * waited probeTimeout(): the chance that they were all lost is loss^unanswered.
+     */
+    public synchronized double phi(int unanswered) {
+      return -unanswered*Math.log10(loss);
+    }
+    
+    /**
+     * A check got its answer after sending this many probes, so all but the last were lost.
+     */
+    public synchronized void probeAnswered(int tries) {
+      for (int i = 1; i < tries; i++) {
+        loss += LOSS_GAIN*(1.0-loss);
+      }
+      loss -= LOSS_GAIN*loss;
+      loss = Math.max(MIN_LOSS, Math.min(MAX_LOSS, loss));
+    }
+    
+    /**
+     * @return true if the checker should probe, false if it should wait for the lead
+     */
+    public synchronized boolean join(DeadChecker checker) {
+      if (lead == null || lead == checker) {
+        lead = checker;
+        return true;
+      }
+      followers.add(checker);
+      return false;
+    }
+    
+    /**
+     * Called when a check ends for any reason.  When the lead ends, its followers are 
+     * declared dead if it gave up and we haven't heard from the host since it started, 
+     * otherwise the host is reachable, and they continue on their own.
+     */
+    public void leave(DeadChecker checker) {
+      List<DeadChecker> waiting;
+      boolean unreachable;
+      synchronized(this) {
+        if (checker != lead) {
+          followers.remove(checker);
+          return;
+        }
+        lead = null;
+        if (followers.isEmpty()) return;
+        waiting = followers;
+        followers = new ArrayList<DeadChecker>();
+        unreachable = checker.expired && lastHeard < checker.startTime;
+      }
+      for (DeadChecker f : waiting) {
+        if (unreachable) {
+          if (logger.level <= Logger.FINE) logger.log("DeadChecker@"+System.identityHashCode(f)+"(" + f.manager.identifier.get() + ") host unreachable - marking as dead.");
+          f.expired = true;
+          f.manager.markDead(f.options);
+        } else {
+          f.release();
+        }
+      }
+    }
+    
+    public synchronized String toString() {
+      return "HostState{rtt:"+(int)RTT+" rto:"+RTO+" loss:"+loss+" lead:"+lead+" followers:"+followers.size()+"}";
+    }
+  }
+  
+  /**
+   * Internal class which is charges with managing the remote connection via
+   * a specific route
+   * 
+   */
+  public class EntityManager {
+    
+    // the RTT/loss estimates, shared with the other paths to the same physical address
+    protected HostState host;
     
     // the remote route of this manager
     protected WeakReference<Identifier> identifier;
@@ -739,6 +1032,7 @@ public class LivenessTransportLayerImpl<Identifier> implements
 //      logger.log("new EntityManager("+identifier+")@"+System.identityHashCode(this)+" @"+System.identityHashCode(LivenessTransportLayerImpl.this));        
       if (identifier == null) throw new IllegalArgumentException("identifier is null");
       this.identifier = new WeakReference<Identifier>(identifier);
+      this.host = getHostState(identifier);
       this.liveness = LIVENESS_SUSPECTED;
 
 //      proximity = DEFAULT_PROXIMITY;
@@ -768,7 +1062,7 @@ public class LivenessTransportLayerImpl<Identifier> implements
     }
 
     public int rto() {
-      return (int)RTO; 
+      return host.rto(); 
     }
     
     /**
@@ -904,24 +1198,7 @@ public class LivenessTransportLayerImpl<Identifier> implements
      * @param m new RTT
      */
     private void updateRTO(long m) {      
-      if (m < 0) throw new IllegalArgumentException("rtt must be >= 0, was:"+m);
-      
-      // rfc 1122
-      double err = m-RTT;
-      double absErr = err;
-      if (absErr < 0) {
-        absErr *= -1;
-      }
-      RTT = RTT+gainG*err;
-      standardD = standardD + gainH*(absErr-standardD);
-      RTO = (int)(RTT+(4.0*standardD));
-      if (RTO > RTO_UBOUND) {
-        RTO = RTO_UBOUND;
-      }
-      if (RTO < RTO_LBOUND) {
-        RTO = RTO_LBOUND;
-      }
-//        System.out.println("CM.updateRTO() RTO = "+RTO+" standardD = "+standardD+" suspected in "+getTimeToSuspected(RTO)+" faulty in "+getTimeToFaulty(RTO));
+      host.updateRTO(m);
     }      
     
     /**
@@ -968,7 +1245,7 @@ public class LivenessTransportLayerImpl<Identifier> implements
         if ((this.liveness < LIVENESS_DEAD) || 
             (this.updated < now - CHECK_DEAD_THROTTLE)) {
           this.updated = now;
-          rto = rto();
+          rto = host.probeTimeout();
           this.setPending(new DeadChecker(this, NUM_PING_TRIES, rto, options));
           ret = true;
         } else {
@@ -978,7 +1255,6 @@ public class LivenessTransportLayerImpl<Identifier> implements
         }
       }
       if (ret) {
-        final int theRTO = rto;
         // delme
 //        if (!options.containsKey(org.mpisws.p2p.transport.commonapi.CommonAPITransportLayerImpl.DESTINATION_IDENTITY)) 
 //          throw new RuntimeException("options doesn't contain "+org.mpisws.p2p.transport.commonapi.CommonAPITransportLayerImpl.DESTINATION_IDENTITY+" "+options);
@@ -986,12 +1262,9 @@ public class LivenessTransportLayerImpl<Identifier> implements
         
         Runnable r = new Runnable() {
           public void run() {
-            if (getPending() == null) return;  // could have been set to null in the meantime
-            timer.schedule(getPending(), theRTO);
-            Identifier temp = identifier.get();
-            if (temp != null) {
-              ping(temp, options);
-            }
+            DeadChecker checker = getPending();
+            if (checker == null) return;  // could have been set to null in the meantime
+            checker.start();
           }
           
           public String toString() {
@@ -352,7 +352,7 @@ public class RecordLayer<Identifier> implements PeerReviewConstants,
             
         // build the environment
         Environment ret = new Environment(sman, proc, rand, dts, lman,
-            getParameters(), getExceptionStrategy());
+            getParameters(), getExceptionStrategy(), getMetrics());
       
         // gain shared fate with the rootEnvironment
         addDestructable(ret);     
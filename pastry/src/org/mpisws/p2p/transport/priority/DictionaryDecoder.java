@@ -0,0 +1,103 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package org.mpisws.p2p.transport.priority;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.mpisws.p2p.transport.priority.DictionaryEncoder.*;
+
+/**
+ * The receiving half of the dictionary on a primary socket, see DictionaryEncoder.
+ * 
+ * @author agent
+ */
+public class DictionaryDecoder {
+  byte[][] slots = new byte[64][];
+  
+  /**
+   * @param frame one message read from the socket, without the int size
+   * @return the message as it was before it was encoded.  If it was sent PLAIN, this 
+   * is the frame, positioned after the header.
+   * @throws IOException if the frame is corrupt, or refers to a slot that was never defined
+   */
+  public ByteBuffer decode(ByteBuffer frame) throws IOException {
+    try {
+      byte type = frame.get();
+      switch(type) {
+        case PLAIN:
+          return frame;
+        case ENCODED:
+          int length = frame.getInt();
+          byte[] ret = new byte[length];
+          int pos = 0;
+          int num = frame.getShort() & 0xFFFF;
+          for (int i = 0; i < num; i++) {
+            int gap = frame.getShort() & 0xFFFF;
+            frame.get(ret, pos, gap);
+            pos+=gap;
+            
+            int code = frame.getShort() & 0xFFFF;
+            int slot = code & MAX_SLOTS;
+            byte[] region;
+            if ((code & DEFINE) != 0) {
+              region = new byte[frame.getShort() & 0xFFFF];
+              frame.get(region);
+              if (slot >= slots.length) slots = Arrays.copyOf(slots, Math.max(slot+1, slots.length*2));
+              slots[slot] = region;
+            } else {
+              if (slot >= slots.length || slots[slot] == null) throw new IOException("Undefined dictionary slot "+slot);
+              region = slots[slot];
+            }
+            System.arraycopy(region, 0, ret, pos, region.length);
+            pos+=region.length;
+          }
+          if (frame.remaining() != length-pos) throw new IOException("Frame has "+frame.remaining()+" bytes left, expected "+(length-pos));
+          frame.get(ret, pos, length-pos);
+          return ByteBuffer.wrap(ret);
+        default:
+          throw new IOException("Unknown frame type "+type);
+      }
+    } catch (BufferUnderflowException bue) {
+      throw new IOException("Truncated frame "+frame);
+    } catch (IndexOutOfBoundsException ioobe) {
+      throw new IOException("Corrupt frame "+frame);
+    }
+  }
+}
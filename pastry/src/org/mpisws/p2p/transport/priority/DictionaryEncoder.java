@@ -0,0 +1,230 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package org.mpisws.p2p.transport.priority;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import rice.p2p.util.rawserialization.MarkingOutputBuffer.Marks;
+import rice.p2p.util.rawserialization.SimpleOutputBuffer;
+
+/**
+ * The sending half of the dictionary on a primary socket.  The marked regions of a 
+ * message (serialized NodeHandles) that were already sent on this socket are replaced
+ * by a 2 byte slot number.  The first time a region is sent, it is sent in full, 
+ * along with the slot that the receiver should remember it in.  Because the socket 
+ * delivers in order, and both halves of the dictionary go away with the socket, 
+ * the sender and receiver can't disagree.
+ * 
+ * The least recently used slot is reused when the dictionary is full, and slots 
+ * whose owner was found dead are reused first (see invalidate()).
+ * 
+ * Each message on the socket (after the int size) is:
+ * 
+ *   byte PLAIN, the message
+ *   
+ * or:
+ * 
+ *   byte ENCODED, int message length, unsigned short number of regions, then for each region:
+ *     unsigned short gap since the end of the previous region, the gap bytes, 
+ *     unsigned short slot (ORed with DEFINE the first time, followed by 
+ *     unsigned short length, and the bytes)
+ *   then the rest of the message
+ * 
+ * @author agent
+ */
+public class DictionaryEncoder {
+  public static final byte PLAIN = 0;
+  public static final byte ENCODED = 1;
+  
+  public static final int DEFINE = 0x8000;
+  public static final int MAX_SLOTS = 0x7FFF;
+  public static final int MAX_LENGTH = 0xFFFF;
+  
+  int capacity;
+  
+  /**
+   * region -> slot, least recently used first
+   */
+  LinkedHashMap<ByteBuffer, Integer> slots;
+  
+  /**
+   * slot -> region
+   */
+  ByteBuffer[] regions;
+  
+  /**
+   * slot -> owner of the region
+   */
+  Object[] tags;
+  
+  /**
+   * Slots emptied by invalidate()
+   */
+  ArrayList<Integer> free = new ArrayList<Integer>();
+  
+  int nextSlot = 0;
+  
+  /**
+   * @param capacity the number of slots, 0 to always send PLAIN
+   */
+  public DictionaryEncoder(int capacity) {
+    if (capacity < 0 || capacity > MAX_SLOTS) throw new IllegalArgumentException("capacity must be between 0 and "+MAX_SLOTS+": "+capacity);
+    this.capacity = capacity;
+    this.slots = new LinkedHashMap<ByteBuffer, Integer>(capacity*2, 0.75f, true);
+    this.regions = new ByteBuffer[capacity];
+    this.tags = new Object[capacity];
+  }
+  
+  /**
+   * Builds the frame to write to the socket, including the int size.
+   * 
+   * @param msg the message, not modified
+   * @param marks the regions that may be replaced, may be null
+   * @param maxSize the largest frame (not counting the int size) that the receiver will accept
+   * @return the frame
+   */
+  public synchronized ByteBuffer encode(ByteBuffer msg, Marks marks, int maxSize) {
+    int length = msg.remaining();
+    if (capacity == 0 || marks == null || length > MAX_LENGTH || marks.size() > MAX_LENGTH) return plain(msg);
+    
+    // make sure the marks are sane, and that the result (assuming the worst) isn't too big
+    int size = 1+4+2+length;
+    int prev = 0;
+    for (int i = 0; i < marks.size(); i++) {
+      int start = marks.offsets[i*2];
+      int end = marks.offsets[i*2+1];
+      if (start < prev || end < start || end > length || end-start > MAX_LENGTH) return plain(msg);
+      size+=2+2+2;
+      prev = end;
+    }
+    if (size > maxSize) return plain(msg);
+    
+    try {
+      SimpleOutputBuffer sob = new SimpleOutputBuffer(4+size);
+      sob.writeInt(0); // the size, filled in below
+      sob.writeByte(ENCODED);
+      sob.writeInt(length);
+      sob.writeShort(marks.size());
+      
+      byte[] bytes = new byte[length];
+      msg.duplicate().get(bytes);
+      prev = 0;
+      for (int i = 0; i < marks.size(); i++) {
+        int start = marks.offsets[i*2];
+        int end = marks.offsets[i*2+1];
+        sob.writeShort(start-prev);
+        sob.write(bytes, prev, start-prev);
+
+        ByteBuffer region = ByteBuffer.wrap(bytes, start, end-start).slice();
+        Integer slot = slots.get(region);
+        if (slot == null) {
+          // copy it, so we don't hold onto the whole message
+          byte[] copy = new byte[end-start];
+          System.arraycopy(bytes, start, copy, 0, copy.length);
+          region = ByteBuffer.wrap(copy);
+          slot = allocate();
+          slots.put(region, slot);
+          regions[slot] = region;
+          tags[slot] = marks.tags[i];
+          sob.writeShort(slot | DEFINE);
+          sob.writeShort(copy.length);
+          sob.write(copy, 0, copy.length);
+        } else {
+          sob.writeShort(slot);
+        }
+        prev = end;
+      }
+      sob.write(bytes, prev, length-prev);
+      
+      byte[] frame = sob.getBytes();
+      ByteBuffer ret = ByteBuffer.wrap(frame);
+      ret.putInt(0, frame.length-4);
+      return ret;
+    } catch (IOException ioe) {
+      // SimpleOutputBuffer doesn't throw
+      throw new RuntimeException(ioe);
+    }
+  }
+  
+  private int allocate() {
+    if (!free.isEmpty()) return free.remove(free.size()-1);
+    if (nextSlot < capacity) return nextSlot++;
+    
+    // reuse the least recently used
+    Iterator<Map.Entry<ByteBuffer, Integer>> i = slots.entrySet().iterator();
+    int ret = i.next().getValue();
+    i.remove();
+    return ret;
+  }
+  
+  /**
+   * A frame for a socket without a dictionary, or for a message without any marks.
+   */
+  private ByteBuffer plain(ByteBuffer msg) {
+    ByteBuffer ret = ByteBuffer.allocate(msg.remaining()+5);
+    ret.putInt(msg.remaining()+1);
+    ret.put(PLAIN);
+    ret.put(msg.duplicate());
+    ret.clear();
+    return ret;
+  }
+  
+  /**
+   * Frees the slots of regions belonging to the tag, such as when it was found dead.  
+   * Nothing needs to be sent: the receiver learns the new contents of the slot when 
+   * it is reused.
+   * 
+   * @param tag the owner
+   */
+  public synchronized void invalidate(Object tag) {
+    if (tag == null) return;
+    for (int slot = 0; slot < nextSlot; slot++) {
+      if (tag.equals(tags[slot])) {
+        slots.remove(regions[slot]);
+        regions[slot] = null;
+        tags[slot] = null;
+        free.add(slot);
+      }
+    }
+  }
+  
+  public synchronized int size() {
+    return slots.size();
+  }
+}
@@ -60,6 +60,12 @@ import rice.p2p.util.tuples.Tuple3;
 public interface PriorityTransportLayer<Identifier> extends TransportLayer<Identifier, ByteBuffer> {
   public static final String OPTION_PRIORITY = "OPTION_PRIORITY";
   
+  /**
+   * MarkingOutputBuffer.Marks of the regions of the message that may be sent as a 
+   * dictionary index, see DictionaryEncoder.
+   */
+  public static final String OPTION_DICTIONARY_SEGMENTS = "OPTION_DICTIONARY_SEGMENTS";
+  
   // different priority levels
   public static final byte MAX_PRIORITY = -15;
   public static final byte HIGH_PRIORITY = -10;
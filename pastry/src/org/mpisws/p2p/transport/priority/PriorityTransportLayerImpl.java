@@ -77,10 +77,15 @@ import org.mpisws.p2p.transport.wire.WireTransportLayer;
 import rice.Continuation;
 import rice.environment.Environment;
 import rice.environment.logging.Logger;
+import rice.environment.metrics.Counter;
+import rice.environment.metrics.MetricsRegistry;
+import rice.environment.metrics.TraceContext;
+import rice.environment.metrics.Tracer;
 import rice.p2p.commonapi.Cancellable;
 import rice.p2p.commonapi.exception.NodeIsDeadException;
 import rice.p2p.util.MathUtils;
 import rice.p2p.util.SortedLinkedList;
+import rice.p2p.util.rawserialization.MarkingOutputBuffer;
 import rice.p2p.util.tuples.Tuple;
 import rice.selector.SelectorManager;
 import rice.selector.TimerTask;
@@ -99,9 +104,11 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
   public static final byte PASSTHROUGH_SOCKET_B = 0;
   public static final byte PRIMARY_SOCKET_B = 1;
   public static final byte BIG_MSG_SOCKET_B = 2;
+  public static final byte PRIMARY_SOCKET_DICTIONARY_B = 3;
   public static final byte[] PASSTHROUGH_SOCKET = {PASSTHROUGH_SOCKET_B};
   public static final byte[] PRIMARY_SOCKET = {PRIMARY_SOCKET_B};
   public static final byte[] BIG_MSG_SOCKET = {BIG_MSG_SOCKET_B};
+  public static final byte[] PRIMARY_SOCKET_DICTIONARY = {PRIMARY_SOCKET_DICTIONARY_B};
   
   public int MAX_MSG_SIZE = 10000;
   public int MAX_QUEUE_SIZE = 30;
@@ -111,8 +118,39 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
    */
   public int MAX_BIG_MSG_SIZE = Integer.MAX_VALUE;
   
+  /**
+   * The number of NodeHandles to remember on each primary socket that we open, so they 
+   * can be sent as an index (see DictionaryEncoder).  0 opens plain primary sockets, 
+   * which is required if the remote node doesn't understand PRIMARY_SOCKET_DICTIONARY.
+   */
+  public int DICTIONARY_SIZE = 0;
+  
+  // dictionary statistics
+  long dictionaryBytesIn = 0;
+  long dictionaryBytesOut = 0;
+  long dictionaryEncodeNanos = 0;
+  long dictionaryDecodeNanos = 0;
+  int dictionaryMessagesEncoded = 0;
+  int dictionaryMessagesDecoded = 0;
+  
   public Logger logger;
   
+  protected MetricsRegistry metrics;
+  
+  protected Tracer tracer;
+  
+  /**
+   * [SENT/DROPPED][2*(priority-MAX_PRIORITY)] messages, then bytes, filled in as the 
+   * priorities are used
+   */
+  protected Counter[][] priorityCounters = new Counter[2][2*(LOWEST_PRIORITY-MAX_PRIORITY+1)];
+  protected static final int SENT = 0;
+  protected static final int DROPPED = 1;
+  protected static final String[] COUNTER_NAMES = {"sent", "dropped"};
+  protected Counter messagesReceived;
+  protected Counter bytesReceived;
+  protected Counter queueDrops;
+  
   protected Map<Identifier, EntityManager> entityManagers;
 
   private TransportLayerCallback<Identifier, ByteBuffer> callback;
@@ -141,6 +179,11 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
     this.logger = env.getLogManager().getLogger(PriorityTransportLayerImpl.class, null);
     this.selectorManager = env.getSelectorManager();
     this.environment = env;
+    this.metrics = env.getMetrics();
+    this.tracer = metrics.getTracer();
+    this.messagesReceived = metrics.counter("transport.priority.receivedMessages");
+    this.bytesReceived = metrics.counter("transport.priority.receivedBytes");
+    this.queueDrops = metrics.counter("transport.priority.queueDrops");
     this.MAX_MSG_SIZE = maxMsgSize;
     this.MAX_QUEUE_SIZE = maxQueueSize;
     this.tl = tl;    
@@ -194,7 +237,11 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
             break;
           case PRIMARY_SOCKET_B:
             if (logger.level <= Logger.FINE) logger.log("Opened Primary Socket from "+s.getIdentifier());
-            getEntityManager(s.getIdentifier()).primarySocketAvailable(s, null);
+            getEntityManager(s.getIdentifier()).primarySocketAvailable(s, null, false);
+            break;
+          case PRIMARY_SOCKET_DICTIONARY_B:
+            if (logger.level <= Logger.FINE) logger.log("Opened Primary Socket with dictionary from "+s.getIdentifier());
+            getEntityManager(s.getIdentifier()).primarySocketAvailable(s, null, true);
             break;
           case BIG_MSG_SOCKET_B:
             if (logger.level <= Logger.FINE) logger.log("Opened BIG Message Socket from "+s.getIdentifier());
@@ -350,8 +397,65 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
   public void livenessChanged(Identifier i, int val, Map<String, Object> options) {
     if (val >= LivenessListener.LIVENESS_DEAD) {
       getEntityManager(i).markDead();
+      
+      // don't hold slots for a node that went away, if it comes back it will have a new epoch anyway
+      if (selectorManager.isSelectorThread()) {
+        invalidateDictionaries(i);
+      } else {
+        final Identifier temp = i;
+        selectorManager.invoke(new Runnable() {
+          public void run() {
+            invalidateDictionaries(temp);
+          }
+        });
+      }
+    }
+  }
+  
+  /**
+   * Must be called on the selector.
+   */
+  protected void invalidateDictionaries(Identifier i) {
+    ArrayList<EntityManager> ems;
+    synchronized(entityManagers) {
+      ems = new ArrayList<EntityManager>(entityManagers.values());
+    }
+    for (EntityManager em : ems) {
+      for (DictionaryEncoder encoder : em.encoders.values()) {
+        encoder.invalidate(i);
+      }
     }
   }
+  
+  /**
+   * @return the bytes of messages written on primary sockets with a dictionary, before encoding
+   */
+  public long getDictionaryBytesIn() {
+    return dictionaryBytesIn;
+  }
+
+  /**
+   * @return the bytes of messages written on primary sockets with a dictionary, after encoding
+   */
+  public long getDictionaryBytesOut() {
+    return dictionaryBytesOut;
+  }
+
+  public long getDictionaryEncodeNanos() {
+    return dictionaryEncodeNanos;
+  }
+
+  public long getDictionaryDecodeNanos() {
+    return dictionaryDecodeNanos;
+  }
+
+  public int getDictionaryMessagesEncoded() {
+    return dictionaryMessagesEncoded;
+  }
+
+  public int getDictionaryMessagesDecoded() {
+    return dictionaryMessagesDecoded;
+  }
 
   public void cancelLivenessChecker(Identifier i) {
     getEntityManager(i).stopLivenessChecker();
@@ -482,6 +586,7 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
     MessageWrapper messageThatIsBeingWritten; // the current message we are sending, if this is null, we aren't in the middle of sending a message
     // Invariant: if (messageThatIsBeingWritten != null) then (writingSocket != null)
     private boolean registered = false;  // true if registed for writing
+    Map<P2PSocket<Identifier>, DictionaryEncoder> encoders = new HashMap<P2PSocket<Identifier>, DictionaryEncoder>(); // primary sockets that have a dictionary
     
     public EntityManager(Identifier identifier) {
       this.identifier = new WeakReference<Identifier>(identifier);
@@ -510,6 +615,7 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
 //          errorHandler.receivedException(i, error)
 //        }
       }
+      encoders.clear();
       synchronized(queue) {
         queue.clear();
         messageThatIsBeingWritten = null;
@@ -538,6 +644,7 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
       if (socket == writingSocket) {
         if (messageThatIsBeingWritten == null) {
           sockets.remove(socket);
+          encoders.remove(socket);
           socket.close();
           setWritingSocket(null);
           return true;
@@ -546,6 +653,7 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
         return false;
       } else {
         sockets.remove(socket);
+        encoders.remove(socket);
         socket.close();
         return true;
       }
@@ -556,8 +664,9 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
      * 
      * @param s
      * @param receipt null if a remote node opened the socket
+     * @param dictionary true if messages on the socket are sent with a DictionaryEncoder
      */
-    public void primarySocketAvailable(P2PSocket<Identifier> s, SocketRequestHandle<Identifier> receipt) {
+    public void primarySocketAvailable(P2PSocket<Identifier> s, SocketRequestHandle<Identifier> receipt, boolean dictionary) {
       // make sure we're on the selector thread so synchronization of writingSocket is simple
       if (!selectorManager.isSelectorThread()) throw new IllegalStateException("Must be called on the selector");
 
@@ -579,10 +688,18 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
       }
       
       sockets.add(s);
+      
+      // The dictionary belongs to the socket, so the receiver sees the entries in the order we create them, 
+      // and it goes away when the socket does.  Both directions use it.
+      DictionaryDecoder decoder = null;
+      if (dictionary) {
+        encoders.put(s, new DictionaryEncoder(Math.min(Math.max(DICTIONARY_SIZE, 0), DictionaryEncoder.MAX_SLOTS)));
+        decoder = new DictionaryDecoder();
+      }
       scheduleToWriteIfNeeded();
       
       // also, be able to read incoming messages on every socket
-      new SizeReader(s);
+      new SizeReader(s, decoder);
     }
     
     public void setWritingSocket(P2PSocket<Identifier> s/*, String loc*/) {
@@ -671,7 +788,8 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
               }        
             });
             sock.register(false, true, new P2PSocketReceiver<Identifier>() {
-              ByteBuffer writeMe = ByteBuffer.wrap(PRIMARY_SOCKET);
+              final boolean dictionary = DICTIONARY_SIZE > 0;
+              ByteBuffer writeMe = ByteBuffer.wrap(dictionary ? PRIMARY_SOCKET_DICTIONARY : PRIMARY_SOCKET);
               public void receiveSelectResult(P2PSocket<Identifier> socket, boolean canRead, boolean canWrite) throws IOException {
                 if (canRead || !canWrite) throw new IllegalArgumentException("expected to write!  canRead:"+canRead+" canWrite:"+canWrite);
                 if (logger.level <= Logger.FINE) logger.log("Opened Primary socket "+socket+" to "+i);
@@ -685,7 +803,7 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
                 if (writeMe.hasRemaining()) {
                   socket.register(false, true, this);
                 } else {
-                  getEntityManager(socket.getIdentifier()).primarySocketAvailable(socket, handle);
+                  getEntityManager(socket.getIdentifier()).primarySocketAvailable(socket, handle, dictionary);
                 }
               }        
               
@@ -781,6 +899,7 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
       synchronized(queue) {  
         if (messageThatIsBeingWritten == null) {
           messageThatIsBeingWritten = queue.poll();
+          if (tracer.enabled && messageThatIsBeingWritten != null) trace(messageThatIsBeingWritten.options, "dequeue", null);
           if (logger.level <= Logger.FINEST) logger.log("poll("+identifier.get()+") set messageThatIsBeingWritten = "+messageThatIsBeingWritten);
         }
         if (queue.size() >= (MAX_QUEUE_SIZE-1) && logger.level <= Logger.INFO) {
@@ -815,6 +934,7 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
       } else if (logger.level <= Logger.INFO) logger.log(this+".receiveException("+socket+","+ioe+"):"+messageThatIsBeingWritten+" wrS:"+writingSocket+" "+ioe);
       registered = false;
       sockets.remove(socket);
+      encoders.remove(socket);
       if (ioe instanceof ClosedChannelException) {
         // don't close, will get cleaned up by the reader
       } else {
@@ -890,6 +1010,7 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
         while (queue.size() > MAX_QUEUE_SIZE) {
           MessageWrapper w = queue.removeLast();
           if (logger.level <= Logger.INFO+50) logger.log("Dropping "+w+" because queue is full. MAX_QUEUE_SIZE:"+MAX_QUEUE_SIZE);
+          queueDrops.inc();
           w.drop();
         }
       }
@@ -1279,6 +1400,7 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
       // enqueue the message
       ret = new MessageWrapper(temp, message, deliverAckToMe, options, priority, seq++);        
       notifyListenersEnqueued(ret.originalSize, temp, options);
+      if (tracer.enabled) trace(options, "enqueue", priority);
       enqueue(ret);
       if (selectorManager.isSelectorThread()) {
         scheduleToWriteIfNeeded();
@@ -1302,6 +1424,7 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
       
       // close the socket if we need to 
       if (closeWritingSocket == writingSocket) {
+        encoders.remove(writingSocket);
         writingSocket.close();
         setWritingSocket(null/*, "complete("+wrapper+")"*/);
         closeWritingSocket = null;          
@@ -1318,6 +1441,7 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
         if (writingSocket != null) {
   //        writingSocket.close();
           sockets.remove(writingSocket);
+          encoders.remove(writingSocket);
           setWritingSocket(null/*, "CaE("+wrapper+")"*/);
         }
         if (wrapper != null) {
@@ -1338,6 +1462,8 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
       
       ByteBuffer originalMessage;
       ByteBuffer message;
+      ByteBuffer plainFrame; // the message headed with the size, message is replaced when it is encoded for a socket with a dictionary
+      boolean encoded = false; // true when message was encoded for this.socket, the encoder expects it to be written in full
       MessageCallback<Identifier, ByteBuffer> deliverAckToMe;
       Map<String, Object> options;      
       int originalSize;
@@ -1364,6 +1490,7 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
         this.message.put((byte)((size >>>  0) & 0xFF));
         this.message.put(message);
         this.message.clear();
+        this.plainFrame = this.message;
         
         this.deliverAckToMe = deliverAckToMe;
         this.options = options;
@@ -1377,6 +1504,7 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
       
       public void complete() {
         completed = true;
+        if (tracer.enabled) trace(options, "write", originalSize);
         if (deliverAckToMe != null) deliverAckToMe.ack(this);
         notifyListenersWrote(originalSize, myIdentifier, options);        
       }
@@ -1403,11 +1531,15 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
         // in case we don't complete the write, remember where we are writing
         this.socket = socket;
         
-        if (cancelled && message.position() == 0) {
+        if (cancelled && message.position() == 0 && !encoded) {
           if (logger.level <= Logger.FINEST) logger.log(this+".rsr("+socket+") cancelled"); 
           // cancel
           return true;
         } else {
+          if (!encoded) {
+            DictionaryEncoder encoder = encoders.get(socket);
+            if (encoder != null) encode(encoder);
+          }
           long bytesWritten;
           if ((bytesWritten = socket.write(message)) == -1) {
             // socket was closed, need to register new socket
@@ -1431,8 +1563,29 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
         }
       }
       
+      /**
+       * Replace message with the frame for a socket with a dictionary.  Once this is called, the frame 
+       * must be written in full, or the socket closed.
+       */
+      void encode(DictionaryEncoder encoder) {
+        long start = System.nanoTime();
+        ByteBuffer plain = plainFrame.duplicate();
+        plain.position(4);
+        MarkingOutputBuffer.Marks marks = null;
+        if (options != null && options.get(OPTION_DICTIONARY_SEGMENTS) instanceof MarkingOutputBuffer.Marks) {
+          marks = (MarkingOutputBuffer.Marks)options.get(OPTION_DICTIONARY_SEGMENTS);
+        }
+        message = encoder.encode(plain, marks, MAX_MSG_SIZE+1);
+        encoded = true;
+        dictionaryEncodeNanos+=System.nanoTime()-start;
+        dictionaryMessagesEncoded++;
+        dictionaryBytesIn+=plainFrame.capacity();
+        dictionaryBytesOut+=message.capacity();
+      }
+      
       public void drop() {
         // TODO: make sure we've done evrything necessary here to clean this up        
+        if (tracer.enabled) trace(options, "drop", null);
         if (deliverAckToMe != null) deliverAckToMe.sendFailed(this, new QueueOverflowException(identifier.get(), originalMessage));
         notifyListenersDropped(originalSize, myIdentifier, options);
       }
@@ -1460,7 +1613,9 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
       }
       
       public void reset() {
+        message = plainFrame;
         message.clear();
+        encoded = false;
         socket = null;
       }
       
@@ -1468,7 +1623,7 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
         cancelled = true;
         synchronized(queue) {
           if (this.equals(messageThatIsBeingWritten)) {
-            if (message.position() == 0) {
+            if (message.position() == 0 && !encoded) {
               // TODO: can still cancel the message, but have to have special behavior when the socket calls us back 
               messageThatIsBeingWritten = null;
               return true;
@@ -1494,8 +1649,8 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
      */
     class SizeReader extends BufferReader {
       
-      public SizeReader(P2PSocket<Identifier> socket) {
-        super(4, socket); 
+      public SizeReader(P2PSocket<Identifier> socket, DictionaryDecoder decoder) {
+        super(4, socket, decoder); 
       }
       
       @Override
@@ -1503,13 +1658,15 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
         int msgSize = buf.asIntBuffer().get();
         if (logger.level <= Logger.FINER) logger.log(EntityManager.this+" reading message of size "+msgSize);
 
-        if (msgSize > MAX_MSG_SIZE) {
+        // the dictionary adds a byte to a message that it couldn't shrink
+        int maxSize = (decoder == null) ? MAX_MSG_SIZE : MAX_MSG_SIZE+1;
+        if (msgSize > maxSize) {
           if (logger.level <= Logger.WARNING) logger.log(socket+" attempted to send a message of size "+msgSize+". MAX_MSG_SIZE = "+MAX_MSG_SIZE);
           closeMe(socket);
           return;
         }
         
-        new BufferReader(msgSize, socket);
+        new BufferReader(msgSize, socket, decoder);
       }
       
       public String toString() {
@@ -1524,8 +1681,10 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
      */
     class BufferReader implements P2PSocketReceiver<Identifier> {
       ByteBuffer buf;
+      DictionaryDecoder decoder; // null if the socket doesn't have a dictionary
       
-      public BufferReader(int size, P2PSocket<Identifier> socket) {
+      public BufferReader(int size, P2PSocket<Identifier> socket, DictionaryDecoder decoder) {
+        this.decoder = decoder;
         buf = ByteBuffer.allocate(size);
         socket.register(true, false, this);
       }
@@ -1583,8 +1742,21 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
       public void done(P2PSocket<Identifier> socket) throws IOException {
         if (logger.level <= Logger.FINE) logger.log(EntityManager.this+" read message of size "+buf.capacity()+" from "+socket);        
         notifyListenersRead(buf.capacity(), socket.getIdentifier(), socket.getOptions());
-        callback.messageReceived(socket.getIdentifier(), buf, socket.getOptions()); 
-        new SizeReader(socket);
+        ByteBuffer msg = buf;
+        if (decoder != null) {
+          long start = System.nanoTime();
+          try {
+            msg = decoder.decode(buf);
+          } catch (IOException ioe) {
+            // we can't get back in sync with the sender
+            receiveException(socket, ioe);
+            return;
+          }
+          dictionaryDecodeNanos+=System.nanoTime()-start;
+          dictionaryMessagesDecoded++;
+        }
+        callback.messageReceived(socket.getIdentifier(), msg, socket.getOptions()); 
+        new SizeReader(socket, decoder);
       }
       
       public String toString() {
@@ -1656,9 +1828,44 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
     removeTransportLayerListener(listener);
   }
   
+  /**
+   * Records the event if the message is being traced.
+   */
+  protected void trace(Map<String, Object> options, String event, Object detail) {
+    if (options == null) return;
+    Object trace = options.get(TraceContext.OPTION_TRACE);
+    if (trace != null) ((TraceContext)trace).record(event, detail);
+  }
+  
+  /**
+   * Counts the message in transport.priority.(sent|dropped)(Messages|Bytes).priority
+   */
+  protected void countByPriority(int kind, int size, Map<String, Object> options) {
+    if (!metrics.enabled) return;
+    int priority = DEFAULT_PRIORITY;
+    if (options != null && options.containsKey(OPTION_PRIORITY)) {
+      priority = ((Integer)options.get(OPTION_PRIORITY)).intValue();
+    }
+    priority = Math.max(MAX_PRIORITY, Math.min(LOWEST_PRIORITY, priority));
+    int index = 2*(priority-MAX_PRIORITY);
+    Counter[] counters = priorityCounters[kind];
+    Counter messages = counters[index];
+    Counter bytes = counters[index+1];
+    if (messages == null || bytes == null) {
+      messages = metrics.counter("transport.priority."+COUNTER_NAMES[kind]+"Messages."+priority);
+      bytes = metrics.counter("transport.priority."+COUNTER_NAMES[kind]+"Bytes."+priority);
+      counters[index] = messages;
+      counters[index+1] = bytes;
+    }
+    messages.inc();
+    bytes.add(size);
+  }
+  
   public void notifyListenersRead(int size, Identifier source,
       Map<String, Object> options) {
-
+    messagesReceived.inc();
+    bytesReceived.add(size);
+    
     if (listeners.isEmpty()) return;
     ArrayList<TransportLayerListener<Identifier>> temp;
     
@@ -1672,6 +1879,7 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
 
   public void notifyListenersWrote(int size, Identifier dest,
       Map<String, Object> options) {
+    countByPriority(SENT, size, options);
     if (listeners.isEmpty()) return;
     ArrayList<TransportLayerListener<Identifier>> temp;
     
@@ -1698,6 +1906,7 @@ public class PriorityTransportLayerImpl<Identifier> implements PriorityTransport
 
   public void notifyListenersDropped(int size, Identifier dest,
       Map<String, Object> options) {
+    countByPriority(DROPPED, size, options);
     if (plisteners.isEmpty()) return;
     ArrayList<PriorityTransportLayerListener<Identifier>> temp;
     
@@ -38,23 +38,29 @@ package org.mpisws.p2p.transport.util;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Map;
 
 import org.mpisws.p2p.transport.ErrorHandler;
 import org.mpisws.p2p.transport.P2PSocket;
 import org.mpisws.p2p.transport.P2PSocketReceiver;
+import org.mpisws.p2p.transport.ZeroCopySocket;
 
 import rice.environment.logging.Logger;
 
 /**
  * Just maps a socket from one form into another.
  * 
+ * Can zero copy if the socket below can, unless a subclass overrides read() or 
+ * write(), in which case it has to override canZeroCopy() (and transferFrom()) to 
+ * say whether it still passes the bytes through unchanged.
+ * 
  * @author Jeff Hoye
  *
  * @param <Identifier>
  * @param <SubIdentifier>
  */
-public class SocketWrapperSocket<Identifier, SubIdentifier> implements P2PSocket<Identifier>, P2PSocketReceiver<SubIdentifier> {
+public class SocketWrapperSocket<Identifier, SubIdentifier> implements P2PSocket<Identifier>, P2PSocketReceiver<SubIdentifier>, ZeroCopySocket {
 
   protected Identifier identifier;
   protected P2PSocket<SubIdentifier> socket;
@@ -190,6 +196,31 @@ public class SocketWrapperSocket<Identifier, SubIdentifier> implements P2PSocket
     return ret;
   }
 
+  public boolean canZeroCopy() {
+    if (!socketCanZeroCopy()) return false;
+    
+    // a subclass which changes the bytes can't
+    try {
+      return (getClass().getMethod("read", ByteBuffer.class).getDeclaringClass() == SocketWrapperSocket.class) &&
+        (getClass().getMethod("write", ByteBuffer.class).getDeclaringClass() == SocketWrapperSocket.class);
+    } catch (NoSuchMethodException nsme) {
+      return false;
+    }
+  }
+  
+  /**
+   * @return true if the socket below can zero copy
+   */
+  protected boolean socketCanZeroCopy() {
+    return (socket instanceof ZeroCopySocket) && ((ZeroCopySocket) socket).canZeroCopy();
+  }
+  
+  public long transferFrom(FileChannel file, long position, long count) throws IOException {
+    long ret = ((ZeroCopySocket) socket).transferFrom(file, position, count);
+    if (logger.level <= Logger.FINEST) logger.log(this+"transferFrom():"+ret);
+    return ret;
+  }
+
   @Override
   public String toString() {
     if (getIdentifier() == socket.getIdentifier()) return socket.toString();
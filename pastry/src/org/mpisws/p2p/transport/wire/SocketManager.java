@@ -41,6 +41,7 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
@@ -52,11 +53,12 @@ import org.mpisws.p2p.transport.SocketRequestHandle;
 import org.mpisws.p2p.transport.P2PSocket;
 import org.mpisws.p2p.transport.P2PSocketReceiver;
 import org.mpisws.p2p.transport.SocketCallback;
+import org.mpisws.p2p.transport.ZeroCopySocket;
 
 import rice.environment.logging.Logger;
 import rice.selector.SelectionKeyHandler;
 
-public class SocketManager extends SelectionKeyHandler implements P2PSocket<InetSocketAddress>, SocketRequestHandle<InetSocketAddress> {
+public class SocketManager extends SelectionKeyHandler implements P2PSocket<InetSocketAddress>, SocketRequestHandle<InetSocketAddress>, ZeroCopySocket {
 
   // the key to read from
   protected SelectionKey key;
@@ -483,7 +485,7 @@ public class SocketManager extends SelectionKeyHandler implements P2PSocket<Inet
       long ret = channel.read(dst);
       if (logger.level <= Logger.FINER) {
         if (logger.level <= Logger.FINEST) {
-          logger.log(this+"read("+ret+"):"+Arrays.toString(dst.array()));
+          logger.log(this+"read("+ret+"):"+(dst.hasArray() ? Arrays.toString(dst.array()) : dst.toString()));
         } else {
 //          logger.logException(this+"read("+ret+")", new Exception("Stack Trace"));
           logger.log(this+"read("+ret+")");
@@ -513,7 +515,7 @@ public class SocketManager extends SelectionKeyHandler implements P2PSocket<Inet
       long ret = channel.write(src);
       if (logger.level <= Logger.FINER) {
         if (logger.level <= Logger.FINEST) {
-          logger.log(this+"write("+ret+"):"+Arrays.toString(src.array()));
+          logger.log(this+"write("+ret+"):"+(src.hasArray() ? Arrays.toString(src.array()) : src.toString()));
         } else {
 //          logger.logException(this+"write("+ret+")", new Exception("Stack Trace"));
           logger.log(this+"write("+ret+")");
@@ -529,6 +531,27 @@ public class SocketManager extends SelectionKeyHandler implements P2PSocket<Inet
       throw ioe;
     }      
   }
+  
+  public boolean canZeroCopy() {
+    return true;
+  }
+  
+  public long transferFrom(FileChannel file, long position, long count) throws IOException {
+    if (key == null || channel.socket().isOutputShutdown()) return -1;
+    try {
+      long ret = file.transferTo(position, count, channel);
+      if (logger.level <= Logger.FINER) logger.log(this+"transferFrom("+position+","+count+"):"+ret);
+      tcp.notifyWrite(ret,addr);
+      return ret;
+    } catch (IOException ioe) {
+      if (logger.level <= Logger.FINER) {
+        logger.logException(this+" error writing", ioe);        
+      } else if (logger.level <= Logger.FINE) logger.log(this+" error writing");
+      close();
+      throw ioe;
+    }      
+  }
+  
 //  public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
 //    //System.out.println(this+"write("+srcs.length+","+offset+","+length+")");
 //    return channel.write(srcs, offset, length);
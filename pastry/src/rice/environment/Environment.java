@@ -46,12 +46,15 @@ import rice.Destructable;
 import rice.environment.exception.ExceptionStrategy;
 import rice.environment.exception.simple.SimpleExceptionStrategy;
 import rice.environment.logging.*;
+import rice.environment.logging.async.AsyncLogManager;
 import rice.environment.logging.file.FileLogManager;
 import rice.environment.logging.simple.SimpleLogManager;
+import rice.environment.metrics.MetricsRegistry;
 import rice.environment.params.Parameters;
 import rice.environment.params.simple.SimpleParameters;
 import rice.environment.processing.Processor;
 import rice.environment.processing.sim.SimProcessor;
+import rice.environment.processing.simple.PooledProcessor;
 import rice.environment.processing.simple.SimpleProcessor;
 import rice.environment.random.RandomSource;
 import rice.environment.random.simple.SimpleRandomSource;
@@ -81,6 +84,7 @@ public class Environment implements Destructable {
   private Parameters params;
   private Logger logger;
   private ExceptionStrategy exceptionStrategy;
+  private MetricsRegistry metrics;
 
   private HashSet<Destructable> destructables = new HashSet<Destructable>();
   
@@ -96,7 +100,15 @@ public class Environment implements Destructable {
    * @param props the Properties.  Default: empty properties
    */
   public Environment(SelectorManager sm, Processor proc, RandomSource rs, TimeSource time, LogManager lm, Parameters params, ExceptionStrategy strategy) {
+    this(sm, proc, rs, time, lm, params, strategy, null);
+  }
+  
+  /**
+   * @param metrics the MetricsRegistry.  Default: a new one, enabled by metrics_enable
+   */
+  public Environment(SelectorManager sm, Processor proc, RandomSource rs, TimeSource time, LogManager lm, Parameters params, ExceptionStrategy strategy, MetricsRegistry metrics) {
     this.selectorManager = sm;    
+    this.metrics = metrics;
     this.randomSource = rs;
     this.time = time; 
     this.logManager = lm;
@@ -114,6 +126,7 @@ public class Environment implements Destructable {
     
     
     this.selectorManager.setEnvironment(this);
+    this.metrics.setEnvironment(this);
     
     addDestructable(this.time);
     
@@ -144,7 +157,10 @@ public class Environment implements Destructable {
   }
   
   public static Environment directEnvironment(RandomSource rs) {
-    Parameters params = new SimpleParameters(Environment.defaultParamFileArray,null);
+    return directEnvironment(rs, new SimpleParameters(Environment.defaultParamFileArray,null));
+  }
+  
+  public static Environment directEnvironment(RandomSource rs, Parameters params) {
     DirectTimeSource dts = new DirectTimeSource(params);
     LogManager lm = generateDefaultLogManager(dts,params);
     dts.setLogManager(lm);
@@ -192,13 +208,17 @@ public class Environment implements Destructable {
           params.getBoolean("environment_use_sim_processor")) {
         processor = new SimProcessor(selectorManager);
       } else {
-        processor = generateDefaultProcessor(); 
+        processor = generateDefaultProcessor("Default", params); 
       }
     }
     
     if (exceptionStrategy == null) {
       exceptionStrategy = generateDefaultExceptionStrategy(logManager); 
     }
+    
+    if (metrics == null) {
+      metrics = generateDefaultMetrics(params);
+    }
   }
 
   public static ExceptionStrategy generateDefaultExceptionStrategy(LogManager manager) {
@@ -216,6 +236,10 @@ public class Environment implements Destructable {
     return randomSource;
   }
   
+  public static MetricsRegistry generateDefaultMetrics(Parameters params) {
+    return new MetricsRegistry(params);
+  }
+  
   public static TimeSource generateDefaultTimeSource() {
     return new SimpleTimeSource();
   }
@@ -224,6 +248,9 @@ public class Environment implements Destructable {
     if (params.getBoolean("environment_logToFile")) {
       return new FileLogManager(time, params); 
     }
+    if (params.contains("logging_async") && params.getBoolean("logging_async")) {
+      return new AsyncLogManager(time, params);
+    }
     return new SimpleLogManager(time, params); 
   }
   
@@ -235,6 +262,32 @@ public class Environment implements Destructable {
     return new SimpleProcessor("Default");
   }
   
+  /**
+   * Builds a SimpleProcessor, unless the parameters ask for more than one
+   * processing or blocking IO thread, in which case a PooledProcessor is built.
+   * 
+   * @param name the prefix of the names of the processor's threads
+   * @param params the parameters
+   */
+  public static Processor generateDefaultProcessor(String name, Parameters params) {
+    int cpuThreads = 1;
+    int ioThreads = 1;
+    if (params.contains("environment_processor_threads"))
+      cpuThreads = params.getInt("environment_processor_threads");
+    if (params.contains("environment_blocking_io_threads"))
+      ioThreads = params.getInt("environment_blocking_io_threads");
+    
+    if (cpuThreads <= 0)
+      cpuThreads = Runtime.getRuntime().availableProcessors();
+    
+    if ((cpuThreads > 1) || (ioThreads > 1)) 
+      return new PooledProcessor(name, cpuThreads, ioThreads, 
+          params.contains("environment_blocking_io_use_virtual_threads") && 
+          params.getBoolean("environment_blocking_io_use_virtual_threads"));
+    
+    return new SimpleProcessor(name);
+  }
+  
   // Accessors
   public SelectorManager getSelectorManager() {
     return selectorManager; 
@@ -254,6 +307,9 @@ public class Environment implements Destructable {
   public Parameters getParameters() {
     return params; 
   }
+  public MetricsRegistry getMetrics() {
+    return metrics;
+  }
   
   /**
    * Tears down the environment.  Calls params.store(), selectorManager.destroy().
@@ -284,6 +340,10 @@ public class Environment implements Destructable {
     }
     selectorManager.destroy();
     processor.destroy();    
+    // last, so it gets everything that was logged on the way down
+    if (logManager instanceof Destructable) {
+      ((Destructable)logManager).destroy();
+    }
   }
 
   public void addDestructable(Destructable destructable) {
@@ -333,7 +393,7 @@ public class Environment implements Destructable {
         
     // build the environment
     Environment ret = new Environment(sman, proc, rand, getTimeSource(), lman,
-        getParameters(), getExceptionStrategy());
+        getParameters(), getExceptionStrategy(), getMetrics());
   
     // gain shared fate with the rootEnvironment
     addDestructable(ret);     
@@ -365,7 +425,7 @@ public class Environment implements Destructable {
   protected Processor cloneProcessor(String prefix, LogManager lman, boolean cloneProcessor) {
     Processor proc = getProcessor();
     if (cloneProcessor) {
-      proc = new SimpleProcessor(prefix + " Processor");
+      proc = generateDefaultProcessor(prefix + " Processor", params);
     }
 
     return proc;
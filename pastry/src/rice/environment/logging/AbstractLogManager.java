@@ -41,6 +41,7 @@ advised of the possibility of such damage.
 package rice.environment.logging;
 
 import java.io.*;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
@@ -82,6 +83,33 @@ public abstract class AbstractLogManager implements LogManager {
 
   public DateFormatter dateFormatter;
   
+  /**
+   * Formats the date without the millis, when the date format ends in them.
+   */
+  protected SimpleDateFormat secondsFormat;
+  
+  /**
+   * The last date string, see getDateString().
+   */
+  protected volatile CachedDate cachedDate;
+  
+  /**
+   * A formatted time, immutable so that it can be shared between threads without a lock.
+   */
+  protected static class CachedDate {
+    /**
+     * The millis if the whole thing was cached, the start of the second if only 
+     * the seconds part was.
+     */
+    long time;
+    String string;
+    
+    public CachedDate(long time, String string) {
+      this.time = time;
+      this.string = string;
+    }
+  }
+  
   public static final String SYSTEM_OUT = "System.out";
   public static final String SYSTEM_ERR = "System.err";
   
@@ -114,6 +142,10 @@ public abstract class AbstractLogManager implements LogManager {
     if (this.dateFormat != null && !this.dateFormat.equals("")) {      
       dateFormatter = new DateFormatter(new SimpleDateFormat(this.dateFormat));
 //      System.out.println("DateFormat "+this.dateFormat);
+      if (this.dateFormat.endsWith("SSS") && !this.dateFormat.endsWith("SSSS") &&
+          this.dateFormat.indexOf('S') == this.dateFormat.length()-3) {
+        secondsFormat = new SimpleDateFormat(this.dateFormat.substring(0, this.dateFormat.length()-3));
+      }
     }
 
     this.enabled = params.getBoolean("logging_enable");
@@ -287,6 +319,52 @@ public abstract class AbstractLogManager implements LogManager {
     return logger;
   }
 
+  /**
+   * Returns the time formatted with the logging_date_format, or just the millis if 
+   * there isn't one.
+   * 
+   * Building a Date and running a SimpleDateFormat is most of the cost of a log line, 
+   * so the last result is cached.  If the format ends in the millis (the default does) 
+   * the part up to the second is cached, and the millis are appended.
+   * 
+   * Can be called from any thread.
+   */
+  public String getDateString(long time) {
+    if (dateFormatter == null) return Long.toString(time);
+    CachedDate cd = cachedDate;
+    if (secondsFormat == null) {
+      if (cd != null && cd.time == time) return cd.string;
+      String ret;
+      synchronized(dateFormatter) {
+        try {
+          ret = dateFormatter.valueToString(new Date(time));
+        } catch (ParseException pe) {
+          return Long.toString(time);
+        }
+      }
+      cachedDate = new CachedDate(time, ret);
+      return ret;
+    }
+    
+    long millis = time % 1000;
+    if (millis < 0) millis += 1000;
+    long second = time - millis;
+    if (cd == null || cd.time != second) {
+      String str;
+      synchronized(secondsFormat) {
+        str = secondsFormat.format(new Date(second));
+      }
+      cd = new CachedDate(second, str);
+      cachedDate = cd;
+    }
+    StringBuilder sb = new StringBuilder(cd.string.length()+3);
+    sb.append(cd.string);
+    if (millis < 100) sb.append('0');
+    if (millis < 10) sb.append('0');
+    sb.append(millis);
+    return sb.toString();
+  }
+  
   protected abstract Logger constructLogger(String clazz, int level, boolean useDefault);
 
   public TimeSource getTimeSource() {
@@ -121,7 +121,62 @@ public abstract class Logger {
    * @param exception the exception to print
    */
   public abstract void logException(String message, Throwable exception);
-  
+
+  /**
+   * Replaces each "{}" in the format with the next argument, and prints the result.
+   *
+   * The caller still has to check the level first, use log(int, String, Object...) to
+   * have the check done here.
+   *
+   * @param format the message, with a "{}" for each argument
+   * @param args the arguments
+   */
+  public void log(String format, Object... args) {
+    log(format(format, args));
+  }
+
+  /**
+   * Prints the message if the priority is equal to or higher than the minimum priority.
+   *
+   * The message isn't built unless it is going to be printed, however the arguments are
+   * (boxed and put in an array), so very hot code should still use
+   * if (logger.level <= priority) log(String);
+   *
+   * @param priority the priority of this log message
+   * @param format the message, with a "{}" for each argument
+   * @param args the arguments
+   */
+  public void log(int priority, String format, Object... args) {
+    if (level <= priority) log(format(format, args));
+  }
+
+  /**
+   * Replaces each "{}" in the format with String.valueOf() of the next argument.  Extra
+   * arguments are appended, extra "{}"s are left alone.
+   *
+   * This is much cheaper than String.format(), which parses the whole format string
+   * every time.
+   */
+  public static String format(String format, Object... args) {
+    if (args == null || args.length == 0) return format;
+    StringBuilder sb = new StringBuilder(format.length()+16*args.length);
+    int arg = 0;
+    int start = 0;
+    while (arg < args.length) {
+      int index = format.indexOf("{}", start);
+      if (index < 0) break;
+      sb.append(format, start, index);
+      sb.append(args[arg++]);
+      start = index+2;
+    }
+    sb.append(format, start, format.length());
+    while (arg < args.length) {
+      sb.append(' ');
+      sb.append(args[arg++]);
+    }
+    return sb.toString();
+  }
+
   /**
    * Prints the message if the priority is equal to or higher than the minimum priority.
    * 
@@ -0,0 +1,131 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.environment.logging.async;
+
+import java.io.PrintStream;
+
+import rice.Destructable;
+import rice.environment.logging.*;
+import rice.environment.logging.simple.SimpleLogManager;
+import rice.environment.params.Parameters;
+import rice.environment.time.TimeSource;
+import rice.environment.time.simple.SimpleTimeSource;
+
+/**
+ * A SimpleLogManager that doesn't write on the logging thread.
+ * 
+ * The SimpleLogger formats the date and writes the line to the PrintStream while 
+ * holding the LogManager's lock, usually on the selector thread.  Here the logger 
+ * just captures the time and the message, and an AsyncLogWriter thread does the 
+ * rest.  The output is the same.
+ * 
+ * The message is still built on the logging thread: most of our toString()s read 
+ * state that is only safe to touch on the selector.
+ * 
+ * Turned on with logging_async; the buffer holds logging_async_bufferSize lines.
+ * Clones share the writer, and the original stops it when it is destroyed.
+ * 
+ * @author agent
+ */
+public class AsyncLogManager extends SimpleLogManager implements Destructable {
+  
+  protected AsyncLogWriter writer;
+  
+  /**
+   * False for clones, which share the writer.
+   */
+  protected boolean ownsWriter;
+  
+  /**
+   * @param writer null to start a new one
+   */
+  public AsyncLogManager(PrintStream stream, TimeSource timeSource, Parameters params, String prefix, String dateFormat, AsyncLogWriter writer) {
+    super(stream, timeSource, params, prefix, dateFormat);
+    if (writer == null) {
+      int bufferSize = params.contains("logging_async_bufferSize") ? params.getInt("logging_async_bufferSize") : 65536;
+      writer = new AsyncLogWriter(bufferSize);
+      ownsWriter = true;
+    }
+    this.writer = writer;
+  }
+  
+  public AsyncLogManager(PrintStream stream, TimeSource timeSource, Parameters params) {
+    this(stream, timeSource, params, "", null, null);
+  }
+  
+  /**
+   * Convienience constructor.
+   * 
+   * Defauts to System.out as the stream (or logging_output_stream).
+   */
+  public AsyncLogManager(TimeSource timeSource, Parameters params) {
+    this(null, timeSource, params);
+  }
+  
+  /**
+   * Convienience constructor.
+   * 
+   * Defauts to System.out as the stream, and SimpleTimeSource as the timesource.
+   */
+  public AsyncLogManager(Parameters params) {
+    this(null, new SimpleTimeSource(), params);
+  }
+  
+  protected Logger constructLogger(String clazz, int level, boolean useDefault) {
+    return new AsyncLogger(clazz, this, level, useDefault);
+  }
+  
+  public AsyncLogWriter getWriter() {
+    return writer;
+  }
+  
+  public LogManager clone(String detail, TimeSource ts) {
+    return new AsyncLogManager(ps, ts, params, detail, dateFormat, writer);
+  }
+  
+  /**
+   * Writes out the buffer and stops the writer, if this isn't a clone.
+   */
+  public void destroy() {
+    if (ownsWriter) writer.stop();
+  }
+  
+  @Override
+  public String toString() {
+    return "AsyncLogManager("+prefix+")";
+  }
+}
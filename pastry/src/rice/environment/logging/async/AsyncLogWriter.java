@@ -0,0 +1,225 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.environment.logging.async;
+
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The thread that does the writing for one or more AsyncLogManagers (a manager and 
+ * its clones share one).
+ * 
+ * The logging thread only captures the time and the message, and puts them in a 
+ * LogRingBuffer; this thread formats the line, and writes it to the manager's 
+ * PrintStream.  The streams are flushed whenever the buffer runs empty.
+ * 
+ * If the buffer is full, the record is written on the calling thread, as the 
+ * SimpleLogManager would, so nothing is lost; it may just come out ahead of lines 
+ * that are still in the buffer.
+ * 
+ * @author agent
+ */
+public class AsyncLogWriter implements Runnable {
+  /**
+   * A line to write.
+   */
+  public static class LogRecord {
+    AsyncLogManager manager;
+    String loggerName;
+    long time;
+    String message;
+    Throwable exception;
+    boolean isException;
+    
+    public LogRecord(AsyncLogManager manager, String loggerName, long time, String message, Throwable exception, boolean isException) {
+      this.manager = manager;
+      this.loggerName = loggerName;
+      this.time = time;
+      this.message = message;
+      this.exception = exception;
+      this.isException = isException;
+    }
+  }
+  
+  protected LogRingBuffer<LogRecord> buffer;
+  
+  protected Thread thread;
+  
+  /**
+   * Makes sure the buffer gets written if the JVM exits without destroying the Environment.
+   */
+  protected Thread shutdownHook;
+  
+  /**
+   * True while the writer is parked, so the producers know to unpark it.
+   */
+  protected volatile boolean waiting = false;
+  
+  protected volatile boolean running = true;
+  
+  /**
+   * Records that were written on the logging thread because the buffer was full.
+   */
+  protected AtomicLong overflows = new AtomicLong(0);
+  
+  /**
+   * The streams written since the last flush, only used by the writer thread.
+   */
+  protected Set<PrintStream> dirty = Collections.newSetFromMap(new IdentityHashMap<PrintStream, Boolean>());
+  
+  public AsyncLogWriter(int bufferSize) {
+    buffer = new LogRingBuffer<LogRecord>(bufferSize);
+    thread = new Thread(this, "Async Log Writer");
+    thread.setDaemon(true);
+    thread.start();
+    shutdownHook = new Thread("Async Log Writer shutdown") {
+      public void run() {
+        stop();
+      }
+    };
+    try {
+      Runtime.getRuntime().addShutdownHook(shutdownHook);
+    } catch (IllegalStateException ise) {
+      // already shutting down
+      shutdownHook = null;
+    }
+  }
+  
+  /**
+   * Called by the logging thread.
+   */
+  public void add(LogRecord record) {
+    if (running && buffer.offer(record)) {
+      if (waiting) LockSupport.unpark(thread);
+      return;
+    }
+    if (running) overflows.incrementAndGet();
+    // full or stopped, write it ourselves
+    PrintStream ps = write(record);
+    ps.flush();
+  }
+  
+  public void run() {
+    while(true) {
+      LogRecord record = buffer.poll();
+      if (record != null) {
+        dirty.add(write(record));
+        continue;
+      }
+      flush();
+      if (!running) {
+        // the producers see running == false before we exit, so anything they added is 
+        // already in the buffer
+        record = buffer.poll();
+        if (record == null) return;
+        dirty.add(write(record));
+        continue;
+      }
+      waiting = true;
+      if (buffer.isEmpty()) {
+        LockSupport.parkNanos(100*1000*1000L);
+      }
+      waiting = false;
+    }
+  }
+  
+  protected void flush() {
+    if (dirty.isEmpty()) return;
+    for (PrintStream ps : dirty) {
+      ps.flush();
+    }
+    dirty.clear();
+  }
+  
+  /**
+   * Formats the line the same way as the SimpleLogger.
+   * 
+   * @return the stream it was written to
+   */
+  protected PrintStream write(LogRecord record) {
+    AsyncLogManager alm = record.manager;
+    PrintStream ps = alm.getPrintStream();
+    String line = alm.getPrefix()+":"+record.loggerName+":"+alm.getDateString(record.time)+":"+record.message;
+    if (record.isException) {
+      synchronized(ps) {
+        ps.print(line+" ");
+        if (record.exception != null) record.exception.printStackTrace(ps);
+      }
+    } else {
+      ps.println(line);
+    }
+    return ps;
+  }
+  
+  public long getOverflows() {
+    return overflows.get();
+  }
+  
+  /**
+   * Writes whatever is in the buffer, and stops the thread.  Any later records are 
+   * written on the logging thread.
+   */
+  public void stop() {
+    if (!running) return;
+    running = false;
+    LockSupport.unpark(thread);
+    if (Thread.currentThread() != thread) {
+      try {
+        thread.join(10000);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+      if (!thread.isAlive()) {
+        // a logging thread may have got past the running check just before we cleared it
+        LogRecord record;
+        while((record = buffer.poll()) != null) {
+          dirty.add(write(record));
+        }
+        flush();
+      }
+    }
+    if (shutdownHook != null && Thread.currentThread() != shutdownHook) {
+      try {
+        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+      } catch (IllegalStateException ise) {
+        // the JVM is already shutting down
+      }
+    }
+  }
+}
@@ -0,0 +1,140 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.environment.logging.async;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock free queue for any number of producers and one consumer.
+ * 
+ * Each slot has a sequence number.  A producer claims a slot by CAS-ing the tail, 
+ * writes the element, then publishes it by bumping the slot's sequence.  The consumer 
+ * only reads a slot once it has been published, and frees it by setting its sequence 
+ * to where the next lap of producers expects it.  So a producer never waits on the 
+ * consumer, or on another producer that is descheduled while holding a lock; when 
+ * the buffer is full offer() just returns false.
+ * 
+ * @author agent
+ */
+public class LogRingBuffer<T> {
+  protected final Object[] buffer;
+  
+  protected final AtomicLongArray sequence;
+  
+  protected final int mask;
+  
+  /**
+   * The next slot a producer will claim.
+   */
+  protected final AtomicLong tail = new AtomicLong(0);
+  
+  /**
+   * The next slot the consumer will read, only touched by the consumer.
+   */
+  protected long head = 0;
+  
+  /**
+   * @param capacity rounded up to a power of 2
+   */
+  public LogRingBuffer(int capacity) {
+    if (capacity < 1) throw new IllegalArgumentException("capacity must be positive: "+capacity);
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) size <<= 1;
+    buffer = new Object[size];
+    sequence = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      sequence.set(i, i);
+    }
+    mask = size-1;
+  }
+  
+  /**
+   * Can be called by any thread.
+   * 
+   * @return false if the buffer was full
+   */
+  public boolean offer(T element) {
+    while(true) {
+      long t = tail.get();
+      int index = (int)(t & mask);
+      long diff = sequence.get(index)-t;
+      if (diff == 0) {
+        if (tail.compareAndSet(t, t+1)) {
+          buffer[index] = element;
+          // publishes the element to the consumer
+          sequence.set(index, t+1);
+          return true;
+        }
+      } else if (diff < 0) {
+        // the consumer hasn't freed this slot from the last lap
+        return false;
+      }
+      // else another producer claimed t, try again
+    }
+  }
+  
+  /**
+   * Must only be called by the consumer.
+   * 
+   * @return the oldest element, or null if the buffer is empty (or the oldest 
+   * element hasn't been published yet)
+   */
+  @SuppressWarnings("unchecked")
+  public T poll() {
+    int index = (int)(head & mask);
+    if (sequence.get(index) != head+1) return null;
+    T ret = (T)buffer[index];
+    buffer[index] = null;
+    // hand the slot to the producers on the next lap
+    sequence.set(index, head+buffer.length);
+    head++;
+    return ret;
+  }
+  
+  /**
+   * Must only be called by the consumer, and is approximate, as it races with the 
+   * producers.
+   */
+  public boolean isEmpty() {
+    return tail.get() == head;
+  }
+  
+  public int capacity() {
+    return buffer.length;
+  }
+}
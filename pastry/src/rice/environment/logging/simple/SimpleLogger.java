@@ -40,10 +40,6 @@ advised of the possibility of such damage.
 package rice.environment.logging.simple;
 
 import java.io.PrintStream;
-import java.text.*;
-import java.util.Date;
-
-import javax.swing.text.DateFormatter;
 
 import rice.environment.logging.*;
 import rice.environment.time.TimeSource;
@@ -86,16 +82,7 @@ public class SimpleLogger extends HeirarchyLogger {
    */
   public void log(String message) {
     synchronized(alm) {
-      String dateString = ""+alm.getTimeSource().currentTimeMillis();
-      if (alm.dateFormatter != null) {
-        try {
-          Date date = new Date(alm.getTimeSource().currentTimeMillis());            
-          dateString = alm.dateFormatter.valueToString(date);
-        } catch (ParseException pe) {
-          pe.printStackTrace();
-        }
-      }
-
+      String dateString = alm.getDateString(alm.getTimeSource().currentTimeMillis());
       alm.getPrintStream().println(alm.getPrefix()+":"+loggerName+":"+dateString+":"+message);
     }
   }
@@ -105,16 +92,7 @@ public class SimpleLogger extends HeirarchyLogger {
    */
   public void logException(String message, Throwable exception) {
     synchronized(alm) {
-      String dateString = ""+alm.getTimeSource().currentTimeMillis();
-      if (alm.dateFormatter != null) {
-        try {
-          Date date = new Date(alm.getTimeSource().currentTimeMillis());            
-          dateString = alm.dateFormatter.valueToString(date);
-        } catch (ParseException pe) {
-          pe.printStackTrace();
-        }
-      }
-      
+      String dateString = alm.getDateString(alm.getTimeSource().currentTimeMillis());
       alm.getPrintStream().print(alm.getPrefix()+":"+loggerName+":"+dateString+":"+message+" ");
       if (exception != null) exception.printStackTrace(alm.getPrintStream());
     }
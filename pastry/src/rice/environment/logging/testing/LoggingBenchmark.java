@@ -0,0 +1,185 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.environment.logging.testing;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+import rice.environment.Environment;
+import rice.environment.logging.*;
+import rice.environment.params.Parameters;
+import rice.environment.params.simple.SimpleParameters;
+
+/**
+ * Measures how long the selector thread spends handling events that log at INFO, 
+ * with the SimpleLogManager and the AsyncLogManager, against the same events with 
+ * the level turned down.  Meanwhile another thread (standing in for the processor) 
+ * logs too, so the SimpleLogManager's lock is contended.  The log goes to a file, 
+ * which is checked for the right number of lines afterwards.
+ * 
+ * The events are handed to the selector in batches, one batch a millisecond, and the 
+ * delay from invoke() to the batch running is reported too.
+ * 
+ * usage: LoggingBenchmark [events eventsPerBatch linesPerEvent otherThreadIntervalMicros]
+ * 
+ * @version $Id$
+ * @author agent
+ */
+public class LoggingBenchmark {
+  
+  public static final String[] MODES = {"off", "sync", "async"};
+  
+  int events;
+  int batch;
+  int lines;
+  int otherInterval;
+  
+  public LoggingBenchmark(int events, int batch, int lines, int otherInterval) {
+    this.events = events;
+    this.batch = batch;
+    this.lines = lines;
+    this.otherInterval = otherInterval;
+  }
+  
+  public void run(String mode) throws Exception {
+    File file = File.createTempFile("LoggingBenchmark", ".log");
+    file.deleteOnExit();
+    
+    Parameters params = new SimpleParameters(Environment.defaultParamFileArray, null);
+    params.setString("logging_output_stream", file.getPath());
+    params.setBoolean("logging_async", mode.equals("async"));
+    params.setString("rice.environment.logging.testing_loglevel", mode.equals("off") ? "WARNING" : "INFO");
+    final Environment env = new Environment(null, null, null, null, null, params, null);
+    final Logger logger = env.getLogManager().getLogger(LoggingBenchmark.class, null);
+    
+    // the other thread
+    final boolean[] stop = new boolean[1];
+    final int[] otherLines = new int[1];
+    Thread other = new Thread("Other Logger") {
+      public void run() {
+        int i = 0;
+        while (!stop[0]) {
+          if (logger.level <= Logger.INFO) {
+            logger.log("other thread line "+i);
+            otherLines[0]++;
+          }
+          i++;
+          LockSupport.parkNanos(otherInterval*1000L);
+        }
+      }
+    };
+    other.start();
+    
+    // feed the selector a batch of events every millisecond, as the network would
+    final long[] times = new long[events];
+    final long[] delays = new long[(events+batch-1)/batch];
+    final CountDownLatch done = new CountDownLatch(delays.length);
+    final int[] hash = new int[1];
+    long start = System.currentTimeMillis();
+    for (int b = 0; b < delays.length; b++) {
+      final int first = b*batch;
+      final int batchNum = b;
+      final long invoked = System.nanoTime();
+      env.getSelectorManager().invoke(new Runnable() {
+        public void run() {
+          delays[batchNum] = System.nanoTime()-invoked;
+          for (int e = first; e < Math.min(first+batch, events); e++) {
+            long t = System.nanoTime();
+            // a little bit of real work
+            hash[0] = 31*hash[0]+Integer.toHexString(e).hashCode();
+            for (int l = 0; l < lines; l++) {
+              logger.log(Logger.INFO, "event {} line {} from {} hash:{}", e, l, env, hash[0]);
+            }
+            times[e] = System.nanoTime()-t;
+          }
+          done.countDown();
+        }
+      });
+      LockSupport.parkNanos(1000*1000L);
+    }
+    done.await();
+    long elapsed = System.currentTimeMillis()-start;
+    stop[0] = true;
+    other.join();
+    long overflows = 0;
+    if (env.getLogManager() instanceof rice.environment.logging.async.AsyncLogManager) {
+      overflows = ((rice.environment.logging.async.AsyncLogManager)env.getLogManager()).getWriter().getOverflows();
+    }
+    env.destroy();
+    // destroy is asynchronous when called off of the selector
+    Thread.sleep(1000);
+    
+    int expected = mode.equals("off") ? 0 : events*lines+otherLines[0];
+    int found = 0;
+    BufferedReader br = new BufferedReader(new FileReader(file));
+    while (br.readLine() != null) found++;
+    br.close();
+    file.delete();
+    
+    Arrays.sort(times);
+    Arrays.sort(delays);
+    System.out.println("RESULT: "+mode+" events="+events+" batch="+batch+" lines/event="+lines+" otherLines="+otherLines[0]+
+        " selector="+elapsed+"ms eventMicros p50="+micros(times, 0.5)+" p99="+micros(times, 0.99)+
+        " p99.9="+micros(times, 0.999)+" max="+(times[times.length-1]/1000)+
+        " invokeDelayMicros p50="+micros(delays, 0.5)+" p99="+micros(delays, 0.99)+" max="+(delays[delays.length-1]/1000)+" overflows="+overflows+
+        " lines="+found+"/"+expected+(found == expected ? "" : " FAILURE"));
+  }
+  
+  static long micros(long[] sorted, double percentile) {
+    return sorted[(int)(percentile*(sorted.length-1))]/1000;
+  }
+  
+  public static void main(String[] args) throws Exception {
+    int events = (args.length > 0 ? Integer.parseInt(args[0]) : 100000);
+    int batch = (args.length > 1 ? Integer.parseInt(args[1]) : 20);
+    int lines = (args.length > 2 ? Integer.parseInt(args[2]) : 2);
+    int otherInterval = (args.length > 3 ? Integer.parseInt(args[3]) : 100);
+    
+    LoggingBenchmark test = new LoggingBenchmark(events, batch, lines, otherInterval);
+    
+    // warm up
+    for (String mode : MODES) {
+      new LoggingBenchmark(events/10, batch, lines, otherInterval).run(mode);
+    }
+    System.out.println("--- warmed up");
+    for (String mode : MODES) {
+      test.run(mode);
+    }
+  }
+}
@@ -0,0 +1,195 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.environment.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts non-negative values (usually a latency) into buckets, so that percentiles 
+ * can be read later without keeping the values.
+ * 
+ * The buckets are laid out like an HdrHistogram's: values below 2^SUB_BUCKET_BITS 
+ * get a bucket each, and every power of 2 above that is split into 
+ * 2^SUB_BUCKET_BITS buckets, so a reported value is never more than 1/16 (6.25%) 
+ * above the real one, whatever its magnitude.  That is 960 buckets to cover all 
+ * of long, and recording a value is a couple of shifts and an atomic increment.
+ * 
+ * @author agent
+ */
+public class Histogram {
+  public static final int SUB_BUCKET_BITS = 4;
+  public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  public static final int NUM_BUCKETS = (64-SUB_BUCKET_BITS)*SUB_BUCKETS;
+  
+  /**
+   * Returned by a disabled MetricsRegistry, does nothing.
+   */
+  public static final Histogram NULL = new Histogram(false);
+  
+  protected AtomicLongArray buckets;
+  protected LongAdder sum;
+  protected AtomicLong max;
+  
+  public Histogram() {
+    this(true);
+  }
+  
+  protected Histogram(boolean enabled) {
+    if (enabled) {
+      buckets = new AtomicLongArray(NUM_BUCKETS);
+      sum = new LongAdder();
+      max = new AtomicLong(0);
+    }
+  }
+  
+  /**
+   * @param value negative values are counted as 0
+   */
+  public void record(long value) {
+    if (buckets == null) return;
+    if (value < 0) value = 0;
+    buckets.incrementAndGet(bucketIndex(value));
+    sum.add(value);
+    long m = max.get();
+    while (value > m && !max.compareAndSet(m, value)) {
+      m = max.get();
+    }
+  }
+  
+  /**
+   * False for the NULL histogram, so callers can skip timing things.
+   */
+  public boolean isEnabled() {
+    return buckets != null;
+  }
+  
+  public static int bucketIndex(long value) {
+    if (value < SUB_BUCKETS) return (int)value;
+    int exponent = 63-Long.numberOfLeadingZeros(value);
+    int sub = (int)(value >>> (exponent-SUB_BUCKET_BITS)) & (SUB_BUCKETS-1);
+    return (exponent-SUB_BUCKET_BITS+1)*SUB_BUCKETS+sub;
+  }
+  
+  /**
+   * @return the smallest value that goes in the bucket
+   */
+  public static long bucketStart(int index) {
+    if (index < SUB_BUCKETS) return index;
+    int exponent = index/SUB_BUCKETS+SUB_BUCKET_BITS-1;
+    long sub = index % SUB_BUCKETS;
+    return (SUB_BUCKETS+sub) << (exponent-SUB_BUCKET_BITS);
+  }
+  
+  /**
+   * @return the largest value that goes in the bucket
+   */
+  public static long bucketEnd(int index) {
+    if (index == NUM_BUCKETS-1) return Long.MAX_VALUE;
+    return bucketStart(index+1)-1;
+  }
+  
+  /**
+   * Copies the counts, so that the percentiles etc. are consistent with each other.  
+   * Values recorded while this runs may or may not be included.
+   */
+  public Snapshot getSnapshot() {
+    long[] counts = new long[NUM_BUCKETS];
+    if (buckets != null) {
+      for (int i = 0; i < NUM_BUCKETS; i++) {
+        counts[i] = buckets.get(i);
+      }
+      return new Snapshot(counts, sum.sum(), max.get());
+    }
+    return new Snapshot(counts, 0, 0);
+  }
+  
+  public String toString() {
+    return getSnapshot().toString();
+  }
+  
+  public static class Snapshot {
+    long[] counts;
+    long count;
+    long sum;
+    long max;
+    
+    public Snapshot(long[] counts, long sum, long max) {
+      this.counts = counts;
+      this.sum = sum;
+      this.max = max;
+      for (long c : counts) {
+        count+=c;
+      }
+    }
+    
+    public long getCount() {
+      return count;
+    }
+    
+    public long getMax() {
+      return max;
+    }
+    
+    public double getMean() {
+      return count == 0 ? 0 : ((double)sum)/count;
+    }
+    
+    /**
+     * @param fraction between 0 and 1, ex: 0.99
+     * @return the top of the bucket holding that fraction of the values (but not 
+     * more than the max), 0 if there are no values
+     */
+    public long getPercentile(double fraction) {
+      if (count == 0) return 0;
+      long rank = (long)Math.ceil(fraction*count);
+      if (rank < 1) rank = 1;
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen+=counts[i];
+        if (seen >= rank) return Math.min(bucketEnd(i), max);
+      }
+      return max;
+    }
+    
+    public String toString() {
+      return "count="+count+" mean="+Math.round(getMean())+" p50="+getPercentile(0.5)+" p90="+getPercentile(0.9)+
+        " p99="+getPercentile(0.99)+" p999="+getPercentile(0.999)+" max="+max;
+    }
+  }
+}
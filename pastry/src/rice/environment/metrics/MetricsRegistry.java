@@ -0,0 +1,257 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.environment.metrics;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import rice.Continuation;
+import rice.Destructable;
+import rice.environment.Environment;
+import rice.environment.logging.Logger;
+import rice.environment.params.Parameters;
+import rice.environment.processing.WorkRequest;
+import rice.selector.TimerTask;
+
+/**
+ * Counters, Gauges and Histograms, by name.  Acquired by calling 
+ * environment.getMetrics(), and shared with cloned Environments, so in a 
+ * simulation the values are for all of the nodes together.
+ * 
+ * The names are dotted, starting with the component, ex: "selector.loopMicros".
+ * 
+ * Turned on with metrics_enable.  When it is off, counter() and histogram() return 
+ * shared instances that don't record anything, and gauges aren't kept, so the 
+ * instrumented code only pays for a method call.  Code that would have to read the 
+ * clock to record something should check enabled first.
+ * 
+ * Read the values with getAll()/dump(), or set metrics_dump_file, and they are 
+ * written there every metrics_dump_interval millis (and when the Environment is 
+ * destroyed).
+ * 
+ * @author agent
+ */
+public class MetricsRegistry implements Destructable {
+  /**
+   * This is public for performance reasons.
+   */
+  public final boolean enabled;
+  
+  protected ConcurrentHashMap<String, Object> metrics = new ConcurrentHashMap<String, Object>();
+  
+  protected Environment environment;
+  
+  protected Logger logger;
+  
+  protected File dumpFile;
+  
+  protected int dumpInterval;
+  
+  protected TimerTask dumpTask;
+  
+  protected Tracer tracer;
+  
+  public MetricsRegistry(boolean enabled) {
+    this.enabled = enabled;
+    tracer = new Tracer(this, 0);
+  }
+  
+  public MetricsRegistry(Parameters params) {
+    this(params.contains("metrics_enable") && params.getBoolean("metrics_enable"));
+    if (params.contains("metrics_dump_file")) {
+      String name = params.getString("metrics_dump_file");
+      if (name != null && !name.equals("")) dumpFile = new File(name);
+    }
+    dumpInterval = params.contains("metrics_dump_interval") ? params.getInt("metrics_dump_interval") : 60000;
+    tracer = new Tracer(params, this);
+  }
+  
+  /**
+   * Can only be called once, starts the periodic dump.  The rest of the time the 
+   * argument is ignored, so that cloned Environments can share the registry.
+   */
+  public void setEnvironment(Environment env) {
+    if (environment != null) return;
+    environment = env;
+    logger = env.getLogManager().getLogger(MetricsRegistry.class, null);
+    tracer.setEnvironment(env);
+    if (!enabled || dumpFile == null) return;
+    env.addDestructable(this);
+    if (dumpInterval > 0) {
+      dumpTask = new TimerTask() {
+        @Override
+        public void run() {
+          final String dump = dump();
+          environment.getProcessor().processBlockingIO(new WorkRequest<Object>(new Continuation<Object, Exception>() {
+            public void receiveResult(Object result) {
+            }
+            public void receiveException(Exception exception) {
+              if (logger.level <= Logger.WARNING) logger.logException("Error writing "+dumpFile, exception);
+            }
+          }, environment.getSelectorManager(), MetricsRegistry.this) {
+            @Override
+            public Object doWork() throws Exception {
+              write(dump);
+              return null;
+            }
+          });
+        }
+        
+        public String toString() {
+          return "MetricsRegistry dump";
+        }
+      };
+      env.getSelectorManager().schedule(dumpTask, dumpInterval, dumpInterval);
+    }
+  }
+  
+  /**
+   * The Tracer, which is on when metrics_trace_interval is set, independently of 
+   * metrics_enable.
+   */
+  public Tracer getTracer() {
+    return tracer;
+  }
+  
+  /**
+   * Returns the Counter with this name, making it if needed.
+   */
+  public Counter counter(String name) {
+    if (!enabled) return Counter.NULL;
+    Object ret = metrics.get(name);
+    if (ret == null) {
+      ret = new Counter();
+      Object prev = metrics.putIfAbsent(name, ret);
+      if (prev != null) ret = prev;
+    }
+    return (Counter)ret;
+  }
+  
+  /**
+   * Returns the Histogram with this name, making it if needed.
+   */
+  public Histogram histogram(String name) {
+    if (!enabled) return Histogram.NULL;
+    Object ret = metrics.get(name);
+    if (ret == null) {
+      ret = new Histogram();
+      Object prev = metrics.putIfAbsent(name, ret);
+      if (prev != null) ret = prev;
+    }
+    return (Histogram)ret;
+  }
+  
+  /**
+   * Registers a Gauge, replacing any by that name.
+   */
+  public void gauge(String name, Gauge gauge) {
+    if (!enabled) return;
+    metrics.put(name, gauge);
+  }
+  
+  public void remove(String name) {
+    metrics.remove(name);
+  }
+  
+  /**
+   * The metrics sorted by name: Counters, Gauges and Histograms.  Empty if not enabled.
+   */
+  public SortedMap<String, Object> getAll() {
+    return new TreeMap<String, Object>(metrics);
+  }
+  
+  /**
+   * One "name value" line per metric, sorted by name.  A Histogram's value is its 
+   * count, mean, some percentiles and max.
+   */
+  public String dump() {
+    StringBuilder sb = new StringBuilder();
+    if (environment != null) {
+      sb.append("# time=");
+      sb.append(environment.getTimeSource().currentTimeMillis());
+      sb.append('\n');
+    }
+    for (Map.Entry<String, Object> e : getAll().entrySet()) {
+      sb.append(e.getKey());
+      sb.append(' ');
+      Object m = e.getValue();
+      if (m instanceof Gauge) {
+        try {
+          sb.append(((Gauge)m).getValue());
+        } catch (RuntimeException re) {
+          sb.append("error:"+re);
+        }
+      } else {
+        sb.append(m);
+      }
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+  
+  /**
+   * Replaces the dump file.
+   */
+  protected synchronized void write(String dump) throws IOException {
+    File temp = new File(dumpFile.getPath()+".new");
+    FileOutputStream fos = new FileOutputStream(temp);
+    try {
+      fos.write(dump.getBytes("UTF-8"));
+    } finally {
+      fos.close();
+    }
+    if (!temp.renameTo(dumpFile)) {
+      // windows won't rename over an existing file
+      dumpFile.delete();
+      if (!temp.renameTo(dumpFile)) throw new IOException("Couldn't rename "+temp+" to "+dumpFile);
+    }
+  }
+  
+  /**
+   * Stops the periodic dump, and writes a last one.
+   */
+  public void destroy() {
+    if (dumpTask != null) dumpTask.cancel();
+    if (dumpFile == null) return;
+    try {
+      write(dump());
+    } catch (IOException ioe) {
+      if (logger.level <= Logger.WARNING) logger.logException("Error writing "+dumpFile, ioe);
+    }
+  }
+}
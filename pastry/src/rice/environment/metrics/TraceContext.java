@@ -0,0 +1,110 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.environment.metrics;
+
+/**
+ * Follows one sampled message through one node.  Made by the Tracer when a message 
+ * is sampled, and again for each hop it takes (only the traceId and hop go on the 
+ * wire).  
+ * 
+ * Layers below the router find it in the options, under OPTION_TRACE.
+ * 
+ * @author agent
+ */
+public class TraceContext {
+  /**
+   * The options key for the TraceContext of a message.
+   */
+  public static final String OPTION_TRACE = "OPTION_TRACE";
+  
+  protected Tracer tracer;
+  
+  public final long traceId;
+  
+  /**
+   * 0 on the node that sent the message, incremented for each node it is forwarded to.
+   */
+  public final int hop;
+  
+  /**
+   * The node this hop is on, ex: a NodeId.
+   */
+  public final Object node;
+  
+  /**
+   * The time and name of the last event recorded on this node, -1 if none yet.
+   */
+  long lastMicros = -1;
+  String lastEvent;
+  
+  TraceContext(Tracer tracer, long traceId, int hop, Object node) {
+    this.tracer = tracer;
+    this.traceId = traceId;
+    this.hop = hop;
+    this.node = node;
+  }
+  
+  /**
+   * True if this context was made on the node.  In the simulator the same message 
+   * object is delivered to the next node, so the router has to check.
+   */
+  public boolean isAt(Object node) {
+    return this.node.equals(node);
+  }
+  
+  /**
+   * The context for the next node the message arrives at.
+   */
+  public TraceContext nextHop(Object node) {
+    return new TraceContext(tracer, traceId, hop+1, node);
+  }
+  
+  public void record(String event) {
+    tracer.record(this, event, null);
+  }
+  
+  /**
+   * @param detail appended to the event, ex: the priority
+   */
+  public void record(String event, Object detail) {
+    tracer.record(this, event, detail);
+  }
+  
+  public String toString() {
+    return "Trace{"+Long.toHexString(traceId)+" hop:"+hop+" "+node+"}";
+  }
+}
@@ -0,0 +1,265 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.environment.metrics;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Reads the files written by the Tracer, and puts each trace back together, to 
+ * show where the time went on each hop.
+ * 
+ * Usage: java rice.environment.metrics.TraceReport [-slowest n] traceFile...
+ * 
+ * Give it the trace files from all of the nodes (the traces are matched up by 
+ * their id).  It prints the n slowest traces (default 10), one line per hop with 
+ * the micros since the previous event, then the distribution of each step over 
+ * all of the traces.  A step is named for the event that ends it, ex: "dequeue" is 
+ * the time in the priority queue, and "network" is from the last event on one hop 
+ * to the first on the next.
+ * 
+ * @author agent
+ */
+public class TraceReport {
+  
+  public static class Event implements Comparable<Event> {
+    public int hop;
+    public String node;
+    public String event;
+    public long micros;
+    public String detail;
+    int line;
+    
+    /**
+     * By hop, then time, then where it was read.
+     */
+    public int compareTo(Event that) {
+      if (this.hop != that.hop) return this.hop < that.hop ? -1 : 1;
+      if (this.micros != that.micros) return this.micros < that.micros ? -1 : 1;
+      return this.line-that.line;
+    }
+  }
+  
+  public static class Trace {
+    public String traceId;
+    public List<Event> events = new ArrayList<Event>();
+    
+    public long getStart() {
+      return events.get(0).micros;
+    }
+    
+    public long getDuration() {
+      return events.get(events.size()-1).micros-getStart();
+    }
+    
+    public int getHops() {
+      return events.get(events.size()-1).hop;
+    }
+    
+    /**
+     * The time since the previous event, "network" for the first event of a hop.
+     */
+    public String getStep(int i) {
+      Event e = events.get(i);
+      if (i > 0 && events.get(i-1).hop != e.hop) return "network";
+      return e.event;
+    }
+    
+    public long getStepMicros(int i) {
+      if (i == 0) return 0;
+      return events.get(i).micros-events.get(i-1).micros;
+    }
+  }
+  
+  /**
+   * traceId -> Trace
+   */
+  protected Map<String, Trace> traces = new HashMap<String, Trace>();
+  
+  protected int lines = 0;
+  
+  protected int badLines = 0;
+  
+  public void read(File f) throws IOException {
+    BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+    try {
+      String line;
+      while ((line = r.readLine()) != null) {
+        if (line.length() == 0 || line.startsWith("#")) continue;
+        add(line);
+      }
+    } finally {
+      r.close();
+    }
+  }
+  
+  /**
+   * @param line "traceId hop node event micros [detail]"
+   */
+  public void add(String line) {
+    String[] parts = line.split("\t");
+    if (parts.length < 5) {
+      badLines++;
+      return;
+    }
+    Event e = new Event();
+    try {
+      e.hop = Integer.parseInt(parts[1]);
+      e.micros = Long.parseLong(parts[4]);
+    } catch (NumberFormatException nfe) {
+      badLines++;
+      return;
+    }
+    e.node = parts[2];
+    e.event = parts[3];
+    if (parts.length > 5) e.detail = parts[5];
+    e.line = lines++;
+    
+    Trace t = traces.get(parts[0]);
+    if (t == null) {
+      t = new Trace();
+      t.traceId = parts[0];
+      traces.put(t.traceId, t);
+    }
+    t.events.add(e);
+  }
+  
+  /**
+   * The traces, each in order, slowest first.
+   */
+  public List<Trace> getTraces() {
+    List<Trace> ret = new ArrayList<Trace>(traces.values());
+    for (Trace t : ret) {
+      Collections.sort(t.events);
+    }
+    Collections.sort(ret, new Comparator<Trace>() {
+      public int compare(Trace a, Trace b) {
+        long da = a.getDuration();
+        long db = b.getDuration();
+        if (da != db) return da > db ? -1 : 1;
+        return a.traceId.compareTo(b.traceId);
+      }
+    });
+    return ret;
+  }
+  
+  /**
+   * step -> the micros it took, over all of the traces.  Also "total".
+   */
+  public SortedMap<String, Histogram> getSteps() {
+    SortedMap<String, Histogram> ret = new TreeMap<String, Histogram>();
+    for (Trace t : getTraces()) {
+      for (int i = 1; i < t.events.size(); i++) {
+        String step = t.getStep(i);
+        Histogram h = ret.get(step);
+        if (h == null) {
+          h = new Histogram();
+          ret.put(step, h);
+        }
+        h.record(t.getStepMicros(i));
+      }
+      Histogram total = ret.get("total");
+      if (total == null) {
+        total = new Histogram();
+        ret.put("total", total);
+      }
+      total.record(t.getDuration());
+    }
+    return ret;
+  }
+  
+  public static String toString(Trace t) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("trace "+t.traceId+" hops:"+t.getHops()+" total:"+t.getDuration()+"us\n");
+    int hop = -1;
+    for (int i = 0; i < t.events.size(); i++) {
+      Event e = t.events.get(i);
+      if (e.hop != hop) {
+        if (hop >= 0) sb.append('\n');
+        hop = e.hop;
+        sb.append("  hop "+hop+" "+e.node+"  ");
+        if (i > 0) sb.append("network:"+t.getStepMicros(i)+" ");
+        sb.append(e.event);
+      } else {
+        sb.append(" "+e.event+":"+t.getStepMicros(i));
+      }
+      if (e.detail != null) sb.append("("+e.detail+")");
+    }
+    sb.append('\n');
+    return sb.toString();
+  }
+  
+  public String report(int slowest) {
+    StringBuilder sb = new StringBuilder();
+    List<Trace> all = getTraces();
+    sb.append(all.size()+" traces, "+lines+" events");
+    if (badLines > 0) sb.append(", "+badLines+" unreadable lines");
+    sb.append('\n');
+    Histogram hops = new Histogram();
+    for (Trace t : all) {
+      hops.record(t.getHops());
+    }
+    for (int i = 0; i < slowest && i < all.size(); i++) {
+      sb.append(toString(all.get(i)));
+    }
+    sb.append("hops "+hops+"\n");
+    sb.append("step (micros)\n");
+    for (Map.Entry<String, Histogram> e : getSteps().entrySet()) {
+      sb.append("  "+e.getKey()+" "+e.getValue()+"\n");
+    }
+    return sb.toString();
+  }
+  
+  public static void main(String[] args) throws IOException {
+    int slowest = 10;
+    TraceReport report = new TraceReport();
+    int files = 0;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-slowest") && i+1 < args.length) {
+        slowest = Integer.parseInt(args[++i]);
+      } else {
+        report.read(new File(args[i]));
+        files++;
+      }
+    }
+    if (files == 0) {
+      System.out.println("Usage: java rice.environment.metrics.TraceReport [-slowest n] traceFile...");
+      return;
+    }
+    System.out.print(report.report(slowest));
+  }
+}
@@ -0,0 +1,290 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.environment.metrics;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rice.Continuation;
+import rice.Destructable;
+import rice.environment.Environment;
+import rice.environment.logging.Logger;
+import rice.environment.params.Parameters;
+import rice.environment.processing.WorkRequest;
+import rice.environment.time.TimeSource;
+import rice.environment.time.simple.SimpleTimeSource;
+import rice.selector.TimerTask;
+
+/**
+ * Records where the time goes for a sample of the messages, hop by hop.  Acquired 
+ * by calling environment.getMetrics().getTracer().
+ * 
+ * Turned on with metrics_trace_interval, which traces every Nth message that 
+ * a node sends.  A traced message carries a TraceContext, and each layer it 
+ * passes through records an event on it (route, send, enqueue, dequeue, write, 
+ * receive, deliver).  When it is off, the instrumented code only checks enabled.
+ * 
+ * The events are appended to metrics_trace_file every metrics_trace_flushInterval 
+ * millis as "traceId hop node event micros [detail]" lines, which 
+ * rice.environment.metrics.TraceReport puts back together into per-hop latencies.  
+ * The times are wall clock micros (simulated time in the simulator), so traces 
+ * that cross machines are only as good as their clocks.
+ * 
+ * If metrics are enabled, the time between consecutive events on a node also goes 
+ * to the "trace.<event>Micros" histogram, ex: trace.dequeueMicros is the time a 
+ * message waited in the priority queue.
+ * 
+ * @author agent
+ */
+public class Tracer implements Destructable {
+  /**
+   * This is public for performance reasons.
+   */
+  public final boolean enabled;
+  
+  protected int sampleInterval;
+  
+  protected AtomicLong sampleCount = new AtomicLong();
+  
+  protected AtomicLong nextTraceId;
+  
+  protected MetricsRegistry metrics;
+  
+  protected Counter droppedEvents;
+  
+  protected File traceFile;
+  
+  protected int flushInterval = 5000;
+  
+  protected int maxEvents = 100000;
+  
+  protected ArrayList<String> pending = new ArrayList<String>();
+  
+  protected Environment environment;
+  
+  protected Logger logger;
+  
+  protected TimerTask flushTask;
+  
+  protected TimeSource timeSource;
+  
+  /**
+   * True if we can read the nanoTime, false for a simulated TimeSource.
+   */
+  protected boolean realTime;
+  protected long microBase;
+  protected long nanoBase;
+  
+  /**
+   * @param sampleInterval trace every Nth message, 0 is off
+   */
+  public Tracer(MetricsRegistry metrics, int sampleInterval) {
+    this.metrics = metrics;
+    this.sampleInterval = sampleInterval;
+    enabled = sampleInterval > 0;
+    droppedEvents = metrics.counter("trace.droppedEvents");
+    // the high bits keep the ids from different processes apart
+    nextTraceId = new AtomicLong(new Random().nextLong() & 0xFFFFFFFF00000000L);
+  }
+  
+  public Tracer(Parameters params, MetricsRegistry metrics) {
+    this(metrics, params.contains("metrics_trace_interval") ? params.getInt("metrics_trace_interval") : 0);
+    if (params.contains("metrics_trace_file")) {
+      String name = params.getString("metrics_trace_file");
+      if (name != null && !name.equals("")) traceFile = new File(name);
+    }
+    flushInterval = params.contains("metrics_trace_flushInterval") ? params.getInt("metrics_trace_flushInterval") : 5000;
+    maxEvents = params.contains("metrics_trace_maxEvents") ? params.getInt("metrics_trace_maxEvents") : 100000;
+  }
+  
+  /**
+   * Can only be called once (by the MetricsRegistry), starts the periodic flush.
+   */
+  public void setEnvironment(Environment env) {
+    if (environment != null) return;
+    environment = env;
+    logger = env.getLogManager().getLogger(Tracer.class, null);
+    timeSource = env.getTimeSource();
+    if (timeSource instanceof SimpleTimeSource) {
+      realTime = true;
+      nanoBase = System.nanoTime();
+      microBase = timeSource.currentTimeMillis()*1000;
+    }
+    if (!enabled || traceFile == null) return;
+    env.addDestructable(this);
+    if (flushInterval > 0) {
+      flushTask = new TimerTask() {
+        @Override
+        public void run() {
+          final List<String> events = drain();
+          if (events.isEmpty()) return;
+          environment.getProcessor().processBlockingIO(new WorkRequest<Object>(new Continuation<Object, Exception>() {
+            public void receiveResult(Object result) {
+            }
+            public void receiveException(Exception exception) {
+              if (logger.level <= Logger.WARNING) logger.logException("Error writing "+traceFile, exception);
+            }
+          }, environment.getSelectorManager(), Tracer.this) {
+            @Override
+            public Object doWork() throws Exception {
+              write(events);
+              return null;
+            }
+          });
+        }
+        
+        public String toString() {
+          return "Tracer flush";
+        }
+      };
+      env.getSelectorManager().schedule(flushTask, flushInterval, flushInterval);
+    }
+  }
+  
+  /**
+   * Called when a node starts sending a message.
+   * 
+   * @param node the local node
+   * @return a new TraceContext if this message should be traced, otherwise null
+   */
+  public TraceContext sample(Object node) {
+    if (!enabled) return null;
+    if (sampleCount.incrementAndGet() % sampleInterval != 0) return null;
+    return new TraceContext(this, nextTraceId.incrementAndGet(), 0, node);
+  }
+  
+  /**
+   * Called when a traced message arrives off the wire.
+   * 
+   * @param hop the hop it was on at the sender
+   * @return null if tracing is off here
+   */
+  public TraceContext received(long traceId, int hop, Object node) {
+    if (!enabled) return null;
+    return new TraceContext(this, traceId, hop+1, node);
+  }
+  
+  /**
+   * Wall clock micros, with the resolution of System.nanoTime() when the 
+   * TimeSource is real.
+   */
+  public long currentTimeMicros() {
+    if (realTime) return microBase+(System.nanoTime()-nanoBase)/1000;
+    return timeSource.currentTimeMillis()*1000;
+  }
+  
+  protected void record(TraceContext trace, String event, Object detail) {
+    long now = currentTimeMicros();
+    String last;
+    long lastMicros;
+    synchronized(trace) {
+      last = trace.lastEvent;
+      lastMicros = trace.lastMicros;
+      trace.lastEvent = event;
+      trace.lastMicros = now;
+    }
+    if (last != null && metrics.enabled) {
+      metrics.histogram("trace."+event+"Micros").record(now-lastMicros);
+    }
+    if (traceFile == null) return;
+    
+    StringBuilder sb = new StringBuilder(64);
+    sb.append(Long.toHexString(trace.traceId));
+    sb.append('\t');
+    sb.append(trace.hop);
+    sb.append('\t');
+    sb.append(trace.node);
+    sb.append('\t');
+    sb.append(event);
+    sb.append('\t');
+    sb.append(now);
+    if (detail != null) {
+      sb.append('\t');
+      sb.append(detail);
+    }
+    String line = sb.toString();
+    synchronized(pending) {
+      if (pending.size() >= maxEvents) {
+        droppedEvents.inc();
+        return;
+      }
+      pending.add(line);
+    }
+  }
+  
+  /**
+   * Removes and returns the events that haven't been written.
+   */
+  public List<String> drain() {
+    synchronized(pending) {
+      List<String> ret = pending;
+      pending = new ArrayList<String>();
+      return ret;
+    }
+  }
+  
+  /**
+   * Appends the events to the trace file.
+   */
+  protected synchronized void write(List<String> events) throws IOException {
+    Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(traceFile, true), "UTF-8"));
+    try {
+      for (String line : events) {
+        w.write(line);
+        w.write('\n');
+      }
+    } finally {
+      w.close();
+    }
+  }
+  
+  /**
+   * Stops the periodic flush, and writes what is left.
+   */
+  public void destroy() {
+    if (flushTask != null) flushTask.cancel();
+    if (traceFile == null) return;
+    List<String> events = drain();
+    if (events.isEmpty()) return;
+    try {
+      write(events);
+    } catch (IOException ioe) {
+      if (logger.level <= Logger.WARNING) logger.logException("Error writing "+traceFile, ioe);
+    }
+  }
+}
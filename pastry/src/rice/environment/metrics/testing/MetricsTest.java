@@ -0,0 +1,262 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.environment.metrics.testing;
+
+import java.io.*;
+import java.util.*;
+
+import rice.environment.Environment;
+import rice.environment.metrics.*;
+import rice.environment.params.Parameters;
+import rice.environment.params.simple.SimpleParameters;
+import rice.p2p.commonapi.*;
+import rice.p2p.commonapi.rawserialization.RawMessage;
+import rice.pastry.PastryNode;
+import rice.pastry.direct.*;
+import rice.pastry.standard.RandomNodeIdFactory;
+
+/**
+ * Checks the Histogram's percentiles against the exact ones, that a disabled 
+ * registry hands out the NULL metrics, then routes some messages through a ring in 
+ * the direct simulator with the metrics on, and checks the dump.  Last, routes 
+ * with every message traced, and checks that the TraceReport can put the traces 
+ * back together.
+ * 
+ * usage: MetricsTest [numNodes]
+ * 
+ * @version $Id$
+ * @author agent
+ */
+public class MetricsTest {
+  
+  static boolean failed = false;
+  
+  static void check(String name, boolean ok, String detail) {
+    System.out.println("  "+name+(ok ? " [SUCCESS]" : " [FAILURE] "+detail));
+    if (!ok) failed = true;
+  }
+  
+  public static void testHistogram() {
+    // the bucket boundaries line up
+    boolean contiguous = true;
+    for (int i = 1; i < Histogram.NUM_BUCKETS; i++) {
+      if (Histogram.bucketStart(i) != Histogram.bucketEnd(i-1)+1) contiguous = false;
+      if (Histogram.bucketIndex(Histogram.bucketStart(i)) != i) contiguous = false;
+    }
+    check("Histogram buckets", contiguous && Histogram.bucketIndex(Long.MAX_VALUE) == Histogram.NUM_BUCKETS-1, "");
+    
+    // long tailed values, like a latency
+    Random r = new Random(1);
+    Histogram h = new Histogram();
+    long[] values = new long[100000];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = (long)(100*Math.exp(r.nextGaussian()*2));
+      h.record(values[i]);
+    }
+    Arrays.sort(values);
+    Histogram.Snapshot s = h.getSnapshot();
+    String detail = "";
+    boolean ok = s.getCount() == values.length && s.getMax() == values[values.length-1];
+    for (double p : new double[] {0.5, 0.9, 0.99, 0.999}) {
+      long exact = values[(int)Math.ceil(p*values.length)-1];
+      long got = s.getPercentile(p);
+      // reports the top of the bucket, which is at most 1/16 above
+      if (got < exact || got > exact+exact/Histogram.SUB_BUCKETS) {
+        ok = false;
+        detail+=" p"+p+" exact:"+exact+" got:"+got;
+      }
+    }
+    check("Histogram percentiles "+s, ok, detail);
+  }
+  
+  public static void testDisabled() {
+    MetricsRegistry m = new MetricsRegistry(false);
+    m.counter("a").inc();
+    m.histogram("b").record(5);
+    m.gauge("c", new Gauge() {
+      public long getValue() {
+        return 1;
+      }
+    });
+    check("Disabled", m.counter("a") == Counter.NULL && m.histogram("b") == Histogram.NULL && 
+        m.getAll().isEmpty() && m.counter("a").get() == 0, m.getAll().toString());
+  }
+  
+  /**
+   * Builds a ring in the direct simulator, and returns an Endpoint on each node, 
+   * which count the messages delivered to them in received.
+   */
+  static List<Endpoint> buildRing(Environment env, int numNodes, final int[] received) throws Exception {
+    NetworkSimulator<DirectNodeHandle, RawMessage> sim = new EuclideanNetwork<DirectNodeHandle, RawMessage>(env);
+    sim.setFullSpeed();
+    DirectPastryNodeFactory factory = new DirectPastryNodeFactory(new RandomNodeIdFactory(env), sim, env);
+    
+    List<Endpoint> endpoints = new ArrayList<Endpoint>();
+    PastryNode boot = null;
+    for (int i = 0; i < numNodes; i++) {
+      PastryNode pn = factory.newNode();
+      Endpoint e = pn.buildEndpoint(new Application() {
+        public boolean forward(RouteMessage message) {
+          return true;
+        }
+        public void deliver(Id id, Message message) {
+          synchronized(received) {
+            received[0]++;
+          }
+        }
+        public void update(NodeHandle handle, boolean joined) {
+        }
+      }, "MetricsTest");
+      e.register();
+      endpoints.add(e);
+      pn.boot(boot == null ? null : boot.getLocalHandle());
+      if (boot == null) boot = pn;
+      synchronized(pn) {
+        while(!pn.isReady() && !pn.joinFailed()) {
+          pn.wait(500);
+        }
+      }
+    }
+    env.getTimeSource().sleep(10000);
+    return endpoints;
+  }
+  
+  static void routeRandom(Environment env, List<Endpoint> endpoints, int numMsgs) throws Exception {
+    RandomNodeIdFactory idf = new RandomNodeIdFactory(env);
+    for (int i = 0; i < numMsgs; i++) {
+      endpoints.get(i % endpoints.size()).route(idf.generateNodeId(), new Message() {
+        public int getPriority() {
+          return DEFAULT_PRIORITY;
+        }
+      }, null);
+    }
+    env.getTimeSource().sleep(10000);
+  }
+  
+  public static void testRing(int numNodes) throws Exception {
+    File dump = File.createTempFile("MetricsTest", ".txt");
+    dump.deleteOnExit();
+    
+    Parameters params = new SimpleParameters(Environment.defaultParamFileArray, null);
+    params.setBoolean("metrics_enable", true);
+    params.setString("metrics_dump_file", dump.getPath());
+    params.setInt("metrics_dump_interval", 1000);
+    Environment env = Environment.directEnvironment(null, params);
+    
+    final int[] received = new int[1];
+    List<Endpoint> endpoints = buildRing(env, numNodes, received);
+    
+    long delivered = env.getMetrics().counter("routing.delivered").get();
+    int numMsgs = 10*numNodes;
+    routeRandom(env, endpoints, numMsgs);
+    
+    MetricsRegistry m = env.getMetrics();
+    long newDelivered = m.counter("routing.delivered").get()-delivered;
+    check("Delivered "+received[0]+"/"+numMsgs, received[0] == numMsgs, "");
+    check("routing.delivered "+newDelivered, newDelivered >= numMsgs, "");
+    check("routing.forwarded "+m.counter("routing.forwarded").get(), m.counter("routing.forwarded").get() > 0, "");
+    Histogram.Snapshot loop = m.histogram("selector.Default.loopMicros").getSnapshot();
+    check("selector.Default.loopMicros "+loop, loop.getCount() > 0, "");
+    
+    env.destroy();
+    Thread.sleep(1000);
+    BufferedReader br = new BufferedReader(new FileReader(dump));
+    String line;
+    boolean found = false;
+    System.out.println("  "+dump+":");
+    while ((line = br.readLine()) != null) {
+      System.out.println("    "+line);
+      if (line.startsWith("routing.delivered ")) found = true;
+    }
+    br.close();
+    check("Dump file", found, "no routing.delivered");
+    dump.delete();
+  }
+  
+  public static void testTracing(int numNodes) throws Exception {
+    File traceFile = File.createTempFile("MetricsTest", ".trace");
+    traceFile.deleteOnExit();
+    
+    Parameters params = new SimpleParameters(Environment.defaultParamFileArray, null);
+    params.setBoolean("metrics_enable", true);
+    params.setInt("metrics_trace_interval", 1);
+    params.setString("metrics_trace_file", traceFile.getPath());
+    Environment env = Environment.directEnvironment(null, params);
+    
+    final int[] received = new int[1];
+    List<Endpoint> endpoints = buildRing(env, numNodes, received);
+    // only look at our messages
+    env.getMetrics().getTracer().drain();
+    traceFile.delete();
+    
+    int numMsgs = 10*numNodes;
+    routeRandom(env, endpoints, numMsgs);
+    check("Delivered "+received[0]+"/"+numMsgs, received[0] == numMsgs, "");
+    Histogram.Snapshot route = env.getMetrics().histogram("trace.deliverMicros").getSnapshot();
+    check("trace.deliverMicros "+route, route.getCount() >= numMsgs, "");
+    env.destroy();
+    
+    TraceReport report = new TraceReport();
+    report.read(traceFile);
+    List<TraceReport.Trace> traces = report.getTraces();
+    int delivered = 0;
+    boolean ordered = true;
+    for (TraceReport.Trace t : traces) {
+      TraceReport.Event first = t.events.get(0);
+      if (first.hop != 0 || !first.event.equals("route")) ordered = false;
+      for (TraceReport.Event e : t.events) {
+        if (e.event.equals("deliver")) delivered++;
+      }
+    }
+    check("Traces "+traces.size(), traces.size() >= numMsgs && ordered, "");
+    check("Traced deliveries "+delivered, delivered >= numMsgs, "");
+    Map<String, Histogram> steps = report.getSteps();
+    check("Steps "+steps.keySet(), steps.containsKey("network") && steps.containsKey("send"), "");
+    System.out.print(report.report(1));
+    traceFile.delete();
+  }
+  
+  public static void main(String[] args) throws Exception {
+    int numNodes = (args.length > 0 ? Integer.parseInt(args[0]) : 30);
+    testHistogram();
+    testDisabled();
+    testRing(numNodes);
+    testTracing(numNodes);
+    System.out.println(failed ? "FAILURE" : "SUCCESS");
+    System.exit(failed ? 1 : 0);
+  }
+}
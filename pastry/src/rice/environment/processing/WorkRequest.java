@@ -48,6 +48,12 @@ import rice.selector.SelectorManager;
  * 
  * This is primarily used by Persistence.
  * 
+ * Requests with the same ordering key are always run one at a time, in the order 
+ * in which they were submitted, even by a Processor which uses several blocking IO
+ * threads.  Requests without an ordering key are all ordered with respect to each 
+ * other.  A request with several ordering keys is run after all of the earlier 
+ * requests with any of its keys, and before all of the later ones.
+ * 
  * @author Jeff Hoye
  */
 public abstract class WorkRequest<R> implements Runnable, Cancellable {
@@ -56,12 +62,37 @@ public abstract class WorkRequest<R> implements Runnable, Cancellable {
   
   protected boolean cancelled = false;
   protected boolean running = false;
+  
+  // the key of the requests this one must be ordered with, or null
+  protected Object orderingKey;
+  
+  // the keys, if this request must be ordered with several keys
+  protected Object[] orderingKeys;
 
   public WorkRequest(Continuation<R, Exception> c, SelectorManager sm){
     this.c = c;
     this.selectorManager = sm;
   }
   
+  /**
+   * Builds a request which is only ordered with respect to other requests
+   * with the same ordering key (typically, the Storage doing the IO).
+   */
+  public WorkRequest(Continuation<R, Exception> c, SelectorManager sm, Object orderingKey){
+    this(c, sm);
+    this.orderingKey = orderingKey;
+  }
+  
+  /**
+   * Builds a request which is ordered with respect to the requests with any 
+   * of the given ordering keys.
+   */
+  public WorkRequest(Continuation<R, Exception> c, SelectorManager sm, Object[] orderingKeys){
+    this(c, sm);
+    this.orderingKey = orderingKeys[0];
+    this.orderingKeys = orderingKeys;
+  }
+  
   public WorkRequest(){
     /* do nothing */
   }
@@ -104,6 +135,28 @@ public abstract class WorkRequest<R> implements Runnable, Cancellable {
     }
   }
   
+  /**
+   * Returns the key of the requests this request must be ordered with, or null
+   * if it should be ordered with all other requests without a key.
+   * 
+   * @return The ordering key
+   */
+  public Object getOrderingKey() {
+    return orderingKey;
+  }
+  
+  /**
+   * Returns all of the keys of the requests this request must be ordered with, 
+   * or null if it has no ordering key.
+   * 
+   * @return The ordering keys
+   */
+  public Object[] getOrderingKeys() {
+    if (orderingKeys != null) return orderingKeys;
+    if (orderingKey != null) return new Object[] {orderingKey};
+    return null;
+  }
+  
   public boolean cancel() {
     cancelled = true;
     return !running;
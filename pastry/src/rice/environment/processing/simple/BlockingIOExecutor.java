@@ -0,0 +1,338 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.environment.processing.simple;
+
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import rice.environment.processing.WorkRequest;
+
+/**
+ * Runs blocking IO WorkRequests concurrently, while keeping the requests of 
+ * each ordering key (see WorkRequest.getOrderingKeys()) in order, one at a time.
+ * 
+ * Each ordering key has a lane of pending requests.  A lane with work is either
+ * running one request, or waiting for one of the maxInFlight slots; lanes waiting
+ * for a slot are served round-robin, one request at a time, so that a busy key 
+ * can't starve the others.  Requests without an ordering key all share one lane.
+ * A request with several keys is queued in each of their lanes, and only runs 
+ * once it is at the head of all of them, so it is ordered with respect to every
+ * one of its keys.
+ * 
+ * The requests are run on virtual threads when the JVM has them (there's no
+ * point in pooling those), and otherwise on an elastic pool which grows up to 
+ * maxInFlight threads and lets them die after a minute of idleness.  Either 
+ * way, WorkRequest.run() returns the result on the selector thread.
+ * 
+ * @version $Id$
+ * @author agent
+ */
+public class BlockingIOExecutor {
+
+  // the key used for the requests without an ordering key
+  protected static final Object DEFAULT_LANE = new Object();
+  
+  // how long an idle pool thread lives
+  public static final long KEEP_ALIVE_SECONDS = 60;
+  
+  // the executor running the requests
+  protected ExecutorService executor;
+  
+  // whether the executor uses virtual threads
+  protected boolean virtual;
+  
+  // the lanes with pending or running requests, by ordering key
+  protected HashMap<Object, Lane> lanes = new HashMap<Object, Lane>();
+  
+  // the requests which are at the head of all of their lanes, but are waiting for a slot
+  protected LinkedList<QueuedWorkRequest> ready = new LinkedList<QueuedWorkRequest>();
+  
+  // the number of requests currently running, and the limit
+  protected int inFlight;
+  protected int maxInFlight;
+  
+  protected boolean destroyed = false;
+  
+  // statistics
+  protected AtomicInteger queueLength = new AtomicInteger();
+  protected PooledProcessor.Statistics waitTime = new PooledProcessor.Statistics();
+  protected PooledProcessor.Statistics runTime = new PooledProcessor.Statistics();
+  
+  /**
+   * Constructor
+   * 
+   * @param name The prefix of the names of the threads
+   * @param maxInFlight The maximum number of requests which may run at once
+   * @param useVirtualThreads Whether to use virtual threads, if the JVM has them
+   */
+  public BlockingIOExecutor(final String name, int maxInFlight, boolean useVirtualThreads) {
+    this.maxInFlight = maxInFlight;
+    
+    if (useVirtualThreads)
+      executor = buildVirtualThreadExecutor();
+    
+    if (executor != null) {
+      virtual = true;
+    } else {
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(maxInFlight, maxInFlight, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, 
+          new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        int count = 0;
+        
+        public synchronized Thread newThread(Runnable r) {
+          Thread result = new Thread(r, name + ".Persistence Worker Thread-" + (count++));
+          result.setDaemon(true);
+          return result;
+        }
+      });
+      pool.allowCoreThreadTimeOut(true);
+      executor = pool;
+    }
+  }
+  
+  /**
+   * Returns an executor which starts a new virtual thread for each task, or null
+   * if this JVM doesn't have virtual threads.  This is done by reflection, as
+   * FreePastry is still built for older JVMs.
+   */
+  protected static ExecutorService buildVirtualThreadExecutor() {
+    try {
+      Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor", new Class[0]);
+      return (ExecutorService) m.invoke(null, new Object[0]);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+  
+  /**
+   * Schedules the request to run after all of the previously submitted 
+   * requests with any of the same ordering keys.
+   * 
+   * @param request The request
+   */
+  @SuppressWarnings("unchecked")
+  public void execute(WorkRequest request) {
+    Object[] keys = request.getOrderingKeys();
+    if (keys == null)
+      keys = new Object[] {DEFAULT_LANE};
+    
+    queueLength.incrementAndGet();
+    
+    QueuedWorkRequest start = null;
+    synchronized (this) {
+      if (destroyed)
+        return;
+      
+      QueuedWorkRequest queued = new QueuedWorkRequest(request);
+      ArrayList<Lane> joined = new ArrayList<Lane>(keys.length);
+      
+      for (int i=0; i<keys.length; i++) {
+        Lane lane = lanes.get(keys[i]);
+        if (lane == null) {
+          lane = new Lane(keys[i]);
+          lanes.put(keys[i], lane);
+        }
+        
+        // the same key may be given twice
+        if (joined.contains(lane))
+          continue;
+        
+        joined.add(lane);
+        lane.requests.addLast(queued);
+        if (lane.requests.size() == 1)
+          queued.arrived++;
+      }
+      
+      queued.lanes = joined.toArray(new Lane[joined.size()]);
+      if (queued.arrived == queued.lanes.length)
+        start = schedule(queued);
+    }
+    
+    if (start != null)
+      start.start();
+  }
+  
+  /**
+   * Internal method which gives a request at the head of all of its lanes a 
+   * slot, if there is one, and returns the request if it should be started.  
+   * Otherwise the request waits.  Must be called while synchronized.
+   */
+  protected QueuedWorkRequest schedule(QueuedWorkRequest queued) {
+    if (inFlight < maxInFlight) {
+      inFlight++;
+      return queued;
+    } else {
+      ready.addLast(queued);
+      return null;
+    }
+  }
+  
+  /**
+   * Internal method, called when a request has finished running.  Removes it 
+   * from its lanes, puts the next request of each lane at the back of the line 
+   * if it is now at the head of all of its lanes, and hands out the free slots.
+   */
+  protected void done(QueuedWorkRequest queued) {
+    ArrayList<QueuedWorkRequest> next = new ArrayList<QueuedWorkRequest>();
+    synchronized (this) {
+      inFlight--;
+      
+      for (int i=0; i<queued.lanes.length; i++) {
+        Lane lane = queued.lanes[i];
+        lane.requests.removeFirst();
+        
+        if (lane.requests.isEmpty()) {
+          lanes.remove(lane.key);
+        } else {
+          QueuedWorkRequest head = lane.requests.getFirst();
+          head.arrived++;
+          if (head.arrived == head.lanes.length)
+            ready.addLast(head);
+        }
+      }
+      
+      while ((! ready.isEmpty()) && (inFlight < maxInFlight) && (! destroyed)) {
+        inFlight++;
+        next.add(ready.removeFirst());
+      }
+    }
+    
+    for (int i=0; i<next.size(); i++)
+      next.get(i).start();
+  }
+  
+  /**
+   * Returns the number of requests waiting to run
+   */
+  public int getQueueLength() {
+    return queueLength.get();
+  }
+  
+  /**
+   * Returns the number of requests currently running
+   */
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+  
+  public int getMaxInFlight() {
+    return maxInFlight;
+  }
+  
+  public boolean isVirtual() {
+    return virtual;
+  }
+  
+  /**
+   * Returns the statistics of the time (in nanoseconds) requests spend waiting
+   */
+  public PooledProcessor.Statistics getQueueTime() {
+    return waitTime;
+  }
+
+  /**
+   * Returns the statistics of the time (in nanoseconds) requests spend running
+   */
+  public PooledProcessor.Statistics getRunTime() {
+    return runTime;
+  }
+  
+  public String toString() {
+    return (virtual ? "virtual" : "pool") + " max=" + maxInFlight + " queue=" + getQueueLength() + " wait=" + waitTime + " run=" + runTime;
+  }
+  
+  public void destroy() {
+    synchronized (this) {
+      destroyed = true;
+      lanes.clear();
+      ready.clear();
+    }
+    
+    executor.shutdownNow();
+  }
+  
+  /**
+   * A WorkRequest waiting in its lanes, with the time it was queued
+   */
+  protected class QueuedWorkRequest implements Runnable {
+    WorkRequest request;
+    long queued = System.nanoTime();
+    
+    // the lanes of its ordering keys, and how many of them it is the head of
+    Lane[] lanes;
+    int arrived;
+    
+    QueuedWorkRequest(WorkRequest request) {
+      this.request = request;
+    }
+    
+    void start() {
+      try {
+        executor.execute(this);
+      } catch (RejectedExecutionException ree) {
+        // we've been destroyed
+      }
+    }
+    
+    public void run() {
+      queueLength.decrementAndGet();
+      long start = System.nanoTime();
+      waitTime.add(start - queued);
+      
+      try {
+        request.run();
+      } finally {
+        runTime.add(System.nanoTime() - start);
+        done(this);
+      }
+    }
+  }
+  
+  /**
+   * The pending requests of one ordering key, the first of which is running
+   * or waiting for its other lanes or a slot
+   */
+  protected class Lane {
+    Object key;
+    LinkedList<QueuedWorkRequest> requests = new LinkedList<QueuedWorkRequest>();
+    
+    Lane(Object key) {
+      this.key = key;
+    }
+  }
+}
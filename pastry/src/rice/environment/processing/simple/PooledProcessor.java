@@ -0,0 +1,289 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.environment.processing.simple;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import rice.*;
+import rice.environment.logging.LogManager;
+import rice.environment.processing.*;
+import rice.environment.time.TimeSource;
+import rice.p2p.commonapi.Cancellable;
+import rice.selector.SelectorManager;
+
+/**
+ * A Processor which runs the CPU intensive tasks on a pool of threads and the
+ * blocking IO on a second pool, instead of on a single thread each like the
+ * SimpleProcessor.
+ * 
+ * The CPU pool is a work-stealing ForkJoinPool, but the requests themselves 
+ * are kept in one priority queue: each submission only hands the pool a token,
+ * and whichever thread runs the token takes the highest-priority request which
+ * is waiting (lowest priority number, then oldest).  So priorities are 
+ * respected exactly as they are on the SimpleProcessor, but requests which 
+ * are not higher priority than each other may run concurrently.
+ * 
+ * The blocking IO is handed to a BlockingIOExecutor, which keeps the requests
+ * of each ordering key (see WorkRequest.getOrderingKey()) in order, while those 
+ * of different keys run in parallel.
+ * 
+ * @version $Id$
+ * @author agent
+ */
+public class PooledProcessor implements Processor {
+
+  // the requests waiting to run on the cpu pool
+  protected PriorityBlockingQueue<ProcessingRequest> queue;
+  
+  // the pool running the cpu requests
+  protected ForkJoinPool cpuPool;
+  
+  // the executor running the blocking io requests
+  protected BlockingIOExecutor ioExecutor;
+  
+  // the number of threads in each pool
+  protected int cpuThreads;
+  protected int ioThreads;
+  
+  // the sequence number used to order requests of the same priority
+  protected AtomicLong seq = new AtomicLong(Long.MIN_VALUE);
+  
+  // statistics
+  protected Statistics cpuWait = new Statistics();
+  protected Statistics cpuRun = new Statistics();
+  
+  /**
+   * Constructor
+   * 
+   * @param name The prefix of the names of the threads
+   * @param cpuThreads The number of threads doing processing
+   * @param ioThreads The number of threads doing blocking IO
+   */
+  public PooledProcessor(String name, int cpuThreads, int ioThreads) {
+    this(name, cpuThreads, ioThreads, false);
+  }
+  
+  /**
+   * Constructor
+   * 
+   * @param name The prefix of the names of the threads
+   * @param cpuThreads The number of threads doing processing
+   * @param ioThreads The maximum number of blocking IO requests to run at once
+   * @param useVirtualThreads Whether to run the blocking IO on virtual threads, 
+   *   if the JVM has them
+   */
+  public PooledProcessor(final String name, int cpuThreads, int ioThreads, boolean useVirtualThreads) {
+    this.cpuThreads = cpuThreads;
+    this.ioThreads = ioThreads;
+    this.queue = new PriorityBlockingQueue<ProcessingRequest>();
+    
+    this.cpuPool = new ForkJoinPool(cpuThreads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+      int count = 0;
+      
+      public synchronized ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+        ForkJoinWorkerThread result = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        result.setName(name + ".ProcessingThread-" + (count++));
+        result.setPriority(Thread.MIN_PRIORITY);
+        return result;
+      }
+    }, null, true);
+    
+    this.ioExecutor = new BlockingIOExecutor(name, ioThreads, useVirtualThreads);
+  }
+  
+  public <R, E extends Exception> Cancellable process(Executable<R,E> task, Continuation<R, E> command,
+      SelectorManager selector, TimeSource ts, LogManager log) {
+    return process(task, command, 0, selector, ts, log);
+  }
+
+  public <R, E extends Exception> Cancellable process(Executable<R,E> task, Continuation<R, E> command, int priority,
+      SelectorManager selector, TimeSource ts, LogManager log) {
+    ProcessingRequest ret = new PooledProcessingRequest(task, command, priority, seq.getAndIncrement(), log, ts, selector);
+    queue.offer(ret);
+    
+    try {
+      cpuPool.execute(new Runnable() {
+        public void run() {
+          ProcessingRequest next = queue.poll();
+          if (next != null) 
+            next.run();
+        }
+      });
+    } catch (RejectedExecutionException ree) {
+      // we've been destroyed
+    }
+    
+    return ret;
+  }
+
+  public Cancellable processBlockingIO(WorkRequest request) {
+    ioExecutor.execute(request);
+    return request;
+  }
+  
+  /**
+   * Returns the number of cpu requests waiting to run
+   * 
+   * @return The length of the processing queue
+   */
+  public int getQueueLength() {
+    return queue.size();
+  }
+  
+  /**
+   * Returns the number of blocking io requests waiting to run
+   * 
+   * @return The length of the blocking io queue
+   */
+  public int getIOQueueLength() {
+    return ioExecutor.getQueueLength();
+  }
+  
+  /**
+   * Returns the statistics of the time (in nanoseconds) cpu requests spend 
+   * waiting in the queue
+   */
+  public Statistics getQueueTime() {
+    return cpuWait;
+  }
+  
+  /**
+   * Returns the statistics of the time (in nanoseconds) cpu requests spend 
+   * running
+   */
+  public Statistics getProcessingTime() {
+    return cpuRun;
+  }
+
+  /**
+   * Returns the statistics of the time (in nanoseconds) blocking io requests 
+   * spend waiting in the queue
+   */
+  public Statistics getIOQueueTime() {
+    return ioExecutor.getQueueTime();
+  }
+
+  /**
+   * Returns the statistics of the time (in nanoseconds) blocking io requests 
+   * spend running
+   */
+  public Statistics getIOTime() {
+    return ioExecutor.getRunTime();
+  }
+  
+  public int getCPUThreads() {
+    return cpuThreads;
+  }
+  
+  public int getIOThreads() {
+    return ioThreads;
+  }
+  
+  public String toString() {
+    return "PooledProcessor[cpu=" + cpuThreads + " queue=" + getQueueLength() + " wait=" + cpuWait + " run=" + cpuRun + 
+      ", io=" + ioExecutor + "]";
+  }
+  
+  public void destroy() {
+    cpuPool.shutdownNow();
+    queue.clear();
+    ioExecutor.destroy();
+  }
+  
+  /**
+   * A ProcessingRequest which records how long it waited and ran
+   */
+  @SuppressWarnings("unchecked")
+  protected class PooledProcessingRequest extends ProcessingRequest {
+    long queued = System.nanoTime();
+    
+    public PooledProcessingRequest(Executable r, Continuation c, int priority, long seq,
+        LogManager logging, TimeSource timeSource, SelectorManager selectorManager) {
+      super(r, c, priority, seq, logging, timeSource, selectorManager);
+    }
+    
+    public void run() {
+      long start = System.nanoTime();
+      cpuWait.add(start - queued);
+      
+      try {
+        super.run();
+      } finally {
+        cpuRun.add(System.nanoTime() - start);
+      }
+    }
+  }
+  
+  /**
+   * A simple count/mean/max accumulator
+   */
+  public static class Statistics {
+    long count;
+    long total;
+    long max;
+    
+    public synchronized void add(long value) {
+      count++;
+      total += value;
+      if (value > max)
+        max = value;
+    }
+    
+    public synchronized long getCount() {
+      return count;
+    }
+    
+    public synchronized long getAverage() {
+      return (count == 0 ? 0 : total / count);
+    }
+    
+    public synchronized long getMax() {
+      return max;
+    }
+    
+    public synchronized void reset() {
+      count = 0;
+      total = 0;
+      max = 0;
+    }
+    
+    public synchronized String toString() {
+      return "avg " + (getAverage() / 1000) + "us max " + (max / 1000) + "us";
+    }
+  }
+}
@@ -0,0 +1,227 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.environment.processing.testing;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import rice.*;
+import rice.environment.Environment;
+import rice.environment.processing.*;
+import rice.environment.processing.simple.*;
+import rice.p2p.util.*;
+
+/**
+ * Compares the SimpleProcessor with PooledProcessors of increasing size on a 
+ * batch of CPU bound tasks (hashing) and a batch of blocking IO requests 
+ * spread over several ordering keys (a sleep, standing in for a slow disk),
+ * and checks that the pooled processor keeps the ordering guarantees: 
+ * requests of one key run one at a time in order, and a high-priority task 
+ * submitted behind a backlog runs before it.
+ * 
+ * usage: ProcessorBenchmark [cpuTasks ioRequests ioMillis keys maxThreads]
+ * 
+ * @version $Id$
+ * @author agent
+ */
+@SuppressWarnings("unchecked")
+public class ProcessorBenchmark {
+
+  Environment env;
+  
+  public ProcessorBenchmark(Environment env) {
+    this.env = env;
+  }
+  
+  /**
+   * Runs the given number of 1MB hashes, and returns the elapsed milliseconds
+   */
+  public long runCPU(Processor p, int tasks) throws InterruptedException {
+    final byte[] block = MathUtils.randomBytes(1024*1024, env.getRandomSource());
+    final CountDownLatch done = new CountDownLatch(tasks);
+    long start = System.currentTimeMillis();
+    
+    for (int i=0; i<tasks; i++) {
+      p.process(new Executable() {
+        public Object execute() {
+          return SecurityUtils.hash(block);
+        }
+      }, new Continuation() {
+        public void receiveResult(Object result) {
+          done.countDown();
+        }
+        public void receiveException(Exception e) {
+          e.printStackTrace();
+          done.countDown();
+        }
+      }, env.getSelectorManager(), env.getTimeSource(), env.getLogManager());
+    }
+    
+    done.await();
+    return System.currentTimeMillis() - start;
+  }
+  
+  /**
+   * Runs the given number of blocking IO requests, round-robin over the keys,
+   * and returns the elapsed milliseconds.  Fails if two requests of the same
+   * key ever overlap or run out of order.
+   */
+  public long runIO(Processor p, int requests, final int millis, int keys) throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(requests);
+    final int[] active = new int[keys];
+    final int[] last = new int[keys];
+    final boolean[] failed = new boolean[1];
+    Arrays.fill(last, -1);
+    long start = System.currentTimeMillis();
+    
+    for (int i=0; i<requests; i++) {
+      final int key = i % keys;
+      final int num = i / keys;
+      
+      p.processBlockingIO(new WorkRequest(new Continuation() {
+        public void receiveResult(Object result) {
+          done.countDown();
+        }
+        public void receiveException(Exception e) {
+          e.printStackTrace();
+          done.countDown();
+        }
+      }, env.getSelectorManager(), new Integer(key)) {
+        public Object doWork() throws Exception {
+          synchronized (active) {
+            if ((active[key]++ != 0) || (last[key] != num - 1))
+              failed[0] = true;
+            last[key] = num;
+          }
+          
+          Thread.sleep(millis);
+          
+          synchronized (active) {
+            active[key]--;
+          }
+          return null;
+        }
+      });
+    }
+    
+    done.await();
+    if (failed[0])
+      throw new IllegalStateException("Requests of the same ordering key overlapped or were reordered!");
+    
+    return System.currentTimeMillis() - start;
+  }
+  
+  /**
+   * Fills the processor with a backlog of default priority tasks, then submits
+   * a high-priority one, and returns how many of the backlog ran before it.
+   */
+  public int runPriority(Processor p, int backlog) throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(backlog + 1);
+    final int[] completed = new int[1];
+    final int[] before = new int[1];
+    
+    Continuation c = new Continuation() {
+      public void receiveResult(Object result) {
+        done.countDown();
+      }
+      public void receiveException(Exception e) {
+        e.printStackTrace();
+        done.countDown();
+      }
+    };
+    
+    for (int i=0; i<backlog; i++) {
+      p.process(new Executable() {
+        public Object execute() throws Exception {
+          Thread.sleep(2);
+          synchronized (completed) {
+            completed[0]++;
+          }
+          return null;
+        }
+      }, c, env.getSelectorManager(), env.getTimeSource(), env.getLogManager());
+    }
+    
+    p.process(new Executable() {
+      public Object execute() {
+        synchronized (completed) {
+          before[0] = completed[0];
+        }
+        return null;
+      }
+    }, c, -1, env.getSelectorManager(), env.getTimeSource(), env.getLogManager());
+
+    done.await();
+    return before[0];
+  }
+  
+  public static void main(String[] args) throws Exception {
+    int cpuTasks = (args.length > 0 ? Integer.parseInt(args[0]) : 200);
+    int ioRequests = (args.length > 1 ? Integer.parseInt(args[1]) : 400);
+    int ioMillis = (args.length > 2 ? Integer.parseInt(args[2]) : 5);
+    int keys = (args.length > 3 ? Integer.parseInt(args[3]) : 8);
+    int maxThreads = (args.length > 4 ? Integer.parseInt(args[4]) : 8);
+    
+    Environment env = new Environment();
+    ProcessorBenchmark test = new ProcessorBenchmark(env);
+    
+    System.out.println("processors=" + Runtime.getRuntime().availableProcessors() + " cpuTasks=" + cpuTasks + 
+        " ioRequests=" + ioRequests + " ioMillis=" + ioMillis + " keys=" + keys);
+    
+    for (int threads=1; threads<=maxThreads; threads*=2) {
+      Processor p = (threads == 1 ? new SimpleProcessor("Benchmark") : new PooledProcessor("Benchmark", threads, threads));
+      
+      // warm up
+      test.runCPU(p, cpuTasks / 4);
+      
+      long cpu = test.runCPU(p, cpuTasks);
+      long io = test.runIO(p, ioRequests, ioMillis, keys);
+      int before = test.runPriority(p, 100);
+      
+      System.out.println("RESULT: " + p.getClass().getSimpleName() + " threads=" + threads + " cpu=" + cpu + "ms (" + 
+          (cpuTasks * 1000L / Math.max(1, cpu)) + " MB/s) io=" + io + "ms (" + (ioRequests * 1000L / Math.max(1, io)) + 
+          " req/s) backlogBeforeHighPriority=" + before);
+      
+      if (p instanceof PooledProcessor)
+        System.out.println("  " + p);
+      
+      p.destroy();
+    }
+    
+    env.destroy();
+  }
+}
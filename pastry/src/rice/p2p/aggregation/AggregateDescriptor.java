@@ -38,7 +38,7 @@ package rice.p2p.aggregation;
 
 import rice.p2p.commonapi.Id;
 
-class AggregateDescriptor {
+public class AggregateDescriptor {
   
   public Id key;
   public long currentLifetime;
@@ -40,23 +40,58 @@ import java.util.Hashtable;
 import java.util.Enumeration;
 import java.util.Date;
 import java.util.Vector;
+import java.util.zip.*;
 import java.io.*;
 
 import rice.environment.Environment;
 import rice.environment.logging.Logger;
+import rice.environment.params.Parameters;
 import rice.p2p.commonapi.Id;
 import rice.p2p.commonapi.IdFactory;
 import rice.p2p.glacier.VersionKey;
 
+/**
+ * The list of aggregates, and of the objects in them, that a node has stored.
+ * 
+ * The list is kept in a binary snapshot (configFileName.bin) and, if logging is 
+ * enabled, an append-only log of the changes made since (configFileName.wal).  
+ * Each change appends one record to the log, and writeToDisk() only writes a new 
+ * snapshot once the log has as many entries as the list, so the cost of a change 
+ * doesn't grow with the size of the list.  At startup, the snapshot is read and 
+ * the log is replayed on top of it.  A record which was only partly written is 
+ * discarded.
+ * 
+ * The text format of older versions (configFileName and configFileName.log) is 
+ * read if there is no snapshot, and then moved aside to *.old once a snapshot has 
+ * been written.  exportText() still writes it, see AggregateListExport.
+ */
 @SuppressWarnings("unchecked")
 public class AggregateList {
 
+  public static final byte SNAPSHOT_VERSION = 0;
+  public static final byte LOG_VERSION = 0;
+  
+  // the types of log entries
+  protected static final byte SET_ROOT = 0;
+  protected static final byte SET_AGGREGATE_LIFETIME = 1;
+  protected static final byte SET_OBJECT_CURRENT_LIFETIME = 2;
+  protected static final byte SET_OBJECT_REFRESHED_LIFETIME = 3;
+  protected static final byte REFRESH = 4;
+  protected static final byte REMOVE_AGGREGATE = 5;
+  protected static final byte ADD_AGGREGATE = 6;
+  protected static final byte CLEAR = 7;
+  
+  // the longest log entry we'll believe when recovering
+  protected static final int MAX_ENTRY_SIZE = 16*1024*1024;
+
   protected final Hashtable aggregateList;
   protected final String configFileName;
+  protected final String snapshotFileName;
   protected final String logFileName;
+  protected final String textLogFileName;
   protected final String label;
   protected final IdFactory factory;
-  protected final PrintStream logFile;
+  protected DataOutputStream logFile;
   protected final boolean loggingEnabled;
   protected Id rootKey;
   protected boolean wasReadOK;
@@ -64,10 +99,37 @@ public class AggregateList {
   protected String instance;
   protected Environment environment;
   protected Logger logger;
+  
+  /**
+   * Write a new snapshot once the log has this many entries, or as many entries 
+   * as there are in the list, whichever is more.
+   */
+  protected int snapshotEntries;
+  protected int entriesSinceSnapshot;
+  
+  /**
+   * Whether the ids of the factory can be written as bytes.  If not, they are 
+   * written as strings.
+   */
+  protected boolean idBytes;
+  protected int idLength;
+  
+  /**
+   * Whether the list was read from the text format, which should be moved 
+   * aside once there is a snapshot.
+   */
+  protected boolean textFiles;
+  
+  // the entry being written to the log
+  private ByteArrayOutputStream entryBytes;
+  private DataOutputStream entry;
 
   public AggregateList(String configFileName, String label, IdFactory factory, boolean loggingEnabled, String instance, Environment env) throws IOException {
     this.instance = instance;
     this.configFileName = configFileName;
+    this.snapshotFileName = configFileName + ".bin";
+    this.logFileName = configFileName + ".wal";
+    this.textLogFileName = configFileName + ".log";
     this.aggregateList = new Hashtable();
     this.factory = factory;
     this.label = label;
@@ -75,16 +137,21 @@ public class AggregateList {
     this.nextSerial = 0;
     this.environment = env;
     this.logger = environment.getLogManager().getLogger(AggregateList.class, instance);
+    
+    Parameters p = env.getParameters();
+    this.snapshotEntries = p.contains("p2p_aggregation_aggregateLogSnapshotEntries") ? 
+        p.getInt("p2p_aggregation_aggregateLogSnapshotEntries") : 1000;
+    Id probe = factory.buildRandomId(env.getRandomSource());
+    this.idLength = probe.getByteArrayLength();
+    this.idBytes = probe.equals(factory.buildId(probe.toByteArray()));
+    this.entryBytes = new ByteArrayOutputStream();
+    this.entry = new DataOutputStream(entryBytes);
+    
     this.wasReadOK = readFromDisk();
     this.loggingEnabled = loggingEnabled;
-    this.logFileName = configFileName + ".log";
     
-    if (loggingEnabled) {
+    if (loggingEnabled) 
       recoverLog();
-      this.logFile = new PrintStream(new FileOutputStream(logFileName, true));
-    } else {
-      this.logFile = null;
-    }  
   }
 
   public boolean readOK() {
@@ -95,13 +162,210 @@ public class AggregateList {
     return aggregateList.elements();
   }
   
+  /**
+   * Replays the log on top of the list that was read, and opens it for appending.
+   */
   public void recoverLog() {
+    int entriesReplayed = 0;
+    int textEntriesReplayed = 0;
+    if (textFiles)
+      textEntriesReplayed = recoverTextLog();
+    int entries = 0;
+    
+    long expectedSerial = -1;
+    long validLength = 0;
+    DataInputStream in = null;
+    
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFileName)));
+      
+      try {
+        byte version = in.readByte();
+        if (version != LOG_VERSION)
+          throw new AggregationException("Unknown log version "+version+" in "+logFileName);
+        boolean bytes = in.readBoolean();
+        int length = in.readInt();
+        validLength = 6;
+
+        CRC32 crc = new CRC32();
+        while (true) {
+          // a torn or corrupt entry at the end was never acknowledged, so it is discarded
+          byte[] body;
+          try {
+            int size = in.readInt();
+            if ((size < 0) || (size > MAX_ENTRY_SIZE))
+              break;
+            body = new byte[size];
+            in.readFully(body);
+            int check = in.readInt();
+            crc.reset();
+            crc.update(body, 0, body.length);
+            if (check != (int) crc.getValue())
+              break;
+          } catch (EOFException eofe) {
+            break;
+          }
+          
+          DataInputStream entryIn = new DataInputStream(new ByteArrayInputStream(body));
+          long thisSerial = entryIn.readLong();
+          if ((expectedSerial >= 0) && (thisSerial != expectedSerial))
+            throw new AggregationException("Malformed log entry (expected serial #"+expectedSerial+"): "+thisSerial);
+          expectedSerial = thisSerial + 1;
+          
+          if (thisSerial > nextSerial)
+            throw new AggregationException("Entries "+nextSerial+".."+(thisSerial-1)+" missing from log... cannot recover!");
+          
+          if (thisSerial == nextSerial) {
+            if (logger.level <= Logger.FINE) logger.log(
+                "Replaying log entry #"+thisSerial);
+            replayEntry(entryIn, bytes, length);
+            entriesReplayed ++;
+            nextSerial ++;
+          }
+          
+          validLength += 8 + body.length;
+          entries ++;
+        }
+      } catch (EOFException eofe) {
+        // the header was torn, start a new log
+        validLength = 0;
+      }
+      
+      in.close();
+    } catch (FileNotFoundException fnfe) {
+      if (logger.level <= Logger.INFO) logger.log(
+        "No aggregate log found; using snapshot only");
+    } catch (Exception e) {
+      if (logger.level <= Logger.WARNING) logger.logException(
+          "Exception while recovering aggregate log: ",e);      
+      System.exit(1);
+    }
+    
+    try {
+      File file = new File(logFileName);
+      if (file.exists() && (file.length() > validLength)) {
+        if (logger.level <= Logger.WARNING) logger.log(
+            "Discarding "+(file.length() - validLength)+" bytes at the end of the aggregate log");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(validLength);
+        raf.close();
+      }
+      openLog(validLength == 0);
+      entriesSinceSnapshot = entries;
+    } catch (IOException ioe) {
+      if (logger.level <= Logger.WARNING) logger.logException(
+          "Aggregation cannot open its log: "+logFileName,ioe);
+    }
+    
+    // the log stays as it is, unless we have to move the text format aside
+    if (textEntriesReplayed > 0) 
+      writeSnapshot();
+    
+    if (entriesReplayed + textEntriesReplayed > 0) {
+      if (logger.level <= Logger.WARNING) logger.log(
+          (entriesReplayed + textEntriesReplayed)+" entries replayed from aggregate log");
+    } 
+  }
+  
+  /**
+   * Applies one entry of the log to the list.
+   */
+  private void replayEntry(DataInputStream in, boolean bytes, int length) throws IOException, AggregationException {
+    in.readLong(); // the time the entry was written
+    byte type = in.readByte();
+    Id adcKey = in.readBoolean() ? readId(in, bytes, length) : null;
+    int index = in.readInt();
+    long value = in.readLong();
+    
+    if (type == SET_ROOT) {
+      rootKey = adcKey;
+      if (logger.level <= Logger.FINER) logger.log(
+          "  - rootKey = "+((rootKey == null) ? "null" : rootKey.toStringFull()));
+      return;
+    } 
+    
+    if (type == CLEAR) {
+      clear();
+      if (logger.level <= Logger.FINER) logger.log(
+          "  - clear");
+      return;
+    } 
+    
+    if (type == ADD_AGGREGATE) {
+      AggregateDescriptor adc = readAggregate(in, bytes, length);
+      if (aggregateList.get(adc.key) != null)
+        throw new AggregationException("Aggregate already present ("+adc.key.toStringFull()+")");
+      addAggregateDescriptor(adc, false);
+      if (logger.level <= Logger.FINER) logger.log(
+          " - add ADC "+adc.key.toStringFull());
+      return;
+    }
+    
+    AggregateDescriptor adc = (AggregateDescriptor) aggregateList.get(adcKey);
+    if (adc == null)
+      throw new AggregationException("Cannot find aggregate ("+adcKey.toStringFull()+")");
+    
+    if ((type == SET_OBJECT_CURRENT_LIFETIME) || (type == SET_OBJECT_REFRESHED_LIFETIME))
+      if (adc.objects.length <= index)
+        throw new AggregationException("Object index mismatch ("+index+"/"+adc.objects.length+") in ADC "+adcKey.toStringFull());
+    
+    switch (type) {
+      case SET_AGGREGATE_LIFETIME:
+        adc.currentLifetime = value;
+        break;
+      case SET_OBJECT_CURRENT_LIFETIME:
+        adc.objects[index].currentLifetime = value;
+        break;
+      case SET_OBJECT_REFRESHED_LIFETIME:
+        adc.objects[index].refreshedLifetime = value;
+        break;
+      case REFRESH:
+        adc.currentLifetime = value;
+        for (int i=0; i<adc.objects.length; i++) 
+          adc.objects[i].currentLifetime = adc.objects[i].refreshedLifetime;
+        break;
+      case REMOVE_AGGREGATE:
+        removeAggregateDescriptor(adc, false);
+        break;
+      default:
+        throw new AggregationException("Unknown log entry type "+type);
+    }
+    
+    if (logger.level <= Logger.FINER) logger.log(
+        "  - type "+type+" index "+index+" value "+value+" in ADC "+adcKey.toStringFull());
+  }
+  
+  /**
+   * Opens the log for appending.
+   * 
+   * @param create whether to start a new, empty log
+   */
+  private void openLog(boolean create) throws IOException {
+    if (logFile != null)
+      logFile.close();
+    
+    logFile = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFileName, !create)));
+    if (create) {
+      logFile.writeByte(LOG_VERSION);
+      logFile.writeBoolean(idBytes);
+      logFile.writeInt(idLength);
+      logFile.flush();
+    }
+    entriesSinceSnapshot = 0;
+  }
+  
+  /**
+   * Replays the log of the text format.
+   * 
+   * @return the number of entries replayed
+   */
+  private int recoverTextLog() {
     BufferedReader logFile = null;
     long expectedSerial = -1;
     int entriesReplayed = 0;
 
     try {
-      logFile = new BufferedReader(new FileReader(logFileName));
+      logFile = new BufferedReader(new FileReader(textLogFileName));
 
       while (true) {
         String line = readLineSkipComments(logFile);
@@ -208,7 +472,7 @@ public class AggregateList {
             if (adc != null)
               throw new AggregationException("Aggregate already present ("+adcKey.toStringFull()+": "+line);
             
-            adc = readAggregate(logFile, adcKey);
+            adc = readTextAggregate(logFile, adcKey);
             addAggregateDescriptor(adc, false);
             if (logger.level <= Logger.FINER) logger.log(
                 " - add ADC "+adcKey.toStringFull());
@@ -221,7 +485,7 @@ public class AggregateList {
           /* skip addAggregate if necessary */
           
           if (parts[3].equals("addAggregate")) {
-            readAggregate(logFile, factory.buildIdFromToString(parts[4]));
+            readTextAggregate(logFile, factory.buildIdFromToString(parts[4]));
           }
         }
       }
@@ -235,32 +499,58 @@ public class AggregateList {
       System.exit(1);
     }
     
-    if (entriesReplayed > 0) {
-      writeToDisk();
-      if (logger.level <= Logger.WARNING) logger.log(
-          entriesReplayed+" entries replayed from aggregate log");
-    } 
+    return entriesReplayed;
   }
   
   public Id getRoot() {
     return rootKey;
   }
 
-  public void logEntry(String entry) {
+  /**
+   * Appends an entry to the log.  Each entry is [size][serial, time, type, key, 
+   * index, value, aggregate][crc].
+   * 
+   * @param key the aggregate the entry is about, or null
+   * @param adc the aggregate that was added, or null
+   */
+  protected void logEntry(byte type, Id key, int index, long value, AggregateDescriptor adc) {
     if (loggingEnabled) {
       if (logFile != null) {
-        logFile.println("$|"+(nextSerial++)+"|"+environment.getTimeSource().currentTimeMillis()+"|"+entry+"|@");
-        logFile.flush();
+        try {
+          entryBytes.reset();
+          entry.writeLong(nextSerial++);
+          entry.writeLong(environment.getTimeSource().currentTimeMillis());
+          entry.writeByte(type);
+          entry.writeBoolean(key != null);
+          if (key != null)
+            writeId(entry, key);
+          entry.writeInt(index);
+          entry.writeLong(value);
+          if (adc != null) 
+            writeAggregate(entry, adc);
+          entry.flush();
+          
+          CRC32 crc = new CRC32();
+          crc.update(entryBytes.toByteArray(), 0, entryBytes.size());
+          logFile.writeInt(entryBytes.size());
+          entryBytes.writeTo(logFile);
+          logFile.writeInt((int) crc.getValue());
+          logFile.flush();
+          entriesSinceSnapshot ++;
+        } catch (IOException ioe) {
+          if (logger.level <= Logger.WARNING) logger.logException(
+              "Aggregation cannot write to log: "+logFileName,ioe);
+        }
       } else {
         if (logger.level <= Logger.WARNING) logger.log(
-            "Aggregation cannot write to log: "+entry);
+            "Aggregation cannot write to log: type "+type+" "+key);
       }
     }
   }
 
   public void setRoot(Id root) {
     rootKey = root;
-    logEntry("setRoot|"+((root == null) ? "null" : root.toStringFull()));
+    logEntry(SET_ROOT, root, -1, 0, null);
   }
   
   public boolean isEmpty() {
@@ -268,6 +558,7 @@ public class AggregateList {
   }
   
   public void clear() {
+    logEntry(CLEAR, null, -1, 0, null);
     aggregateList.clear();
     rootKey = null;
   }
@@ -277,17 +568,17 @@ public class AggregateList {
   }
   
   public void setAggregateLifetime(AggregateDescriptor adc, long lifetime) {
-    logEntry("setAL|"+adc.key.toStringFull()+"|"+lifetime);
+    logEntry(SET_AGGREGATE_LIFETIME, adc.key, -1, lifetime, null);
     adc.currentLifetime = lifetime;
   }
   
   public void setObjectCurrentLifetime(AggregateDescriptor adc, int index, long lifetime) {
-    logEntry("setOCL|"+adc.key.toStringFull()+"|"+index+"|"+lifetime);
+    logEntry(SET_OBJECT_CURRENT_LIFETIME, adc.key, index, lifetime, null);
     adc.objects[index].currentLifetime = lifetime;
   }
 
   public void setObjectRefreshedLifetime(AggregateDescriptor adc, int index, long lifetime) {
-    logEntry("setORL|"+adc.key.toStringFull()+"|"+index+"|"+lifetime);
+    logEntry(SET_OBJECT_REFRESHED_LIFETIME, adc.key, index, lifetime, null);
     adc.objects[index].refreshedLifetime = lifetime;
   }
   
@@ -300,7 +591,7 @@ public class AggregateList {
   }
 
   public void refreshAggregate(AggregateDescriptor adc, long lifetime) {
-    logEntry("refresh|"+adc.key.toStringFull()+"|"+lifetime);
+    logEntry(REFRESH, adc.key, -1, lifetime, null);
     adc.currentLifetime = lifetime;
     for (int i=0; i<adc.objects.length; i++) 
       adc.objects[i].currentLifetime = adc.objects[i].refreshedLifetime;
@@ -311,11 +602,8 @@ public class AggregateList {
   }
   
   private void addAggregateDescriptor(AggregateDescriptor aggr, boolean logThis) {
-    if ((logFile != null) && logThis && loggingEnabled) {
-      logEntry("addAggregate|"+aggr.key.toStringFull());
-      writeAggregate(logFile, aggr);
-      logFile.flush();
-    }
+    if (logThis)
+      logEntry(ADD_AGGREGATE, aggr.key, -1, 0, aggr);
     
     aggregateList.put(aggr.key, aggr);
 
@@ -341,7 +629,7 @@ public class AggregateList {
 
   private void removeAggregateDescriptor(AggregateDescriptor aggr, boolean logThis) {
     if (logThis)
-      logEntry("removeAggregate|"+aggr.key.toStringFull());
+      logEntry(REMOVE_AGGREGATE, aggr.key, -1, 0, null);
     
     aggregateList.remove(aggr.key);
     
@@ -355,7 +643,14 @@ public class AggregateList {
         aggregateList.remove(aggr.objects[i].key);
     }
     
-    if (aggregateList.containsValue(aggr))
+    // aggr is only stored under its own keys, so there is no need to scan the whole list
+    boolean incomplete = (aggregateList.get(aggr.key) == aggr);
+    for (int i=0; i<aggr.objects.length; i++) 
+      if ((aggregateList.get(aggr.objects[i].key) == aggr) || 
+          (aggregateList.get(new VersionKey(aggr.objects[i].key, aggr.objects[i].version)) == aggr))
+        incomplete = true;
+    
+    if (incomplete)
       if (logger.level <= Logger.WARNING) logger.log(
           "Removal from aggregate list incomplete: "+aggr.key.toStringFull());
   }
@@ -398,7 +693,7 @@ public class AggregateList {
     }
   }
 
-  private AggregateDescriptor readAggregate(BufferedReader reader, Id aggrKey) throws AggregationException, IOException {
+  private AggregateDescriptor readTextAggregate(BufferedReader reader, Id aggrKey) throws AggregationException, IOException {
     String[] expiresS = readLineSkipComments(reader).split("=");
     if (!expiresS[0].equals("expires"))
       throw new AggregationException("Cannot find expiration date: "+expiresS[0]);
@@ -437,10 +732,120 @@ public class AggregateList {
     return new AggregateDescriptor(aggrKey, expires, objects, pointers);
   }
 
+  private void writeId(DataOutputStream out, Id id) throws IOException {
+    if (idBytes)
+      out.write(id.toByteArray());
+    else
+      out.writeUTF(id.toStringFull());
+  }
+  
+  private Id readId(DataInputStream in, boolean bytes, int length) throws IOException {
+    if (bytes) {
+      byte[] material = new byte[length];
+      in.readFully(material);
+      return factory.buildId(material);
+    } else {
+      return factory.buildIdFromToString(in.readUTF());
+    }
+  }
+  
+  private void writeAggregate(DataOutputStream out, AggregateDescriptor adc) throws IOException {
+    writeId(out, adc.key);
+    out.writeLong(adc.currentLifetime);
+    out.writeInt(adc.objects.length);
+    for (int i=0; i<adc.objects.length; i++) {
+      writeId(out, adc.objects[i].key);
+      out.writeLong(adc.objects[i].version);
+      out.writeLong(adc.objects[i].currentLifetime);
+      out.writeLong(adc.objects[i].refreshedLifetime);
+      out.writeInt(adc.objects[i].size);
+    }
+    out.writeInt(adc.pointers.length);
+    for (int i=0; i<adc.pointers.length; i++)
+      writeId(out, adc.pointers[i]);
+  }
+  
+  private AggregateDescriptor readAggregate(DataInputStream in, boolean bytes, int length) throws IOException {
+    Id key = readId(in, bytes, length);
+    long expires = in.readLong();
+    ObjectDescriptor[] objects = new ObjectDescriptor[in.readInt()];
+    for (int i=0; i<objects.length; i++) 
+      objects[i] = new ObjectDescriptor(readId(in, bytes, length), in.readLong(), in.readLong(), in.readLong(), in.readInt());
+    Id[] pointers = new Id[in.readInt()];
+    for (int i=0; i<pointers.length; i++)
+      pointers[i] = readId(in, bytes, length);
+    return new AggregateDescriptor(key, expires, objects, pointers);
+  }
+
+  /**
+   * Reads the snapshot, or the text format if there is no snapshot.  The log is 
+   * replayed separately, by recoverLog().
+   */
   public boolean readFromDisk() {
     rootKey = null;
     aggregateList.clear();
   
+    String fileName;
+    if ((new File(snapshotFileName)).exists())
+      fileName = snapshotFileName;
+    else if ((new File(snapshotFileName + ".new")).exists())
+      fileName = snapshotFileName + ".new";
+    else 
+      return readText();
+    
+    boolean readSuccessful = false;
+    
+    try {
+      // read it all first, to check the checksum at the end
+      File file = new File(fileName);
+      byte[] data = new byte[(int) file.length()];
+      DataInputStream in = new DataInputStream(new FileInputStream(file));
+      try {
+        in.readFully(data);
+      } finally {
+        in.close();
+      }
+      
+      if (data.length < 8)
+        throw new AggregationException("Truncated snapshot "+fileName);
+      CRC32 crc = new CRC32();
+      crc.update(data, 0, data.length - 8);
+      in = new DataInputStream(new ByteArrayInputStream(data));
+      in.skip(data.length - 8);
+      if (in.readLong() != crc.getValue())
+        throw new AggregationException("Checksum mismatch in "+fileName);
+      
+      in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 8));
+      byte version = in.readByte();
+      if (version != SNAPSHOT_VERSION)
+        throw new AggregationException("Unknown snapshot version "+version);
+      boolean bytes = in.readBoolean();
+      int length = in.readInt();
+      nextSerial = in.readLong();
+      rootKey = readId(in, bytes, length);
+      
+      int numAggregates = in.readInt();
+      for (int i=0; i<numAggregates; i++) 
+        addAggregateDescriptor(readAggregate(in, bytes, length), false);
+      
+      readSuccessful = true;
+    } catch (Exception e) {
+      if (logger.level <= Logger.WARNING) logger.logException(
+          "Cannot read aggregate snapshot: "+fileName+" (e="+e+")",e);
+    }
+    
+    if (!readSuccessful) {
+      rootKey = null;
+      aggregateList.clear();
+    }
+    
+    return readSuccessful;
+  }
+
+  /**
+   * Reads the text format of older versions.
+   */
+  private boolean readText() {
     String fileName;
     if ((new File(configFileName)).exists())
       fileName = configFileName;
@@ -449,6 +854,8 @@ public class AggregateList {
     else {
       return false;
     }
+    
+    textFiles = true;
 
     BufferedReader configFile = null;
     boolean readSuccessful = false;
@@ -474,7 +881,7 @@ public class AggregateList {
 
         String[] aggrKeyS = aggrKeyLine.split("\\[|\\]");
         Id aggrKey = factory.buildIdFromToString(aggrKeyS[1]);
-        AggregateDescriptor adc = readAggregate(configFile, aggrKey);
+        AggregateDescriptor adc = readTextAggregate(configFile, aggrKey);
 
         addAggregateDescriptor(adc, false);
       }
@@ -514,39 +921,94 @@ public class AggregateList {
       stream.println("ptr"+i+"="+adc.pointers[i].toStringFull());
   }
 
+  /**
+   * Makes sure the changes to the list will survive a restart.  With the log 
+   * enabled, they are already in the log, and this only writes a new snapshot 
+   * once the log is as long as the list.
+   */
   public void writeToDisk() {
+    if (loggingEnabled && (logFile != null) && (entriesSinceSnapshot < Math.max(snapshotEntries, aggregateList.size())))
+      return;
+    
+    writeSnapshot();
+  }
+  
+  /**
+   * Writes the whole list to a new snapshot, and starts a new log.
+   */
+  public void writeSnapshot() {
     if (rootKey == null)
       return;
   
     try {
-      PrintStream configFile = new PrintStream(new FileOutputStream(configFileName + ".new"));
+      CheckedOutputStream checked = new CheckedOutputStream(new FileOutputStream(snapshotFileName + ".new"), new CRC32());
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(checked, 65536));
+      
+      Vector aggregates = new Vector();
       Enumeration enumeration = aggregateList.elements();
-
       resetMarkers();
-      configFile.println("# Aggregate list at " + label + " (" + (new Date()) + ")");
-      configFile.println();
-      configFile.println("nextid="+nextSerial);
-      configFile.println("root="+rootKey.toStringFull());
-      configFile.println();
-      
       while (enumeration.hasMoreElements()) {
         AggregateDescriptor aggr = (AggregateDescriptor) enumeration.nextElement();
         if (!aggr.marker) {
-          configFile.println("["+aggr.key.toStringFull()+"]");
-          writeAggregate(configFile, aggr);
-          configFile.println("");
-
+          aggregates.add(aggr);
           aggr.marker = true;
         }
       }
-
-      configFile.close();
-      (new File(configFileName)).delete();
-      (new File(configFileName + ".new")).renameTo(new File(configFileName));
+      
+      out.writeByte(SNAPSHOT_VERSION);
+      out.writeBoolean(idBytes);
+      out.writeInt(idLength);
+      out.writeLong(nextSerial);
+      writeId(out, rootKey);
+      out.writeInt(aggregates.size());
+      for (int i=0; i<aggregates.size(); i++)
+        writeAggregate(out, (AggregateDescriptor) aggregates.elementAt(i));
+      out.flush();
+      out.writeLong(checked.getChecksum().getValue());
+      out.close();
+      
+      (new File(snapshotFileName)).delete();
+      (new File(snapshotFileName + ".new")).renameTo(new File(snapshotFileName));
+      
+      // the snapshot has every entry so far, so start a new log
+      if (loggingEnabled)
+        openLog(true);
+      
+      if (textFiles) {
+        (new File(configFileName)).renameTo(new File(configFileName + ".old"));
+        (new File(textLogFileName)).renameTo(new File(textLogFileName + ".old"));
+        textFiles = false;
+      }
     } catch (IOException ioe) {
       if (logger.level <= Logger.WARNING) logger.logException(
-          "AggregationImpl cannot write to its aggregate list: " + configFileName + " (" + ioe + ")",ioe);
+          "AggregationImpl cannot write to its aggregate list: " + snapshotFileName + " (" + ioe + ")",ioe);
+    }
+  }
+
+  /**
+   * Writes the list in the text format of older versions.
+   */
+  public void exportText(PrintStream configFile) {
+    Enumeration enumeration = aggregateList.elements();
+
+    resetMarkers();
+    configFile.println("# Aggregate list at " + label + " (" + (new Date()) + ")");
+    configFile.println();
+    configFile.println("nextid="+nextSerial);
+    configFile.println("root="+((rootKey == null) ? "null" : rootKey.toStringFull()));
+    configFile.println();
+    
+    while (enumeration.hasMoreElements()) {
+      AggregateDescriptor aggr = (AggregateDescriptor) enumeration.nextElement();
+      if (!aggr.marker) {
+        configFile.println("["+aggr.key.toStringFull()+"]");
+        writeAggregate(configFile, aggr);
+        configFile.println("");
+
+        aggr.marker = true;
+      }
     }
+    configFile.flush();
   }
 
   public Id[] getSomePointers(int referenceThreshold, int max, Id[] excludes) {
@@ -0,0 +1,88 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.aggregation;
+
+import java.io.*;
+
+import rice.environment.Environment;
+import rice.p2p.commonapi.IdFactory;
+import rice.p2p.multiring.MultiringIdFactory;
+import rice.pastry.commonapi.PastryIdFactory;
+
+/**
+ * Writes an aggregate list (its snapshot and log) in the text format of older 
+ * versions, to look at or to edit by hand.  A list written with a MultiringIdFactory, 
+ * as POST does, needs -multiring.
+ * 
+ * Usage: AggregateListExport [-multiring] configFileName [output file]
+ *
+ * @version $Id$
+ * 
+ * @author agent
+ */
+public class AggregateListExport {
+  
+  public static void main(String[] args) throws IOException {
+    boolean multiring = false;
+    int i = 0;
+    if ((args.length > 0) && args[0].equals("-multiring")) {
+      multiring = true;
+      i++;
+    }
+    
+    if (args.length <= i) {
+      System.err.println("Usage: AggregateListExport [-multiring] configFileName [output file]");
+      System.exit(1);
+    }
+    
+    Environment env = new Environment();
+    IdFactory factory = new PastryIdFactory(env);
+    if (multiring) 
+      factory = new MultiringIdFactory(factory.buildId(new byte[0]), factory);
+    
+    AggregateList list = new AggregateList(args[i], "export", factory, true, null, env);
+    if (!list.readOK())
+      System.err.println("Warning: could not read the snapshot of "+args[i]+", exporting the log only");
+    
+    PrintStream out = (args.length > i+1) ? new PrintStream(new FileOutputStream(args[i+1])) : System.out;
+    list.exportText(out);
+    if (out != System.out)
+      out.close();
+    
+    env.destroy();
+  }
+}
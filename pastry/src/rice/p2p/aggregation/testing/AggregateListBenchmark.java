@@ -0,0 +1,235 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.aggregation.testing;
+
+import java.io.*;
+import java.util.*;
+
+import rice.environment.Environment;
+import rice.environment.random.RandomSource;
+import rice.p2p.aggregation.*;
+import rice.p2p.commonapi.*;
+import rice.pastry.commonapi.PastryIdFactory;
+
+/**
+ * Measures the cost of keeping an AggregateList on disk as it grows, and checks 
+ * that it is recovered correctly.  For each size, builds a list of that many 
+ * aggregates, then makes changes to it, calling writeToDisk() after each one, as 
+ * AggregationImpl does.  Prints the time per change, and the time to rewrite the 
+ * whole list in the text format, which is what each writeToDisk() used to cost.  Then 
+ * restarts from the snapshot and log, and from the text format, and prints the time 
+ * each takes.  Checks that the restarted list is the same, also after the log is 
+ * torn in the middle of an entry.
+ * 
+ * Usage: AggregateListBenchmark [-sizes 1000,10000,100000] [-changes c]
+ *
+ * @version $Id$
+ * 
+ * @author agent
+ */
+public class AggregateListBenchmark {
+  public static final int OBJECTS_PER_AGGREGATE = 10;
+  public static final int POINTERS_PER_AGGREGATE = 2;
+  
+  Environment env;
+  IdFactory factory;
+  RandomSource rng;
+  File dir;
+  int failures = 0;
+  
+  public AggregateListBenchmark(Environment env) throws IOException {
+    this.env = env;
+    this.factory = new PastryIdFactory(env);
+    this.rng = env.getRandomSource();
+    this.dir = File.createTempFile("aggregates", "");
+    dir.delete();
+    dir.mkdir();
+  }
+  
+  public void check(boolean condition, String message) {
+    if (!condition) {
+      failures++;
+      System.out.println("ALERT: " + message);
+    }
+  }
+  
+  private AggregateDescriptor randomAggregate(Vector<Id> keys) {
+    long now = env.getTimeSource().currentTimeMillis();
+    ObjectDescriptor[] objects = new ObjectDescriptor[OBJECTS_PER_AGGREGATE];
+    for (int i = 0; i < objects.length; i++) 
+      objects[i] = new ObjectDescriptor(factory.buildRandomId(rng), rng.nextInt(5), now + rng.nextInt(1000000), now + rng.nextInt(1000000), rng.nextInt(100000));
+    Id[] pointers = new Id[keys.isEmpty() ? 0 : POINTERS_PER_AGGREGATE];
+    for (int i = 0; i < pointers.length; i++) 
+      pointers[i] = keys.get(rng.nextInt(keys.size()));
+    return new AggregateDescriptor(factory.buildRandomId(rng), now + rng.nextInt(1000000), objects, pointers);
+  }
+  
+  /**
+   * @return the list in the text format, without the first line, which has the date
+   */
+  private String export(AggregateList list) {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    list.exportText(new PrintStream(baos));
+    String text = baos.toString();
+    return text.substring(text.indexOf('\n'));
+  }
+  
+  /**
+   * Collects the text format of the aggregates, sorted, as the order of the list depends on 
+   * the hashtable.
+   */
+  private String sortedExport(AggregateList list) {
+    String[] parts = export(list).split("\n\\[");
+    Arrays.sort(parts);
+    StringBuffer result = new StringBuffer();
+    for (int i = 0; i < parts.length; i++)
+      result.append(parts[i]).append('\n');
+    return result.toString();
+  }
+  
+  public void run(int size, int changes) throws Exception {
+    String name = new File(dir, "list" + size).getPath();
+    AggregateList list = new AggregateList(name, "benchmark", factory, true, null, env);
+    Vector<Id> keys = new Vector<Id>();
+    for (int i = 0; i < size; i++) {
+      AggregateDescriptor adc = randomAggregate(keys);
+      list.addAggregateDescriptor(adc);
+      keys.add(adc.key);
+    }
+    list.setRoot(keys.get(0));
+    list.writeSnapshot();
+    
+    // changes, as AggregationImpl makes them
+    long start = System.nanoTime();
+    for (int i = 0; i < changes; i++) {
+      AggregateDescriptor adc = list.getADC(keys.get(rng.nextInt(keys.size())));
+      switch (i % 4) {
+        case 0:
+          list.refreshAggregate(adc, adc.currentLifetime + 1000);
+          break;
+        case 1:
+          list.setObjectRefreshedLifetime(adc, rng.nextInt(adc.objects.length), adc.currentLifetime + 2000);
+          break;
+        case 2:
+          list.removeAggregateDescriptor(adc);
+          keys.remove(adc.key);
+          break;
+        case 3:
+          adc = randomAggregate(keys);
+          list.addAggregateDescriptor(adc);
+          keys.add(adc.key);
+          list.setRoot(adc.key);
+          break;
+      }
+      list.writeToDisk();
+    }
+    long changeTime = System.nanoTime() - start;
+    
+    // what each writeToDisk() used to do
+    String textName = new File(dir, "text" + size).getPath();
+    start = System.nanoTime();
+    PrintStream text = new PrintStream(new BufferedOutputStream(new FileOutputStream(textName)));
+    list.exportText(text);
+    text.close();
+    long textTime = System.nanoTime() - start;
+    
+    String expected = sortedExport(list);
+    long snapshotBytes = new File(name + ".bin").length();
+    long logBytes = new File(name + ".wal").length();
+    list = null;
+    
+    // restart, without a final snapshot
+    start = System.nanoTime();
+    AggregateList restarted = new AggregateList(name, "benchmark", factory, true, null, env);
+    long restartTime = System.nanoTime() - start;
+    check(restarted.readOK(), "snapshot of " + size + " not read");
+    check(expected.equals(sortedExport(restarted)), "restarted list of " + size + " differs");
+    
+    start = System.nanoTime();
+    AggregateList textList = new AggregateList(textName, "benchmark", factory, false, null, env);
+    long textRestartTime = System.nanoTime() - start;
+    check(expected.equals(sortedExport(textList)), "text list of " + size + " differs");
+    textList = null;
+    
+    // an entry torn by a crash is dropped, and the log can be appended to again
+    restarted.setAggregateLifetime(restarted.getADC(keys.get(0)), 12345);
+    expected = sortedExport(restarted);
+    restarted.setAggregateLifetime(restarted.getADC(keys.get(0)), 67890);
+    restarted = null;
+    RandomAccessFile raf = new RandomAccessFile(name + ".wal", "rw");
+    raf.setLength(raf.length() - 3);
+    raf.close();
+    AggregateList torn = new AggregateList(name, "benchmark", factory, true, null, env);
+    check(expected.equals(sortedExport(torn)), "list of " + size + " with a torn log differs");
+    torn.setAggregateLifetime(torn.getADC(keys.get(1)), 11111);
+    expected = sortedExport(torn);
+    check(expected.equals(sortedExport(new AggregateList(name, "benchmark", factory, true, null, env))), 
+        "list of " + size + " appended after a torn log differs");
+    
+    System.out.println(size + " aggregates: " + (changeTime / changes / 1000) + "us per change, text rewrite " + 
+        (textTime / 1000000) + "ms; restart " + (restartTime / 1000000) + "ms from " + (snapshotBytes / 1024) + "KB snapshot + " + 
+        (logBytes / 1024) + "KB log, " + (textRestartTime / 1000000) + "ms from " + (new File(textName).length() / 1024) + "KB text");
+  }
+  
+  private void delete(File file) {
+    File[] files = file.listFiles();
+    if (files != null)
+      for (int i = 0; i < files.length; i++)
+        delete(files[i]);
+    file.delete();
+  }
+  
+  public static void main(String[] args) throws Exception {
+    String sizes = "1000,10000,100000";
+    int changes = 2000;
+    
+    for (int i = 0; i + 1 < args.length; i++) {
+      if (args[i].equals("-sizes")) sizes = args[++i];
+      else if (args[i].equals("-changes")) changes = Integer.parseInt(args[++i]);
+    }
+    
+    Environment env = new Environment();
+    AggregateListBenchmark bench = new AggregateListBenchmark(env);
+    String[] s = sizes.split(",");
+    for (int i = 0; i < s.length; i++)
+      bench.run(Integer.parseInt(s[i]), changes);
+    bench.delete(bench.dir);
+    env.destroy();
+    
+    System.out.println(bench.failures == 0 ? "AggregateListBenchmark passed" : "AggregateListBenchmark failed " + bench.failures + " checks");
+  }
+}
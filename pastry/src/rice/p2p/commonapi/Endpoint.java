@@ -40,6 +40,7 @@ package rice.p2p.commonapi;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 import org.mpisws.p2p.transport.MessageCallback;
 import org.mpisws.p2p.transport.MessageRequestHandle;
@@ -363,6 +364,19 @@ public interface Endpoint extends NodeHandleReader {
    * @param options
    */
   public void setSendOptions(Map<String, Object> options);
+  
+  /**
+   * Calls the application's deliver() on this executor, rather than on the selector
+   * thread, so that slow or blocking applications don't hold up the rest of the node.
+   * 
+   * Only use this if your deliver() is thread-safe: messages may be delivered 
+   * concurrently, and in a different order than they arrived.  forward() and update()
+   * are still called on the selector thread, and messages which are delivered before
+   * the executor is set (or after it is set to null) are delivered on the selector.
+   * 
+   * @param executor the executor to deliver on, or null for the selector thread (the default)
+   */
+  public void setDeliveryExecutor(Executor executor);
 }
 
 
@@ -41,6 +41,7 @@ import rice.*;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Executor;
 
 import org.mpisws.p2p.transport.MessageCallback;
 import org.mpisws.p2p.transport.MessageRequestHandle;
@@ -460,9 +461,10 @@ public class MultiringEndpoint implements Endpoint {
     endpoint.setSendOptions(options);
   }
 
-
+  public void setDeliveryExecutor(Executor executor) {
+    endpoint.setDeliveryExecutor(executor);
+  }
 }
 
 
 
-
@@ -0,0 +1,79 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+
+package rice.p2p.past;
+
+import rice.*;
+
+/**
+ * @(#) BulkContinuation.java
+ * 
+ * Continuation used by the bulk operations of PastImpl.  As with the
+ * per-object operations, the final result is passed to receiveResult(),
+ * here as an Object[] which is the same length as the input array.  Each
+ * element in the array is the result for the cooresponding key, or an
+ * Exception describing why the operation failed for that key.
+ *
+ * In addition, the result for each key is passed to receivePartialResult()
+ * or receivePartialException() as soon as it is known, so that applications
+ * can process the results as they stream in.  Each key is reported exactly
+ * once, and all partial results are reported before receiveResult() is
+ * called.
+ *
+ * @version $Id$
+ * @author agent
+ */
+@SuppressWarnings("unchecked")
+public interface BulkContinuation extends Continuation {
+
+  /**
+   * Called when the result for a single key is known.
+   *
+   * @param index The index of the key in the input array
+   * @param o The result for the key
+   */
+  public void receivePartialResult(int index, Object o);
+
+  /**
+   * Called when the operation for a single key has failed.
+   *
+   * @param index The index of the key in the input array
+   * @param e The exception describing the failure
+   */
+  public void receivePartialException(int index, Exception e);
+
+}
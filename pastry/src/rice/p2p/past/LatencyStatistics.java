@@ -0,0 +1,165 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+
+package rice.p2p.past;
+
+import java.util.*;
+
+/**
+ * @(#) LatencyStatistics.java
+ * 
+ * This class keeps the response latency statistics of a single replica, as
+ * observed by the hedged lookups of PastImpl.  It keeps a smoothed average
+ * of the latency (in the same manner as TCP's smoothed RTT), as well as the
+ * last SAMPLES latencies, from which percentiles are computed.
+ *
+ * @version $Id$
+ * @author agent
+ */
+public class LatencyStatistics {
+  
+  /**
+   * The number of samples which are kept for the percentiles
+   */
+  public static final int SAMPLES = 64;
+  
+  // the weight of a new sample in the smoothed average
+  protected static final double ALPHA = 0.125;
+  
+  // the most recent samples, used as a ring buffer
+  protected long[] samples;
+  
+  // the next position in the ring buffer
+  protected int next;
+  
+  // the total number of samples
+  protected int numSamples;
+  
+  // the total number of failed requests
+  protected int numFailures;
+  
+  // the smoothed average latency
+  protected double average;
+  
+  /**
+   * Constructor
+   */
+  public LatencyStatistics() {
+    this.samples = new long[SAMPLES];
+  }
+  
+  /**
+   * Records the latency of a request which returned
+   *
+   * @param latency The latency, in milliseconds
+   */
+  public synchronized void addSample(long latency) {
+    if (numSamples == 0)
+      average = latency;
+    else
+      average += ALPHA * (latency - average);
+    
+    samples[next] = latency;
+    next = (next + 1) % samples.length;
+    numSamples++;
+  }
+  
+  /**
+   * Records a request which failed or timed out
+   */
+  public synchronized void addFailure() {
+    numFailures++;
+  }
+  
+  /**
+   * Returns the given percentile of the recent samples, or -1 if there are
+   * no samples.
+   *
+   * @param percentile The percentile, between 0 and 1
+   * @return The latency at the percentile
+   */
+  public synchronized long getPercentile(double percentile) {
+    int num = Math.min(numSamples, samples.length);
+    
+    if (num == 0)
+      return -1;
+    
+    long[] sorted = new long[num];
+    System.arraycopy(samples, 0, sorted, 0, num);
+    Arrays.sort(sorted);
+    
+    int index = (int) Math.ceil(percentile * num) - 1;
+    return sorted[Math.max(0, Math.min(num - 1, index))];
+  }
+  
+  /**
+   * Returns the smoothed average latency, or -1 if there are no samples
+   *
+   * @return The average latency
+   */
+  public synchronized double getAverage() {
+    return (numSamples == 0 ? -1 : average);
+  }
+  
+  /**
+   * Returns the total number of latency samples
+   *
+   * @return The number of samples
+   */
+  public synchronized int getNumSamples() {
+    return numSamples;
+  }
+  
+  /**
+   * Returns the total number of failed requests
+   *
+   * @return The number of failures
+   */
+  public synchronized int getNumFailures() {
+    return numFailures;
+  }
+  
+  /**
+   * Returns a string representation of these statistics
+   *
+   * @return A string
+   */
+  public synchronized String toString() {
+    return "[LatencyStatistics samples=" + numSamples + " failures=" + numFailures + " avg=" + (long) getAverage() + 
+      " p50=" + getPercentile(0.5) + " p95=" + getPercentile(0.95) + "]";
+  }
+}
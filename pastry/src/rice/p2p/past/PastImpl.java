@@ -55,6 +55,7 @@ import rice.p2p.past.messaging.*;
 import rice.p2p.past.rawserialization.*;
 import rice.p2p.replication.*;
 import rice.p2p.replication.manager.*;
+import rice.p2p.util.AppSocketPool;
 import rice.p2p.util.MathUtils;
 import rice.p2p.util.rawserialization.*;
 import rice.persistence.*;
@@ -70,7 +71,7 @@ import rice.persistence.*;
  * @author Peter Druschel
  */
 @SuppressWarnings("unchecked")
-public class PastImpl implements Past, Application, ReplicationManagerClient {
+public class PastImpl implements Past, Application, ReplicationManagerBatchClient {
   
   
   // ----- STATIC FIELDS -----
@@ -80,6 +81,25 @@ public class PastImpl implements Past, Application, ReplicationManagerClient {
   // the percentage of successful replica inserts in order to declare success
   public final double SUCCESSFUL_INSERT_THRESHOLD;// = 0.5;
   
+  // the maximum number of keys or objects to put in a single bulk message
+  public final int BULK_BATCH_SIZE;// = 64;
+  
+  // the percentile of a replica's latency after which a hedged lookup asks the next replica
+  public final double HEDGE_PERCENTILE;// = 0.95;
+  
+  // the minimum and default number of milliseconds to wait before hedging
+  public final int HEDGE_MIN_DELAY;// = 20;
+  public final int HEDGE_DEFAULT_DELAY;// = 1000;
+  
+  // the number of latency samples required before the percentile is used
+  public static final int HEDGE_MIN_SAMPLES = 10;
+  
+  // the maximum number of replicas to keep latency statistics for
+  public static final int MAX_REPLICA_STATISTICS = 1024;
+  
+  // whether objects sent along sockets share one pooled socket per replica
+  public boolean USE_SOCKET_POOL;// = true;
+  
 
   // ----- VARIABLE FIELDS -----
 
@@ -103,6 +123,9 @@ public class PastImpl implements Past, Application, ReplicationManagerClient {
   
   protected LockManager lockManager;
   
+  // the sockets used to send objects, reads the objects sent to us either way
+  protected AppSocketPool socketPool;
+  
   // the policy used for application-specific behavior
   protected PastPolicy policy;
 
@@ -126,6 +149,13 @@ public class PastImpl implements Past, Application, ReplicationManagerClient {
   public int lookups = 0;
   public int fetchHandles = 0;
   public int other = 0;
+  public int hedgedRequests = 0;
+  
+  // the latency statistics of the replicas used by hedged lookups, NodeHandle -> LatencyStatistics
+  protected Hashtable replicaStatistics;
+  
+  // the latency statistics over all replicas
+  protected LatencyStatistics allReplicaStatistics;
   
   protected Environment environment;
   protected Logger logger;
@@ -177,6 +207,12 @@ public class PastImpl implements Past, Application, ReplicationManagerClient {
             return LookupHandlesMessage.build(buf, endpoint);
           case LookupMessage.TYPE:
             return LookupMessage.build(buf, endpoint, contentDeserializer);
+          case BulkLookupHandlesMessage.TYPE:
+            return BulkLookupHandlesMessage.build(buf, endpoint);
+          case BulkLookupMessage.TYPE:
+            return BulkLookupMessage.build(buf, endpoint, contentDeserializer);
+          case BulkInsertMessage.TYPE:
+            return BulkInsertMessage.build(buf, endpoint, contentDeserializer);
         }
       } catch (IOException e) {
         if (logger.level <= Logger.SEVERE) logger.log("Exception in deserializer in "+PastImpl.this.endpoint.toString()+":"+instance+" "+e);
@@ -218,6 +254,11 @@ public class PastImpl implements Past, Application, ReplicationManagerClient {
     Parameters p = environment.getParameters();
     MESSAGE_TIMEOUT = p.getInt("p2p_past_messageTimeout");// = 30000;
     SUCCESSFUL_INSERT_THRESHOLD = p.getDouble("p2p_past_successfulInsertThreshold");// = 0.5;
+    BULK_BATCH_SIZE = p.getInt("p2p_past_bulkBatchSize");// = 64;
+    HEDGE_PERCENTILE = p.getDouble("p2p_past_hedgePercentile");// = 0.95;
+    HEDGE_MIN_DELAY = p.getInt("p2p_past_hedgeMinDelay");// = 20;
+    HEDGE_DEFAULT_DELAY = p.getInt("p2p_past_hedgeDefaultDelay");// = 1000;
+    USE_SOCKET_POOL = p.contains("p2p_past_socketPool") && p.getBoolean("p2p_past_socketPool");
     this.socketStrategy = strategy;
     this.storage = manager;
     this.backup = backup;
@@ -233,6 +274,8 @@ public class PastImpl implements Past, Application, ReplicationManagerClient {
     this.id = Integer.MIN_VALUE;
     this.outstanding = new Hashtable();
     this.timers = new Hashtable();
+    this.replicaStatistics = new Hashtable();
+    this.allReplicaStatistics = new LatencyStatistics();
     this.replicationFactor = replicas;
     
     //   log.addHandler(new ConsoleHandler());
@@ -243,90 +286,20 @@ public class PastImpl implements Past, Application, ReplicationManagerClient {
     
     this.lockManager = new LockManagerImpl(environment);
     
-    this.endpoint.accept(new AppSocketReceiver() {
-      
-      public void receiveSocket(AppSocket socket) {
-        if (logger.level <= Logger.FINE) logger.log("Received Socket from "+socket);
-        socket.register(true, false, 10000, this);
-        endpoint.accept(this);
-      }    
-      
-      public void receiveSelectResult(AppSocket socket, boolean canRead,
-          boolean canWrite) {        
-        if (logger.level <= Logger.FINER) logger.log("Reading from "+socket);
-        try {
-          ByteBuffer[] bb = (ByteBuffer[])pendingSocketTransactions.get(socket);
-          if (bb == null) {
-            // this is a new message
-            
-            // read the size
-            bb = new ByteBuffer[1];
-            bb[0] = ByteBuffer.allocate(4);
-            if (socket.read(bb,0,1) == -1) {
-              close(socket);
-              return;
-            }
-            
-            // TODO: need to handle the condition where we don't read the whole size...          
-            byte[] sizeArr = bb[0].array();            
-            int size = MathUtils.byteArrayToInt(sizeArr);
-                        
-            if (logger.level <= Logger.FINER) logger.log("Found object of size "+size+" from "+socket);
-            
-            // allocate a buffer to store the object, save it in the pst
-            bb[0] = ByteBuffer.allocate(size);
-            pendingSocketTransactions.put(socket,bb);
-          }
-          
-          // now we have a bb
-          
-          // read some bytes
-          if (socket.read(bb,0,1) == -1) {
-            close(socket);
-          }
-          
-          // deserialize or reregister
-          if (bb[0].remaining() == 0) {
-            // make sure to clear things up so we can keep receiving          
-            pendingSocketTransactions.remove(socket);
-            
-            if (logger.level <= Logger.FINEST) logger.log("bb[0].limit() "+bb[0].limit()+" bb[0].remaining() "+bb[0].remaining()+" from "+socket);
-            
-            // deserialize the object
-            SimpleInputBuffer sib = new SimpleInputBuffer(bb[0].array());
-            
-            short type = sib.readShort();
-            
-            PastMessage result = (PastMessage)endpoint.getDeserializer().deserialize(sib,type,(byte)0,null);
-            deliver(null,result);
-            
-          } 
-            
-          // there will be more data on the socket if we haven't received everything yet
-          // need to register either way to be able to read from the sockets when they are closed remotely, could alternatively close early
-          // cause we are currently only sending 1 message per socket, but it's better to just keep reading in case we one day reuse sockets
-            socket.register(true, false, 10000, this);
-
-            // recursive call to handle next object
-            // cant do this becasue calling read when not ready throws an exception
-//          receiveSelectResult(socket, canRead, canWrite);        
-        } catch (IOException ioe) {
-          receiveException(socket, ioe);
-        }
-      }
-
-      public void receiveException(AppSocket socket, Exception e) {
-        if (logger.level <= Logger.WARNING) logger.logException("Error receiving message",e);
-        close(socket);
-      }
-    
-      public void close(AppSocket socket) {
-        if (socket == null) return;
-        //System.out.println("Closing "+socket);
-        pendingSocketTransactions.remove(socket); 
-        socket.close();
+    int idleTimeout = p.contains("p2p_past_socketPool_idleTimeout") ? p.getInt("p2p_past_socketPool_idleTimeout") : 30000;
+    int maxQueueBytes = p.contains("p2p_past_socketPool_maxQueueBytes") ? p.getInt("p2p_past_socketPool_maxQueueBytes") : 16777216;
+    this.socketPool = new AppSocketPool(endpoint, maxQueueBytes, idleTimeout, 10000);
+    this.socketPool.accept(new AppSocketPool.FrameReceiver() {
+      public void receiveFrame(AppSocket socket, ByteBuffer frame) throws IOException {
+        if (logger.level <= Logger.FINEST) logger.log("Received object of size "+frame.remaining()+" from "+socket);
+        
+        // deserialize the object
+        SimpleInputBuffer sib = new SimpleInputBuffer(frame.array(), frame.position());            
+        short type = sib.readShort();
+        
+        PastMessage result = (PastMessage)endpoint.getDeserializer().deserialize(sib,type,(byte)0,null);
+        deliver(null,result);
       }
-      
     });
     endpoint.register();
   }
@@ -429,12 +402,10 @@ public class PastImpl implements Past, Application, ReplicationManagerClient {
   }
   
   /**
-   * AppSocket -> ByteBuffer[]
+   * Sends m to handle on the pooled socket if USE_SOCKET_POOL, otherwise on a new socket.
    * 
-   * Used for receiving the objects.
+   * @param c the continuation waiting for the response, null if m is a response
    */
-  WeakHashMap pendingSocketTransactions = new WeakHashMap();
-  
   private void sendViaSocket(final NodeHandle handle, final PastMessage m, final Continuation c) {
     if (c != null) {
       CancellableTask timer = endpoint.scheduleMessage(new MessageLostMessage(m.getUID(), getLocalNodeHandle(), null, m, handle), MESSAGE_TIMEOUT);
@@ -449,6 +420,7 @@ public class PastImpl implements Past, Application, ReplicationManagerClient {
       m.serialize(sob);
     } catch (IOException ioe) {
       if (c != null) c.receiveException(ioe); 
+      return;
     }
     
     // add the size back to the beginning...
@@ -457,6 +429,25 @@ public class PastImpl implements Past, Application, ReplicationManagerClient {
     byte[] bytes = sob.getBytes();
     MathUtils.intToByteArray(size,bytes,0);
     
+    if (USE_SOCKET_POOL) {
+      // the pool writes the size
+      socketPool.send(handle, ByteBuffer.wrap(bytes, 4, size), new Continuation<Object, Exception>() {
+        public void receiveResult(Object result) {
+          if (logger.level <= Logger.FINEST) logger.log("Sent "+m+" to "+handle);
+        }
+      
+        public void receiveException(Exception e) {
+          if (c != null) {
+            removePending(m.getUID());
+            c.receiveException(e);
+          } else {
+            if (logger.level <= Logger.WARNING) logger.logException("Error sending "+m,e);
+          }
+        }
+      });
+      return;
+    }
+    
     // prepare the bytes for writing
     final ByteBuffer[] bb = new ByteBuffer[1];
     bb[0] = ByteBuffer.wrap(bytes, 0, sob.getWritten()); // the whole thing
@@ -663,34 +654,7 @@ public class PastImpl implements Past, Application, ReplicationManagerClient {
         
         // then we send inserts to each replica and wait for at least
         // threshold * num to return successfully
-        MultiContinuation multi = new MultiContinuation(parent, replicas.size()) {
-          public boolean isDone() throws Exception {
-            int numSuccess = 0;
-            for (int i=0; i<haveResult.length; i++) 
-              if ((haveResult[i]) && (Boolean.TRUE.equals(result[i])))  
-                numSuccess++;
-            
-            if (numSuccess >= (SUCCESSFUL_INSERT_THRESHOLD * haveResult.length)) 
-              return true;
-            
-            if (super.isDone()) {
-              for (int i=0; i<result.length; i++) 
-                if (result[i] instanceof Exception)
-                  if (logger.level <= Logger.WARNING) logger.logException("result["+i+"]:",(Exception)result[i]);
-              
-              throw new PastException("Had only " +  numSuccess + " successful inserts out of " + result.length + " - aborting.");
-            }
-            return false;
-          }
-          
-          public Object getResult() {
-            Boolean[] b = new Boolean[result.length];
-            for (int i=0; i<b.length; i++)
-              b[i] = new Boolean((result[i] == null) || Boolean.TRUE.equals(result[i]));
-            
-            return b;
-          }
-        };
+        MultiContinuation multi = new InsertMultiContinuation(parent, replicas.size());
         
         for (int i=0; i<replicas.size(); i++) {
           NodeHandle handle = replicas.getHandle(i);
@@ -707,6 +671,52 @@ public class PastImpl implements Past, Application, ReplicationManagerClient {
   }
   
   
+  /**
+   * Internal class which collects the responses from the replicas of a single
+   * insert, and determines whether enough of them have succeeded.  The result
+   * is the Boolean[] of the replica responses, or a PastException if fewer than
+   * SUCCESSFUL_INSERT_THRESHOLD of the replicas stored the object.
+   */
+  protected class InsertMultiContinuation extends MultiContinuation {
+    
+    /**
+     * Constructor
+     *
+     * @param parent The parent continuation
+     * @param num The number of replicas
+     */
+    public InsertMultiContinuation(Continuation parent, int num) {
+      super(parent, num);
+    }
+    
+    public boolean isDone() throws Exception {
+      int numSuccess = 0;
+      for (int i=0; i<haveResult.length; i++) 
+        if ((haveResult[i]) && (Boolean.TRUE.equals(result[i])))  
+          numSuccess++;
+      
+      if (numSuccess >= (SUCCESSFUL_INSERT_THRESHOLD * haveResult.length)) 
+        return true;
+      
+      if (super.isDone()) {
+        for (int i=0; i<result.length; i++) 
+          if (result[i] instanceof Exception)
+            if (logger.level <= Logger.WARNING) logger.logException("result["+i+"]:",(Exception)result[i]);
+        
+        throw new PastException("Had only " +  numSuccess + " successful inserts out of " + result.length + " - aborting.");
+      }
+      return false;
+    }
+    
+    public Object getResult() {
+      Boolean[] b = new Boolean[result.length];
+      for (int i=0; i<b.length; i++)
+        b[i] = new Boolean((result[i] == null) || Boolean.TRUE.equals(result[i]));
+      
+      return b;
+    }
+  }
+  
   // ----- PAST METHODS -----
   
   /**
@@ -847,6 +857,301 @@ public class PastImpl implements Past, Application, ReplicationManagerClient {
     });
   }
 
+  /**
+   * Method which performs the same as lookup(), but sends the request directly
+   * to the replica of the object which is expected to respond the fastest, 
+   * rather than routing it to the root.  Replicas are ranked by their observed
+   * response latency, or by their proximity if no latency has been observed 
+   * yet, and replicas which are believed to be dead are skipped.
+   *
+   * If the replica does not respond by the HEDGE_PERCENTILE of its observed 
+   * latencies, a hedged request is sent to the next replica, and the first 
+   * response which contains the object is used.  A replica which does not 
+   * have the object causes the next replica to be asked immediately.  If the
+   * replicas cannot be determined, or some of them failed and none had the
+   * object, this falls back to lookup().
+   * 
+   * @param id the key to be queried
+   * @param cache Whether or not the data should be cached
+   * @param command Command to be performed when the result is received
+   */
+  public void hedgedLookup(final Id id, final boolean cache, final Continuation command) {
+    if (logger.level <= Logger.FINER) logger.log(" Performing hedged lookup on " + id.toStringFull());
+    
+    storage.getObject(id, new StandardContinuation(command) {
+      public void receiveResult(Object o) {
+        if (o != null) {
+          command.receiveResult(o);
+        } else {
+          getHandles(id, replicationFactor+1, new StandardContinuation(command) {
+            public void receiveResult(Object o) {
+              new HedgedLookup(id, cache, rankReplicas((NodeHandleSet) o), command).start();
+            }
+            
+            public void receiveException(Exception e) {
+              // we could not determine the replicas, so we route the request instead
+              lookup(id, cache, command);
+            }
+          });
+        }
+      }
+    });
+  }
+  
+  /**
+   * Returns the latency statistics for the given replica, or null if no
+   * hedged lookup has been sent to it.
+   *
+   * @param handle The replica
+   * @return The statistics for the replica
+   */
+  public LatencyStatistics getReplicaStatistics(NodeHandle handle) {
+    return (LatencyStatistics) replicaStatistics.get(handle);
+  }
+  
+  /**
+   * Returns a copy of the latency statistics of all of the replicas which
+   * have been used by hedged lookups, as a map of NodeHandle -> LatencyStatistics
+   *
+   * @return The statistics for each replica
+   */
+  public Map getReplicaStatistics() {
+    return new HashMap(replicaStatistics);
+  }
+  
+  /**
+   * Internal method which returns the statistics for the given replica,
+   * creating them if necessary
+   *
+   * @param handle The replica
+   * @return The statistics for the replica
+   */
+  protected LatencyStatistics getOrCreateReplicaStatistics(NodeHandle handle) {
+    LatencyStatistics result = (LatencyStatistics) replicaStatistics.get(handle);
+    
+    if (result == null) {
+      // forget about replicas which have died, so that the table does not grow forever
+      if (replicaStatistics.size() >= MAX_REPLICA_STATISTICS) {
+        Iterator i = replicaStatistics.keySet().iterator();
+        
+        while (i.hasNext()) 
+          if (! endpoint.isAlive((NodeHandle) i.next()))
+            i.remove();
+        
+        if (replicaStatistics.size() >= MAX_REPLICA_STATISTICS)
+          replicaStatistics.clear();
+      }
+      
+      result = new LatencyStatistics();
+      replicaStatistics.put(handle, result);
+    }
+    
+    return result;
+  }
+  
+  /**
+   * Internal method which returns the live replicas in the given set, other
+   * than the local node, ordered by their expected response latency.
+   *
+   * @param replicas The replicas
+   * @return The ranked replicas
+   */
+  protected NodeHandle[] rankReplicas(NodeHandleSet replicas) {
+    final HashMap expected = new HashMap();
+    ArrayList result = new ArrayList();
+    
+    for (int i=0; i<replicas.size(); i++) {
+      NodeHandle handle = replicas.getHandle(i);
+      
+      if ((! handle.equals(getLocalNodeHandle())) && endpoint.isAlive(handle)) {
+        LatencyStatistics stats = (LatencyStatistics) replicaStatistics.get(handle);
+        double latency = ((stats != null) && (stats.getNumSamples() > 0) ? stats.getAverage() : endpoint.proximity(handle));
+        
+        expected.put(handle, new Double(latency));
+        result.add(handle);
+      }
+    }
+    
+    // the sort is stable, so replicas with the same expected latency stay in replica set order
+    Collections.sort(result, new Comparator() {
+      public int compare(Object a, Object b) {
+        return ((Double) expected.get(a)).compareTo((Double) expected.get(b));
+      }
+    });
+    
+    return (NodeHandle[]) result.toArray(new NodeHandle[0]);
+  }
+  
+  /**
+   * Internal method which returns how long to wait for the given replica before
+   * sending a hedged request to the next one.  This is the HEDGE_PERCENTILE 
+   * of the replica's recent latencies, or of all replicas' latencies if there are
+   * not enough samples for this replica.
+   *
+   * @param handle The replica
+   * @return The delay before hedging, in milliseconds
+   */
+  protected long getHedgeDelay(NodeHandle handle) {
+    LatencyStatistics stats = (LatencyStatistics) replicaStatistics.get(handle);
+    long delay = HEDGE_DEFAULT_DELAY;
+    
+    if ((stats != null) && (stats.getNumSamples() >= HEDGE_MIN_SAMPLES)) 
+      delay = stats.getPercentile(HEDGE_PERCENTILE);
+    else if (allReplicaStatistics.getNumSamples() >= HEDGE_MIN_SAMPLES)
+      delay = allReplicaStatistics.getPercentile(HEDGE_PERCENTILE);
+    
+    return Math.max(HEDGE_MIN_DELAY, delay);
+  }
+  
+  /**
+   * Internal class which represents a single hedged lookup.  The replicas are
+   * asked in order, with the next replica being asked as soon as the previous
+   * one has missed its deadline, failed or did not have the object.
+   */
+  protected class HedgedLookup {
+    
+    // the key being looked up
+    protected Id id;
+    
+    // whether or not to cache the result
+    protected boolean cache;
+    
+    // the replicas, in the order to ask them
+    protected NodeHandle[] replicas;
+    
+    // the command to return the result to
+    protected Continuation command;
+    
+    // the index of the next replica to ask
+    protected int next = 0;
+    
+    // the number of requests which have not returned
+    protected int outstanding = 0;
+    
+    // whether any of the requests failed
+    protected boolean failed = false;
+    
+    // whether or not the result has been returned
+    protected boolean done = false;
+    
+    // the hedge timer for the most recent request
+    protected CancellableTask timer;
+    
+    /**
+     * Constructor
+     *
+     * @param id The key to look up
+     * @param cache Whether or not to cache the result
+     * @param replicas The replicas, in the order to ask them
+     * @param command The command to return the result to
+     */
+    public HedgedLookup(Id id, boolean cache, NodeHandle[] replicas, Continuation command) {
+      this.id = id;
+      this.cache = cache;
+      this.replicas = replicas;
+      this.command = command;
+    }
+    
+    /**
+     * Starts the lookup
+     */
+    public void start() {
+      if (replicas.length == 0) 
+        lookup(id, cache, command);
+      else
+        send();
+    }
+    
+    /**
+     * Sends the request to the next replica, and schedules the hedge timer
+     */
+    protected void send() {
+      final NodeHandle handle = replicas[next];
+      final LatencyStatistics stats = getOrCreateReplicaStatistics(handle);
+      final long start = environment.getTimeSource().currentTimeMillis();
+      
+      if (next > 0) 
+        hedgedRequests++;
+      
+      next++;
+      outstanding++;
+      
+      sendRequest(handle, new LookupMessage(getUID(), id, getLocalNodeHandle(), handle.getId()), 
+                  new NamedContinuation("Hedged LookupMessage to " + handle + " for " + id, new Continuation() {
+        public void receiveResult(Object o) {
+          long latency = environment.getTimeSource().currentTimeMillis() - start;
+          stats.addSample(latency);
+          allReplicaStatistics.addSample(latency);
+          outstanding--;
+          
+          if (done) 
+            return;
+          
+          if (o != null) {
+            done = true;
+            cancelTimer();
+            lookupDone((PastContent) o, cache, command);
+          } else {
+            askNext();
+          }
+        }
+        
+        public void receiveException(Exception e) {
+          stats.addFailure();
+          outstanding--;
+          failed = true;
+          
+          if (! done) 
+            askNext();
+        }
+      }));
+      
+      if (next < replicas.length) {
+        timer = environment.getSelectorManager().schedule(new rice.selector.TimerTask() {
+          public void run() {
+            timer = null;
+            
+            if ((! done) && (next < replicas.length)) {
+              if (logger.level <= Logger.FINE) logger.log("Hedging lookup of " + id + " to " + replicas[next]);
+              send();
+            }
+          }
+        }, getHedgeDelay(handle));
+      }
+    }
+    
+    /**
+     * Asks the next replica, or finishes the lookup if all replicas have
+     * answered without the object
+     */
+    protected void askNext() {
+      cancelTimer();
+      
+      if (next < replicas.length) {
+        send();
+      } else if (outstanding == 0) {
+        done = true;
+        
+        // if all replicas answered, the object does not exist - otherwise we 
+        // route the request, just in case
+        if (failed) 
+          lookup(id, cache, command);
+        else
+          command.receiveResult(null);
+      }
+    }
+    
+    /**
+     * Cancels the hedge timer, if one is scheduled
+     */
+    protected void cancelTimer() {
+      if (timer != null) {
+        timer.cancel();
+        timer = null;
+      }
+    }
+  }
+  
   /**
    * Retrieves the handles of up to max replicas of the object stored
    * in this instance of Past with the given ID.  Asynchronously
@@ -949,6 +1254,489 @@ public class PastImpl implements Past, Application, ReplicationManagerClient {
   }
   
 
+  // ----- BULK PAST METHODS -----
+  
+  /**
+   * Inserts a number of objects into this instance of Past.  This is the 
+   * bulk version of insert(), which groups the objects by replica and sends
+   * one message to each replica, rather than one message per object and 
+   * replica.  
+   *
+   * The result is an Object[] which is the same length as the input array.
+   * Each element is either the Boolean[] of replica responses for the
+   * cooresponding object, or an Exception describing why the insert of that
+   * object failed.  If command is a BulkContinuation, the result for each
+   * object is also passed to it as soon as it is known.
+   *
+   * Objects which the socket strategy would send along a socket are
+   * inserted individually.  Unlike insert(), the objects are not cached 
+   * locally.
+   *
+   * @param objs The objects to insert
+   * @param command Command to be performed when the results are received
+   */
+  public void insert(final PastContent[] objs, Continuation command) {
+    if (logger.level <= Logger.FINER) logger.log("Inserting " + objs.length + " objects in bulk");
+    
+    final MultiContinuation multi = new BulkMultiContinuation(command, objs.length);
+    final MultiContinuation[] trackers = new MultiContinuation[objs.length];
+    
+    // each entry is the pair (object index, replica index)
+    final BulkBatcher batcher = new BulkBatcher() {
+      protected void send(NodeHandle handle, final Object[] entries) {
+        PastContent[] contents = new PastContent[entries.length];
+        for (int i=0; i<entries.length; i++) 
+          contents[i] = objs[((int[]) entries[i])[0]];
+        
+        sendRequest(handle, new BulkInsertMessage(getUID(), contents, getLocalNodeHandle(), handle.getId()), 
+                    new NamedContinuation("BulkInsertMessage to " + handle + " for " + entries.length + " objects", new Continuation() {
+          public void receiveResult(Object o) {
+            Object[] results = (Object[]) o;
+            
+            for (int i=0; i<entries.length; i++) {
+              int[] entry = (int[]) entries[i];
+              
+              if (results[i] instanceof Exception) 
+                trackers[entry[0]].getSubContinuation(entry[1]).receiveException((Exception) results[i]);
+              else
+                trackers[entry[0]].getSubContinuation(entry[1]).receiveResult(results[i]);
+            }
+          }
+          
+          public void receiveException(Exception e) {
+            for (int i=0; i<entries.length; i++) {
+              int[] entry = (int[]) entries[i];
+              trackers[entry[0]].getSubContinuation(entry[1]).receiveException(e);
+            }
+          }
+        }));
+      }
+    };
+    
+    Vector bulk = new Vector();
+    for (int i=0; i<objs.length; i++) {
+      if (socketStrategy.sendAlongSocket(SocketStrategy.TYPE_INSERT, objs[i])) 
+        insert(objs[i], multi.getSubContinuation(i));
+      else
+        bulk.add(new Integer(i));
+    }
+    
+    final int[] index = new int[bulk.size()];
+    Id[] ids = new Id[bulk.size()];
+    for (int i=0; i<index.length; i++) {
+      index[i] = ((Integer) bulk.get(i)).intValue();
+      ids[i] = objs[index[i]].getId();
+    }
+    
+    // as soon as the replicas of an object are known, we queue the object for each of them
+    getHandles(ids, replicationFactor+1, new BulkContinuation() {
+      public void receivePartialResult(int i, Object o) {
+        NodeHandleSet replicas = (NodeHandleSet) o;
+        
+        if (replicas.size() == 0) {
+          multi.getSubContinuation(index[i]).receiveException(new PastException("No replicas found for " + objs[index[i]].getId() + " - aborting."));
+        } else {
+          trackers[index[i]] = new InsertMultiContinuation(multi.getSubContinuation(index[i]), replicas.size());
+        
+          for (int j=0; j<replicas.size(); j++) 
+            batcher.add(replicas.getHandle(j), new int[] {index[i], j});
+        }
+      }
+      
+      public void receivePartialException(int i, Exception e) {
+        multi.getSubContinuation(index[i]).receiveException(e);
+      }
+      
+      public void receiveResult(Object o) {
+      }
+      
+      public void receiveException(Exception e) {
+      }
+    });
+  }
+  
+  /**
+   * Retrieves the objects stored in this instance of Past under the given
+   * keys.  This is the bulk version of lookup(), which groups the keys by 
+   * their root and sends one message to each root, rather than one routed
+   * message per key.  Keys whose root does not have the object are looked up
+   * individually, so the result for each key is the same as that of lookup().
+   *
+   * The result is an Object[] which is the same length as the input array.
+   * Each element is either the PastContent stored under the cooresponding 
+   * key, null if no object was found, or an Exception describing why the 
+   * lookup of that key failed.  If command is a BulkContinuation, the result
+   * for each key is also passed to it as soon as it is known.
+   *
+   * @param ids The keys to be queried
+   * @param cache Whether or not the data should be cached
+   * @param command Command to be performed when the results are received
+   */
+  public void lookup(final Id[] ids, final boolean cache, Continuation command) {
+    if (logger.level <= Logger.FINER) logger.log("Performing bulk lookup on " + ids.length + " ids");
+    
+    final MultiContinuation multi = new BulkMultiContinuation(command, ids.length);
+    
+    // each entry is the index of the key
+    final BulkBatcher batcher = new BulkBatcher() {
+      protected void send(NodeHandle handle, final Object[] entries) {
+        Id[] keys = new Id[entries.length];
+        for (int i=0; i<entries.length; i++) 
+          keys[i] = ids[((Integer) entries[i]).intValue()];
+        
+        sendRequest(handle, new BulkLookupMessage(getUID(), keys, getLocalNodeHandle(), handle.getId()), 
+                    new NamedContinuation("BulkLookupMessage to " + handle + " for " + entries.length + " ids", new Continuation() {
+          public void receiveResult(Object o) {
+            Object[] contents = (Object[]) o;
+            
+            // the root did not have the object, so we must check all of the replicas
+            for (int i=0; i<entries.length; i++) {
+              int j = ((Integer) entries[i]).intValue();
+              
+              if (contents[i] != null) 
+                lookupDone((PastContent) contents[i], cache, multi.getSubContinuation(j));
+              else
+                lookup(ids[j], cache, multi.getSubContinuation(j));
+            }
+          }
+          
+          public void receiveException(Exception e) {
+            // if the bulk message failed, we look up each of the keys individually
+            for (int i=0; i<entries.length; i++) {
+              int j = ((Integer) entries[i]).intValue();
+              lookup(ids[j], cache, multi.getSubContinuation(j));
+            }
+          }
+        }));
+      }
+    };
+    
+    Vector remote = new Vector();
+    for (int i=0; i<ids.length; i++) {
+      if (storage.exists(ids[i])) 
+        storage.getObject(ids[i], multi.getSubContinuation(i));
+      else
+        remote.add(new Integer(i));
+    }
+    
+    final int[] index = new int[remote.size()];
+    Id[] keys = new Id[remote.size()];
+    for (int i=0; i<index.length; i++) {
+      index[i] = ((Integer) remote.get(i)).intValue();
+      keys[i] = ids[index[i]];
+    }
+    
+    // as soon as the root of a key is known, we queue the key for it
+    getHandles(keys, 1, new BulkContinuation() {
+      public void receivePartialResult(int i, Object o) {
+        NodeHandleSet set = (NodeHandleSet) o;
+        
+        if ((set.size() == 0) || set.getHandle(0).equals(getLocalNodeHandle())) 
+          lookup(ids[index[i]], cache, multi.getSubContinuation(index[i]));
+        else
+          batcher.add(set.getHandle(0), new Integer(index[i]));
+      }
+      
+      public void receivePartialException(int i, Exception e) {
+        lookup(ids[index[i]], cache, multi.getSubContinuation(index[i]));
+      }
+      
+      public void receiveResult(Object o) {
+      }
+      
+      public void receiveException(Exception e) {
+      }
+    });
+  }
+  
+  /**
+   * Retrieves the objects associated with the given content handles.  This is
+   * the bulk version of fetch(), which sends one message to each of the nodes
+   * referred to by the handles.
+   *
+   * The result is an Object[] which is the same length as the input array.
+   * Each element is either the PastContent, null if the node no longer has 
+   * the object, or an Exception describing why the fetch of that handle 
+   * failed.  If command is a BulkContinuation, the result for each handle is
+   * also passed to it as soon as it is known.
+   *
+   * @param handles The handles to fetch
+   * @param command Command to be performed when the results are received
+   */
+  public void fetch(final PastContentHandle[] handles, Continuation command) {
+    if (logger.level <= Logger.FINER) logger.log("Fetching " + handles.length + " handles in bulk");
+    
+    final MultiContinuation multi = new BulkMultiContinuation(command, handles.length);
+    
+    // each entry is the index of the handle
+    BulkBatcher batcher = new BulkBatcher() {
+      protected void send(NodeHandle handle, final Object[] entries) {
+        Id[] keys = new Id[entries.length];
+        for (int i=0; i<entries.length; i++) 
+          keys[i] = handles[((Integer) entries[i]).intValue()].getId();
+        
+        sendRequest(handle, new BulkLookupMessage(getUID(), keys, getLocalNodeHandle(), handle.getId()), 
+                    new NamedContinuation("BulkLookupMessage to " + handle + " for " + entries.length + " handles", new Continuation() {
+          public void receiveResult(Object o) {
+            Object[] contents = (Object[]) o;
+            
+            for (int i=0; i<entries.length; i++) 
+              multi.getSubContinuation(((Integer) entries[i]).intValue()).receiveResult(contents[i]);
+          }
+          
+          public void receiveException(Exception e) {
+            for (int i=0; i<entries.length; i++) 
+              multi.getSubContinuation(((Integer) entries[i]).intValue()).receiveException(e);
+          }
+        }));
+      }
+    };
+    
+    for (int i=0; i<handles.length; i++) 
+      batcher.add(handles[i].getNodeHandle(), new Integer(i));
+  }
+  
+  /**
+   * Internal method which returns the handles to a number of objects.  Keys
+   * whose replica sets are known locally are returned immediately.  The 
+   * remaining keys are grouped into regions of the id space which are likely
+   * to be covered by a single leaf set, and one BulkLookupHandlesMessage is 
+   * routed to each region.  Any keys which the destination cannot resolve 
+   * are resolved individually using getHandles().
+   *
+   * @param ids The ids to fetch the handles for
+   * @param max The maximum number of handles to return for each id
+   * @param command The command to call with the results (NodeHandleSet for each id)
+   */
+  protected void getHandles(final Id[] ids, final int max, Continuation command) {
+    final MultiContinuation multi = new BulkMultiContinuation(command, ids.length);
+    Vector unknown = new Vector();
+    
+    for (int i=0; i<ids.length; i++) {
+      NodeHandleSet set = endpoint.replicaSet(ids[i], max);
+      
+      if (set.size() == max) 
+        multi.getSubContinuation(i).receiveResult(set);
+      else
+        unknown.add(new Integer(i));
+    }
+    
+    Iterator groups = groupByRegion(ids, unknown).iterator();
+    while (groups.hasNext()) {
+      final int[] group = (int[]) groups.next();
+      Id[] keys = new Id[group.length];
+      for (int i=0; i<group.length; i++)
+        keys[i] = ids[group[i]];
+      
+      sendRequest(keys[0], new BulkLookupHandlesMessage(getUID(), keys, max, getLocalNodeHandle(), keys[0]), 
+                  new NamedContinuation("BulkLookupHandlesMessage for " + keys.length + " ids near " + keys[0], new Continuation() {
+        public void receiveResult(Object o) {
+          Object[] sets = (Object[]) o;
+          int known = Math.min(max, endpoint.replicaSet(endpoint.getLocalNodeHandle().getId(), replicationFactor+1).size());
+          
+          for (int i=0; i<group.length; i++) {
+            if ((sets[i] != null) && (((NodeHandleSet) sets[i]).size() >= known))
+              multi.getSubContinuation(group[i]).receiveResult(sets[i]);
+            else
+              getHandles(ids[group[i]], max, multi.getSubContinuation(group[i]));
+          }
+        }
+        
+        public void receiveException(Exception e) {
+          for (int i=0; i<group.length; i++)
+            getHandles(ids[group[i]], max, multi.getSubContinuation(group[i]));
+        }
+      }));
+    }
+  }
+  
+  /**
+   * Internal method which sorts the given key indices by key, and splits them
+   * into groups of at most BULK_BATCH_SIZE keys which span no more of the id 
+   * space than the local node's replica range.  Each group is therefore likely
+   * to be resolvable by the leaf set of the root of its first key.
+   *
+   * @param ids The keys
+   * @param indices The indices (Integer) of the keys to group
+   * @return The groups, as int[]s of indices
+   */
+  private Vector groupByRegion(final Id[] ids, Vector indices) {
+    Collections.sort(indices, new Comparator() {
+      public int compare(Object a, Object b) {
+        return ids[((Integer) a).intValue()].compareTo(ids[((Integer) b).intValue()]);
+      }
+    });
+    
+    Id.Distance span = null;
+    try {
+      IdRange range = endpoint.range(getLocalNodeHandle(), replicationFactor, getLocalNodeHandle().getId(), true);
+      
+      if (range != null)
+        span = range.getCCWId().distanceFromId(range.getCWId());
+    } catch (RuntimeException e) {
+      if (logger.level <= Logger.FINE) logger.log("Could not determine replica range - using a single region " + e);
+    }
+    
+    Vector groups = new Vector();
+    Vector current = new Vector();
+    Id start = null;
+    Id end = null;
+    
+    for (int i=0; i<indices.size(); i++) {
+      Integer index = (Integer) indices.get(i);
+      Id id = ids[index.intValue()];
+      
+      if ((current.size() >= BULK_BATCH_SIZE) || ((end != null) && (! id.isBetween(start, end)))) {
+        groups.add(toIntArray(current));
+        current.clear();
+      }
+      
+      if (current.size() == 0) {
+        start = id;
+        end = (span == null ? null : id.addToId(span));
+      }
+      
+      current.add(index);
+    }
+    
+    if (current.size() > 0)
+      groups.add(toIntArray(current));
+    
+    return groups;
+  }
+  
+  /**
+   * Internal method which converts a Vector of Integers into an int[]
+   *
+   * @param v The vector
+   * @return The array
+   */
+  private static int[] toIntArray(Vector v) {
+    int[] result = new int[v.size()];
+    for (int i=0; i<result.length; i++)
+      result[i] = ((Integer) v.get(i)).intValue();
+    
+    return result;
+  }
+  
+  /**
+   * Internal method which returns a looked up object to the caller, after
+   * caching it if requested.
+   *
+   * @param content The content which was found
+   * @param cache Whether or not the data should be cached
+   * @param command The command to return the content to
+   */
+  private void lookupDone(final PastContent content, boolean cache, final Continuation command) {
+    if (cache) {
+      cache(content, new SimpleContinuation()  {
+        public void receiveResult(Object object) {
+          command.receiveResult(content);
+        }
+      });
+    } else {
+      command.receiveResult(content);
+    }
+  }
+  
+  /**
+   * Internal class which collects the per-key results of a bulk operation.
+   * The result for each key is passed to the parent as soon as it arrives,
+   * if the parent is a BulkContinuation, and the Object[] of all results is
+   * passed to the parent once every key has been answered.
+   */
+  protected static class BulkMultiContinuation extends MultiContinuation {
+    
+    /**
+     * Constructor
+     *
+     * @param parent The parent continuation
+     * @param num The number of keys
+     */
+    public BulkMultiContinuation(Continuation parent, int num) {
+      super(parent, num);
+      
+      if (num == 0) {
+        done = true;
+        parent.receiveResult(result);
+      }
+    }
+    
+    protected void receive(int index, Object o) {
+      if ((! done) && (! haveResult[index]) && (parent instanceof BulkContinuation)) {
+        if (o instanceof Exception)
+          ((BulkContinuation) parent).receivePartialException(index, (Exception) o);
+        else
+          ((BulkContinuation) parent).receivePartialResult(index, o);
+      }
+      
+      super.receive(index, o);
+    }
+  }
+  
+  /**
+   * Internal class which collects the entries of a bulk operation which are
+   * bound for the same node, and sends them together at the end of the 
+   * current selector turn, in messages of at most BULK_BATCH_SIZE entries.
+   */
+  protected abstract class BulkBatcher implements Runnable {
+    
+    // the entries waiting to be sent, NodeHandle -> Vector
+    protected Hashtable pending = new Hashtable();
+    
+    // whether or not a flush has been scheduled
+    protected boolean scheduled = false;
+    
+    /**
+     * Queues the given entry to be sent to the given node
+     *
+     * @param handle The node to send the entry to
+     * @param entry The entry
+     */
+    public void add(NodeHandle handle, Object entry) {
+      Vector entries = (Vector) pending.get(handle);
+      
+      if (entries == null) {
+        entries = new Vector();
+        pending.put(handle, entries);
+      }
+      
+      entries.add(entry);
+      
+      if (! scheduled) {
+        scheduled = true;
+        environment.getSelectorManager().invoke(this);
+      }
+    }
+    
+    /**
+     * Sends all of the queued entries
+     */
+    public void run() {
+      Hashtable batches = pending;
+      pending = new Hashtable();
+      scheduled = false;
+      
+      Iterator i = batches.keySet().iterator();
+      while (i.hasNext()) {
+        NodeHandle handle = (NodeHandle) i.next();
+        Vector entries = (Vector) batches.get(handle);
+        
+        for (int j=0; j<entries.size(); j+=BULK_BATCH_SIZE)
+          send(handle, entries.subList(j, Math.min(entries.size(), j+BULK_BATCH_SIZE)).toArray());
+      }
+    }
+    
+    /**
+     * Sends the given entries to the given node in a single message
+     *
+     * @param handle The node to send to
+     * @param entries The entries
+     */
+    protected abstract void send(NodeHandle handle, Object[] entries);
+  }
+  
+
   // ----- COMMON API METHODS -----
 
   /**
@@ -992,6 +1780,23 @@ public class PastImpl implements Past, Application, ReplicationManagerClient {
         if (endpoint.replicaSet(lmsg.getId(), lmsg.getMax()).size() == lmsg.getMax()) {          
           if (logger.level <= Logger.FINE) logger.log("Hijacking lookup handles request for " + lmsg.getId());
           
+          deliver(endpoint.getId(), lmsg);
+          return false;
+        }
+      }
+    } else if (internal instanceof BulkLookupHandlesMessage) {
+      BulkLookupHandlesMessage lmsg = (BulkLookupHandlesMessage) internal;
+      
+      if (! lmsg.isResponse()) {
+        Id[] ids = lmsg.getIds();
+        boolean known = true;
+        
+        for (int i=0; (i<ids.length) && known; i++)
+          known = (endpoint.replicaSet(ids[i], lmsg.getMax()).size() == lmsg.getMax());
+        
+        if (known) {
+          if (logger.level <= Logger.FINE) logger.log("Hijacking bulk lookup handles request for " + ids.length + " ids");
+          
           deliver(endpoint.getId(), lmsg);
           return false;
         }
@@ -1022,29 +1827,7 @@ public class PastImpl implements Past, Application, ReplicationManagerClient {
         // make sure the policy allows the insert
         if (policy.allowInsert(imsg.getContent())) {
           inserts++;
-          final Id msgid = imsg.getContent().getId();
-          
-          lockManager.lock(msgid, new StandardContinuation(getResponseContinuation(msg)) {
-
-            public void receiveResult(Object result) {
-              storage.getObject(msgid, new StandardContinuation(parent) {
-                public void receiveResult(Object o) {
-                  try {
-                    // allow the object to check the insert, and then insert the data
-                    PastContent content = imsg.getContent().checkInsert(msgid, (PastContent) o);
-                    storage.store(msgid, null, content, new StandardContinuation(parent) {
-                      public void receiveResult(Object result) {
-                        getResponseContinuation(msg).receiveResult(result);
-                        lockManager.unlock(msgid);
-                      }
-                    });
-                  } catch (PastException e) {
-                    parent.receiveException(e);
-                  }
-                }
-              });
-            }
-          });
+          storeLocally(imsg.getContent(), getResponseContinuation(msg));
         } else {
           getResponseContinuation(msg).receiveResult(new Boolean(false));
         }
@@ -1103,6 +1886,60 @@ public class PastImpl implements Past, Application, ReplicationManagerClient {
             }
           } 
         });
+      } else if (msg instanceof BulkLookupHandlesMessage) {
+        BulkLookupHandlesMessage lmsg = (BulkLookupHandlesMessage) msg;
+        Id[] ids = lmsg.getIds();
+        Object[] sets = new Object[ids.length];
+        
+        // we only answer for the keys we know the complete replica set of, or 
+        // for which we are the root - the requestor looks up the rest individually
+        for (int i=0; i<ids.length; i++) {
+          NodeHandleSet set = endpoint.replicaSet(ids[i], lmsg.getMax());
+          
+          if ((set.size() == lmsg.getMax()) || ((set.size() > 0) && set.getHandle(0).equals(getLocalNodeHandle())))
+            sets[i] = set;
+        }
+        
+        if (logger.level <= Logger.FINER) logger.log("Returning replica sets for bulk lookup handles of " + ids.length + " ids at " + endpoint.getId());
+        getResponseContinuation(msg).receiveResult(sets);
+      } else if (msg instanceof BulkLookupMessage) {
+        BulkLookupMessage lmsg = (BulkLookupMessage) msg;
+        Id[] ids = lmsg.getIds();
+        lookups += ids.length;
+        
+        MultiContinuation multi = new MultiContinuation(getResponseContinuation(msg), ids.length) {
+          public Object getResult() {
+            Object[] contents = new Object[result.length];
+            
+            for (int i=0; i<result.length; i++)
+              if (result[i] instanceof PastContent)
+                contents[i] = result[i];
+            
+            return contents;
+          }
+        };
+        
+        if (ids.length == 0) 
+          getResponseContinuation(msg).receiveResult(new Object[0]);
+        
+        for (int i=0; i<ids.length; i++) 
+          storage.getObject(ids[i], multi.getSubContinuation(i));
+      } else if (msg instanceof BulkInsertMessage) {
+        PastContent[] contents = ((BulkInsertMessage) msg).getContents();
+        MultiContinuation multi = new MultiContinuation(getResponseContinuation(msg), contents.length);
+        
+        if (contents.length == 0) 
+          getResponseContinuation(msg).receiveResult(new Object[0]);
+        
+        for (int i=0; i<contents.length; i++) {
+          // make sure the policy allows the insert
+          if (policy.allowInsert(contents[i])) {
+            inserts++;
+            storeLocally(contents[i], multi.getSubContinuation(i));
+          } else {
+            multi.getSubContinuation(i).receiveResult(new Boolean(false));
+          }
+        }
       } else if (msg instanceof CacheMessage) {
         cache(((CacheMessage) msg).getContent());
       } else {
@@ -1111,6 +1948,41 @@ public class PastImpl implements Past, Application, ReplicationManagerClient {
     }
   } 
 
+  /**
+   * Internal method which stores an object which has been inserted by a 
+   * remote node, after allowing the object to check the insert against any
+   * existing version.  Here so that subclasses can change how inserted objects
+   * are stored.
+   *
+   * @param content The content to store
+   * @param command The command to return the result to
+   */
+  protected void storeLocally(final PastContent content, final Continuation command) {
+    final Id msgid = content.getId();
+
+    lockManager.lock(msgid, new StandardContinuation(command) {
+
+      public void receiveResult(Object result) {
+        storage.getObject(msgid, new StandardContinuation(parent) {
+          public void receiveResult(Object o) {
+            try {
+              // allow the object to check the insert, and then insert the data
+              PastContent stored = content.checkInsert(msgid, (PastContent) o);
+              storage.store(msgid, null, stored, new StandardContinuation(parent) {
+                public void receiveResult(Object result) {
+                  command.receiveResult(result);
+                  lockManager.unlock(msgid);
+                }
+              });
+            } catch (PastException e) {
+              parent.receiveException(e);
+            }
+          }
+        });
+      }
+    });
+  }
+  
   /**
    * This method is invoked to inform the application that the given node
    * has either joined or left the neighbor set of the local node, as the set
@@ -1152,6 +2024,135 @@ public class PastImpl implements Past, Application, ReplicationManagerClient {
     });
   }
   
+  /**
+   * This upcall is invoked to tell the client to fetch all of the given ids,
+   * and to call the given command with the IdSet of the ids which were fetched.
+   * With the DefaultPastPolicy, the ids are retrieved with one bulk lookup(),
+   * and only the ids which that doesn't find are fetched from the hint one at a 
+   * time.  Ids which fetchIndividually() returns true for, and all ids under any
+   * other policy, are fetched using fetch(Id, NodeHandle, Continuation).
+   *
+   * @param ids The ids to fetch
+   * @param hint A hint where to find the keys from
+   * @param command The command to return the IdSet of fetched ids to
+   */
+  public void fetch(final IdSet ids, final NodeHandle hint, Continuation command) {
+    if (logger.level <= Logger.FINER) logger.log("Sending out replication fetch request for " + ids.numElements() + " ids");
+    
+    final Id[] all = ids.asArray();
+    final MultiContinuation multi = new BulkMultiContinuation(new StandardContinuation(command) {
+      public void receiveResult(Object o) {
+        Object[] results = (Object[]) o;
+        IdSet fetched = ids.build();
+        
+        for (int i=0; i<all.length; i++) 
+          if (Boolean.TRUE.equals(results[i]))
+            fetched.addId(all[i]);
+        
+        parent.receiveResult(fetched);
+      }
+    }, all.length);
+    
+    Vector bulk = new Vector();
+    for (int i=0; i<all.length; i++) {
+      if (fetchIndividually(all[i]))
+        fetch(all[i], hint, multi.getSubContinuation(i));
+      else
+        bulk.add(new Integer(i));
+    }
+    
+    final int[] index = new int[bulk.size()];
+    Id[] keys = new Id[bulk.size()];
+    for (int i=0; i<index.length; i++) {
+      index[i] = ((Integer) bulk.get(i)).intValue();
+      keys[i] = getContentId(all[index[i]]);
+    }
+    
+    lookup(keys, false, new BulkContinuation() {
+      public void receivePartialResult(int i, Object o) {
+        if (o != null) 
+          storeReplica(all[index[i]], (PastContent) o, multi.getSubContinuation(index[i]));
+        else 
+          fetchFromHint(all[index[i]], hint, multi.getSubContinuation(index[i]));
+      }
+      
+      public void receivePartialException(int i, Exception e) {
+        fetchFromHint(all[index[i]], hint, multi.getSubContinuation(index[i]));
+      }
+      
+      public void receiveResult(Object o) {
+      }
+      
+      public void receiveException(Exception e) {
+      }
+    });
+  }
+  
+  /**
+   * Internal method which fetches the given id from the hint, as the 
+   * DefaultPastPolicy does when a lookup() can't find the object, and stores it.
+   *
+   * @param id The id to fetch
+   * @param hint Where to look for the object
+   * @param command The command to call with the result of the store, or false
+   */
+  private void fetchFromHint(final Id id, NodeHandle hint, Continuation command) {
+    lookupHandle(getContentId(id), hint, new StandardContinuation(command) {
+      public void receiveResult(Object o) {
+        if (o == null) {
+          if (logger.level <= Logger.WARNING) logger.log("Could not fetch id " + id + " - no handle found in namespace " + instance);
+          parent.receiveResult(Boolean.FALSE);
+        } else {
+          fetch((PastContentHandle) o, new StandardContinuation(parent) {
+            public void receiveResult(Object o) {
+              if (o == null) {
+                if (logger.level <= Logger.WARNING) logger.log("Could not fetch id " + id + " - hint returned null in namespace " + instance);
+                parent.receiveResult(Boolean.FALSE);
+              } else {
+                storeReplica(id, (PastContent) o, parent);
+              }
+            }
+          });
+        }
+      }
+    });
+  }
+  
+  /**
+   * Whether the batch fetch() should fetch the given id on its own, rather 
+   * than in the bulk lookup.  This is the case for any policy but the 
+   * DefaultPastPolicy, and for objects which are in the backup cache.
+   *
+   * @param id The id being fetched
+   * @return Whether to use fetch(Id, NodeHandle, Continuation)
+   */
+  protected boolean fetchIndividually(Id id) {
+    return (! (policy instanceof DefaultPastPolicy)) || 
+           ((backup != null) && backup.exists(getContentId(id)));
+  }
+  
+  /**
+   * Returns the id which the object being fetched is stored under.
+   *
+   * @param id The id being fetched
+   * @return The id of the object
+   */
+  protected Id getContentId(Id id) {
+    return id;
+  }
+  
+  /**
+   * Stores a replica fetched by the batch fetch().
+   *
+   * @param id The id being fetched
+   * @param content The object
+   * @param command The command to call with the result of the store
+   */
+  protected void storeReplica(Id id, PastContent content, Continuation command) {
+    if (logger.level <= Logger.FINEST) logger.log("inserting replica of id " + id);
+    storage.getStorage().store(content.getId(), null, content, command);
+  }
+  
   /**
    * This upcall is to notify the client that the given id can be safely removed
    * from the storage.  The client may choose to perform advanced behavior, such
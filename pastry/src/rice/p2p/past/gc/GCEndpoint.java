@@ -41,6 +41,7 @@ import rice.*;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Executor;
 
 import org.mpisws.p2p.transport.MessageCallback;
 import org.mpisws.p2p.transport.MessageRequestHandle;
@@ -354,8 +355,11 @@ public class GCEndpoint implements Endpoint {
   public void setSendOptions(Map<String, Object> options) {
     endpoint.setSendOptions(options);    
   }
-}
 
+  public void setDeliveryExecutor(Executor executor) {
+    endpoint.setDeliveryExecutor(executor);
+  }
+}
 
 
 
@@ -364,6 +364,27 @@ public class GCPastImpl extends PastImpl implements GCPast {
     }
   }
   
+  /**
+   * Stores an object which was inserted using the bulk insert.  As with
+   * insert(obj, command), the object is stored with an infinite expiration.
+   *
+   * @param content The content to store
+   * @param command The command to return the result to
+   */
+  protected void storeLocally(final PastContent content, Continuation command) {
+    storage.getObject(content.getId(), new StandardContinuation(command) {
+      public void receiveResult(Object o) {
+        try {
+          // allow the object to check the insert, and then insert the data
+          GCPastContent stored = (GCPastContent) content.checkInsert(content.getId(), (PastContent) o);
+          storage.store(stored.getId(), stored.getMetadata(INFINITY_EXPIRATION), stored, parent);
+        } catch (PastException e) {
+          parent.receiveException(e);
+        }
+      }
+    });
+  }
+  
   /**
    * This method is called on the application at the destination node
    * for the given id.
@@ -597,6 +618,44 @@ public class GCPastImpl extends PastImpl implements GCPast {
     }
   }
   
+  /**
+   * Expired ids, and ids which are already stored (which only need their 
+   * expiration updated), are handled by fetch(Id, NodeHandle, Continuation).
+   *
+   * @param id The GCId being fetched
+   * @return Whether to use fetch(Id, NodeHandle, Continuation)
+   */
+  protected boolean fetchIndividually(Id id) {
+    GCId gcid = (GCId) id;
+    
+    return (gcid.getExpiration() < environment.getTimeSource().currentTimeMillis()) ||
+           storage.exists(gcid.getId()) || super.fetchIndividually(id);
+  }
+  
+  /**
+   * The objects are stored under the id inside the GCId.
+   *
+   * @param id The GCId being fetched
+   * @return The id of the object
+   */
+  protected Id getContentId(Id id) {
+    return ((GCId) id).getId();
+  }
+  
+  /**
+   * Stores the replica with the expiration of the GCId.
+   *
+   * @param id The GCId being fetched
+   * @param content The object
+   * @param command The command to call with the result of the store
+   */
+  protected void storeReplica(Id id, PastContent content, Continuation command) {
+    GCId gcid = (GCId) id;
+    if (logger.level <= Logger.FINEST) logger.log( "inserting replica of id " + id);
+    
+    storage.getStorage().store(gcid.getId(), ((GCPastContent) content).getMetadata(gcid.getExpiration()), content, command);
+  }
+  
   /**
    * This upcall is to notify the client that the given id can be safely removed
    * from the storage.  The client may choose to perform advanced behavior, such
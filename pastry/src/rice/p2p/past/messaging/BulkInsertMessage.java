@@ -0,0 +1,207 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+
+package rice.p2p.past.messaging;
+
+import java.io.IOException;
+
+import rice.*;
+import rice.p2p.commonapi.*;
+import rice.p2p.commonapi.rawserialization.*;
+import rice.p2p.past.*;
+import rice.p2p.past.rawserialization.*;
+
+/**
+ * @(#) BulkInsertMessage.java
+ *
+ * This class represents a request to store a number of objects on a 
+ * single replica.  It is sent directly to the replica, rather than being 
+ * routed.
+ *
+ * response should be an Object[] with one entry per object, either a 
+ * Boolean or the Exception which caused the insert to fail
+ *
+ * @version $Id$
+ *
+ * @author agent
+ */
+public class BulkInsertMessage extends ContinuationMessage {
+  public static final short TYPE = 14;
+
+  // the data to insert
+  protected RawPastContent[] contents;
+  
+  /**
+   * Constructor which takes a unique integer Id, as well as the
+   * data to be stored
+   *
+   * @param uid The unique id
+   * @param contents The content to be inserted
+   * @param source The source address
+   * @param dest The destination address
+   */
+  public BulkInsertMessage(int uid, PastContent[] contents, NodeHandle source, Id dest) {
+    super(uid, source, dest);
+
+    this.contents = new RawPastContent[contents.length];
+    for (int i=0; i<contents.length; i++) 
+      this.contents[i] = (contents[i] instanceof RawPastContent ? (RawPastContent) contents[i] : new JavaSerializedPastContent(contents[i]));
+  }
+
+  /**
+   * Method which returns the contents
+   *
+   * @return The contained contents
+   */
+  public PastContent[] getContents() {
+    PastContent[] result = new PastContent[contents.length];
+    for (int i=0; i<contents.length; i++) 
+      result[i] = (contents[i].getType() == 0 ? ((JavaSerializedPastContent) contents[i]).getContent() : contents[i]);
+    
+    return result;
+  }
+  
+  /**
+   * Method which builds a response for this message, using the provided
+   * object as a result.
+   *
+   * @param o The object argument
+   */
+  public void receiveResult(Object o) {
+    super.receiveResult(o);
+    contents = null;
+  }
+  
+  /**
+   * Method which builds a response for this message, using the provided
+   * exception, which was thrown
+   *
+   * @param e The exception argument
+   */
+  public void receiveException(Exception e) {
+    super.receiveException(e);
+    contents = null;
+  }
+
+  /**
+    * Returns a string representation of this message
+   *
+   * @return A string representing this message
+   */
+  public String toString() {
+    return "[BulkInsertMessage (response " + isResponse() + ") for " + (contents == null ? 0 : contents.length) + " objects]";
+  }
+  
+  /***************** Raw Serialization ***************************************/
+  public short getType() {
+    return TYPE; 
+  }
+  
+  public void serialize(OutputBuffer buf) throws IOException {
+    buf.writeByte((byte)0); // version        
+    if (isBooleanArray(response)) {
+      super.serialize(buf, false); 
+      Object[] array = (Object[]) response;
+      buf.writeInt(array.length);
+      for (int i=0; i<array.length; i++) 
+        buf.writeBoolean(((Boolean) array[i]).booleanValue());
+    } else {
+      super.serialize(buf, true);       
+    }
+    
+    buf.writeBoolean(contents != null);
+    if (contents != null) {
+      buf.writeInt(contents.length);
+      for (int i=0; i<contents.length; i++) {
+        buf.writeShort(contents[i].getType());
+        contents[i].serialize(buf);
+      }
+    }
+  }
+  
+  /**
+   * Returns whether or not the given response consists only of Booleans,
+   * and can therefore be written without java serialization.
+   *
+   * @param o The response
+   * @return Whether or not it is a Boolean array
+   */
+  private static boolean isBooleanArray(Object o) {
+    if ((o == null) || (! (o instanceof Object[])))
+      return false;
+    
+    Object[] array = (Object[]) o;
+    for (int i=0; i<array.length; i++) 
+      if (! (array[i] instanceof Boolean))
+        return false;
+    
+    return true;
+  }
+  
+  public static BulkInsertMessage build(InputBuffer buf, Endpoint endpoint, PastContentDeserializer pcd) throws IOException {
+    byte version = buf.readByte();
+    switch(version) {
+      case 0:
+        return new BulkInsertMessage(buf, endpoint, pcd);
+      default:
+        throw new IOException("Unknown Version: "+version);        
+    }
+  }  
+  
+  private BulkInsertMessage(InputBuffer buf, Endpoint endpoint, PastContentDeserializer pcd) throws IOException {
+    super(buf, endpoint);
+    
+    if (serType == S_SUB) {
+      Object[] array = new Object[buf.readInt()];
+      for (int i=0; i<array.length; i++) 
+        array[i] = new Boolean(buf.readBoolean());
+      response = array;
+    }
+        
+    if (buf.readBoolean()) {
+      contents = new RawPastContent[buf.readInt()];
+      for (int i=0; i<contents.length; i++) {
+        short contentType = buf.readShort();
+        if (contentType == 0) {
+          contents[i] = new JavaSerializedPastContent(pcd.deserializePastContent(buf, endpoint, contentType));
+        } else {
+          contents[i] = (RawPastContent)pcd.deserializePastContent(buf, endpoint, contentType); 
+        }
+      }
+    }
+  }
+}
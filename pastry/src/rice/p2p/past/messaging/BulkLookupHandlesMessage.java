@@ -0,0 +1,162 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+
+package rice.p2p.past.messaging;
+
+import java.io.IOException;
+
+import rice.*;
+import rice.p2p.commonapi.*;
+import rice.p2p.commonapi.rawserialization.*;
+import rice.p2p.past.*;
+
+/**
+ * @(#) BulkLookupHandlesMessage.java
+ *
+ * This class represents a request for the replica sets of a number of
+ * keys which are believed to be close together in the id space.  It is 
+ * routed to the first key, and the destination answers for all of the 
+ * keys whose replica sets it knows.
+ *
+ * response should be an Object[] of NodeHandleSets, with null entries for
+ * the keys the destination could not resolve
+ *
+ * @version $Id$
+ *
+ * @author agent
+ */
+public class BulkLookupHandlesMessage extends ContinuationMessage {
+  public static final short TYPE = 12;
+
+  // the ids to resolve
+  private Id[] ids;
+
+  // the number of replicas to fetch
+  private int max;
+   
+  /**
+   * Constructor
+   *
+   * @param uid The unique id
+   * @param ids The keys to resolve
+   * @param max The number of replicas
+   * @param source The source address
+   * @param dest The destination address
+   */
+  public BulkLookupHandlesMessage(int uid, Id[] ids, int max, NodeHandle source, Id dest) {    
+    super(uid, source, dest);
+
+    this.ids = ids;
+    this.max = max;
+  }
+
+  /**
+   * Method which returns the ids
+   *
+   * @return The contained ids
+   */
+  public Id[] getIds() {
+    return ids;
+  }
+
+  /**
+   * Method which returns the number of replicas
+   *
+   * @return The number of replicas to fetch
+   */
+  public int getMax() {
+    return max;
+  }
+
+  /**
+    * Returns a string representation of this message
+   *
+   * @return A string representing this message
+   */
+  public String toString() {
+    return "[BulkLookupHandlesMessage (response " + isResponse() + ") for " + ids.length + " ids max " + max + "]";
+  }
+
+  /***************** Raw Serialization ***************************************/
+  public short getType() {
+    return TYPE;
+  }
+  
+  public void serialize(OutputBuffer buf) throws IOException {
+    buf.writeByte((byte)0); // version        
+    if (response != null && response instanceof Object[]) {
+      super.serialize(buf, false); 
+      Object[] sets = (Object[]) response;
+      buf.writeInt(sets.length);
+      for (int i=0; i<sets.length; i++) {
+        NodeHandleSet set = (NodeHandleSet) sets[i];
+        buf.writeBoolean(set != null);
+        if (set != null) {
+          buf.writeShort(set.getType());
+          set.serialize(buf);
+        }
+      }
+    } else {
+      super.serialize(buf, true);       
+    }
+    buf.writeInt(max);
+    BulkLookupMessage.serializeIds(ids, buf);
+  }
+  
+  public static BulkLookupHandlesMessage build(InputBuffer buf, Endpoint endpoint) throws IOException {
+    byte version = buf.readByte();
+    switch(version) {
+      case 0:
+        return new BulkLookupHandlesMessage(buf, endpoint);
+      default:
+        throw new IOException("Unknown Version: "+version);        
+    }
+  }  
+  
+  private BulkLookupHandlesMessage(InputBuffer buf, Endpoint endpoint) throws IOException {
+    super(buf, endpoint);    
+    if (serType == S_SUB) {
+      Object[] sets = new Object[buf.readInt()];
+      for (int i=0; i<sets.length; i++) 
+        if (buf.readBoolean())
+          sets[i] = endpoint.readNodeHandleSet(buf, buf.readShort());
+      response = sets;
+    }
+    max = buf.readInt();    
+    ids = BulkLookupMessage.deserializeIds(buf, endpoint);
+  }
+}
@@ -0,0 +1,175 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+
+package rice.p2p.past.messaging;
+
+import java.io.IOException;
+
+import rice.*;
+import rice.p2p.commonapi.*;
+import rice.p2p.commonapi.rawserialization.*;
+import rice.p2p.past.*;
+import rice.p2p.past.rawserialization.*;
+
+/**
+ * @(#) BulkLookupMessage.java
+ *
+ * This class is the representation of a lookup request for a number of
+ * keys which are all stored on the destination node.  It is sent directly
+ * to the node, rather than being routed.
+ *
+ * response should be an Object[] of PastContents, with null entries for
+ * the keys which were not found
+ *
+ * @version $Id$
+ *
+ * @author agent
+ */
+public class BulkLookupMessage extends ContinuationMessage {
+  public static final short TYPE = 13;
+
+  // the ids to fetch
+  private Id[] ids;
+  
+  /**
+   * Constructor
+   *
+   * @param uid The unique id
+   * @param ids The keys to fetch
+   * @param source The source address
+   * @param dest The destination address
+   */
+  public BulkLookupMessage(int uid, Id[] ids, NodeHandle source, Id dest) {
+    super(uid, source, dest);
+
+    this.ids = ids;
+  }
+
+  /**
+   * Method which returns the ids
+   *
+   * @return The contained ids
+   */
+  public Id[] getIds() {
+    return ids;
+  }
+
+  /**
+    * Returns a string representation of this message
+   *
+   * @return A string representing this message
+   */
+  public String toString() {
+    return "[BulkLookupMessage (response " + isResponse() + ") for " + ids.length + " ids]";
+  }
+  
+  /***************** Raw Serialization ***************************************/
+  public short getType() {
+    return TYPE;
+  }
+  
+  public void serialize(OutputBuffer buf) throws IOException {
+    buf.writeByte((byte)0); // version        
+    if (response != null && response instanceof Object[]) {
+      super.serialize(buf, false); 
+      Object[] contents = (Object[]) response;
+      buf.writeInt(contents.length);
+      for (int i=0; i<contents.length; i++) {
+        buf.writeBoolean(contents[i] != null);
+        if (contents[i] != null) {
+          RawPastContent rpc = (contents[i] instanceof RawPastContent ? (RawPastContent) contents[i] : new JavaSerializedPastContent((PastContent) contents[i]));
+          buf.writeShort(rpc.getType());
+          rpc.serialize(buf);
+        }
+      }
+    } else {
+      super.serialize(buf, true);       
+    }
+    
+    serializeIds(ids, buf);
+  }
+
+  public static BulkLookupMessage build(InputBuffer buf, Endpoint endpoint, PastContentDeserializer pcd) throws IOException {
+    byte version = buf.readByte();
+    switch(version) {
+      case 0:
+        return new BulkLookupMessage(buf, endpoint, pcd);
+      default:
+        throw new IOException("Unknown Version: "+version);        
+    }
+  }  
+  
+  private BulkLookupMessage(InputBuffer buf, Endpoint endpoint, PastContentDeserializer pcd) throws IOException {
+    super(buf, endpoint);
+    if (serType == S_SUB) {
+      Object[] contents = new Object[buf.readInt()];
+      for (int i=0; i<contents.length; i++) 
+        if (buf.readBoolean())
+          contents[i] = pcd.deserializePastContent(buf, endpoint, buf.readShort());
+      response = contents;
+    }
+    ids = deserializeIds(buf, endpoint);
+  }
+  
+  /**
+   * Writes an array of ids, as used by the bulk messages.
+   *
+   * @param ids The ids to write
+   * @param buf The buffer to write to
+   */
+  static void serializeIds(Id[] ids, OutputBuffer buf) throws IOException {
+    buf.writeInt(ids.length);
+    for (int i=0; i<ids.length; i++) {
+      buf.writeShort(ids[i].getType());
+      ids[i].serialize(buf);
+    }
+  }
+  
+  /**
+   * Reads an array of ids written by serializeIds().
+   *
+   * @param buf The buffer to read from
+   * @param endpoint The endpoint to build the ids with
+   * @return The ids
+   */
+  static Id[] deserializeIds(InputBuffer buf, Endpoint endpoint) throws IOException {
+    Id[] ids = new Id[buf.readInt()];
+    for (int i=0; i<ids.length; i++) 
+      ids[i] = endpoint.readId(buf, buf.readShort());
+    return ids;
+  }
+}
@@ -0,0 +1,345 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+
+package rice.p2p.past.testing;
+
+import java.io.*;
+import java.util.*;
+
+import rice.*;
+import rice.environment.Environment;
+import rice.p2p.commonapi.*;
+import rice.p2p.commonapi.testing.CommonAPITest;
+import rice.p2p.past.*;
+import rice.p2p.past.messaging.*;
+import rice.persistence.*;
+
+/**
+ * @(#) PastBulkBenchmark.java Compares the throughput of the bulk insert and
+ * lookup operations of PastImpl with the per-object operations, using the
+ * direct simulator.
+ *
+ * The same number of objects is inserted and looked up using both APIs, and the
+ * benchmark reports the simulated time, the wall clock time and the number of
+ * request messages sent.  The bulk lookup also includes keys which were never
+ * inserted, in order to check that partial failures are reported per key.
+ *
+ * Usage: PastBulkBenchmark [-nodes n] [-objects o] [-size bytes] [-batch b]
+ *
+ * @version $Id$
+ * @author agent
+ */
+@SuppressWarnings("unchecked")
+public class PastBulkBenchmark extends CommonAPITest {
+
+  /**
+   * The replication factor to use
+   */
+  public static final int REPLICATION_FACTOR = 3;
+  
+  /**
+   * the instance name to use
+   */
+  public static String INSTANCE = "PastBulkBenchmark";
+  
+  /**
+   * The number of keys to look up which were never inserted
+   */
+  public static int NUM_MISSING = 10;
+  
+  /**
+   * The maximum (simulated) time to wait for an operation
+   */
+  public static int MAX_TIME = 10 * 60 * 1000;
+  
+  /**
+   * the number of objects and their size
+   */
+  protected int numObjects;
+  protected int size;
+  
+  /**
+   * the past impls in the ring
+   */
+  protected CountingPastImpl[] pasts;
+  
+  /**
+   * The results of the current operation
+   */
+  protected int done;
+  protected int failed;
+  protected int found;
+  protected int partials;
+  
+  /**
+   * Constructor which sets up all local variables
+   */
+  public PastBulkBenchmark(Environment env, int numObjects, int size) throws IOException {
+    super(env);
+    this.numObjects = numObjects;
+    this.size = size;
+    this.pasts = new CountingPastImpl[NUM_NODES];
+  }
+
+  public static void main(String args[]) throws IOException {
+    int objects = 1000;
+    int size = 1024;
+    
+    for (int i = 0; i < args.length - 1; i++) {
+      if (args[i].equals("-objects")) 
+        objects = Integer.parseInt(args[i+1]);
+      if (args[i].equals("-size")) 
+        size = Integer.parseInt(args[i+1]);
+    }
+    
+    Environment env = parseArgs(args);
+    
+    for (int i = 0; i < args.length - 1; i++) 
+      if (args[i].equals("-batch")) 
+        env.getParameters().setInt("p2p_past_bulkBatchSize", Integer.parseInt(args[i+1]));
+    
+    PastBulkBenchmark test = new PastBulkBenchmark(env, objects, size);
+    test.start();
+    env.destroy();
+  }
+
+  /**
+   * Method which should process the given newly-created node
+   *
+   * @param node The newly created node
+   * @param num The number of this node
+   */
+  protected void processNode(int num, Node node) {
+    StorageManager storage = new StorageManagerImpl(FACTORY,
+                                                    new MemoryStorage(FACTORY),
+                                                    new LRUCache(new MemoryStorage(FACTORY), 1000000, environment));
+    pasts[num] = new CountingPastImpl(node, storage, REPLICATION_FACTOR, INSTANCE);
+  }
+
+  /**
+   * Method which should run the test - this is called once all of the
+   * nodes have been created and are ready.
+   */
+  protected void runTest() {
+    if (NUM_NODES < REPLICATION_FACTOR + 2) {
+      System.out.println("The PastBulkBenchmark must be run with at least " + (REPLICATION_FACTOR + 2) + " nodes.  Use the '-nodes n' to specify the number of nodes.");
+      return;
+    }
+    
+    waitOnClock(10000);
+    
+    final PastContent[] single = buildContent();
+    final PastContent[] bulk = buildContent();
+    
+    sectionStart("Insert throughput");
+    
+    stepStart("Per-object insert of " + numObjects + " objects");
+    run(new Runnable() {
+      public void run() {
+        Continuation c = new CountingContinuation(false);
+        for (int i=0; i<single.length; i++)
+          pasts[0].insert(single[i], c);
+      }
+    }, "per-object insert");
+    assertTrue("All per-object inserts should succeed, " + failed + " failed", failed == 0);
+    stepDone(SUCCESS);
+    
+    stepStart("Bulk insert of " + numObjects + " objects");
+    run(new Runnable() {
+      public void run() {
+        pasts[0].insert(bulk, new CountingContinuation(true));
+      }
+    }, "bulk insert");
+    assertTrue("All bulk inserts should succeed, " + failed + " failed", failed == 0);
+    assertTrue("Every object should be reported as it completes, got " + partials, partials == numObjects);
+    stepDone(SUCCESS);
+    
+    sectionDone();
+    sectionStart("Lookup throughput");
+    
+    stepStart("Per-object lookup of " + numObjects + " objects");
+    run(new Runnable() {
+      public void run() {
+        Continuation c = new CountingContinuation(false);
+        for (int i=0; i<single.length; i++)
+          pasts[1].lookup(single[i].getId(), false, c);
+      }
+    }, "per-object lookup");
+    assertTrue("All per-object lookups should find the object, found " + found, found == numObjects);
+    stepDone(SUCCESS);
+    
+    final Id[] ids = new Id[numObjects + NUM_MISSING];
+    for (int i=0; i<numObjects; i++)
+      ids[i] = bulk[i].getId();
+    for (int i=numObjects; i<ids.length; i++)
+      ids[i] = FACTORY.buildRandomId(environment.getRandomSource());
+    
+    stepStart("Bulk lookup of " + numObjects + " objects and " + NUM_MISSING + " missing keys");
+    run(new Runnable() {
+      public void run() {
+        pasts[1].lookup(ids, false, new CountingContinuation(true));
+      }
+    }, "bulk lookup");
+    assertTrue("All bulk lookups should find the object, found " + found, found == numObjects);
+    assertTrue("Every key should be reported, got " + partials, partials == ids.length);
+    stepDone(SUCCESS);
+    
+    sectionDone();
+  }
+  
+  /**
+   * Runs the given operation on the selector, and waits until all of the 
+   * results have come back, printing the time and number of messages it took.
+   *
+   * @param operation The operation to run
+   * @param name The name of the operation
+   */
+  protected void run(Runnable operation, String name) {
+    done = failed = found = partials = 0;
+    int messages = 0;
+    for (int i=0; i<pasts.length; i++) 
+      messages -= pasts[i].requests;
+    
+    long start = environment.getTimeSource().currentTimeMillis();
+    long wall = System.currentTimeMillis();
+    
+    environment.getSelectorManager().invoke(operation);
+    
+    while ((done == 0) && (environment.getTimeSource().currentTimeMillis() - start < MAX_TIME)) 
+      waitOnClock(100);
+    
+    for (int i=0; i<pasts.length; i++) 
+      messages += pasts[i].requests;
+    
+    System.out.println("RESULT: " + name + " objects=" + numObjects + " size=" + size + 
+        " simulated-time=" + (environment.getTimeSource().currentTimeMillis() - start) + "ms wall-time=" + 
+        (System.currentTimeMillis() - wall) + "ms request-messages=" + messages);
+  }
+  
+  /**
+   * Builds numObjects objects of the configured size
+   *
+   * @return The objects
+   */
+  protected PastContent[] buildContent() {
+    PastContent[] result = new PastContent[numObjects];
+    for (int i=0; i<result.length; i++) {
+      byte[] data = new byte[size];
+      environment.getRandomSource().nextBytes(data);
+      result[i] = new BenchmarkContent(FACTORY.buildId(data), data);
+    }
+    
+    return result;
+  }
+  
+  /**
+   * Continuation which counts the results of either the per-object or the 
+   * bulk operations.  The per-object operations share a single continuation, 
+   * and the operation is done once all results have come in.
+   */
+  protected class CountingContinuation implements BulkContinuation {
+    
+    protected boolean bulk;
+    protected int remaining = numObjects;
+    
+    public CountingContinuation(boolean bulk) {
+      this.bulk = bulk;
+    }
+    
+    public void receivePartialResult(int index, Object o) {
+      partials++;
+    }
+    
+    public void receivePartialException(int index, Exception e) {
+      partials++;
+    }
+    
+    public void receiveResult(Object o) {
+      if (bulk) {
+        Object[] results = (Object[]) o;
+        for (int i=0; i<results.length; i++) 
+          count(results[i]);
+        done++;
+      } else {
+        count(o);
+        if (--remaining == 0) 
+          done++;
+      }
+    }
+    
+    public void receiveException(Exception e) {
+      receiveResult(e);
+    }
+    
+    protected void count(Object o) {
+      if (o instanceof Exception)
+        failed++;
+      else if (o instanceof PastContent)
+        found++;
+    }
+  }
+  
+  /**
+   * PastImpl which counts the number of request messages it sends
+   */
+  protected static class CountingPastImpl extends PastImpl {
+    
+    public int requests = 0;
+    
+    public CountingPastImpl(Node node, StorageManager manager, int replicas, String instance) {
+      super(node, manager, replicas, instance);
+    }
+    
+    protected void sendRequest(Id id, PastMessage message, NodeHandle hint, Continuation command) {
+      requests++;
+      super.sendRequest(id, message, hint, command);
+    }
+  }
+  
+  /**
+   * The content inserted by the benchmark
+   */
+  protected static class BenchmarkContent extends ContentHashPastContent {
+    
+    protected byte[] data;
+    
+    public BenchmarkContent(Id id, byte[] data) {
+      super(id);
+      this.data = data;
+    }
+  }
+}
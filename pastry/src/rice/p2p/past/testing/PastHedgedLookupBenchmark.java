@@ -0,0 +1,358 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+
+package rice.p2p.past.testing;
+
+import java.io.*;
+import java.util.*;
+
+import rice.*;
+import rice.environment.Environment;
+import rice.environment.random.RandomSource;
+import rice.p2p.commonapi.*;
+import rice.p2p.commonapi.testing.CommonAPITest;
+import rice.p2p.past.*;
+import rice.p2p.past.messaging.*;
+import rice.persistence.*;
+import rice.selector.TimerTask;
+
+/**
+ * @(#) PastHedgedLookupBenchmark.java Compares the latency distribution of 
+ * PastImpl's routed lookups with its hedged lookups in the direct simulator,
+ * when some of the nodes are stragglers which answer lookups late.
+ *
+ * Objects are inserted, and then the same sequence of lookups from random 
+ * nodes for random objects is performed with both lookup methods.  The 
+ * benchmark reports the median and tail latencies, in simulated time.
+ *
+ * Usage: PastHedgedLookupBenchmark [-nodes n] [-objects o] [-lookups l] 
+ *        [-stragglers fraction] [-delay ms] [-warmup w]
+ *
+ * @version $Id$
+ * @author agent
+ */
+@SuppressWarnings("unchecked")
+public class PastHedgedLookupBenchmark extends CommonAPITest {
+
+  /**
+   * The replication factor to use
+   */
+  public static final int REPLICATION_FACTOR = 3;
+  
+  /**
+   * the instance name to use
+   */
+  public static String INSTANCE = "PastHedgedLookupBenchmark";
+  
+  /**
+   * The interval between the start of two lookups
+   */
+  public static int LOOKUP_INTERVAL = 20;
+  
+  /**
+   * The number of hedged lookups used to learn the replica latencies before
+   * measuring
+   */
+  public static int WARMUP_LOOKUPS = 1000;
+  
+  /**
+   * The maximum (simulated) time to wait for the lookups
+   */
+  public static int MAX_TIME = 30 * 60 * 1000;
+  
+  /**
+   * the parameters of the benchmark
+   */
+  protected int numObjects;
+  protected int numLookups;
+  protected double stragglers;
+  protected int delay;
+  
+  /**
+   * the past impls in the ring
+   */
+  protected StragglerPastImpl[] pasts;
+  
+  /**
+   * The latencies of the current set of lookups, and how many have completed
+   */
+  protected long[] latencies;
+  protected int completed;
+  protected int found;
+  
+  /**
+   * Constructor which sets up all local variables
+   */
+  public PastHedgedLookupBenchmark(Environment env, int numObjects, int numLookups, double stragglers, int delay) throws IOException {
+    super(env);
+    this.numObjects = numObjects;
+    this.numLookups = numLookups;
+    this.stragglers = stragglers;
+    this.delay = delay;
+    this.pasts = new StragglerPastImpl[NUM_NODES];
+  }
+
+  public static void main(String args[]) throws IOException {
+    int objects = 200;
+    int lookups = 1000;
+    double stragglers = 0.1;
+    int delay = 2000;
+    
+    for (int i = 0; i < args.length - 1; i++) {
+      if (args[i].equals("-objects")) 
+        objects = Integer.parseInt(args[i+1]);
+      if (args[i].equals("-lookups")) 
+        lookups = Integer.parseInt(args[i+1]);
+      if (args[i].equals("-stragglers")) 
+        stragglers = Double.parseDouble(args[i+1]);
+      if (args[i].equals("-delay")) 
+        delay = Integer.parseInt(args[i+1]);
+      if (args[i].equals("-warmup")) 
+        WARMUP_LOOKUPS = Integer.parseInt(args[i+1]);
+    }
+    
+    Environment env = parseArgs(args);
+    PastHedgedLookupBenchmark test = new PastHedgedLookupBenchmark(env, objects, lookups, stragglers, delay);
+    test.start();
+    env.destroy();
+  }
+
+  /**
+   * Method which should process the given newly-created node
+   *
+   * @param node The newly created node
+   * @param num The number of this node
+   */
+  protected void processNode(int num, Node node) {
+    StorageManager storage = new StorageManagerImpl(FACTORY,
+                                                    new MemoryStorage(FACTORY),
+                                                    new LRUCache(new MemoryStorage(FACTORY), 1000000, environment));
+    pasts[num] = new StragglerPastImpl(node, storage, REPLICATION_FACTOR, INSTANCE);
+  }
+
+  /**
+   * Method which should run the test - this is called once all of the
+   * nodes have been created and are ready.
+   */
+  protected void runTest() {
+    if (NUM_NODES < REPLICATION_FACTOR + 2) {
+      System.out.println("The PastHedgedLookupBenchmark must be run with at least " + (REPLICATION_FACTOR + 2) + " nodes.  Use the '-nodes n' to specify the number of nodes.");
+      return;
+    }
+    
+    waitOnClock(10000);
+    RandomSource random = environment.getRandomSource();
+    
+    sectionStart("Setup");
+    stepStart("Inserting " + numObjects + " objects");
+    
+    final PastContent[] objects = new PastContent[numObjects];
+    for (int i=0; i<objects.length; i++) {
+      byte[] data = new byte[64];
+      random.nextBytes(data);
+      objects[i] = new PastBulkBenchmark.BenchmarkContent(FACTORY.buildId(data), data);
+    }
+    
+    final Object[] inserted = new Object[1];
+    environment.getSelectorManager().invoke(new Runnable() {
+      public void run() {
+        pasts[0].insert(objects, new Continuation() {
+          public void receiveResult(Object o) {
+            inserted[0] = o;
+          }
+          
+          public void receiveException(Exception e) {
+            inserted[0] = e;
+          }
+        });
+      }
+    });
+    
+    while (inserted[0] == null)
+      waitOnClock(100);
+    
+    Object[] results = (Object[]) inserted[0];
+    for (int i=0; i<results.length; i++)
+      assertTrue("Insert of object " + i + " should succeed, got " + results[i], ! (results[i] instanceof Exception));
+    stepDone(SUCCESS);
+    
+    stepStart("Making " + stragglers + " of the nodes stragglers with delay " + delay + "ms");
+    int numStragglers = 0;
+    for (int i=1; i<pasts.length; i++) {
+      if (random.nextDouble() < stragglers) {
+        pasts[i].straggler = true;
+        numStragglers++;
+      }
+    }
+    stepDone(SUCCESS, numStragglers + " stragglers");
+    sectionDone();
+    
+    // the same sequence of lookups is used for each method
+    int[] sources = new int[numLookups + WARMUP_LOOKUPS];
+    Id[] keys = new Id[numLookups + WARMUP_LOOKUPS];
+    for (int i=0; i<keys.length; i++) {
+      do {
+        sources[i] = random.nextInt(pasts.length);
+      } while (pasts[sources[i]].straggler);
+      
+      keys[i] = objects[random.nextInt(objects.length)].getId();
+    }
+    
+    sectionStart("Lookup latency");
+    
+    stepStart("Routed lookups");
+    run(sources, keys, WARMUP_LOOKUPS, false);
+    stepDone(SUCCESS);
+    
+    stepStart("Hedged lookups (after " + WARMUP_LOOKUPS + " warmup lookups)");
+    run(sources, keys, 0, true);
+    stepDone(SUCCESS);
+    
+    int hedged = 0;
+    for (int i=0; i<pasts.length; i++)
+      hedged += pasts[i].hedgedRequests;
+    System.out.println("RESULT: hedged requests=" + hedged);
+    
+    for (int i=0; i<pasts.length; i++) {
+      if (pasts[i].straggler) {
+        LatencyStatistics stats = pasts[sources[0]].getReplicaStatistics(pasts[i].getLocalNodeHandle());
+        if (stats != null)
+          System.out.println("  straggler " + pasts[i].getLocalNodeHandle() + " as seen by " + pasts[sources[0]].getLocalNodeHandle() + ": " + stats);
+      }
+    }
+    
+    sectionDone();
+  }
+  
+  /**
+   * Performs the given lookups, starting one every LOOKUP_INTERVAL milliseconds,
+   * and prints the latency distribution of all but the first skip lookups.
+   *
+   * @param sources The node to perform each lookup from
+   * @param keys The key to look up in each lookup
+   * @param skip The number of lookups to skip at the start
+   * @param hedged Whether to use hedged or routed lookups
+   */
+  protected void run(final int[] sources, final Id[] keys, int skip, final boolean hedged) {
+    final int num = keys.length - skip;
+    latencies = new long[num];
+    completed = 0;
+    found = 0;
+    
+    for (int i=0; i<num; i++) {
+      final int index = i;
+      final int source = sources[i + skip];
+      final Id key = keys[i + skip];
+      
+      environment.getSelectorManager().schedule(new TimerTask() {
+        public void run() {
+          final long start = environment.getTimeSource().currentTimeMillis();
+          Continuation c = new Continuation() {
+            public void receiveResult(Object o) {
+              latencies[index] = environment.getTimeSource().currentTimeMillis() - start;
+              completed++;
+              
+              if (o != null)
+                found++;
+            }
+            
+            public void receiveException(Exception e) {
+              receiveResult(null);
+            }
+          };
+          
+          if (hedged)
+            pasts[source].hedgedLookup(key, false, c);
+          else
+            pasts[source].lookup(key, false, c);
+        }
+      }, i * LOOKUP_INTERVAL);
+    }
+    
+    long start = environment.getTimeSource().currentTimeMillis();
+    while ((completed < num) && (environment.getTimeSource().currentTimeMillis() - start < MAX_TIME))
+      waitOnClock(1000);
+    
+    // the warmup lookups are discarded
+    long[] sorted = new long[num - (hedged ? WARMUP_LOOKUPS : 0)];
+    System.arraycopy(latencies, num - sorted.length, sorted, 0, sorted.length);
+    Arrays.sort(sorted);
+    
+    System.out.println("RESULT: " + (hedged ? "hedged" : "routed") + " lookups=" + sorted.length + " found=" + found + 
+        " p50=" + percentile(sorted, 0.5) + "ms p95=" + percentile(sorted, 0.95) + "ms p99=" + percentile(sorted, 0.99) + 
+        "ms max=" + sorted[sorted.length - 1] + "ms");
+    
+    assertTrue("All lookups should complete, only " + completed + " of " + num + " did", completed == num);
+    assertTrue("All lookups should find the object, only " + found + " of " + num + " did", found == num);
+  }
+  
+  /**
+   * Returns the given percentile of the sorted array
+   *
+   * @param sorted The sorted values
+   * @param percentile The percentile
+   * @return The value
+   */
+  protected static long percentile(long[] sorted, double percentile) {
+    return sorted[Math.max(0, (int) Math.ceil(percentile * sorted.length) - 1)];
+  }
+  
+  /**
+   * PastImpl which, if it is a straggler, answers lookup requests only after
+   * the configured delay
+   */
+  protected class StragglerPastImpl extends PastImpl {
+    
+    public boolean straggler = false;
+    
+    public StragglerPastImpl(Node node, StorageManager manager, int replicas, String instance) {
+      super(node, manager, replicas, instance);
+    }
+    
+    public void deliver(final Id id, final Message message) {
+      if (straggler && (message instanceof LookupMessage) && (! ((LookupMessage) message).isResponse())) {
+        environment.getSelectorManager().schedule(new TimerTask() {
+          public void run() {
+            StragglerPastImpl.super.deliver(id, message);
+          }
+        }, delay);
+      } else {
+        super.deliver(id, message);
+      }
+    }
+  }
+}
@@ -729,7 +729,7 @@ public class PastRegrTest extends CommonAPITest {
 
                     sectionDone();
                     
-                    cleanUp();
+                    testBatchFetch();
                   }
                 });
                 simulate();
@@ -744,6 +744,74 @@ public class PastRegrTest extends CommonAPITest {
     simulate();
   }
 
+  /**
+   * Tests the batch fetch() which the replication manager uses.
+   */
+  protected void testBatchFetch() {
+    final PastImpl local = pasts[environment.getRandomSource().nextInt(NUM_NODES)];
+    final PastContent[] files = new PastContent[] {new TestPastContent(generateId()), 
+      new TestPastContent(generateId()), new TestPastContent(generateId())};
+    final Id missing = generateId();
+
+    sectionStart("Batch Fetch Testing");
+
+    stepStart("File Insertion");
+    local.insert(files, new TestCommand() {
+      public void receive(Object result) throws Exception {
+        Object[] results = (Object[]) result;
+        for (int i=0; i<files.length; i++) 
+          assertTrue("Insert of file " + i + " should succeed", results[i] instanceof Boolean[]);
+        
+        stepDone();
+        
+        // find a node which doesn't have any of the files
+        PastImpl fetcher = null;
+        for (int i=0; (i<NUM_NODES) && (fetcher == null); i++) {
+          fetcher = pasts[i];
+          for (int j=0; j<files.length; j++) 
+            if (pasts[i].getStorageManager().exists(files[j].getId()))
+              fetcher = null;
+        }
+        
+        if (fetcher == null) {
+          stepStart("Batch Fetch");
+          stepDone(SUCCESS, "Every node has one of the files, skipping");
+          sectionDone();
+          cleanUp();
+          return;
+        }
+        
+        final PastImpl f = fetcher;
+        IdSet ids = FACTORY.buildIdSet();
+        for (int i=0; i<files.length; i++)
+          ids.addId(files[i].getId());
+        ids.addId(missing);
+        
+        stepStart("Batch Fetch");
+        f.fetch(ids, local.getLocalNodeHandle(), new TestCommand() {
+          public void receive(Object result) throws Exception {
+            IdSet fetched = (IdSet) result;
+            
+            assertTrue("Should fetch " + files.length + " ids, fetched " + fetched.numElements(), fetched.numElements() == files.length);
+            assertTrue("Missing id should not be fetched", ! fetched.isMemberId(missing));
+            for (int i=0; i<files.length; i++) {
+              assertTrue("File " + i + " should be fetched", fetched.isMemberId(files[i].getId()));
+              assertTrue("File " + i + " should be stored", f.getStorageManager().exists(files[i].getId()));
+            }
+            
+            stepDone();
+            
+            sectionDone();
+            
+            cleanUp();
+          }
+        });
+        simulate();
+      }
+    });
+    simulate();
+  }
+
   /**
    * Private method which initiates the replica maintenance on all
    * of the nodes
@@ -0,0 +1,304 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.past.testing;
+
+import java.io.*;
+
+import rice.*;
+import rice.environment.Environment;
+import rice.p2p.commonapi.*;
+import rice.p2p.commonapi.testing.CommonAPITest;
+import rice.p2p.past.*;
+import rice.p2p.past.rawserialization.DefaultSocketStrategy;
+import rice.persistence.*;
+
+/**
+ * @(#) PastSocketPoolBenchmark.java Compares inserting objects along sockets 
+ * with a new socket per object, and with the pooled socket per replica.
+ *
+ * Each mode first inserts the objects one at a time, to measure the latency 
+ * of an insert, and then several at a time, to measure the throughput.  The benchmark 
+ * reports the time, the number of sockets opened and the number of failed inserts.  
+ * Only the pooled inserts are required to succeed: opening a socket per object 
+ * can run into the socket limit when many objects are inserted at once.
+ *
+ * PAST can't serialize its messages in the direct simulator, so this should be 
+ * run with the socket protocol.
+ *
+ * Usage: PastSocketPoolBenchmark -protocol socket [-nodes n] [-objects o] [-size bytes] [-window w]
+ *
+ * @version $Id$
+ * @author agent
+ */
+@SuppressWarnings("unchecked")
+public class PastSocketPoolBenchmark extends CommonAPITest {
+
+  /**
+   * The replication factor to use
+   */
+  public static final int REPLICATION_FACTOR = 3;
+  
+  /**
+   * the instance name to use
+   */
+  public static String INSTANCE = "PastSocketPoolBenchmark";
+  
+  /**
+   * The maximum (simulated) time to wait for an operation
+   */
+  public static int MAX_TIME = 10 * 60 * 1000;
+  
+  /**
+   * the number of objects and their size
+   */
+  protected int numObjects;
+  protected int size;
+  
+  /**
+   * the number of outstanding inserts when inserting concurrently
+   */
+  protected int window;
+  
+  /**
+   * the past impls in the ring
+   */
+  protected CountingPastImpl[] pasts;
+  
+  /**
+   * The results of the current operation
+   */
+  protected int remaining;
+  protected int failed;
+  protected int next;
+  
+  /**
+   * Constructor which sets up all local variables
+   */
+  public PastSocketPoolBenchmark(Environment env, int numObjects, int size, int window) throws IOException {
+    super(env);
+    this.numObjects = numObjects;
+    this.size = size;
+    this.window = window;
+    this.pasts = new CountingPastImpl[NUM_NODES];
+  }
+
+  public static void main(String args[]) throws IOException {
+    int objects = 200;
+    int size = 16384;
+    int window = 8;
+    
+    for (int i = 0; i < args.length - 1; i++) {
+      if (args[i].equals("-objects")) 
+        objects = Integer.parseInt(args[i+1]);
+      if (args[i].equals("-size")) 
+        size = Integer.parseInt(args[i+1]);
+      if (args[i].equals("-window")) 
+        window = Integer.parseInt(args[i+1]);
+    }
+    
+    Environment env = parseArgs(args);
+    PastSocketPoolBenchmark test = new PastSocketPoolBenchmark(env, objects, size, window);
+    test.start();
+    env.destroy();
+  }
+
+  /**
+   * Method which should process the given newly-created node
+   *
+   * @param node The newly created node
+   * @param num The number of this node
+   */
+  protected void processNode(int num, Node node) {
+    // MemoryStorage serializes every object to find its size, don't do that twice
+    StorageManager storage = new StorageManagerImpl(FACTORY,
+                                                    new MemoryStorage(FACTORY),
+                                                    new EmptyCache(FACTORY));
+    pasts[num] = new CountingPastImpl(node, storage, REPLICATION_FACTOR, INSTANCE);
+  }
+
+  /**
+   * Method which should run the test - this is called once all of the
+   * nodes have been created and are ready.
+   */
+  protected void runTest() {
+    if (NUM_NODES < REPLICATION_FACTOR + 2) {
+      System.out.println("The PastSocketPoolBenchmark must be run with at least " + (REPLICATION_FACTOR + 2) + " nodes.  Use the '-nodes n' to specify the number of nodes.");
+      return;
+    }
+    
+    waitOnClock(10000);
+
+    for (int pooled = 0; pooled < 2; pooled++) {
+      String mode = (pooled == 1) ? "pooled" : "unpooled";
+      for (int i=0; i<pasts.length; i++) 
+        pasts[i].USE_SOCKET_POOL = (pooled == 1);
+      
+      sectionStart("Inserts along " + mode + " sockets");
+      
+      stepStart("Sequential insert of " + numObjects + " objects");
+      run(buildContent(), 1, mode + " sequential insert");
+      if (pooled == 1) 
+        assertTrue("All inserts should succeed, " + failed + " failed", failed == 0);
+      stepDone(SUCCESS);
+      
+      stepStart("Insert of " + numObjects + " objects, " + window + " at a time");
+      run(buildContent(), window, mode + " concurrent insert");
+      if (pooled == 1) 
+        assertTrue("All inserts should succeed, " + failed + " failed", failed == 0);
+      stepDone(SUCCESS);
+      
+      sectionDone();
+    }
+  }
+  
+  /**
+   * Inserts the content from pasts[0], keeping window inserts outstanding, 
+   * and waits until all of the results have come back, printing the time 
+   * and number of sockets it took.
+   *
+   * @param content The objects to insert
+   * @param window The number of outstanding inserts
+   * @param name The name of the operation
+   */
+  protected void run(final PastContent[] content, final int window, String name) {
+    remaining = content.length;
+    failed = 0;
+    next = 0;
+    int sockets = 0;
+    for (int i=0; i<pasts.length; i++) 
+      sockets -= pasts[i].getSocketsAccepted();
+    
+    long start = environment.getTimeSource().currentTimeMillis();
+    long wall = System.currentTimeMillis();
+    
+    environment.getSelectorManager().invoke(new Runnable() {
+      public void run() {
+        for (int i=0; i<window; i++) 
+          insertNext(content);
+      }
+    });
+    
+    while ((remaining > 0) && (environment.getTimeSource().currentTimeMillis() - start < MAX_TIME)) 
+      waitOnClock(100);
+    
+    long time = environment.getTimeSource().currentTimeMillis() - start;
+    for (int i=0; i<pasts.length; i++) 
+      sockets += pasts[i].getSocketsAccepted();
+    
+    System.out.println("RESULT: " + name + " objects=" + numObjects + " size=" + size + 
+        " simulated-time=" + time + "ms (" + (time/content.length) + "ms/object) wall-time=" + 
+        (System.currentTimeMillis() - wall) + "ms sockets-opened=" + sockets + " failed=" + failed);
+  }
+  
+  /**
+   * Builds numObjects objects of the configured size
+   *
+   * @return The objects
+   */
+  protected PastContent[] buildContent() {
+    PastContent[] result = new PastContent[numObjects];
+    for (int i=0; i<result.length; i++) {
+      byte[] data = new byte[size];
+      environment.getRandomSource().nextBytes(data);
+      result[i] = new PastBulkBenchmark.BenchmarkContent(FACTORY.buildId(data), data);
+    }
+    
+    return result;
+  }
+  
+  /**
+   * Inserts the next object, if there are any left
+   *
+   * @param content The objects to insert
+   */
+  protected void insertNext(PastContent[] content) {
+    if (next < content.length) {
+      pasts[0].insert(content[next], new InsertContinuation(content));
+      next++;
+    }
+  }
+  
+  /**
+   * Counts an insert, and starts the next one
+   */
+  protected class InsertContinuation implements Continuation {
+    
+    protected PastContent[] content;
+    
+    public InsertContinuation(PastContent[] content) {
+      this.content = content;
+    }
+    
+    public void receiveResult(Object o) {
+      Boolean[] results = (Boolean[]) o;
+      int successes = 0;
+      for (int i=0; i<results.length; i++) 
+        if ((results[i] != null) && results[i].booleanValue())
+          successes++;
+      if (successes < REPLICATION_FACTOR) 
+        failed++;
+      done();
+    }
+    
+    public void receiveException(Exception e) {
+      failed++;
+      done();
+    }
+    
+    protected void done() {
+      remaining--;
+      insertNext(content);
+    }
+  }
+  
+  /**
+   * PastImpl which sends its inserts along sockets
+   */
+  protected static class CountingPastImpl extends PastImpl {
+    
+    public CountingPastImpl(Node node, StorageManager manager, int replicas, String instance) {
+      super(node, manager, null, replicas, instance, new PastPolicy.DefaultPastPolicy(), null, new DefaultSocketStrategy(true));
+    }
+    
+    /**
+     * @return the number of sockets opened to this node, pooled or not
+     */
+    public int getSocketsAccepted() {
+      return socketPool.getSocketsAccepted();
+    }
+  }
+}
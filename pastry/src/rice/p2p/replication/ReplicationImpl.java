@@ -51,6 +51,7 @@ import rice.p2p.commonapi.rawserialization.*;
 import rice.p2p.replication.ReplicationPolicy.*;
 import rice.p2p.replication.messaging.*;
 import rice.p2p.util.*;
+import rice.pastry.PackedIdSet;
 
 /**
  * @(#) ReplicationImpl.java
@@ -73,6 +74,11 @@ public class ReplicationImpl implements Replication, Application, Destructable {
    */
   public final int MAX_KEYS_IN_MESSAGE;
   
+  /**
+   * Whether to send FastBloomFilters, which older nodes cannot read
+   */
+  public final boolean FAST_BLOOM_FILTER;
+  
   /**
    * this application's endpoint
    */
@@ -141,6 +147,7 @@ public class ReplicationImpl implements Replication, Application, Destructable {
 
     MAINTENANCE_INTERVAL = p.getInt("p2p_replication_maintenance_interval");
     MAX_KEYS_IN_MESSAGE = p.getInt("p2p_replication_max_keys_in_message");
+    FAST_BLOOM_FILTER = p.getBoolean("p2p_replication_fast_bloom_filter");
 
     
     this.client = client;
@@ -192,6 +199,9 @@ public class ReplicationImpl implements Replication, Application, Destructable {
    * @return The merge, a+b
    */
   public static IdSet merge(IdFactory factory, IdSet a, IdSet b) {
+    if ((a instanceof PackedIdSet) && (b instanceof PackedIdSet))
+      return PackedIdSet.merge((PackedIdSet) a, (PackedIdSet) b);
+    
     IdSet result = factory.buildIdSet();
     Iterator i = a.getIterator();
     
@@ -400,7 +410,7 @@ public class ReplicationImpl implements Replication, Application, Destructable {
     }
     
     public Object execute() {
-      return new IdBloomFilter(client.scan(range));
+      return new IdBloomFilter(client.scan(range), FAST_BLOOM_FILTER);
     }
   }  
 }
@@ -42,6 +42,7 @@ import java.util.*;
 import rice.*;
 import rice.p2p.commonapi.*;
 import rice.p2p.replication.messaging.*;
+import rice.pastry.PackedIdSet;
 
 /**
  * @(#) ReplicationPolicy.java This interface represents a policy for Replication, 
@@ -81,6 +82,9 @@ public interface ReplicationPolicy {
      * @return A subset of the remote ids which need to be fetched
      */
     public IdSet difference(IdSet local, IdSet remote, IdFactory factory) {
+      if ((local instanceof PackedIdSet) && (remote instanceof PackedIdSet))
+        return PackedIdSet.difference((PackedIdSet) remote, (PackedIdSet) local);
+      
       IdSet result = factory.buildIdSet();
       Iterator<Id> i = remote.getIterator();
       
@@ -0,0 +1,74 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+
+package rice.p2p.replication.manager;
+
+import rice.*;
+
+import rice.p2p.commonapi.*;
+
+/**
+ * @(#) ReplicationManagerBatchClient.java
+ *
+ * This interface represents a client of the replication manager which is able
+ * to fetch several ids from the same node at once.  If the manager is configured 
+ * with a p2p_replication_manager_fetch_batch_size greater than 1, ids which were 
+ * learned from the same hint are handed to such a client together.
+ *
+ * @version $Id$
+ *
+ * @author agent
+ */
+@SuppressWarnings("unchecked")
+public interface ReplicationManagerBatchClient extends ReplicationManagerClient {
+  
+  /**
+   * This upcall is invoked to tell the client to fetch all of the given ids, 
+   * and to call the given command with the result once all of the fetches
+   * are completed.  The result is an IdSet containing the ids which were 
+   * fetched successfully; all other ids are considered failed.  As with the 
+   * single-id fetch, the client *MUST* call the command at some point in the 
+   * future.
+   *
+   * @param ids The ids to fetch
+   * @param hint A hint where to find the keys from.  This is where the local node
+   *           heard about the keys.
+   * @param command The command to return the result to
+   */
+  public void fetch(IdSet ids, NodeHandle hint, Continuation command);
+  
+}
@@ -78,6 +78,21 @@ public class ReplicationManagerImpl implements ReplicationManager, ReplicationCl
    */
   public final int NUM_DELETE_AT_ONCE;
   
+  /**
+   * The maximum number of client fetches to have outstanding at once.  If this
+   * and FETCH_BATCH_SIZE are 1, the manager fetches one id at a time, waiting
+   * FETCH_DELAY between fetches.  Otherwise, the number of outstanding fetches 
+   * adapts to the observed fetch latency, and FETCH_DELAY only bounds the pacing
+   * delay between two fetches.
+   */
+  public final int FETCH_WINDOW;
+  
+  /**
+   * The maximum number of ids with the same hint to hand to a 
+   * ReplicationManagerBatchClient in one fetch
+   */
+  public final int FETCH_BATCH_SIZE;
+  
   /**
    * The id factory used for manipulating ids
    */
@@ -143,11 +158,16 @@ public class ReplicationManagerImpl implements ReplicationManager, ReplicationCl
     FETCH_DELAY = p.getInt("p2p_replication_manager_fetch_delay");
     TIMEOUT_DELAY = p.getInt("p2p_replication_manager_timeout_delay");
     NUM_DELETE_AT_ONCE = p.getInt("p2p_replication_manager_num_delete_at_once");
+    FETCH_WINDOW = Math.max(1, p.getInt("p2p_replication_manager_fetch_window"));
+    FETCH_BATCH_SIZE = Math.max(1, p.getInt("p2p_replication_manager_fetch_batch_size"));
     
     this.client = client;
     this.factory = node.getIdFactory();
     this.endpoint = node.buildEndpoint(this, instance);
-    this.helper = new ReplicationManagerHelper();
+    if ((FETCH_WINDOW > 1) || (FETCH_BATCH_SIZE > 1))
+      this.helper = new PipelinedReplicationManagerHelper();
+    else
+      this.helper = new ReplicationManagerHelper();
     this.deleter = new ReplicationManagerDeleter();
     this.instance = instance;
     
@@ -215,9 +235,19 @@ public class ReplicationManagerImpl implements ReplicationManager, ReplicationCl
    * or simply resets the active flag if there's nothing to be fetched.
    */
   protected void scheduleNext() {
-    if (logger.level <= Logger.FINER) logger.log( "Scheduling next fetch in " + FETCH_DELAY + " milliseconds");
+    scheduleNext(FETCH_DELAY);
+  }
+  
+  /**
+   * Internal method which schedules the next reminder message in the given
+   * number of milliseconds
+   *
+   * @param delay The delay until the reminder
+   */
+  protected void scheduleNext(long delay) {
+    if (logger.level <= Logger.FINER) logger.log( "Scheduling next fetch in " + delay + " milliseconds");
     
-    endpoint.scheduleMessage(new ReminderMessage(), FETCH_DELAY);
+    endpoint.scheduleMessage(new ReminderMessage(), delay);
   }
   
   
@@ -327,6 +357,16 @@ public class ReplicationManagerImpl implements ReplicationManager, ReplicationCl
     return replication;
   }
   
+  /**
+   * Returns the number of ids which are waiting to be fetched or are being 
+   * fetched by the client
+   *
+   * @return The number of pending fetches
+   */
+  public int getNumPendingFetches() {
+    return helper.getNumPending();
+  }
+  
   /**
    * Inner class which keeps track of the state we're in- waiting, sleeping, or with
    * nothing to do.
@@ -465,6 +505,16 @@ public class ReplicationManagerImpl implements ReplicationManager, ReplicationCl
         return getNextId();
     }
     
+    /**
+     * Returns the number of ids which are waiting to be fetched or are being 
+     * fetched
+     *
+     * @return The number of pending ids
+     */
+    public synchronized int getNumPending() {
+      return set.numElements() + (state == STATE_WAITING ? 1 : 0);
+    }
+    
     public synchronized void wakeup() {
       if (state == STATE_SLEEPING) {
         send();
@@ -480,6 +530,446 @@ public class ReplicationManagerImpl implements ReplicationManager, ReplicationCl
     }
   }
   
+  /**
+   * Inner class which keeps several fetches outstanding at once, instead of
+   * fetching one id at a time.  Pending ids are grouped by the hint they were 
+   * learned from, and up to FETCH_BATCH_SIZE ids with the same hint are handed
+   * to the client together (in one call if the client is a 
+   * ReplicationManagerBatchClient).
+   * 
+   * The number of outstanding batches (the window) is adapted in the style of 
+   * TCP Vegas: the smallest and the smoothed latency of completed batches give an
+   * estimate of how many of our batches are queued at the sources, and the window 
+   * grows while this estimate is small and shrinks when it is large.  Failures 
+   * and timeouts halve the window.  Successive batches are paced one smoothed 
+   * latency / window apart (but never more than FETCH_DELAY), so that the window 
+   * is not sent as one burst.
+   */
+  protected class PipelinedReplicationManagerHelper extends ReplicationManagerHelper {
+    
+    /**
+     * The estimated number of queued batches below which the window grows
+     */
+    public static final double VEGAS_ALPHA = 1.0;
+    
+    /**
+     * The estimated number of queued batches above which the window shrinks
+     */
+    public static final double VEGAS_BETA = 3.0;
+    
+    /**
+     * The pending ids, grouped by hint, mapping NodeHandle -> IdSet
+     */
+    protected HashMap byHint;
+    
+    /**
+     * The batches being fetched, mapping Id -> FetchBatch
+     */
+    protected HashMap outstanding;
+    
+    /**
+     * The number of batches being fetched
+     */
+    protected int numOutstanding;
+    
+    /**
+     * The current window, in batches
+     */
+    protected double window;
+    
+    /**
+     * The window up to which we grow by one batch per completed batch
+     */
+    protected double threshold;
+    
+    /**
+     * The smoothed and the minimum latency of a batch, or -1 if unknown
+     */
+    protected double srtt;
+    protected double minRtt;
+    
+    /**
+     * The earliest time the next batch may be sent
+     */
+    protected long nextSendTime;
+    
+    /**
+     * Whether a reminder message is pending
+     */
+    protected boolean reminderScheduled;
+    
+    /**
+     * Whether we are in the send loop (callbacks may complete synchronously)
+     */
+    protected boolean sending;
+    
+    /**
+     * Constructor 
+     */
+    public PipelinedReplicationManagerHelper() {
+      byHint = new HashMap();
+      outstanding = new HashMap();
+      window = 1;
+      threshold = FETCH_WINDOW;
+      srtt = -1;
+      minRtt = -1;
+    }
+    
+    /**
+     * Method by which keys are added to the list of keys to fetch
+     *
+     * @param keySet The keys to add
+     * @param hint The node which told us about the keys
+     */
+    public synchronized void fetch(IdSet keySet, NodeHandle hint) {
+      Iterator i = keySet.getIterator();
+
+      while (i.hasNext()) {
+        Id id = (Id) i.next();
+        
+        if (! (set.isMemberId(id) || 
+               client.exists(id) || 
+               outstanding.containsKey(id))) {
+          set.addId(id);
+          hints.put(id, hint);
+          
+          IdSet ids = (IdSet) byHint.get(hint);
+          if (ids == null) {
+            ids = factory.buildIdSet();
+            byHint.put(hint, ids);
+          }
+          
+          ids.addId(id);
+        }
+      }
+        
+      send();
+    }
+    
+    /**
+     * Method by which the range is set, which will delete any keys
+     * from the to fetch list not in the range
+     *
+     * @param range The new range
+     */
+    public synchronized void setRange(IdRange range) {
+      Iterator i = set.subSet(range.getComplementRange()).getIterator();
+      
+      while (i.hasNext()) 
+        remove((Id) i.next());
+    }
+    
+    /**
+     * Internal method which removes an id from the list of pending ids
+     *
+     * @param id The id to remove
+     * @return The hint of the id
+     */
+    protected NodeHandle remove(Id id) {
+      NodeHandle hint = (NodeHandle) hints.remove(id);
+      set.removeId(id);
+      
+      IdSet ids = (IdSet) byHint.get(hint);
+      if (ids != null) {
+        ids.removeId(id);
+        
+        if (ids.numElements() == 0)
+          byHint.remove(hint);
+      }
+      
+      return hint;
+    }
+    
+    /**
+     * Method which sends as many batches as the window and the pacing allow
+     */
+    protected synchronized void send() {
+      if (sending)
+        return;
+      
+      sending = true;
+      
+      try {
+        while ((set.numElements() > 0) && (numOutstanding < (int) window)) {
+          long now = environment.getTimeSource().currentTimeMillis();
+          
+          if (now < nextSendTime) {
+            if (! reminderScheduled) {
+              reminderScheduled = true;
+              scheduleNext(nextSendTime - now);
+            }
+            
+            return;
+          }
+          
+          FetchBatch batch = getNextBatch(now);
+          
+          if (batch != null) {
+            nextSendTime = now + getPacingDelay();
+            informClient(batch);
+          }
+        }
+      } finally {
+        sending = false;
+      }
+    }
+    
+    /**
+     * Internal method which takes the next batch of ids to be fetched, all 
+     * having the same hint, from the set of pending keys
+     *
+     * @param now The current time
+     * @return The next batch, or null if there is nothing to fetch
+     */
+    protected FetchBatch getNextBatch(long now) {
+      while (set.numElements() > 0) {
+        Id first = (Id) set.getIterator().next();
+        NodeHandle hint = (NodeHandle) hints.get(first);
+        IdSet ids = (IdSet) byHint.get(hint);
+        
+        ArrayList batch = new ArrayList();
+        Iterator i = (ids == null ? Collections.singleton(first).iterator() : ids.getIterator());
+        
+        while (i.hasNext() && (batch.size() < FETCH_BATCH_SIZE)) 
+          batch.add(i.next());
+        
+        for (int j=0; j<batch.size(); j++) {
+          Id id = (Id) batch.get(j);
+          remove(id);
+          
+          if (client.exists(id)) 
+            batch.remove(j--);
+        }
+        
+        if (batch.size() > 0) {
+          FetchBatch result = new FetchBatch((Id[]) batch.toArray(new Id[0]), hint, now);
+          
+          for (int j=0; j<result.ids.length; j++)
+            outstanding.put(result.ids[j], result);
+          
+          numOutstanding++;
+          return result;
+        }
+      }
+      
+      return null;
+    }
+    
+    /**
+     * Returns the current delay between two successive batches
+     *
+     * @return The pacing delay
+     */
+    protected long getPacingDelay() {
+      if (srtt < 0)
+        return 0;
+      
+      return Math.min(FETCH_DELAY, (long) (srtt / window));
+    }
+    
+    /**
+     * Internal method which hands the given batch to the client
+     *
+     * @param batch The batch to fetch
+     */
+    protected void informClient(final FetchBatch batch) {
+      if (logger.level <= Logger.FINE) logger.log( "Telling client to fetch " + batch.ids.length + " ids from " + batch.hint + " window " + window + " outstanding " + numOutstanding);
+      
+      batch.timer = endpoint.scheduleMessage(new TimeoutMessage(batch.ids[0]), TIMEOUT_DELAY);
+      
+      if ((batch.ids.length > 1) && (client instanceof ReplicationManagerBatchClient)) {
+        IdSet ids = factory.buildIdSet();
+        for (int i=0; i<batch.ids.length; i++)
+          ids.addId(batch.ids[i]);
+        
+        ((ReplicationManagerBatchClient) client).fetch(ids, batch.hint, new Continuation() {
+          public void receiveResult(Object o) {
+            int failed = 0;
+            
+            if (o instanceof IdSet) {
+              for (int i=0; i<batch.ids.length; i++)
+                if (! ((IdSet) o).isMemberId(batch.ids[i]))
+                  failed++;
+            } else {
+              if (logger.level <= Logger.WARNING) logger.log( "Fetching of " + batch.ids.length + " ids from " + batch.hint + " failed with " + o);
+              failed = batch.ids.length;
+            }
+            
+            done(batch, failed);
+          }
+          
+          public void receiveException(Exception e) {
+            if (logger.level <= Logger.WARNING) logger.logException( "Fetching of " + batch.ids.length + " ids from " + batch.hint + " failed with ", e);
+            done(batch, batch.ids.length);
+          }
+        });
+      } else {
+        for (int i=0; i<batch.ids.length; i++) {
+          final Id id = batch.ids[i];
+          
+          client.fetch(id, batch.hint, new Continuation() {
+            public void receiveResult(Object o) {
+              boolean success = Boolean.TRUE.equals(o);
+              
+              if (! success) {
+                if (o instanceof Throwable) {
+                  if (logger.level <= Logger.WARNING) logger.logException( "Fetching of id " + id + " failed with ", (Throwable)o);
+                } else {
+                  if (logger.level <= Logger.WARNING) logger.log( "Fetching of id " + id + " failed with "+o);            
+                }
+              }
+              
+              batch.partDone(success);
+            }
+            
+            public void receiveException(Exception e) {
+              receiveResult(e);
+            }
+          });
+        }
+      }
+    }
+    
+    /**
+     * Method which is called once the given batch has completed (or timed out),
+     * and which adjusts the window
+     *
+     * @param batch The batch
+     * @param failed The number of ids which could not be fetched
+     */
+    protected synchronized void done(FetchBatch batch, int failed) {
+      if (batch.done) 
+        return;
+      
+      batch.done = true;
+      batch.timer.cancel();
+      numOutstanding--;
+      
+      for (int i=0; i<batch.ids.length; i++)
+        outstanding.remove(batch.ids[i]);
+      
+      if (failed > 0) {
+        threshold = Math.max(1, window / 2);
+        window = threshold;
+      } else {
+        double rtt = environment.getTimeSource().currentTimeMillis() - batch.sent;
+        
+        if (srtt < 0) {
+          srtt = rtt;
+          minRtt = rtt;
+        } else {
+          srtt = 0.875 * srtt + 0.125 * rtt;
+          minRtt = Math.min(minRtt, rtt);
+        }
+        
+        // the estimated number of our batches which are queued somewhere
+        double queued = (srtt <= 0 ? 0 : window * (1 - minRtt / srtt));
+        
+        if ((window < threshold) && (queued < VEGAS_ALPHA)) 
+          window += 1;
+        else if (queued < VEGAS_ALPHA)
+          window += 1 / window;
+        else if (queued > VEGAS_BETA)
+          window = Math.max(1, window - 1 / window);
+        
+        window = Math.min(window, FETCH_WINDOW);
+      }
+      
+      if (logger.level <= Logger.FINE) logger.log( "Fetched " + (batch.ids.length - failed) + " of " + batch.ids.length + " ids from " + batch.hint + " - window now " + window + " srtt " + srtt);
+      
+      send();
+    }
+    
+    public synchronized int getNumPending() {
+      return set.numElements() + outstanding.size();
+    }
+    
+    public synchronized void wakeup() {
+      reminderScheduled = false;
+      send();
+    }
+    
+    /**
+     * The fetch of the batch containing the given id has timed out
+     *
+     * @param id The id
+     */
+    public synchronized void message(Id id) {
+      FetchBatch batch = (FetchBatch) outstanding.get(id);
+      
+      if (batch != null) {
+        if (logger.level <= Logger.WARNING) logger.log( "Fetching of " + batch.ids.length + " ids from " + batch.hint + " timed out");
+        done(batch, batch.ids.length);
+      }
+    }
+    
+    /**
+     * Returns the current window, in batches
+     *
+     * @return The window
+     */
+    public synchronized double getWindow() {
+      return window;
+    }
+    
+    /**
+     * Returns the smoothed latency of a batch, or -1 if unknown
+     *
+     * @return The smoothed latency
+     */
+    public synchronized double getSmoothedRTT() {
+      return srtt;
+    }
+  }
+  
+  /**
+   * Class which represents a set of ids with the same hint handed to the client
+   * together
+   */
+  protected class FetchBatch {
+    
+    // the ids in this batch
+    protected Id[] ids;
+    
+    // the hint of the ids
+    protected NodeHandle hint;
+    
+    // the time the batch was handed to the client
+    protected long sent;
+    
+    // the timeout of this batch
+    protected CancellableTask timer;
+    
+    // the number of ids we are still waiting for, and the number which failed
+    protected int remaining;
+    protected int failed;
+    
+    // whether we are done with this batch
+    protected boolean done;
+    
+    public FetchBatch(Id[] ids, NodeHandle hint, long sent) {
+      this.ids = ids;
+      this.hint = hint;
+      this.sent = sent;
+      this.remaining = ids.length;
+    }
+    
+    /**
+     * Called when a single-id fetch of this batch has completed
+     *
+     * @param success Whether the fetch succeeded
+     */
+    public void partDone(boolean success) {
+      synchronized (helper) {
+        if (! success)
+          failed++;
+        
+        if (--remaining == 0)
+          ((PipelinedReplicationManagerHelper) helper).done(this, failed);
+      }
+    }
+  }
+  
   /**
    * Inner class which keeps track of the keys which we are currently deleting
    */
@@ -0,0 +1,459 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.replication.manager.testing;
+
+import java.io.*;
+import java.util.*;
+
+import rice.Continuation;
+import rice.environment.Environment;
+import rice.environment.params.Parameters;
+import rice.p2p.commonapi.*;
+import rice.p2p.commonapi.testing.CommonAPITest;
+import rice.p2p.replication.manager.*;
+import rice.selector.TimerTask;
+
+/**
+ * @(#) ReplicationManagerChurnTest.java Measures the time it takes the replication 
+ * manager to restore full replication after a burst of churn in the direct simulator.
+ * 
+ * The ring is populated with objects which are fully replicated, then CHURN nodes
+ * are killed and CHURN new nodes join.  The test then reports the simulated time 
+ * until every object is stored on all of the REPLICATION_FACTOR+1 live nodes 
+ * closest to it.  
+ * 
+ * Fetches are served by the node the key was learned from, which serves one 
+ * object at a time, so that outstanding fetches queue up at the source as they 
+ * would on a real node.
+ *
+ * Usage: ReplicationManagerChurnTest [-nodes n] [-objects o] [-churn c] [-window w] [-batch b] 
+ *
+ * @version $Id$
+ * @author agent
+ */
+@SuppressWarnings("unchecked")
+public class ReplicationManagerChurnTest extends CommonAPITest {
+
+  /**
+   * The replication factor to use
+   */
+  public static final int REPLICATION_FACTOR = 3;
+  
+  /**
+   * the instance name to use
+   */
+  public static String INSTANCE = "ReplicationChurnTest";
+  
+  /**
+   * The one-way latency between the nodes
+   */
+  public static int LATENCY = 50;
+  
+  /**
+   * The time a node takes to serve one object
+   */
+  public static int SERVICE_TIME = 10;
+  
+  /**
+   * How often maintenance is run while waiting for full replication
+   */
+  public static int MAINTENANCE_INTERVAL = 60000;
+  
+  /**
+   * The maximum (simulated) time to wait for full replication
+   */
+  public static int MAX_TIME = 30 * 60 * 1000;
+  
+  /**
+   * the number of objects and the number of nodes to replace
+   */
+  protected int numObjects;
+  protected int churn;
+
+  /**
+   * the replication impls in the ring, including the nodes which join later
+   */
+  protected ReplicationManagerImpl[] replications;
+
+  /**
+   * The clients
+   */
+  protected ChurnTestClient[] clients;
+  
+  /**
+   * All of the nodes, including the nodes which join later
+   */
+  protected Node[] allNodes;
+  
+  /**
+   * Which nodes are alive
+   */
+  protected boolean[] alive;
+  
+  /**
+   * The clients by node id
+   */
+  protected HashMap clientsById;
+
+  /**
+   * Constructor which sets up all local variables
+   */
+  public ReplicationManagerChurnTest(Environment env, int numObjects, int churn) throws IOException {
+    super(env);
+    this.numObjects = numObjects;
+    this.churn = churn;
+    replications = new ReplicationManagerImpl[NUM_NODES + churn];
+    clients = new ChurnTestClient[NUM_NODES + churn];
+    allNodes = new Node[NUM_NODES + churn];
+    alive = new boolean[NUM_NODES + churn];
+    clientsById = new HashMap();
+  }
+
+  public static void main(String args[]) throws IOException {
+    int objects = 2000;
+    int churn = 2;
+    
+    for (int i = 0; i < args.length - 1; i++) {
+      if (args[i].equals("-objects")) 
+        objects = Integer.parseInt(args[i+1]);
+      if (args[i].equals("-churn")) 
+        churn = Integer.parseInt(args[i+1]);
+    }
+    
+    Environment env = parseArgs(args);
+    Parameters param = env.getParameters();
+    
+    for (int i = 0; i < args.length - 1; i++) {
+      if (args[i].equals("-window")) 
+        param.setInt("p2p_replication_manager_fetch_window", Integer.parseInt(args[i+1]));
+      if (args[i].equals("-batch")) 
+        param.setInt("p2p_replication_manager_fetch_batch_size", Integer.parseInt(args[i+1]));
+    }
+    
+    // make sure all missing keys are reported at once, so that we measure the manager
+    param.setInt("p2p_replication_max_keys_in_message", Integer.MAX_VALUE);
+    
+    ReplicationManagerChurnTest test = new ReplicationManagerChurnTest(env, objects, churn);
+    test.start();
+    env.destroy();
+  }
+
+  /**
+   * Method which should process the given newly-created node
+   *
+   * @param node The newly created node
+   * @param num The number of this node
+   */
+  protected void processNode(int num, Node node) {
+    allNodes[num] = node;
+    alive[num] = true;
+    clients[num] = new ChurnTestClient(num, node);
+    clientsById.put(node.getId(), clients[num]);
+    replications[num] = new ReplicationManagerImpl(node, clients[num], REPLICATION_FACTOR, INSTANCE);
+  }
+
+  /**
+   * Method which should run the test - this is called once all of the nodes have been created and
+   * are ready.
+   */
+  protected void runTest() {
+    for (int i=0; i<NUM_NODES; i++)
+      simulate(); 
+    
+    sectionStart("Measuring Time To Full Replication (window " + replications[0].FETCH_WINDOW + 
+        ", batch " + replications[0].FETCH_BATCH_SIZE + ")");
+    
+    stepStart("Inserting " + numObjects + " Objects");
+    
+    Id[] ids = new Id[numObjects];
+    for (int i=0; i<numObjects; i++) {
+      ids[i] = FACTORY.buildRandomId(environment.getRandomSource());
+      int[] holders = getReplicaSet(ids[i]);
+      
+      for (int j=0; j<holders.length; j++)
+        clients[holders[j]].insert(ids[i]);
+    }
+    
+    stepDone(SUCCESS);
+    
+    stepStart("Replacing " + churn + " Nodes");
+    
+    for (int i=0; i<churn; i++) {
+      int num = 1 + environment.getRandomSource().nextInt(NUM_NODES - 1);
+      while (! alive[num])
+        num = 1 + environment.getRandomSource().nextInt(NUM_NODES - 1);
+      
+      alive[num] = false;
+      kill(num);
+    }
+    
+    for (int i=0; i<churn; i++) {
+      Node node = createNode(NUM_NODES + i);
+      processNode(NUM_NODES + i, node);
+      simulate();
+    }
+    
+    waitToRecoverFromKilling(30000);
+    
+    stepDone(SUCCESS);
+    
+    stepStart("Waiting For Full Replication");
+    
+    long start = environment.getTimeSource().currentTimeMillis();
+    long lastMaintenance = 0;
+    int missing = countMissing(ids);
+    int initial = missing;
+    long t99 = -1;
+    long drain = -1;
+    boolean busy = false;
+    
+    while ((missing > 0) && (environment.getTimeSource().currentTimeMillis() - start < MAX_TIME)) {
+      if (environment.getTimeSource().currentTimeMillis() - lastMaintenance >= MAINTENANCE_INTERVAL) {
+        runMaintenance();
+        lastMaintenance = environment.getTimeSource().currentTimeMillis();
+      }
+      
+      waitOnClock(1000);
+      missing = countMissing(ids);
+      
+      if ((t99 < 0) && (missing <= initial / 100))
+        t99 = environment.getTimeSource().currentTimeMillis() - start;
+      
+      int pending = 0;
+      for (int i=0; i<allNodes.length; i++)
+        if (alive[i]) 
+          pending += replications[i].getNumPendingFetches();
+      
+      // the time it took to drain the fetch queues after the first maintenance
+      if (pending > 0) 
+        busy = true;
+      else if (busy && (drain < 0))
+        drain = environment.getTimeSource().currentTimeMillis() - start;
+    }
+    
+    long time = environment.getTimeSource().currentTimeMillis() - start;
+    int fetched = 0;
+    for (int i=0; i<clients.length; i++)
+      if (alive[i])
+        fetched += clients[i].fetched;
+    
+    System.out.println("RESULT: window=" + replications[0].FETCH_WINDOW + " batch=" + replications[0].FETCH_BATCH_SIZE + 
+        " objects=" + numObjects + " churn=" + churn + " fetched=" + fetched + 
+        " initially-missing=" + initial + " missing=" + missing + 
+        " first-fetch-drain=" + drain + "ms time-to-99%-replication=" + t99 + "ms time-to-full-replication=" + time + "ms");
+    
+    assertTrue("All replicas should have been restored, missing " + missing, missing == 0);
+    
+    stepDone(SUCCESS);
+    
+    sectionDone();
+  }
+  
+  /**
+   * Returns the indices of the REPLICATION_FACTOR+1 live nodes closest to 
+   * the given id
+   *
+   * @param id The id
+   * @return The replica set of the id
+   */
+  protected int[] getReplicaSet(final Id id) {
+    ArrayList live = new ArrayList();
+    for (int i=0; i<allNodes.length; i++)
+      if (alive[i]) 
+        live.add(new Integer(i));
+    
+    Collections.sort(live, new Comparator() {
+      public int compare(Object a, Object b) {
+        Id.Distance da = allNodes[((Integer) a).intValue()].getId().distanceFromId(id);
+        Id.Distance db = allNodes[((Integer) b).intValue()].getId().distanceFromId(id);
+        return da.compareTo(db);
+      }
+    });
+    
+    int[] result = new int[Math.min(REPLICATION_FACTOR+1, live.size())];
+    for (int i=0; i<result.length; i++)
+      result[i] = ((Integer) live.get(i)).intValue();
+    
+    return result;
+  }
+  
+  /**
+   * Returns the number of replicas missing from the replica sets of the 
+   * given ids
+   *
+   * @param ids The ids
+   * @return The number of missing replicas
+   */
+  protected int countMissing(Id[] ids) {
+    int missing = 0;
+    
+    for (int i=0; i<ids.length; i++) {
+      int[] holders = getReplicaSet(ids[i]);
+      
+      for (int j=0; j<holders.length; j++)
+        if (! clients[holders[j]].exists(ids[i]))
+          missing++;
+    }
+    
+    return missing;
+  }
+  
+  public void runMaintenance() {
+    for (int i=0; i<allNodes.length; i++) {
+      if (alive[i]) {
+        final int j = i;
+        environment.getSelectorManager().invoke(new Runnable() {      
+          public void run() {
+            replications[j].getReplication().replicate();      
+          }      
+        });
+      }
+    }
+  }
+
+  /**
+   * The client, which fetches objects from the hint after a simulated network
+   * and service delay
+   */
+  protected class ChurnTestClient implements ReplicationManagerBatchClient {
+        
+    public Node node;
+    
+    public int num;
+    
+    public IdSet set;
+    
+    // the time until which this node is busy serving fetches
+    public long busyUntil;
+    
+    // the number of objects fetched
+    public int fetched;
+    
+    public ChurnTestClient(int num, Node node) {
+      this.set = node.getIdFactory().buildIdSet();
+      this.node = node;
+      this.num = num;
+    }
+    
+    /**
+     * Schedules the arrival of the given number of objects from the hint, and
+     * returns whether the hint can serve them at all
+     */
+    protected boolean serve(final Id[] ids, NodeHandle hint, final Runnable done) {
+      final ChurnTestClient source = (ChurnTestClient) (hint == null ? null : clientsById.get(hint.getId()));
+      
+      if ((source == null) || (! alive[source.num]))
+        return false;
+      
+      long now = environment.getTimeSource().currentTimeMillis();
+      long arrival = now + LATENCY;
+      source.busyUntil = Math.max(arrival, source.busyUntil) + SERVICE_TIME * ids.length;
+      
+      environment.getSelectorManager().schedule(new TimerTask() {
+        public void run() {
+          for (int i=0; i<ids.length; i++) {
+            if (source.exists(ids[i])) {
+              set.addId(ids[i]);
+              fetched++;
+            }
+          }
+          
+          done.run();
+        }
+      }, source.busyUntil + LATENCY - now);
+      
+      return true;
+    }
+    
+    public void fetch(final Id id, NodeHandle hint, final Continuation command) {
+      if (! serve(new Id[] {id}, hint, new Runnable() {
+        public void run() {
+          command.receiveResult(Boolean.valueOf(exists(id)));
+        }
+      }))
+        command.receiveResult(Boolean.FALSE);
+    }
+    
+    public void fetch(final IdSet ids, NodeHandle hint, final Continuation command) {
+      final Id[] array = new Id[ids.numElements()];
+      Iterator i = ids.getIterator();
+      for (int j=0; j<array.length; j++)
+        array[j] = (Id) i.next();
+      
+      if (! serve(array, hint, new Runnable() {
+        public void run() {
+          IdSet result = node.getIdFactory().buildIdSet();
+          for (int j=0; j<array.length; j++)
+            if (exists(array[j]))
+              result.addId(array[j]);
+          
+          command.receiveResult(result);
+        }
+      }))
+        command.receiveResult(node.getIdFactory().buildIdSet());
+    }
+    
+    public void remove(Id id, Continuation command) {
+      set.removeId(id);
+      command.receiveResult(Boolean.TRUE);
+    }
+    
+    public IdSet scan(IdRange range) {
+      return set.subSet(range);
+    }
+    
+    public void insert(Id id) {
+      set.addId(id);
+    }
+    
+    public boolean exists(Id id) {
+      return set.isMemberId(id);
+    }
+
+    public void existsInOverlay(Id id, Continuation command) {
+      command.receiveResult(Boolean.TRUE);
+    }
+
+    public void reInsert(Id id, Continuation command) {
+      command.receiveResult(Boolean.TRUE);
+    }
+    
+    public String toString() {
+      return "CTC:"+node;
+    }
+  }
+}
@@ -0,0 +1,556 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.*;
+
+import org.mpisws.p2p.transport.priority.QueueOverflowException;
+
+import rice.Continuation;
+import rice.environment.Environment;
+import rice.environment.logging.Logger;
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.NodeHandle;
+import rice.p2p.commonapi.appsocket.AppSocket;
+import rice.p2p.commonapi.appsocket.AppSocketReceiver;
+import rice.selector.SelectorManager;
+import rice.selector.TimerTask;
+
+/**
+ * Keeps an AppSocket open to each peer that an application sends large messages to, 
+ * so that each message doesn't pay to open a new socket through all of the transport 
+ * layers.  Messages to a peer are queued and written whole, one after another, each 
+ * preceded by its int size.  This is the framing that PAST always used (with one 
+ * message per socket), so it can talk to nodes that open a socket per message.
+ * 
+ * A socket that has been idle for idleTimeout is closed.  If maxQueueBytes are already 
+ * waiting for a peer, send() fails with a QueueOverflowException rather than buffering 
+ * without bound; the caller should slow down or send some other way.
+ * 
+ * All of the state is managed on the selector thread.
+ * 
+ * @author agent
+ */
+public class AppSocketPool {
+  /**
+   * Receives the messages read by accept().
+   */
+  public interface FrameReceiver {
+    /**
+     * @param socket the socket the message arrived on
+     * @param frame the message, without the size
+     * @throws IOException closes the socket
+     */
+    public void receiveFrame(AppSocket socket, ByteBuffer frame) throws IOException;
+  }
+  
+  protected Endpoint endpoint;
+  protected Environment environment;
+  protected SelectorManager selectorManager;
+  protected Logger logger;
+  
+  protected int maxQueueBytes;
+  protected int idleTimeout;
+  protected int socketTimeout;
+  
+  protected Map<NodeHandle, Peer> peers = new HashMap<NodeHandle, Peer>();
+  
+  /**
+   * Closes idle sockets, only scheduled while we have peers.
+   */
+  protected TimerTask sweeper;
+  
+  protected boolean destroyed = false;
+  
+  // statistics
+  protected int socketsOpened = 0;
+  protected int socketsAccepted = 0;
+  protected long framesSent = 0;
+  protected long framesFailed = 0;
+
+  /**
+   * @param endpoint to open and accept the sockets on
+   * @param maxQueueBytes fail send() when this many bytes are waiting for a peer
+   * @param idleTimeout close a socket that hasn't sent anything for this many millis
+   * @param socketTimeout passed to Endpoint.connect() and AppSocket.register()
+   */
+  public AppSocketPool(Endpoint endpoint, int maxQueueBytes, int idleTimeout, int socketTimeout) {
+    this.endpoint = endpoint;
+    this.environment = endpoint.getEnvironment();
+    this.selectorManager = environment.getSelectorManager();
+    this.logger = environment.getLogManager().getLogger(AppSocketPool.class, endpoint.getInstance());
+    this.maxQueueBytes = maxQueueBytes;
+    this.idleTimeout = idleTimeout;
+    this.socketTimeout = socketTimeout;
+  }
+  
+  /**
+   * Send msg to handle on the pooled socket, opening one if needed.
+   * 
+   * @param handle the peer
+   * @param msg the message, the size is added by the pool
+   * @param c receiveResult(null) when msg was written to the socket, receiveException() 
+   * if it couldn't be, may be null
+   */
+  public void send(final NodeHandle handle, final ByteBuffer msg, final Continuation<Object, Exception> c) {
+    if (!selectorManager.isSelectorThread()) {
+      selectorManager.invoke(new Runnable() {
+        public void run() {
+          send(handle, msg, c);
+        }
+      });
+      return;
+    }
+    
+    Frame frame = new Frame(msg, c);
+    if (destroyed) {
+      frame.fail(new ClosedChannelException());
+      return;
+    }
+    
+    Peer peer = peers.get(handle);
+    if (peer == null) {
+      peer = new Peer(handle);
+      peers.put(handle, peer);
+      if (sweeper == null) startSweeper();
+    }
+    peer.enqueue(frame);
+  }
+  
+  /**
+   * Read messages from every socket that is opened to us.  Call this before the 
+   * endpoint is registered.
+   */
+  public void accept(final FrameReceiver receiver) {
+    endpoint.accept(new AppSocketReceiver() {
+      public void receiveSocket(AppSocket socket) {
+        if (logger.level <= Logger.FINE) logger.log("Received Socket from "+socket);
+        socketsAccepted++;
+        socket.register(true, false, socketTimeout, new FrameReader(receiver));
+        endpoint.accept(this);
+      }
+      
+      public void receiveSelectResult(AppSocket socket, boolean canRead, boolean canWrite) {
+        throw new IllegalStateException("Shouldn't be called.");
+      }
+      
+      public void receiveException(AppSocket socket, Exception e) {
+        if (logger.level <= Logger.WARNING) logger.logException("Error accepting socket", e);
+      }
+    });
+  }
+  
+  /**
+   * Close all of the sockets, and fail everything that is queued.
+   */
+  public void destroy() {
+    if (!selectorManager.isSelectorThread()) {
+      selectorManager.invoke(new Runnable() {
+        public void run() {
+          destroy();
+        }
+      });
+      return;
+    }
+    destroyed = true;
+    if (sweeper != null) sweeper.cancel();
+    sweeper = null;
+    for (Peer peer : new ArrayList<Peer>(peers.values())) {
+      peer.close(new ClosedChannelException());
+    }
+    peers.clear();
+  }
+  
+  protected void startSweeper() {
+    int period = Math.max(1000, idleTimeout/2);
+    sweeper = new TimerTask() {
+      public void run() {
+        long now = environment.getTimeSource().currentTimeMillis();
+        Iterator<Peer> i = peers.values().iterator();
+        while (i.hasNext()) {
+          Peer peer = i.next();
+          if (peer.isIdle(now)) {
+            if (logger.level <= Logger.FINE) logger.log("Closing idle socket to "+peer.handle);
+            peer.close(null);
+            i.remove();
+          }
+        }
+        if (peers.isEmpty()) {
+          cancel();
+          sweeper = null;
+        }
+      }
+    };
+    selectorManager.getTimer().schedule(sweeper, period, period);
+  }
+  
+  public int getSocketsOpened() {
+    return socketsOpened;
+  }
+
+  /**
+   * @return the number of sockets opened to us, including by nodes that don't pool their sockets
+   */
+  public int getSocketsAccepted() {
+    return socketsAccepted;
+  }
+
+  public long getFramesSent() {
+    return framesSent;
+  }
+  
+  public long getFramesFailed() {
+    return framesFailed;
+  }
+  
+  /**
+   * @return the number of bytes waiting to be written to all peers
+   */
+  public long getQueuedBytes() {
+    long ret = 0;
+    for (Peer peer : peers.values()) {
+      ret+=peer.queuedBytes;
+    }
+    return ret;
+  }
+  
+  /**
+   * @return the number of open or opening sockets
+   */
+  public int getNumSockets() {
+    int ret = 0;
+    for (Peer peer : peers.values()) {
+      if (peer.socket != null || peer.connecting) ret++;
+    }
+    return ret;
+  }
+  
+  /**
+   * A message, and the size to write before it.
+   */
+  protected class Frame {
+    ByteBuffer header;
+    ByteBuffer body;
+    int size;
+    Continuation<Object, Exception> c;
+    
+    /**
+     * The number of sockets that closed before we wrote any of this.
+     */
+    int attempts = 0;
+    
+    public Frame(ByteBuffer body, Continuation<Object, Exception> c) {
+      this.body = body;
+      this.size = body.remaining();
+      this.c = c;
+      header = ByteBuffer.allocate(4);
+      header.putInt(size);
+      header.flip();
+    }
+    
+    public boolean started() {
+      return header.position() > 0;
+    }
+    
+    public void success() {
+      framesSent++;
+      if (c != null) c.receiveResult(null);
+    }
+    
+    public void fail(Exception e) {
+      framesFailed++;
+      if (c != null) c.receiveException(e);
+    }
+    
+    public String toString() {
+      return "Frame{"+size+"}";
+    }
+  }
+  
+  /**
+   * The socket and queue to one peer.
+   */
+  protected class Peer implements AppSocketReceiver {
+    NodeHandle handle;
+    AppSocket socket;
+    boolean connecting = false;
+    boolean writeRegistered = false;
+    LinkedList<Frame> queue = new LinkedList<Frame>();
+    long queuedBytes = 0;
+    Frame writing;
+    long lastUsed;
+    
+    public Peer(NodeHandle handle) {
+      this.handle = handle;
+      this.lastUsed = environment.getTimeSource().currentTimeMillis();
+    }
+    
+    public void enqueue(Frame frame) {
+      if (queuedBytes > 0 && queuedBytes+frame.size > maxQueueBytes) {
+        if (logger.level <= Logger.INFO) logger.log("Queue to "+handle+" is full ("+queuedBytes+" bytes), dropping "+frame);
+        frame.fail(new QueueOverflowException(handle, frame));
+        return;
+      }
+      queue.addLast(frame);
+      queuedBytes+=frame.size;
+      lastUsed = environment.getTimeSource().currentTimeMillis();
+      
+      if (socket != null) {
+        scheduleWrite();
+      } else if (!connecting) {
+        connect();
+      }
+    }
+    
+    protected void connect() {
+      connecting = true;
+      socketsOpened++;
+      if (logger.level <= Logger.FINE) logger.log("Opening socket to "+handle);
+      endpoint.connect(handle, new AppSocketReceiver() {
+        public void receiveSocket(AppSocket s) {
+          connecting = false;
+          if (destroyed || peers.get(handle) != Peer.this) {
+            s.close();
+            return;
+          }
+          if (logger.level <= Logger.FINER) logger.log("Opened socket to "+handle+":"+s);
+          socket = s;
+          lastUsed = environment.getTimeSource().currentTimeMillis();
+          
+          // we never expect anything, but this is how we find out that the remote node closed the socket
+          s.register(true, false, socketTimeout, Peer.this);
+          scheduleWrite();
+        }
+        
+        public void receiveSelectResult(AppSocket s, boolean canRead, boolean canWrite) {
+          throw new IllegalStateException("Shouldn't be called.");
+        }
+        
+        public void receiveException(AppSocket s, Exception e) {
+          connecting = false;
+          if (logger.level <= Logger.FINE) logger.logException("Couldn't open socket to "+handle, e);
+          close(e);
+        }
+      }, socketTimeout);
+    }
+    
+    protected void scheduleWrite() {
+      if (writeRegistered || socket == null) return;
+      if (writing == null && queue.isEmpty()) return;
+      writeRegistered = true;
+      socket.register(false, true, socketTimeout, this);
+    }
+    
+    public void receiveSocket(AppSocket s) {
+      throw new IllegalStateException("Shouldn't be called.");
+    }
+    
+    public void receiveSelectResult(AppSocket s, boolean canRead, boolean canWrite) {
+      if (s != socket) return; // an old socket
+      
+      if (canRead) {
+        try {
+          if (s.read(ByteBuffer.allocate(1)) == -1) {
+            socketClosed(new ClosedChannelException());
+            return;
+          }
+        } catch (IOException ioe) {
+          socketClosed(ioe);
+          return;
+        }
+        s.register(true, false, socketTimeout, this);
+      }
+      
+      if (canWrite) {
+        writeRegistered = false;
+        try {
+          while (true) {
+            if (writing == null) {
+              if (queue.isEmpty()) break;
+              writing = queue.removeFirst();
+            }
+            if (writing.header.hasRemaining()) {
+              if (s.write(writing.header) == -1) {
+                socketClosed(new ClosedChannelException());
+                return;
+              }
+              if (writing.header.hasRemaining()) break;
+            }
+            if (s.write(writing.body) == -1) {
+              socketClosed(new ClosedChannelException());
+              return;
+            }
+            if (writing.body.hasRemaining()) break;
+            
+            Frame done = writing;
+            writing = null;
+            queuedBytes-=done.size;
+            lastUsed = environment.getTimeSource().currentTimeMillis();
+            done.success();
+          }
+        } catch (IOException ioe) {
+          socketClosed(ioe);
+          return;
+        }
+        scheduleWrite();
+      }
+    }
+    
+    public void receiveException(AppSocket s, Exception e) {
+      if (s != socket) return;
+      socketClosed(e);
+    }
+    
+    /**
+     * The socket died, open a new one for the rest of the queue.  A frame that was 
+     * partly written is lost.
+     */
+    protected void socketClosed(Exception e) {
+      if (logger.level <= Logger.FINE) logger.logException("Socket to "+handle+" closed", e);
+      if (socket != null) socket.close();
+      socket = null;
+      writeRegistered = false;
+      if (writing != null) {
+        Frame f = writing;
+        writing = null;
+        if (f.started() || ++f.attempts > 1) {
+          queuedBytes-=f.size;
+          f.fail(e);
+        } else {
+          queue.addFirst(f);
+        }
+      }
+      if (!queue.isEmpty() && !destroyed) connect();
+    }
+    
+    /**
+     * Close the socket, and fail everything that is queued.
+     * 
+     * @param e the reason, null if idle
+     */
+    public void close(Exception e) {
+      if (socket != null) socket.close();
+      socket = null;
+      writeRegistered = false;
+      if (e == null) e = new ClosedChannelException();
+      ArrayList<Frame> failed = new ArrayList<Frame>(queue);
+      if (writing != null) failed.add(0, writing);
+      writing = null;
+      queue.clear();
+      queuedBytes = 0;
+      for (Frame f : failed) {
+        f.fail(e);
+      }
+    }
+    
+    public boolean isIdle(long now) {
+      return !connecting && writing == null && queue.isEmpty() && (now-lastUsed >= idleTimeout);
+    }
+    
+    public String toString() {
+      return "Peer{"+handle+" "+socket+" q:"+queue.size()+"}";
+    }
+  }
+  
+  /**
+   * Reads size, message, size, message... from an accepted socket.
+   */
+  protected class FrameReader implements AppSocketReceiver {
+    FrameReceiver receiver;
+    ByteBuffer header = ByteBuffer.allocate(4);
+    ByteBuffer body;
+    
+    public FrameReader(FrameReceiver receiver) {
+      this.receiver = receiver;
+    }
+    
+    public void receiveSocket(AppSocket socket) {
+      throw new IllegalStateException("Shouldn't be called.");
+    }
+    
+    public void receiveSelectResult(AppSocket socket, boolean canRead, boolean canWrite) {
+      if (logger.level <= Logger.FINER) logger.log("Reading from "+socket);
+      try {
+        if (body == null) {
+          if (socket.read(header) == -1) {
+            socket.close();
+            return;
+          }
+          if (!header.hasRemaining()) {
+            header.flip();
+            int size = header.getInt();
+            header.clear();
+            if (size < 0) throw new IOException("Illegal frame size "+size+" from "+socket);
+            if (logger.level <= Logger.FINER) logger.log("Found object of size "+size+" from "+socket);
+            body = ByteBuffer.allocate(size);
+          }
+        }
+        
+        if (body != null) {
+          if (socket.read(body) == -1) {
+            socket.close();
+            return;
+          }
+          if (!body.hasRemaining()) {
+            ByteBuffer frame = body;
+            body = null;
+            frame.flip();
+            receiver.receiveFrame(socket, frame);
+          }
+        }
+        
+        // the selector calls us again when there is more to read
+        socket.register(true, false, socketTimeout, this);
+      } catch (IOException ioe) {
+        receiveException(socket, ioe);
+      }
+    }
+    
+    public void receiveException(AppSocket socket, Exception e) {
+      // a lower layer closing an idle socket under us is not an error
+      if (e instanceof ClosedChannelException) {
+        if (logger.level <= Logger.FINE) logger.logException("Socket from "+socket+" closed", e);
+      } else {
+        if (logger.level <= Logger.WARNING) logger.logException("Error receiving message from "+socket, e);
+      }
+      socket.close();
+    }
+  }
+}
@@ -156,11 +156,26 @@ public class BloomFilter implements Serializable {
    * @return The result, which is guaranteed to be 0..length
    */
   protected int doHash(byte[] array, int seed) {
-    byte[] tmp = new byte[array.length+4];
-    MathUtils.intToByteArray(seed,tmp,0);
-    System.arraycopy(array, 0, tmp, 4, array.length);
+    // equivalent to MathUtils.simpleHash(seed || array), but without building 
+    // the concatenated array
+    int hash = 0;
     
-    return MathUtils.simpleHash(tmp);
+    for (int i = 24; i >= 0; i -= 8) {
+      hash += (byte) (seed >> i);
+      hash += (hash << 10);
+      hash ^= (hash >> 6);
+    }
+    
+    for (int i = 0; i < array.length; i++) {
+      hash += array[i];
+      hash += (hash << 10);
+      hash ^= (hash >> 6);
+    }
+    
+    hash += (hash << 3);
+    hash ^= (hash >> 11);
+    hash += (hash << 15);
+    return hash;
   }
   
   /**
@@ -205,7 +220,18 @@ public class BloomFilter implements Serializable {
   }
   
   public BloomFilter(InputBuffer buf) throws IOException {
-    length = buf.readInt();
+    this(buf.readInt(), buf);
+  }
+  
+  /**
+   * Deserialization constructor for callers which have already read the length
+   * (see IdBloomFilter)
+   *
+   * @param length The length of the underlying bit set
+   * @param buf The buffer to read the rest of the filter from
+   */
+  protected BloomFilter(int length, InputBuffer buf) throws IOException {
+    this.length = length;
     
     parameters = new int[buf.readInt()];
     for(int i = 0; i < parameters.length; i++) {
@@ -0,0 +1,206 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.util;
+
+import java.util.*;
+
+/**
+ * @(#) CopyOnWriteIntMap.java
+ *
+ * A small map from primitive ints to objects, designed for tables which are read
+ * on every message but only written when something registers, such as the 
+ * application address book in MessageDispatch.  Lookups are lock-free and do not 
+ * box the key: the table is an open-addressing (linear probing) array which is 
+ * never modified once published, and every put() or remove() builds a new table 
+ * under the lock and swaps it in.  Null values are not permitted.
+ *
+ * @version $Id$
+ *
+ * @author agent
+ */
+@SuppressWarnings("unchecked")
+public class CopyOnWriteIntMap<V> {
+
+  // the current table, which is never modified after it is published
+  protected volatile Table table = new Table(0);
+  
+  /**
+   * Returns the value mapped to the given key, or null.  Never blocks.
+   *
+   * @param key The key
+   * @return The value, or null
+   */
+  public V get(int key) {
+    return (V) table.get(key);
+  }
+  
+  /**
+   * Returns whether or not a value is mapped to the given key
+   *
+   * @param key The key
+   * @return Whether or not the key is present
+   */
+  public boolean containsKey(int key) {
+    return table.get(key) != null;
+  }
+  
+  /**
+   * Maps the key to the value, replacing and returning any previous value
+   *
+   * @param key The key
+   * @param value The value, which must not be null
+   * @return The previous value, or null
+   */
+  public synchronized V put(int key, V value) {
+    if (value == null) throw new IllegalArgumentException("Null values are not permitted.");
+    Table old = table;
+    Object previous = old.get(key);
+    Table next = new Table(old.size + (previous == null ? 1 : 0));
+    old.copyInto(next, key, false);
+    next.insert(key, value);
+    table = next;
+    return (V) previous;
+  }
+  
+  /**
+   * Removes and returns the value mapped to the key
+   *
+   * @param key The key
+   * @return The previous value, or null
+   */
+  public synchronized V remove(int key) {
+    Table old = table;
+    Object previous = old.get(key);
+    if (previous == null) return null;
+    Table next = new Table(old.size - 1);
+    old.copyInto(next, key, true);
+    table = next;
+    return (V) previous;
+  }
+  
+  /**
+   * Removes all of the mappings
+   */
+  public synchronized void clear() {
+    table = new Table(0);
+  }
+  
+  /**
+   * Returns the number of mappings
+   *
+   * @return The size
+   */
+  public int size() {
+    return table.size;
+  }
+  
+  /**
+   * Returns a snapshot of the values, which is not affected by later changes
+   *
+   * @return The values
+   */
+  public Collection<V> values() {
+    Table t = table;
+    ArrayList<V> result = new ArrayList<V>(t.size);
+    for (int i = 0; i < t.values.length; i++) 
+      if (t.values[i] != null)
+        result.add((V) t.values[i]);
+    return result;
+  }
+  
+  public String toString() {
+    Table t = table;
+    StringBuffer result = new StringBuffer("{");
+    for (int i = 0; i < t.values.length; i++) {
+      if (t.values[i] != null) {
+        if (result.length() > 1) result.append(", ");
+        result.append(t.keys[i]).append("=").append(t.values[i]);
+      }
+    }
+    return result.append("}").toString();
+  }
+  
+  /**
+   * One immutable generation of the map.  The capacity is a power of two at
+   * least twice the size, so probe chains stay short and always end in an empty slot.
+   */
+  protected static class Table {
+    protected final int[] keys;
+    protected final Object[] values;
+    protected final int mask;
+    protected final int size;
+    
+    protected Table(int size) {
+      int capacity = 4;
+      while (capacity < size * 2) capacity <<= 1;
+      this.keys = new int[capacity];
+      this.values = new Object[capacity];
+      this.mask = capacity - 1;
+      this.size = size;
+    }
+    
+    protected Object get(int key) {
+      int i = hash(key) & mask;
+      Object value;
+      while ((value = values[i]) != null) {
+        if (keys[i] == key) return value;
+        i = (i + 1) & mask;
+      }
+      return null;
+    }
+    
+    // only called while the new table is still private to the writer
+    protected void insert(int key, Object value) {
+      int i = hash(key) & mask;
+      while (values[i] != null && keys[i] != key) i = (i + 1) & mask;
+      keys[i] = key;
+      values[i] = value;
+    }
+    
+    protected void copyInto(Table other, int key, boolean skip) {
+      for (int i = 0; i < values.length; i++) 
+        if (values[i] != null && !(skip && keys[i] == key))
+          other.insert(keys[i], values[i]);
+    }
+    
+    // application addresses are often hashes of strings, so mix the bits before masking
+    protected static int hash(int key) {
+      int h = key * 0x9E3779B9;
+      return h ^ (h >>> 16);
+    }
+  }
+}
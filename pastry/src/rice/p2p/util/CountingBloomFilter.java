@@ -0,0 +1,291 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+
+package rice.p2p.util;
+
+import java.io.*;
+
+import rice.environment.random.RandomSource;
+import rice.environment.random.simple.SimpleRandomSource;
+import rice.p2p.commonapi.rawserialization.*;
+
+/**
+ * @(#) CountingBloomFilter.java
+ *
+ * Class which is a counting variant of the FastBloomFilter, which supports
+ * removal of elements.  Each position holds a 4-bit counter (16 counters are
+ * packed into each long) instead of a single bit.  Counters saturate at 15, and 
+ * a saturated counter is never decremented again, so that removals can never 
+ * cause false negatives.
+ *
+ * Since the positions are computed exactly as in FastBloomFilter, a counting 
+ * filter can be maintained locally and converted into a (16 times smaller) 
+ * FastBloomFilter with toBloomFilter() before it is sent across the wire.
+ *
+ * @version $Id$
+ *
+ * @author agent
+ */
+public class CountingBloomFilter implements Serializable {
+  
+  private static final long serialVersionUID = -6309011406829213962L;
+
+  /**
+   * The maximum value of a counter
+   */
+  protected static final int MAX_COUNT = 15;
+  
+  /**
+   * The number of hash functions
+   */
+  protected int numHashes;
+  
+  /**
+   * The number of counters
+   */
+  protected int length;
+  
+  /**
+   * The seed of the underlying hash function
+   */
+  protected long seed;
+  
+  /**
+   * The packed counters
+   */
+  protected long[] counters;
+  
+  /**
+   * Constructor which takes the number of hash functions to use
+   * and the number of counters to use.  The seed is chosen at random.
+   *
+   * @param num The number of hash functions to use
+   * @param length The number of counters
+   */
+  public CountingBloomFilter(int num, int length) {
+    this(num, length, new SimpleRandomSource(null));
+  }
+  
+  /**
+   * Constructor which takes the number of hash functions to use, the 
+   * number of counters and the source of the seed.
+   *
+   * @param num The number of hash functions to use
+   * @param length The number of counters
+   * @param rand The random source to draw the seed from
+   */
+  public CountingBloomFilter(int num, int length, RandomSource rand) {
+    this(num, length, rand.nextLong());
+  }
+  
+  /**
+   * Constructor which takes the number of hash functions to use, the 
+   * number of counters and the seed of the hash function.
+   *
+   * @param num The number of hash functions to use
+   * @param length The number of counters
+   * @param seed The seed of the hash function
+   */
+  public CountingBloomFilter(int num, int length, long seed) {
+    if (num <= 0)
+      throw new IllegalArgumentException("Number of hash functions must be positive: "+num);
+    if (length < 0)
+      throw new IllegalArgumentException("Length must not be negative: "+length);
+
+    this.numHashes = num;
+    this.length = length;
+    this.seed = seed;
+    this.counters = new long[(length + 15) >>> 4];
+  }
+  
+  /**
+   * Internal method which returns the counter at the given position
+   *
+   * @param pos The position
+   * @return The counter
+   */
+  protected int get(int pos) {
+    return (int) ((counters[pos >>> 4] >>> ((pos & 15) << 2)) & 0xf);
+  }
+  
+  /**
+   * Method which adds an element to this bloom filter.
+   *
+   * @param array The element to add
+   */
+  public void add(byte[] array) {
+    add(array, 0, array.length);
+  }
+  
+  /**
+   * Method which adds the given region of the array as an element to 
+   * this bloom filter.
+   *
+   * @param array The array containing the element
+   * @param offset The start of the element
+   * @param len The length of the element
+   */
+  public void add(byte[] array, int offset, int len) {
+    if (length <= 0)
+      return;
+    
+    long hash = FastBloomFilter.hash64(array, offset, len, seed);
+    
+    for (int i=0; i<numHashes; i++) {
+      int pos = FastBloomFilter.index(hash, i, length);
+      
+      if (get(pos) < MAX_COUNT)
+        counters[pos >>> 4] += (1L << ((pos & 15) << 2));
+    }
+  }
+  
+  /**
+   * Method which removes an element from this bloom filter.  The element
+   * must have been previously added, otherwise other elements may be 
+   * removed as well.
+   *
+   * @param array The element to remove
+   */
+  public void remove(byte[] array) {
+    remove(array, 0, array.length);
+  }
+  
+  /**
+   * Method which removes the element in the given region of the array.
+   *
+   * @param array The array containing the element
+   * @param offset The start of the element
+   * @param len The length of the element
+   */
+  public void remove(byte[] array, int offset, int len) {
+    if (length <= 0)
+      return;
+    
+    long hash = FastBloomFilter.hash64(array, offset, len, seed);
+    
+    for (int i=0; i<numHashes; i++) {
+      int pos = FastBloomFilter.index(hash, i, length);
+      int count = get(pos);
+      
+      if ((count > 0) && (count < MAX_COUNT))
+        counters[pos >>> 4] -= (1L << ((pos & 15) << 2));
+    }
+  }
+  
+  /**
+   * Method which returns whether or not an element *may* be in the set.  
+   *
+   * @param array The element to check for
+   */
+  public boolean check(byte[] array) {
+    return check(array, 0, array.length);
+  }
+  
+  /**
+   * Method which returns whether or not the element in the given region of the
+   * array *may* be in the set.
+   *
+   * @param array The array containing the element
+   * @param offset The start of the element
+   * @param len The length of the element
+   */
+  public boolean check(byte[] array, int offset, int len) {
+    if (length <= 0)
+      return true;
+    
+    long hash = FastBloomFilter.hash64(array, offset, len, seed);
+    
+    for (int i=0; i<numHashes; i++) 
+      if (get(FastBloomFilter.index(hash, i, length)) == 0)
+        return false;
+    
+    return true;
+  }
+  
+  /**
+   * Method which returns a plain bloom filter which contains the same elements
+   * as this one
+   *
+   * @return A FastBloomFilter with the same parameters
+   */
+  public FastBloomFilter toBloomFilter() {
+    FastBloomFilter result = new FastBloomFilter(numHashes, length, seed);
+    
+    for (int i=0; i<length; i++)
+      if (get(i) > 0)
+        result.words[i >>> 6] |= (1L << i);
+    
+    return result;
+  }
+  
+  public String toString() {
+    return "[CountingBloomFilter " + length + " counters k=" + numHashes + "]";
+  }
+  
+  /***************** Raw Serialization ***************************************/
+  public void serialize(OutputBuffer buf) throws IOException {
+    buf.writeInt(length);
+    buf.writeByte((byte) numHashes);
+    buf.writeLong(seed);
+    
+    int used = counters.length;
+    while ((used > 0) && (counters[used-1] == 0))
+      used--;
+    
+    buf.writeInt(used);
+    for (int i=0; i<used; i++)
+      buf.writeLong(counters[i]);
+  }
+  
+  public CountingBloomFilter(InputBuffer buf) throws IOException {
+    length = buf.readInt();
+    numHashes = buf.readByte() & 0xff;
+    seed = buf.readLong();
+    
+    if ((length < 0) || (numHashes <= 0))
+      throw new IOException("Invalid counting bloom filter length:"+length+" hashes:"+numHashes);
+    
+    counters = new long[(length + 15) >>> 4];
+    
+    int used = buf.readInt();
+    if ((used < 0) || (used > counters.length))
+      throw new IOException("Invalid number of words "+used+" for counting bloom filter of length "+length);
+    
+    for (int i=0; i<used; i++)
+      counters[i] = buf.readLong();
+  }
+}
@@ -0,0 +1,397 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+
+package rice.p2p.util;
+
+import java.io.*;
+
+import rice.environment.random.RandomSource;
+import rice.environment.random.simple.SimpleRandomSource;
+import rice.p2p.commonapi.rawserialization.*;
+
+/**
+ * @(#) FastBloomFilter.java
+ *
+ * Class which is an allocation-free implementation of a bloom filter.  Unlike
+ * BloomFilter, which runs the element through a separate seeded hash for each
+ * hash function (and copies the element to do so), this class hashes each 
+ * element exactly once into 64 bits and derives the k bit positions using
+ * the double hashing scheme of Kirsch and Mitzenmacher:
+ *
+ * g_i(x) = h_1(x) + i * h_2(x)    (mod length)
+ *
+ * where h_1 and h_2 are the lower and upper 32 bits of a 64-bit MurmurHash of x.
+ * Elements may be given as a region of a larger array, so callers can reuse a 
+ * single buffer for all of their elements.  
+ *
+ * The bits are kept in a long[], which is also what is written to the wire 
+ * (trailing zero words are not transmitted).
+ *
+ * @version $Id$
+ *
+ * @author agent
+ */
+public class FastBloomFilter implements Serializable {
+  
+  private static final long serialVersionUID = 4416375834221094457L;
+
+  /**
+   * The number of hash functions (bit positions per element)
+   */
+  protected int numHashes;
+  
+  /**
+   * The length of the set to use, in bits
+   */
+  protected int length;
+  
+  /**
+   * The seed of the underlying hash function
+   */
+  protected long seed;
+  
+  /**
+   * The underlying bits of this filter
+   */
+  protected long[] words;
+  
+  /**
+   * Constructor which takes the number of hash functions to use
+   * and the length of the set to use.  The seed is chosen at random.
+   *
+   * @param num The number of hash functions to use
+   * @param length The length of the underlying bit set
+   */
+  public FastBloomFilter(int num, int length) {
+    this(num, length, new SimpleRandomSource(null));
+  }
+  
+  /**
+   * Constructor which takes the number of hash functions to use, the 
+   * length of the set to use and the source of the seed.
+   *
+   * @param num The number of hash functions to use
+   * @param length The length of the underlying bit set
+   * @param rand The random source to draw the seed from
+   */
+  public FastBloomFilter(int num, int length, RandomSource rand) {
+    this(num, length, rand.nextLong());
+  }
+  
+  /**
+   * Constructor which takes the number of hash functions to use, the 
+   * length of the set to use and the seed of the hash function.  Two filters
+   * with the same parameters may be merged.
+   *
+   * @param num The number of hash functions to use
+   * @param length The length of the underlying bit set
+   * @param seed The seed of the hash function
+   */
+  public FastBloomFilter(int num, int length, long seed) {
+    if (num <= 0)
+      throw new IllegalArgumentException("Number of hash functions must be positive: "+num);
+    if (length < 0)
+      throw new IllegalArgumentException("Length must not be negative: "+length);
+    
+    this.numHashes = num;
+    this.length = length;
+    this.seed = seed;
+    this.words = new long[(length + 63) >>> 6];
+  }
+  
+  /**
+   * Method which adds an element to this bloom filter.
+   *
+   * @param array The element to add
+   */
+  public void add(byte[] array) {
+    add(array, 0, array.length);
+  }
+  
+  /**
+   * Method which adds the given region of the array as an element to 
+   * this bloom filter.
+   *
+   * @param array The array containing the element
+   * @param offset The start of the element
+   * @param len The length of the element
+   */
+  public void add(byte[] array, int offset, int len) {
+    if (length > 0)
+      set(hash64(array, offset, len, seed));
+  }
+  
+  /**
+   * Method which returns whether or not an element *may* be in the set.  Specifically, 
+   * if this method returns false, the element is definately not in the set.  Otherwise, 
+   * if true is returned, the element may be in the set, but it is not guaranteed.
+   *
+   * @param array The element to check for
+   */
+  public boolean check(byte[] array) {
+    return check(array, 0, array.length);
+  }
+  
+  /**
+   * Method which returns whether or not the element in the given region of the
+   * array *may* be in the set.
+   *
+   * @param array The array containing the element
+   * @param offset The start of the element
+   * @param len The length of the element
+   */
+  public boolean check(byte[] array, int offset, int len) {
+    if (length <= 0)
+      return true;
+    
+    return test(hash64(array, offset, len, seed));
+  }
+  
+  /**
+   * Internal method which sets the bits for an element with the given hash
+   *
+   * @param hash The 64-bit hash of the element
+   */
+  protected void set(long hash) {
+    for (int i=0; i<numHashes; i++) {
+      int bit = index(hash, i, length);
+      words[bit >>> 6] |= (1L << bit);
+    }
+  }
+  
+  /**
+   * Internal method which tests the bits for an element with the given hash
+   *
+   * @param hash The 64-bit hash of the element
+   * @return Whether all of the bits are set
+   */
+  protected boolean test(long hash) {
+    for (int i=0; i<numHashes; i++) {
+      int bit = index(hash, i, length);
+      if ((words[bit >>> 6] & (1L << bit)) == 0)
+        return false;
+    }
+    
+    return true;
+  }
+  
+  /**
+   * Internal method which computes the ith bit position of an element with
+   * the given hash, using double hashing.
+   *
+   * @param hash The 64-bit hash of the element
+   * @param i The hash function to use
+   * @param length The number of positions
+   * @return The position, which is guaranteed to be 0..length
+   */
+  protected static int index(long hash, int i, int length) {
+    int combined = ((int) hash) + i * ((int) (hash >>> 32));
+    
+    if (combined < 0)
+      combined = ~combined;
+    
+    return combined % length;
+  }
+  
+  /**
+   * Method which computes the 64-bit MurmurHash (64A) of the given region of 
+   * the array, without allocating any memory.
+   *
+   * @param data The array
+   * @param offset The start of the region
+   * @param len The length of the region
+   * @param seed The seed
+   * @return The hash
+   */
+  public static long hash64(byte[] data, int offset, int len, long seed) {
+    final long m = 0xc6a4a7935bd1e995L;
+    final int r = 47;
+    
+    long h = seed ^ (len * m);
+    int end = offset + (len & ~7);
+    
+    for (int i=offset; i<end; i+=8) {
+      long k = (data[i] & 0xffL) | 
+               ((data[i+1] & 0xffL) << 8) | 
+               ((data[i+2] & 0xffL) << 16) | 
+               ((data[i+3] & 0xffL) << 24) | 
+               ((data[i+4] & 0xffL) << 32) | 
+               ((data[i+5] & 0xffL) << 40) | 
+               ((data[i+6] & 0xffL) << 48) | 
+               ((data[i+7] & 0xffL) << 56);
+      
+      k *= m;
+      k ^= k >>> r;
+      k *= m;
+      
+      h ^= k;
+      h *= m;
+    }
+    
+    switch (len & 7) {
+      case 7: h ^= (data[end+6] & 0xffL) << 48;
+      case 6: h ^= (data[end+5] & 0xffL) << 40;
+      case 5: h ^= (data[end+4] & 0xffL) << 32;
+      case 4: h ^= (data[end+3] & 0xffL) << 24;
+      case 3: h ^= (data[end+2] & 0xffL) << 16;
+      case 2: h ^= (data[end+1] & 0xffL) << 8;
+      case 1: h ^= (data[end] & 0xffL);
+              h *= m;
+    }
+    
+    h ^= h >>> r;
+    h *= m;
+    h ^= h >>> r;
+    
+    return h;
+  }
+  
+  /**
+   * Method which adds all of the elements of the provided filter to this one.  The
+   * filters must have been built with the same parameters.
+   *
+   * @param other The filter to merge in
+   */
+  public void merge(FastBloomFilter other) {
+    if ((other.getClass() != getClass()) || (other.numHashes != numHashes) || 
+        (other.length != length) || (other.seed != seed))
+      throw new IllegalArgumentException("Cannot merge incompatible bloom filters " + this + " and " + other);
+    
+    for (int i=0; i<words.length; i++)
+      words[i] |= other.words[i];
+  }
+  
+  /**
+   * Method which removes all elements from this filter
+   */
+  public void clear() {
+    java.util.Arrays.fill(words, 0L);
+  }
+  
+  /**
+   * Returns the number of bits which are set in this filter
+   *
+   * @return The number of set bits
+   */
+  public int cardinality() {
+    int result = 0;
+    
+    for (int i=0; i<words.length; i++)
+      result += Long.bitCount(words[i]);
+    
+    return result;
+  }
+  
+  /**
+   * Returns the probability that check() returns true for an element which
+   * was never added, given the current fill of the filter
+   *
+   * @return The current false positive probability
+   */
+  public double getFalsePositiveProbability() {
+    if (length <= 0)
+      return 1.0;
+    
+    return Math.pow((double) cardinality() / (double) length, numHashes);
+  }
+  
+  /**
+   * Returns the number of hash functions of this filter
+   *
+   * @return The number of hash functions
+   */
+  public int getNumHashes() {
+    return numHashes;
+  }
+  
+  /**
+   * Returns the length of this filter, in bits
+   *
+   * @return The length
+   */
+  public int getLength() {
+    return length;
+  }
+  
+  /**
+   * Returns the seed of this filter's hash function
+   *
+   * @return The seed
+   */
+  public long getSeed() {
+    return seed;
+  }
+  
+  public String toString() {
+    return "[" + getClass().getName().substring(getClass().getName().lastIndexOf('.')+1) + 
+      " " + length + "bit k=" + numHashes + " set=" + cardinality() + "]";
+  }
+  
+  /***************** Raw Serialization ***************************************/
+  public void serialize(OutputBuffer buf) throws IOException {
+    buf.writeInt(length);
+    buf.writeByte((byte) numHashes);
+    buf.writeLong(seed);
+    
+    // trailing empty words are not sent
+    int used = words.length;
+    while ((used > 0) && (words[used-1] == 0))
+      used--;
+    
+    buf.writeInt(used);
+    for (int i=0; i<used; i++)
+      buf.writeLong(words[i]);
+  }
+  
+  public FastBloomFilter(InputBuffer buf) throws IOException {
+    length = buf.readInt();
+    numHashes = buf.readByte() & 0xff;
+    seed = buf.readLong();
+    
+    if ((length < 0) || (numHashes <= 0))
+      throw new IOException("Invalid bloom filter length:"+length+" hashes:"+numHashes);
+    
+    words = new long[(length + 63) >>> 6];
+    
+    int used = buf.readInt();
+    if ((used < 0) || (used > words.length))
+      throw new IOException("Invalid number of words "+used+" for bloom filter of length "+length);
+    
+    for (int i=0; i<used; i++)
+      words[i] = buf.readLong();
+  }
+}
@@ -71,6 +71,12 @@ public class IdBloomFilter implements Serializable {
    */
   public static int NUM_HASH_FUNCTIONS = 2;
   
+  /**
+   * The marker written in place of the length of the legacy filter to 
+   * indicate that a FastBloomFilter follows
+   */
+  protected static final int FAST_FILTER_MARKER = -1;
+  
   /**
    * An internal byte[] for managing ids in a memory-efficent manner
    * 
@@ -85,17 +91,36 @@ public class IdBloomFilter implements Serializable {
    * The parameters to the hash functions for this bloom filter
    */
   protected BloomFilter filter;
+  
+  /**
+   * The allocation-free filter, which is used instead of filter if this 
+   * IdBloomFilter was built as a fast filter
+   */
+  protected FastBloomFilter fastFilter;
     
   /**
-    * Constructor which takes the number of hash functions to use
-   * and the length of the set to use.
+   * Constructor which builds a (legacy) bloom filter from the given set
    *
-   * @param num The number of hash functions to use
-   * @param length The length of the underlying bit set
+   * @param set The set of ids to put into the filter
    */
   public IdBloomFilter(IdSet set) {
+    this(set, false);
+  }
+  
+  /**
+   * Constructor which builds a bloom filter from the given set.  If fast is 
+   * true, the ids are put into a FastBloomFilter, which is much cheaper to build
+   * and check, but can only be read by nodes which know about FastBloomFilters.
+   *
+   * @param set The set of ids to put into the filter
+   * @param fast Whether to use a FastBloomFilter
+   */
+  public IdBloomFilter(IdSet set, boolean fast) {
     int size = (set.numElements() < 64 ? 64 : set.numElements());
-    this.filter = new BloomFilter(NUM_HASH_FUNCTIONS, NUM_BITS_PER_KEY * size);
+    if (fast)
+      this.fastFilter = new FastBloomFilter(NUM_HASH_FUNCTIONS, NUM_BITS_PER_KEY * size);
+    else
+      this.filter = new BloomFilter(NUM_HASH_FUNCTIONS, NUM_BITS_PER_KEY * size);
     Iterator<Id> i = set.getIterator();  
     
     while (i.hasNext())
@@ -124,7 +149,10 @@ public class IdBloomFilter implements Serializable {
    */
   protected void addId(Id id) {
     checkArray(id);
-    filter.add(array);
+    if (fastFilter != null)
+      fastFilter.add(array, 0, id.getByteArrayLength());
+    else
+      filter.add(array);
   }
   
   /**
@@ -136,7 +164,10 @@ public class IdBloomFilter implements Serializable {
    */
   public boolean check(Id id) {
     checkArray(id);
-    return filter.check(array);
+    if (fastFilter != null)
+      return fastFilter.check(array, 0, id.getByteArrayLength());
+    else
+      return filter.check(array);
   }
   
   /**
@@ -161,17 +192,36 @@ public class IdBloomFilter implements Serializable {
     }
   }
 
+  /**
+   * Returns whether this filter is backed by a FastBloomFilter
+   *
+   * @return Whether this is a fast filter
+   */
+  public boolean isFast() {
+    return (fastFilter != null);
+  }
+
   public IdBloomFilter(InputBuffer buf) throws IOException {
 //    array = new byte[buf.readInt()];
 //    buf.read(array);
 
-    filter = new BloomFilter(buf);
+    // the legacy filter starts with its (non-negative) length
+    int length = buf.readInt();
+    if (length == FAST_FILTER_MARKER)
+      fastFilter = new FastBloomFilter(buf);
+    else
+      filter = new BloomFilter(length, buf);
   }
   
   public void serialize(OutputBuffer buf) throws IOException {
 //    buf.writeInt(array.length);
 //    buf.write(array, 0, array.length);
     
-    filter.serialize(buf); 
+    if (fastFilter != null) {
+      buf.writeInt(FAST_FILTER_MARKER);
+      fastFilter.serialize(buf);
+    } else {
+      filter.serialize(buf); 
+    }
   }
 }
@@ -38,6 +38,7 @@ package rice.p2p.util;
 
 import java.io.*;
 import java.math.*;
+import java.nio.ByteBuffer;
 
 import java.security.*;
 import java.security.cert.*;
@@ -143,38 +144,25 @@ public class SecurityUtils {
     Arrays.fill(HMAC_OPAD, HMAC_OPAD_BYTE);
   }
 
-  // ----- STATIC CIPHER OBJECTS -----
-
-  /**
-   * The message digest used for doing hashing
-   */
-  private static MessageDigest hash;
-  
-  /**
-   * The message digest used for doing apop
-   */
-  private static MessageDigest apop;
-  
-  /**
-   * The message digest used for doing hmacing
-   */
-  private static MessageDigest hmac1;
-  
   /**
-   * The message digest used for doing hmacing
+   * The size of the buffer used when hashing streams
    */
-  private static MessageDigest hmac2;
-  
-  /**
-   * The cipher used to encrypt/decrypt data using DES
-   */
-  private static Cipher cipherSymmetric;
+  public final static int HASH_BUFFER_SIZE = 16384;
+
+  // ----- STATIC CIPHER OBJECTS -----
 
   /**
-   * The cipher used to encrypt/decrypt data using RSA
+   * The per-thread set of ciphers and digests.  None of the JCE primitives are
+   * thread-safe, and sharing a single instance of each between all threads made
+   * every hash and encryption in the process contend on the same few monitors.
+   * Each thread builds its own instance of a primitive the first time it uses
+   * it, so a thread which only ever hashes holds a single digest.
    */
-  private static Cipher cipherAsymmetric;
-  private static Cipher deprecatedCipherAsymmetric;
+  private static ThreadLocal<Primitives> primitives = new ThreadLocal<Primitives>() {
+    protected Primitives initialValue() {
+      return new Primitives();
+    }
+  };
 
   /**
    * The generator used to generate DES keys
@@ -186,16 +174,6 @@ public class SecurityUtils {
    */
   private static KeyPairGenerator generatorAsymmetric;
 
-  /**
-   * The generator used to decode RSA keys
-   */
-  private static KeyFactory factoryAsymmetric;
-
-  /**
-   * The signature used for verification and signing data.
-   */
-  private static Signature signature;
-
   /**
    * The RNG for generating DES IVs
    */
@@ -209,25 +187,12 @@ public class SecurityUtils {
     
     try {
       random = new Random();
-      cipherSymmetric = Cipher.getInstance(SYMMETRIC_ALGORITHM);
-      cipherAsymmetric = Cipher.getInstance(ASYMMETRIC_ALGORITHM, "BC");
-      deprecatedCipherAsymmetric = Cipher.getInstance(DEPRECATED_ASYMMETRIC_ALGORITHM);
       generatorSymmetric = KeyGenerator.getInstance(SYMMETRIC_GENERATOR);
       generatorAsymmetric = KeyPairGenerator.getInstance(ASYMMETRIC_GENERATOR);
-      factoryAsymmetric = KeyFactory.getInstance(ASYMMETRIC_GENERATOR);
-      signature = Signature.getInstance(SIGNATURE_ALGORITHM);
-      hash = MessageDigest.getInstance(HASH_ALGORITHM);
-      apop = MessageDigest.getInstance(APOP_ALGORITHM);
-      hmac1 = MessageDigest.getInstance(HMAC_ALGORITHM);
-      hmac2 = MessageDigest.getInstance(HMAC_ALGORITHM);
       
       generatorSymmetric.init(SYMMETRIC_KEY_LENGTH);
     } catch (NoSuchAlgorithmException e) {
       throw new SecurityException("NoSuchAlgorithmException on construction: " + e);
-    } catch (NoSuchPaddingException e) {
-      throw new SecurityException("NoSuchPaddingException on construction: " + e);
-    } catch (NoSuchProviderException e) {
-      throw new SecurityException("NoSuchProviderException on construction: " + e);
     }
   }
 
@@ -279,8 +244,80 @@ public class SecurityUtils {
    * @exception SecurityException If the hashing does not happen properly
    */
   public static byte[] hash(byte[] input) throws SecurityException {
-    synchronized (hash) {
-      return hash.digest(input);
+    return primitives.get().hash().digest(input);
+  }
+  
+  /**
+   * Utility method for determining the hash of a region of a byte[] using a 
+   * secure hashing algorithm.
+   *
+   * @param input The input
+   * @param offset The offset into the input
+   * @param length The number of bytes to hash
+   * @return The hash value
+   * @exception SecurityException If the hashing does not happen properly
+   */
+  public static byte[] hash(byte[] input, int offset, int length) throws SecurityException {
+    MessageDigest hash = primitives.get().hash();
+    hash.update(input, offset, length);
+    return hash.digest();
+  }
+  
+  /**
+   * Utility method for determining the hash of the remaining bytes of a 
+   * ByteBuffer, without copying them out of the buffer.  The buffer's position
+   * is advanced to its limit.
+   *
+   * @param input The input
+   * @return The hash value
+   * @exception SecurityException If the hashing does not happen properly
+   */
+  public static byte[] hash(ByteBuffer input) throws SecurityException {
+    MessageDigest hash = primitives.get().hash();
+    hash.update(input);
+    return hash.digest();
+  }
+  
+  /**
+   * Utility method for determining the hash of all of the data in a stream, 
+   * without ever holding more than a small buffer of it in memory.  The stream 
+   * is read until EOF, but is not closed.
+   *
+   * @param input The input
+   * @return The hash value
+   * @exception IOException If the stream cannot be read
+   * @exception SecurityException If the hashing does not happen properly
+   */
+  public static byte[] hash(InputStream input) throws IOException, SecurityException {
+    Primitives p = primitives.get();
+    MessageDigest hash = p.hash();
+    byte[] buffer = p.buffer();
+    
+    try {
+      int read;
+      while ((read = input.read(buffer)) >= 0) 
+        hash.update(buffer, 0, read);
+    
+      return hash.digest();
+    } finally {
+      hash.reset();
+    }
+  }
+  
+  /**
+   * Returns a new, private instance of the hash function, for callers which 
+   * need to hash data incrementally as it arrives (possibly on a different 
+   * thread for each piece).  The result of digest() is equal to that of 
+   * hash() over the concatenation of all of the updates.
+   *
+   * @return A new message digest
+   * @exception SecurityException If the hash function is not available
+   */
+  public static MessageDigest getHashFunction() throws SecurityException {
+    try {
+      return MessageDigest.getInstance(HASH_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new SecurityException("NoSuchAlgorithmException on construction: " + e);
     }
   }
   
@@ -294,11 +331,10 @@ public class SecurityUtils {
    * @exception SecurityException If the hashing does not happen properly
    */
   public static byte[] apop(byte[] challenge, byte[] password) throws SecurityException {
-    synchronized (apop) {
-      apop.update(challenge);
-      apop.update(password);
-      return apop.digest();
-    }
+    MessageDigest apop = primitives.get().apop();
+    apop.update(challenge);
+    apop.update(password);
+    return apop.digest();
   }
   
   /**
@@ -311,16 +347,18 @@ public class SecurityUtils {
    * @exception SecurityException If the hmacing does not happen properly
    */
   public static byte[] hmac(byte[] key, byte[] text) throws SecurityException {
-    synchronized (hmac1) {
-      byte[] realKey = new byte[HMAC_KEY_LENGTH];
-      System.arraycopy(key, 0, realKey, 0, (key.length < realKey.length ? key.length : realKey.length));
+    Primitives p = primitives.get();
+    byte[] realKey = new byte[HMAC_KEY_LENGTH];
+    System.arraycopy(key, 0, realKey, 0, (key.length < realKey.length ? key.length : realKey.length));
     
-      hmac1.update(MathUtils.xor(realKey, HMAC_IPAD));
-      hmac1.update(text);
-      hmac2.update(MathUtils.xor(realKey, HMAC_OPAD));
-      hmac2.update(hmac1.digest());
-      return hmac2.digest();
-    }
+    MessageDigest hmac1 = p.hmac1();
+    MessageDigest hmac2 = p.hmac2();
+    
+    hmac1.update(MathUtils.xor(realKey, HMAC_IPAD));
+    hmac1.update(text);
+    hmac2.update(MathUtils.xor(realKey, HMAC_OPAD));
+    hmac2.update(hmac1.digest());
+    return hmac2.digest();
   }
   
   /**
@@ -378,13 +416,12 @@ public class SecurityUtils {
     try {
       iv = correctLength(iv, SYMMETRIC_IV_LENGTH/8);
       IvParameterSpec ivSpec = new IvParameterSpec(iv);
-      SecretKeySpec secretKey = new SecretKeySpec(key, SYMMETRIC_ALGORITHM);
+      SecretKeySpec secretKey = new SecretKeySpec(symmetricKey(key), SYMMETRIC_ALGORITHM);
 
-      synchronized (cipherSymmetric) {
-        cipherSymmetric.init(Cipher.ENCRYPT_MODE, secretKey, ivSpec);
+      Cipher cipherSymmetric = primitives.get().cipherSymmetric();
+      cipherSymmetric.init(Cipher.ENCRYPT_MODE, secretKey, ivSpec);
 
-        return cipherSymmetric.doFinal(data, offset, length);
-      }
+      return cipherSymmetric.doFinal(data, offset, length);
     } catch (InvalidKeyException e) {
       throw new SecurityException("InvalidKeyException (" + iv.length + "," + key.length + ") encrypting object: " + e);
     } catch (IllegalBlockSizeException e) {
@@ -421,13 +458,12 @@ public class SecurityUtils {
     try {
       iv = correctLength(iv, SYMMETRIC_IV_LENGTH/8);
       IvParameterSpec ivSpec = new IvParameterSpec(iv);
-      SecretKeySpec secretKey = new SecretKeySpec(key, SYMMETRIC_ALGORITHM);
+      SecretKeySpec secretKey = new SecretKeySpec(symmetricKey(key), SYMMETRIC_ALGORITHM);
 
-      synchronized (cipherSymmetric) {
-        cipherSymmetric.init(Cipher.DECRYPT_MODE, secretKey, ivSpec);
+      Cipher cipherSymmetric = primitives.get().cipherSymmetric();
+      cipherSymmetric.init(Cipher.DECRYPT_MODE, secretKey, ivSpec);
         
-        return cipherSymmetric.doFinal(data);
-      }
+      return cipherSymmetric.doFinal(data);
     } catch (InvalidKeyException e) {
       throw new SecurityException("InvalidKeyException decrypting object: " + e);
     } catch (IllegalBlockSizeException e) {
@@ -439,6 +475,86 @@ public class SecurityUtils {
     } 
   }
 
+  /**
+   * Utility method for encrypting the remaining bytes of a ByteBuffer with 
+   * symmetric encryption, writing the ciphertext into the output buffer.  
+   * Neither buffer is copied into an intermediate array; the output must have 
+   * at least getSymmetricOutputSize(input.remaining()) bytes remaining.
+   *
+   * @param input The data
+   * @param output The buffer to write the ciphertext into
+   * @param key The key
+   * @param iv The initialization vector
+   * @return The number of bytes written to the output
+   * @exception SecurityException If the encryption does not happen properly
+   */
+  public static int encryptSymmetric(ByteBuffer input, ByteBuffer output, byte[] key, byte[] iv) throws SecurityException {
+    return doSymmetric(Cipher.ENCRYPT_MODE, input, output, key, iv);
+  }
+
+  /**
+   * Utility method for decrypting the remaining bytes of a ByteBuffer with 
+   * symmetric encryption, writing the plaintext into the output buffer.  The 
+   * output must have at least input.remaining() bytes remaining.
+   *
+   * @param input The data to decrypt
+   * @param output The buffer to write the plaintext into
+   * @param key The key
+   * @param iv The initialization vector
+   * @return The number of bytes written to the output
+   * @exception SecurityException If the decryption does not happen properly
+   */
+  public static int decryptSymmetric(ByteBuffer input, ByteBuffer output, byte[] key, byte[] iv) throws SecurityException {
+    return doSymmetric(Cipher.DECRYPT_MODE, input, output, key, iv);
+  }
+  
+  /**
+   * Returns the largest number of bytes the symmetric cipher will produce when
+   * encrypting the given number of bytes.
+   *
+   * @param length The length of the plaintext
+   * @return The maximum length of the ciphertext
+   */
+  public static int getSymmetricOutputSize(int length) {
+    int block = SYMMETRIC_IV_LENGTH/8;
+    return length + block - (length % block);
+  }
+  
+  /**
+   * Internal method which performs a ByteBuffer encryption or decryption
+   *
+   * @param mode The cipher mode
+   * @param input The input
+   * @param output The output
+   * @param key The key
+   * @param iv The initialization vector
+   * @return The number of bytes written
+   */
+  private static int doSymmetric(int mode, ByteBuffer input, ByteBuffer output, byte[] key, byte[] iv) throws SecurityException {
+    String op = (mode == Cipher.ENCRYPT_MODE ? "encrypting" : "decrypting");
+    
+    try {
+      iv = correctLength(iv, SYMMETRIC_IV_LENGTH/8);
+      IvParameterSpec ivSpec = new IvParameterSpec(iv);
+      SecretKeySpec secretKey = new SecretKeySpec(symmetricKey(key), SYMMETRIC_ALGORITHM);
+
+      Cipher cipherSymmetric = primitives.get().cipherSymmetric();
+      cipherSymmetric.init(mode, secretKey, ivSpec);
+        
+      return cipherSymmetric.doFinal(input, output);
+    } catch (InvalidKeyException e) {
+      throw new SecurityException("InvalidKeyException " + op + " object: " + e);
+    } catch (IllegalBlockSizeException e) {
+      throw new SecurityException("IllegalBlockSizeException " + op + " object: " + e);
+    } catch (BadPaddingException e) {
+      throw new SecurityException("BadPaddingException " + op + " object: " + e);
+    } catch (ShortBufferException e) {
+      throw new SecurityException("ShortBufferException " + op + " object: " + e);
+    } catch (InvalidAlgorithmParameterException e) {
+      throw new SecurityException("InvalidAlgorithmParameterException " + op + " object: " + e);    
+    } 
+  }
+
   /**
    * Utility method for signing a block of data with the a private key
    *
@@ -449,12 +565,11 @@ public class SecurityUtils {
    */
   public static byte[] sign(byte[] data, PrivateKey key) throws SecurityException {
     try {
-      synchronized (signature) {
-        signature.initSign(key);
-        signature.update(hash(data));
+      Signature signature = primitives.get().signature();
+      signature.initSign(key);
+      signature.update(hash(data));
 
-        return signature.sign();
-      }
+      return signature.sign();
     } catch (InvalidKeyException e) {
       throw new SecurityException("InvalidKeyException signing object: " + e);
     } catch (SignatureException e) {
@@ -473,12 +588,11 @@ public class SecurityUtils {
    */
   public static boolean verify(byte[] data, byte[] sig, PublicKey key) throws SecurityException {
     try {
-      synchronized (signature) {
-        signature.initVerify(key);
-        signature.update(hash(data));
+      Signature signature = primitives.get().signature();
+      signature.initVerify(key);
+      signature.update(hash(data));
 
-        return signature.verify(sig);
-      }
+      return signature.verify(sig);
     } catch (InvalidKeyException e) {
       throw new SecurityException("InvalidKeyException verifying object: " + e);
     } catch (SignatureException e) {
@@ -497,11 +611,10 @@ public class SecurityUtils {
    */
   public static byte[] encryptAsymmetric(byte[] data, PublicKey key) throws SecurityException {
     try {
-      synchronized (cipherAsymmetric) {
-        cipherAsymmetric.init(Cipher.ENCRYPT_MODE, key);
+      Cipher cipherAsymmetric = primitives.get().cipherAsymmetric();
+      cipherAsymmetric.init(Cipher.ENCRYPT_MODE, key);
 
-        return cipherAsymmetric.doFinal(data);
-      }
+      return cipherAsymmetric.doFinal(data);
     } catch (InvalidKeyException e) {
       throw new SecurityException("InvalidKeyException encrypting object: " + e);
     } catch (IllegalBlockSizeException e) {
@@ -524,18 +637,16 @@ public class SecurityUtils {
     try {
       try {
         // First try normal way of decrypting
-        synchronized (cipherAsymmetric) {
-          cipherAsymmetric.init(Cipher.DECRYPT_MODE, key);
+        Cipher cipherAsymmetric = primitives.get().cipherAsymmetric();
+        cipherAsymmetric.init(Cipher.DECRYPT_MODE, key);
 
-          return cipherAsymmetric.doFinal(data);
-        }
+        return cipherAsymmetric.doFinal(data);
       } catch (BadPaddingException e) {
         // Trying deprecated way of decrypting
-        synchronized (deprecatedCipherAsymmetric) {
-          deprecatedCipherAsymmetric.init(Cipher.DECRYPT_MODE, key);
+        Cipher deprecatedCipherAsymmetric = primitives.get().deprecatedCipherAsymmetric();
+        deprecatedCipherAsymmetric.init(Cipher.DECRYPT_MODE, key);
           
-          return deprecatedCipherAsymmetric.doFinal(data);
-        }
+        return deprecatedCipherAsymmetric.doFinal(data);
       }
     } catch (InvalidKeyException e) {
       throw new SecurityException("InvalidKeyException decrypting object: " + e);
@@ -598,9 +709,7 @@ public class SecurityUtils {
     RSAPublicKeySpec rpks = new RSAPublicKeySpec(new BigInteger(modulus), new BigInteger(exponent));
     
     try {
-      synchronized (factoryAsymmetric) {
-        return factoryAsymmetric.generatePublic(rpks);
-      }
+      return primitives.get().factoryAsymmetric().generatePublic(rpks);
     } catch (InvalidKeySpecException e) {
       throw new SecurityException("InvalidKeySpecException while decoding key: " + e);
     }
@@ -646,9 +755,7 @@ public class SecurityUtils {
     RSAPrivateKeySpec rpks = new RSAPrivateKeySpec(new BigInteger(modulus), new BigInteger(exponent));
     
     try {
-      synchronized (factoryAsymmetric) {
-        return factoryAsymmetric.generatePrivate(rpks);
-      }
+      return primitives.get().factoryAsymmetric().generatePrivate(rpks);
     } catch (InvalidKeySpecException e) {
       throw new SecurityException("InvalidKeySpecException while decoding key: " + e);
     }
@@ -679,6 +786,21 @@ public class SecurityUtils {
     }
   }
 
+  /**
+   * Utility method which returns the DES key to use for the given key bytes.
+   * Content-hash keys are full hashes, of which DES has only ever used the
+   * first 8 bytes.
+   *
+   * @param key The key
+   * @return The key, truncated to 8 bytes
+   */
+  private static byte[] symmetricKey(byte[] key) {
+    if (key.length > 8)
+      return correctLength(key, 8);
+    
+    return key;
+  }
+
   /**
    * Utility method for ensuring the array is of the proper length.  THis
    * method enforces the length by appending 0's or returning a subset of
@@ -697,4 +819,144 @@ public class SecurityUtils {
 
     return result;
   }
+
+  /**
+   * The set of (non-thread-safe) primitives owned by a single thread.  Each 
+   * one is built the first time it is asked for.
+   */
+  private static class Primitives {
+    
+    /**
+     * The message digest used for doing hashing
+     */
+    private MessageDigest hash;
+  
+    /**
+     * The message digest used for doing apop
+     */
+    private MessageDigest apop;
+  
+    /**
+     * The message digests used for doing hmacing
+     */
+    private MessageDigest hmac1;
+    private MessageDigest hmac2;
+  
+    /**
+     * The cipher used to encrypt/decrypt data using DES
+     */
+    private Cipher cipherSymmetric;
+
+    /**
+     * The cipher used to encrypt/decrypt data using RSA
+     */
+    private Cipher cipherAsymmetric;
+    private Cipher deprecatedCipherAsymmetric;
+
+    /**
+     * The generator used to decode RSA keys
+     */
+    private KeyFactory factoryAsymmetric;
+
+    /**
+     * The signature used for verification and signing data.
+     */
+    private Signature signature;
+    
+    /**
+     * The buffer used for hashing streams
+     */
+    private byte[] buffer;
+    
+    MessageDigest hash() {
+      if (hash == null) 
+        hash = getDigest(HASH_ALGORITHM);
+      return hash;
+    }
+    
+    MessageDigest apop() {
+      if (apop == null) 
+        apop = getDigest(APOP_ALGORITHM);
+      return apop;
+    }
+    
+    MessageDigest hmac1() {
+      if (hmac1 == null) 
+        hmac1 = getDigest(HMAC_ALGORITHM);
+      return hmac1;
+    }
+    
+    MessageDigest hmac2() {
+      if (hmac2 == null) 
+        hmac2 = getDigest(HMAC_ALGORITHM);
+      return hmac2;
+    }
+    
+    Cipher cipherSymmetric() {
+      if (cipherSymmetric == null) 
+        cipherSymmetric = getCipher(SYMMETRIC_ALGORITHM, null);
+      return cipherSymmetric;
+    }
+    
+    Cipher cipherAsymmetric() {
+      if (cipherAsymmetric == null) 
+        cipherAsymmetric = getCipher(ASYMMETRIC_ALGORITHM, "BC");
+      return cipherAsymmetric;
+    }
+    
+    Cipher deprecatedCipherAsymmetric() {
+      if (deprecatedCipherAsymmetric == null) 
+        deprecatedCipherAsymmetric = getCipher(DEPRECATED_ASYMMETRIC_ALGORITHM, null);
+      return deprecatedCipherAsymmetric;
+    }
+    
+    KeyFactory factoryAsymmetric() {
+      try {
+        if (factoryAsymmetric == null) 
+          factoryAsymmetric = KeyFactory.getInstance(ASYMMETRIC_GENERATOR);
+        return factoryAsymmetric;
+      } catch (NoSuchAlgorithmException e) {
+        throw new SecurityException("NoSuchAlgorithmException on construction: " + e);
+      }
+    }
+    
+    Signature signature() {
+      try {
+        if (signature == null) 
+          signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+        return signature;
+      } catch (NoSuchAlgorithmException e) {
+        throw new SecurityException("NoSuchAlgorithmException on construction: " + e);
+      }
+    }
+    
+    byte[] buffer() {
+      if (buffer == null) 
+        buffer = new byte[HASH_BUFFER_SIZE];
+      return buffer;
+    }
+    
+    private static MessageDigest getDigest(String algorithm) {
+      try {
+        return MessageDigest.getInstance(algorithm);
+      } catch (NoSuchAlgorithmException e) {
+        throw new SecurityException("NoSuchAlgorithmException on construction: " + e);
+      }
+    }
+    
+    private static Cipher getCipher(String algorithm, String provider) {
+      try {
+        if (provider == null)
+          return Cipher.getInstance(algorithm);
+        else
+          return Cipher.getInstance(algorithm, provider);
+      } catch (NoSuchAlgorithmException e) {
+        throw new SecurityException("NoSuchAlgorithmException on construction: " + e);
+      } catch (NoSuchPaddingException e) {
+        throw new SecurityException("NoSuchPaddingException on construction: " + e);
+      } catch (NoSuchProviderException e) {
+        throw new SecurityException("NoSuchProviderException on construction: " + e);
+      }
+    }
+  }
 }
@@ -0,0 +1,126 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.util.rawserialization;
+
+import java.util.Arrays;
+
+/**
+ * A SimpleOutputBuffer that remembers where some objects (such as NodeHandles) were 
+ * written, so that a lower layer can treat those bytes specially.  For example, the 
+ * PriorityTransportLayer replaces a NodeHandle that it already sent on the same 
+ * connection with a short index.
+ * 
+ * The object calls beginMark() before serializing itself, and endMark() after.
+ * 
+ * @author agent
+ */
+public class MarkingOutputBuffer extends SimpleOutputBuffer {
+  
+  /**
+   * start, end pairs
+   */
+  int[] offsets = new int[16];
+  
+  /**
+   * Who the marked bytes belong to, so they can be invalidated when that node goes away.
+   */
+  Object[] tags = new Object[8];
+  
+  int numMarks = 0;
+  
+  public MarkingOutputBuffer() {
+    super();
+  }
+  
+  public MarkingOutputBuffer(int size) {
+    super(size);
+  }
+  
+  /**
+   * @return the position to pass into endMark()
+   */
+  public int beginMark() {
+    return getWritten();
+  }
+  
+  /**
+   * Record that the bytes from start to the current position belong to tag.  Marks 
+   * that overlap an earlier mark are ignored.
+   * 
+   * @param start returned by beginMark()
+   * @param tag the owner of the bytes, may be null
+   */
+  public void endMark(int start, Object tag) {
+    if (numMarks > 0 && start < offsets[numMarks*2-1]) return;
+    if (numMarks == tags.length) {
+      offsets = Arrays.copyOf(offsets, offsets.length*2);
+      tags = Arrays.copyOf(tags, tags.length*2);
+    }
+    offsets[numMarks*2] = start;
+    offsets[numMarks*2+1] = getWritten();
+    tags[numMarks] = tag;
+    numMarks++;
+  }
+  
+  /**
+   * @return the marks, or null if nothing was marked
+   */
+  public Marks getMarks() {
+    if (numMarks == 0) return null;
+    return new Marks(Arrays.copyOf(offsets, numMarks*2), Arrays.copyOf(tags, numMarks));
+  }
+  
+  /**
+   * Marked regions of a serialized message, in order.
+   */
+  public static class Marks {
+    /**
+     * start, end pairs relative to the beginning of the message
+     */
+    public final int[] offsets;
+    public final Object[] tags;
+    
+    public Marks(int[] offsets, Object[] tags) {
+      this.offsets = offsets;
+      this.tags = tags;
+    }
+    
+    public int size() {
+      return tags.length;
+    }
+  }
+}
@@ -46,6 +46,9 @@ import rice.p2p.commonapi.rawserialization.InputBuffer;
 
 public class SimpleInputBuffer extends DataInputStream implements InputBuffer {
   ByteArrayInputStream bais;
+  byte[] bytes;
+  int offset;
+  int limit;
   
   public SimpleInputBuffer(ByteBuffer bb) {
     this(bb.array(),bb.position(),bb.remaining()); 
@@ -59,6 +62,9 @@ public class SimpleInputBuffer extends DataInputStream implements InputBuffer {
   public SimpleInputBuffer(byte[] bytes, int offset, int length) {
     super(new ByteArrayInputStream(bytes, offset, length));
     bais = (ByteArrayInputStream)this.in;
+    this.bytes = bytes;
+    this.offset = offset;
+    this.limit = offset+length;
   }
   
 //  public short peakShort() throws IOException {
@@ -76,4 +82,35 @@ public class SimpleInputBuffer extends DataInputStream implements InputBuffer {
     }
     return -1;
   }  
+  
+  /**
+   * The array this buffer reads from.  It is not copied, so callers must not 
+   * modify it unless they own the buffer.
+   * 
+   * @return the backing array
+   */
+  public byte[] getBackingArray() {
+    return bytes;
+  }
+  
+  /**
+   * @return the index in the backing array where this buffer started
+   */
+  public int getStartOffset() {
+    return offset;
+  }
+  
+  /**
+   * @return the index in the backing array of the next byte to be read
+   */
+  public int getPosition() {
+    return limit-bytesRemaining();
+  }
+  
+  /**
+   * @return the index in the backing array after the last readable byte
+   */
+  public int getLimit() {
+    return limit;
+  }
 }
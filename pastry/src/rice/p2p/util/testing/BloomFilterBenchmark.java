@@ -0,0 +1,151 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.util.testing;
+
+import rice.environment.random.RandomSource;
+import rice.environment.random.simple.SimpleRandomSource;
+import rice.p2p.util.*;
+
+/**
+ * Measures the insert and query throughput and the false positive rate of 
+ * the different bloom filters on 20-byte (Id-sized) elements.  Each filter 
+ * is exercised a few times first so that the JIT has compiled it.
+ * 
+ * usage: BloomFilterBenchmark [numElements numHashes bitsPerKey rounds]
+ */
+public class BloomFilterBenchmark {
+  
+  /**
+   * The common interface of the filters under test
+   */
+  static abstract class Subject {
+    String name;
+    
+    Subject(String name) {
+      this.name = name;
+    }
+    
+    abstract void reset();
+    abstract void add(byte[] element);
+    abstract boolean check(byte[] element);
+  }
+  
+  public static void main(String[] args) {
+    final int n = (args.length > 0 ? Integer.parseInt(args[0]) : 1000000);
+    final int k = (args.length > 1 ? Integer.parseInt(args[1]) : 3);
+    final int bpk = (args.length > 2 ? Integer.parseInt(args[2]) : 8);
+    int rounds = (args.length > 3 ? Integer.parseInt(args[3]) : 5);
+    
+    final RandomSource rand = new SimpleRandomSource(null);
+    byte[][] elements = new byte[n][];
+    byte[][] others = new byte[n][];
+    for (int i=0; i<n; i++) {
+      elements[i] = MathUtils.randomBytes(20, rand);
+      others[i] = MathUtils.randomBytes(20, rand);
+    }
+    
+    Subject[] subjects = new Subject[] {
+      new Subject("BloomFilter") {
+        BloomFilter f;
+        void reset() { f = new BloomFilter(k, bpk*n); }
+        void add(byte[] e) { f.add(e); }
+        boolean check(byte[] e) { return f.check(e); }
+      },
+      new Subject("glacier.v2.BloomFilter") {
+        rice.p2p.glacier.v2.BloomFilter f;
+        void reset() { f = new rice.p2p.glacier.v2.BloomFilter(bpk*n, k, rand); }
+        void add(byte[] e) { f.add(e); }
+        boolean check(byte[] e) { return f.contains(e); }
+      },
+      new Subject("FastBloomFilter") {
+        FastBloomFilter f;
+        void reset() { f = new FastBloomFilter(k, bpk*n, rand); }
+        void add(byte[] e) { f.add(e); }
+        boolean check(byte[] e) { return f.check(e); }
+      },
+      new Subject("BlockedBloomFilter") {
+        BlockedBloomFilter f;
+        void reset() { f = new BlockedBloomFilter(k, bpk*n, rand); }
+        void add(byte[] e) { f.add(e); }
+        boolean check(byte[] e) { return f.check(e); }
+      },
+      new Subject("CountingBloomFilter") {
+        CountingBloomFilter f;
+        void reset() { f = new CountingBloomFilter(k, bpk*n, rand); }
+        void add(byte[] e) { f.add(e); }
+        boolean check(byte[] e) { return f.check(e); }
+      }
+    };
+    
+    System.out.println("elements=" + n + " hashes=" + k + " bitsPerKey=" + bpk);
+    
+    for (int s=0; s<subjects.length; s++) {
+      Subject subject = subjects[s];
+      long insert = Long.MAX_VALUE;
+      long query = Long.MAX_VALUE;
+      int falsePositives = 0;
+      
+      for (int r=0; r<rounds; r++) {
+        subject.reset();
+        
+        long start = System.nanoTime();
+        for (int i=0; i<n; i++)
+          subject.add(elements[i]);
+        insert = Math.min(insert, System.nanoTime() - start);
+        
+        start = System.nanoTime();
+        int count = 0;
+        for (int i=0; i<n; i++) {
+          if (subject.check(elements[i])) 
+            count++;
+          if (subject.check(others[i])) 
+            count++;
+        }
+        query = Math.min(query, System.nanoTime() - start);
+        falsePositives = count - n;
+      }
+      
+      System.out.println(subject.name + ":\tinsert " + format(1000.0 * n / insert) + " Mops/s" + 
+          "\tquery " + format(1000.0 * 2 * n / query) + " Mops/s" + 
+          "\tfalse positive rate " + format((double) falsePositives / n));
+    }
+  }
+  
+  protected static String format(double d) {
+    return String.valueOf(Math.round(d * 10000) / 10000.0);
+  }
+}
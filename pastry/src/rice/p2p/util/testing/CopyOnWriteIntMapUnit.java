@@ -0,0 +1,146 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.util.testing;
+
+import java.util.*;
+
+import rice.p2p.util.*;
+
+/**
+ * Checks CopyOnWriteIntMap against a HashMap under random puts and removes, including
+ * colliding keys, and measures lookups against the boxed HashMap it replaces.
+ */
+public class CopyOnWriteIntMapUnit {
+
+  public static void main(String[] argv) {
+    System.out.println("CopyOnWriteIntMap Test Suite");
+    System.out.println("-------------------------------------------------------------");
+    System.out.println("  Running Tests");
+
+    System.out.print("    Testing Put/Get/Remove\t\t\t");
+    CopyOnWriteIntMap<String> map = new CopyOnWriteIntMap<String>();
+    HashMap<Integer, String> reference = new HashMap<Integer, String>();
+    Random rng = new Random(42);
+    boolean passed = true;
+    
+    for (int i=0; i<20000 && passed; i++) {
+      // small key space so that there are plenty of replacements and removals, plus
+      // multiples of large powers of two which all collide after masking
+      int key = (rng.nextBoolean() ? rng.nextInt(64) : rng.nextInt(8) << 20);
+      if (rng.nextInt(3) == 0) {
+        passed = equal(map.remove(key), reference.remove(key));
+      } else {
+        String value = "v" + i;
+        passed = equal(map.put(key, value), reference.put(key, value));
+      }
+      passed = passed && (map.size() == reference.size()) && matches(map, reference);
+    }
+    
+    if (passed) {
+      System.out.println("[ PASSED ]");
+    } else {
+      System.out.println("[ FAILED ]");
+      System.out.println("    Expected: \t" + reference);
+      System.out.println("    Output:\t" + map);
+    }
+    
+    System.out.print("    Testing Null Values\t\t\t\t");
+    try {
+      map.put(1, null);
+      System.out.println("[ FAILED ]");
+    } catch (IllegalArgumentException e) {
+      System.out.println("[ PASSED ]");
+    }
+    
+    System.out.print("    Testing Values Snapshot\t\t\t");
+    map.clear();
+    map.put(1, "a");
+    map.put(2, "b");
+    Collection<String> values = map.values();
+    map.put(3, "c");
+    if ((values.size() == 2) && values.contains("a") && values.contains("b") && (map.values().size() == 3)) {
+      System.out.println("[ PASSED ]");
+    } else {
+      System.out.println("[ FAILED ]");
+      System.out.println("    Output:\t" + values);
+    }
+    
+    System.out.println("-------------------------------------------------------------");
+    System.out.println("  Lookup Benchmark (8 registered addresses)");
+    int[] addresses = new int[8];
+    CopyOnWriteIntMap<String> cow = new CopyOnWriteIntMap<String>();
+    HashMap<Integer, String> boxed = new HashMap<Integer, String>();
+    for (int i=0; i<addresses.length; i++) {
+      addresses[i] = ("rice.p2p.app" + i).hashCode();
+      cow.put(addresses[i], "app" + i);
+      boxed.put(Integer.valueOf(addresses[i]), "app" + i);
+    }
+    
+    for (int round=0; round<3; round++) {
+      int lookups = 20000000;
+      int found = 0;
+      long start = System.nanoTime();
+      for (int i=0; i<lookups; i++) 
+        if (boxed.get(Integer.valueOf(addresses[i & 7])) != null) found++;
+      long boxedTime = System.nanoTime() - start;
+      
+      start = System.nanoTime();
+      for (int i=0; i<lookups; i++) 
+        if (cow.get(addresses[i & 7]) != null) found++;
+      long cowTime = System.nanoTime() - start;
+      
+      System.out.println("    HashMap<Integer>: " + (boxedTime / lookups) + "." + ((boxedTime * 10 / lookups) % 10) + 
+          "ns/lookup  CopyOnWriteIntMap: " + (cowTime / lookups) + "." + ((cowTime * 10 / lookups) % 10) + 
+          "ns/lookup  (" + found + ")");
+    }
+    System.out.println("-------------------------------------------------------------");
+  }
+  
+  protected static boolean equal(Object a, Object b) {
+    return (a == null) ? (b == null) : a.equals(b);
+  }
+  
+  protected static boolean matches(CopyOnWriteIntMap<String> map, HashMap<Integer, String> reference) {
+    for (int key=-1; key<64; key++) 
+      if (! equal(map.get(key), reference.get(key)))
+        return false;
+    for (int key=0; key<8; key++) 
+      if (! equal(map.get(key << 20), reference.get(key << 20)))
+        return false;
+    return true;
+  }
+}
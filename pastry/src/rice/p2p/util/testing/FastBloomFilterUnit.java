@@ -0,0 +1,126 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.util.testing;
+
+import java.io.IOException;
+
+import rice.environment.random.RandomSource;
+import rice.environment.random.simple.SimpleRandomSource;
+import rice.p2p.util.*;
+import rice.p2p.util.rawserialization.*;
+
+/**
+ * Checks the FastBloomFilter family for false negatives, serialization and 
+ * removal.  Prints the false positive rate of each filter.
+ * 
+ * usage: FastBloomFilterUnit [numHashes bitsPerKey numElements]
+ */
+public class FastBloomFilterUnit {
+  
+  public static void main(String[] args) throws IOException {
+    RandomSource rand = new SimpleRandomSource(null);
+    int k = (args.length > 0 ? Integer.parseInt(args[0]) : 3);
+    int bpk = (args.length > 1 ? Integer.parseInt(args[1]) : 8);
+    int n = (args.length > 2 ? Integer.parseInt(args[2]) : 10000);
+    
+    byte[][] elements = new byte[n][];
+    for (int i=0; i<n; i++) 
+      elements[i] = MathUtils.randomBytes(20, rand);
+    
+    FastBloomFilter fast = new FastBloomFilter(k, bpk*n, rand);
+    BlockedBloomFilter blocked = new BlockedBloomFilter(k, bpk*n, rand);
+    CountingBloomFilter counting = new CountingBloomFilter(k, bpk*n, rand);
+    
+    for (int i=0; i<n; i++) {
+      fast.add(elements[i]);
+      blocked.add(elements[i]);
+      counting.add(elements[i]);
+    }
+    
+    check("FastBloomFilter", fast, elements, rand);
+    check("BlockedBloomFilter", blocked, elements, rand);
+    check("CountingBloomFilter.toBloomFilter()", counting.toBloomFilter(), elements, rand);
+    
+    // serialization round trips
+    SimpleOutputBuffer sob = new SimpleOutputBuffer();
+    fast.serialize(sob);
+    blocked.serialize(sob);
+    counting.serialize(sob);
+    SimpleInputBuffer sib = new SimpleInputBuffer(sob.getBytes(), 0, sob.getWritten());
+    check("FastBloomFilter (deserialized)", new FastBloomFilter(sib), elements, rand);
+    check("BlockedBloomFilter (deserialized)", new BlockedBloomFilter(sib), elements, rand);
+    CountingBloomFilter counting2 = new CountingBloomFilter(sib);
+    
+    // remove the first half from the counting filter
+    for (int i=0; i<n/2; i++)
+      counting2.remove(elements[i]);
+    
+    int present = 0;
+    for (int i=0; i<n; i++) {
+      if (i < n/2) {
+        if (counting2.check(elements[i]))
+          present++;
+      } else if (! counting2.check(elements[i])) {
+        System.out.println("FAILURE: CountingBloomFilter lost element " + i + " after removals!");
+      }
+    }
+    
+    System.out.println("CountingBloomFilter: " + present + "/" + (n/2) + " removed elements still reported");
+    
+    // region checks must agree with whole-array checks
+    byte[] buffer = new byte[25];
+    for (int i=0; i<n; i++) {
+      System.arraycopy(elements[i], 0, buffer, 3, 20);
+      if (! fast.check(buffer, 3, 20))
+        System.out.println("FAILURE: FastBloomFilter region check failed for element " + i);
+    }
+  }
+  
+  protected static void check(String name, FastBloomFilter filter, byte[][] elements, RandomSource rand) {
+    for (int i=0; i<elements.length; i++) 
+      if (! filter.check(elements[i]))
+        System.out.println("FAILURE: " + name + " element " + i + " did not exist!");
+    
+    int count = 0;
+    for (int i=0; i<elements.length; i++) 
+      if (filter.check(MathUtils.randomBytes(20, rand)))
+        count++;
+    
+    System.out.println(name + " " + filter + " FALSE POSITIVE RATE: " + count + "/" + elements.length + 
+        " (expected " + filter.getFalsePositiveProbability() + ")");
+  }
+}
@@ -0,0 +1,183 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.p2p.util.testing;
+
+import java.nio.ByteBuffer;
+import java.security.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+import rice.environment.random.RandomSource;
+import rice.environment.random.simple.SimpleRandomSource;
+import rice.p2p.util.*;
+
+/**
+ * Measures the aggregate throughput of hashing and symmetric encryption with 
+ * SecurityUtils as the number of threads grows, against a single shared, 
+ * synchronized instance of the same primitives (which is how SecurityUtils 
+ * used to work).  Each configuration is run a few times and the best is 
+ * reported, so that the JIT has compiled everything.
+ * 
+ * usage: SecurityUtilsBenchmark [blockSize opsPerThread maxThreads rounds]
+ */
+public class SecurityUtilsBenchmark {
+  
+  /**
+   * The common interface of the operations under test
+   */
+  static abstract class Subject {
+    String name;
+    
+    Subject(String name) {
+      this.name = name;
+    }
+    
+    abstract void run(byte[] block, ByteBuffer in, ByteBuffer out) throws Exception;
+  }
+  
+  public static void main(String[] args) throws Exception {
+    final int size = (args.length > 0 ? Integer.parseInt(args[0]) : 4096);
+    final int ops = (args.length > 1 ? Integer.parseInt(args[1]) : 20000);
+    final int maxThreads = (args.length > 2 ? Integer.parseInt(args[2]) : 16);
+    final int rounds = (args.length > 3 ? Integer.parseInt(args[3]) : 3);
+    
+    RandomSource rand = new SimpleRandomSource(null);
+    final byte[] key = SecurityUtils.hash(MathUtils.randomBytes(20, rand));
+    final byte[] iv = new byte[SecurityUtils.SYMMETRIC_IV_LENGTH];
+    
+    // the old SecurityUtils: one instance of each, shared by every thread
+    final MessageDigest sharedHash = MessageDigest.getInstance(SecurityUtils.HASH_ALGORITHM);
+    final Cipher sharedCipher = Cipher.getInstance(SecurityUtils.SYMMETRIC_ALGORITHM);
+    final SecretKeySpec secretKey = new SecretKeySpec(key, 0, 8, SecurityUtils.SYMMETRIC_ALGORITHM);
+    final IvParameterSpec ivSpec = new IvParameterSpec(iv, 0, 8);
+    
+    Subject[] subjects = new Subject[] {
+      new Subject("hash (shared)") {
+        void run(byte[] block, ByteBuffer in, ByteBuffer out) {
+          synchronized (sharedHash) {
+            sharedHash.digest(block);
+          }
+        }
+      },
+      new Subject("hash") {
+        void run(byte[] block, ByteBuffer in, ByteBuffer out) {
+          SecurityUtils.hash(block);
+        }
+      },
+      new Subject("hash (ByteBuffer)") {
+        void run(byte[] block, ByteBuffer in, ByteBuffer out) {
+          in.clear();
+          SecurityUtils.hash(in);
+        }
+      },
+      new Subject("encrypt (shared)") {
+        void run(byte[] block, ByteBuffer in, ByteBuffer out) throws Exception {
+          synchronized (sharedCipher) {
+            sharedCipher.init(Cipher.ENCRYPT_MODE, secretKey, ivSpec);
+            sharedCipher.doFinal(block);
+          }
+        }
+      },
+      new Subject("encrypt") {
+        void run(byte[] block, ByteBuffer in, ByteBuffer out) {
+          SecurityUtils.encryptSymmetric(block, key, iv);
+        }
+      },
+      new Subject("encrypt (ByteBuffer)") {
+        void run(byte[] block, ByteBuffer in, ByteBuffer out) {
+          in.clear();
+          out.clear();
+          SecurityUtils.encryptSymmetric(in, out, key, iv);
+        }
+      }
+    };
+    
+    System.out.println("blockSize=" + size + " opsPerThread=" + ops + " processors=" + Runtime.getRuntime().availableProcessors());
+    
+    for (int s=0; s<subjects.length; s++) {
+      final Subject subject = subjects[s];
+      StringBuffer result = new StringBuffer(subject.name + ":");
+      
+      for (int threads=1; threads<=maxThreads; threads*=2) {
+        long best = Long.MAX_VALUE;
+        
+        for (int r=0; r<rounds; r++) {
+          Thread[] workers = new Thread[threads];
+          final Exception[] failure = new Exception[1];
+          
+          for (int t=0; t<threads; t++) {
+            final byte[] block = MathUtils.randomBytes(size, rand);
+            
+            workers[t] = new Thread("SecurityUtilsBenchmark-" + t) {
+              public void run() {
+                ByteBuffer in = ByteBuffer.allocateDirect(size);
+                ByteBuffer out = ByteBuffer.allocateDirect(SecurityUtils.getSymmetricOutputSize(size));
+                in.put(block);
+                
+                try {
+                  for (int i=0; i<ops; i++) 
+                    subject.run(block, in, out);
+                } catch (Exception e) {
+                  failure[0] = e;
+                }
+              }
+            };
+          }
+          
+          long start = System.nanoTime();
+          for (int t=0; t<threads; t++)
+            workers[t].start();
+          for (int t=0; t<threads; t++)
+            workers[t].join();
+          best = Math.min(best, System.nanoTime() - start);
+          
+          if (failure[0] != null)
+            throw failure[0];
+        }
+        
+        double mbytes = ((double) threads * ops * size) / (1024 * 1024);
+        result.append("\t" + threads + "t " + format(mbytes * 1000000000.0 / best) + " MB/s");
+      }
+      
+      System.out.println(result);
+    }
+  }
+  
+  protected static String format(double d) {
+    return String.valueOf(Math.round(d * 10) / 10.0);
+  }
+}
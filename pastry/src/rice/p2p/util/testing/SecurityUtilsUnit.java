@@ -121,6 +121,43 @@ public class SecurityUtilsUnit {
       System.out.println("    Output Len:\t" + testStringPlainText.length);
     }
 
+    System.out.print("    Testing buffer and stream hashing\t\t\t");
+
+    byte[] bufferHash = SecurityUtils.hash(java.nio.ByteBuffer.wrap(testStringByte));
+    byte[] streamHash = SecurityUtils.hash(new ByteArrayInputStream(testStringByte));
+    MessageDigest incremental = SecurityUtils.getHashFunction();
+    incremental.update(testStringByte, 0, 3);
+    incremental.update(testStringByte, 3, testStringByte.length - 3);
+
+    if (Arrays.equals(testStringHash, bufferHash) && Arrays.equals(testStringHash, streamHash) &&
+        Arrays.equals(testStringHash, incremental.digest())) {
+      System.out.println("[ PASSED ]");
+    } else {
+      System.out.println("[ FAILED ]");
+    }
+
+    System.out.print("    Testing buffer symmetric encryption\t\t\t");
+
+    byte[] iv = new byte[SecurityUtils.SYMMETRIC_IV_LENGTH];
+    java.nio.ByteBuffer cipherBuffer = java.nio.ByteBuffer.allocateDirect(SecurityUtils.getSymmetricOutputSize(testStringByte.length));
+    SecurityUtils.encryptSymmetric(java.nio.ByteBuffer.wrap(testStringByte), cipherBuffer, key, iv);
+    cipherBuffer.flip();
+    byte[] bufferCipherText = new byte[cipherBuffer.remaining()];
+    cipherBuffer.duplicate().get(bufferCipherText);
+    java.nio.ByteBuffer plainBuffer = java.nio.ByteBuffer.allocate(bufferCipherText.length);
+    SecurityUtils.decryptSymmetric(cipherBuffer, plainBuffer, key, iv);
+    plainBuffer.flip();
+    byte[] bufferPlainText = new byte[plainBuffer.remaining()];
+    plainBuffer.get(bufferPlainText);
+
+    if (Arrays.equals(testStringCipherText, bufferCipherText) && Arrays.equals(testStringByte, bufferPlainText)) {
+      System.out.println("[ PASSED ]");
+    } else {
+      System.out.println("[ FAILED ]");
+      System.out.println("    Cipher Len:\t" + bufferCipherText.length);
+      System.out.println("    Output Len:\t" + bufferPlainText.length);
+    }
+
     System.out.print("    Testing signing and verification (phase 1)\t\t");
 
     byte[] testStringSig = SecurityUtils.sign(testStringByte, pair.getPrivate());
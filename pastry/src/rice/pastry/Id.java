@@ -493,6 +493,34 @@ public class Id implements rice.p2p.commonapi.Id, RawSerializable {
     }
   }
 
+  /**
+   * Copies the words of this Id into target, for PackedIdSet.
+   *
+   * @param target the packed keys
+   * @param offset the index of the first word
+   */
+  void copyTo(int target[], int offset) {
+    System.arraycopy(Id, 0, target, offset, nlen);
+  }
+  
+  /**
+   * Compares this Id with the packed key at the given offset, for PackedIdSet.
+   *
+   * @param keys the packed keys
+   * @param offset the index of the key's first word
+   * @return negative if this < key, 0 if they are equal and positive if this > key.
+   */
+  int compareTo(int keys[], int offset) {
+    for (int i = nlen - 1; i >= 0; i--) {
+      if (Id[i] != keys[offset+i]) {
+        long t = Id[i] & 0x0ffffffffL;
+        long o = keys[offset+i] & 0x0ffffffffL;
+        return (t < o) ? -1 : 1;
+      }
+    }
+    return 0;
+  }
+
   /**
    * Copy the Id into a freshly generated array.
    *
@@ -38,7 +38,6 @@ advised of the possibility of such damage.
 package rice.pastry;
 
 import java.util.*;
-import java.security.*;
 import rice.p2p.util.*;
 
 /**
@@ -65,16 +64,23 @@ public final class IdSet implements rice.p2p.commonapi.IdSet {
 
   private SortedMap idSet;
 
-  // a cache of the fingerprint hash
-  private byte[] cachedHash;
-  private boolean validHash;
+  // whether all changes to idSet go through this IdSet, so the fingerprint 
+  // below can be kept up to date
+  private transient boolean ownsMap;
+  
+  // the fingerprint of the members, see IdSetHash
+  private transient long hash0;
+  private transient long hash1;
+  
+  // scratch space for the words of an id
+  private transient int[] words;
 
   /**
    * Constructor.
    */
   public IdSet() {
     idSet = new RedBlackMap();
-    validHash = false;
+    ownsMap = true;
   }
 
   /**
@@ -84,7 +90,6 @@ public final class IdSet implements rice.p2p.commonapi.IdSet {
    */
   public IdSet(SortedMap s) {
     idSet = s;
-    validHash = false;
   }
 
   /**
@@ -110,8 +115,15 @@ public final class IdSet implements rice.p2p.commonapi.IdSet {
    * @param id the id to add
    */
   public void addMember(Id id) {
+    if (!ownsMap) {
+      idSet.put(id, null);
+      return;
+    }
+    
+    int size = idSet.size();
     idSet.put(id, null);
-    validHash = false;
+    if (idSet.size() != size) 
+      updateHash(id, 1);
   }
 
   /**
@@ -119,8 +131,25 @@ public final class IdSet implements rice.p2p.commonapi.IdSet {
    * @param id the id to remove
    */
   public void removeMember(Id id) {
+    if (!ownsMap) {
+      idSet.remove(id);
+      return;
+    }
+    
+    int size = idSet.size();
     idSet.remove(id);
-    validHash = false;
+    if (idSet.size() != size) 
+      updateHash(id, -1);
+  }
+  
+  /**
+   * Adds or subtracts the mix of id from the fingerprint.
+   */
+  private void updateHash(Id id, int sign) {
+    if (words == null) words = new int[Id.nlen];
+    id.copyTo(words, 0);
+    hash0 += sign * IdSetHash.mix0(words, 0);
+    hash1 += sign * IdSetHash.mix1(words, 0);
   }
 
   /**
@@ -195,36 +224,29 @@ public final class IdSet implements rice.p2p.commonapi.IdSet {
   }
 
   /**
-   * compute a fingerprint of the members in this IdSet
+   * compute a fingerprint of the members in this IdSet, which doesn't depend 
+   * on the order they were added in.  This is O(1) for an IdSet which 
+   * was built empty, and O(n) for subsets and IdSets built on a map.
    *
-   * @return an Id containing the secure hash of this set
+   * @return the fingerprint of this set
    */
   public byte[] getHash() {
-    if (validHash) return cachedHash;
-
-    // recompute the hash
-    MessageDigest md = null;
-    try {
-      md = MessageDigest.getInstance("SHA");
-    } catch ( NoSuchAlgorithmException e ) {
-      throw new RuntimeException("No SHA support!",e);
-      //return null;
-    }
+    if (ownsMap) 
+      return IdSetHash.toByteArray(hash0, hash1, idSet.size());
 
+    long sum0 = 0;
+    long sum1 = 0;
+    int count = 0;
+    int[] words = new int[Id.nlen];
     Iterator it = getIterator();
-    byte[] raw = new byte[Id.IdBitLength / 8];
-    Id id;
-
     while (it.hasNext()) {
-      id = (Id) it.next();
-      id.blit(raw);
-      md.update(raw);
+      ((Id) it.next()).copyTo(words, 0);
+      sum0 += IdSetHash.mix0(words, 0);
+      sum1 += IdSetHash.mix1(words, 0);
+      count++;
     }
-
-    cachedHash = md.digest();
-    validHash = true;
-
-    return cachedHash;
+    
+    return IdSetHash.toByteArray(sum0, sum1, count);
   }
 
   /**
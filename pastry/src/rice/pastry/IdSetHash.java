@@ -0,0 +1,112 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.pastry;
+
+/**
+ * The order independent fingerprint of a set of Pastry ids, shared by IdSet and 
+ * PackedIdSet so that sets with the same members have the same hash().
+ * 
+ * Each id is mixed into two 64 bit values, and the fingerprint is their sums 
+ * over the members, and the number of members.  Adding or removing an id is 
+ * O(1), and the fingerprint of a union of disjoint sets is the sum of theirs.  
+ * This is a checksum for comparing sets, not a cryptographic commitment.
+ * 
+ * @version $Id$
+ *
+ * @author agent
+ */
+final class IdSetHash {
+  
+  /**
+   * The number of bytes in hash().
+   */
+  public static final int LENGTH = 20;
+  
+  private static final long SEED0 = 0x9E3779B97F4A7C15L;
+  private static final long SEED1 = 0xC2B2AE3D27D4EB4FL;
+  
+  private IdSetHash() {
+  }
+  
+  /**
+   * @return the first mix of the key at offset
+   */
+  static long mix0(int[] keys, int offset) {
+    return mix(keys, offset, SEED0);
+  }
+  
+  /**
+   * @return the second mix of the key at offset
+   */
+  static long mix1(int[] keys, int offset) {
+    return mix(keys, offset, SEED1);
+  }
+  
+  private static long mix(int[] keys, int offset, long h) {
+    for (int i = 0; i < Id.nlen; i++) {
+      h ^= keys[offset+i] & 0x0ffffffffL;
+      h = fmix(h);
+    }
+    return h;
+  }
+  
+  /**
+   * The finalizer of MurmurHash3.
+   */
+  private static long fmix(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
+  
+  /**
+   * @return the fingerprint as bytes
+   */
+  static byte[] toByteArray(long sum0, long sum1, int count) {
+    byte[] result = new byte[LENGTH];
+    for (int i = 0; i < 8; i++) {
+      result[i] = (byte) (sum0 >>> (56 - 8*i));
+      result[8+i] = (byte) (sum1 >>> (56 - 8*i));
+    }
+    for (int i = 0; i < 4; i++) 
+      result[16+i] = (byte) (count >>> (24 - 8*i));
+    return result;
+  }
+}
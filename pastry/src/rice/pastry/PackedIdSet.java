@@ -0,0 +1,862 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.pastry;
+
+import java.io.*;
+import java.util.*;
+
+import rice.p2p.commonapi.rawserialization.*;
+
+/**
+ * A set of Pastry ids which keeps the ids in one sorted int[], rather than as a 
+ * tree of Id objects.  A key costs 20 bytes instead of a tree node and an Id, 
+ * which matters for nodes storing millions of objects.
+ * 
+ * subSet() and clone() are O(log n) views which share the array.  The views are 
+ * snapshots: whichever of the set and its views is modified first copies the 
+ * keys it contains.  This differs from IdSet, whose subSet() is a live view, and 
+ * the iterators don't support remove(), so PastryIdFactory only builds 
+ * PackedIdSets if pastry_idSet_packed is set.
+ * 
+ * Ids are only built when the set is iterated or converted to an array.  Use 
+ * merge(), difference(), addAll() and removeAll() to combine PackedIdSets 
+ * without building any Ids.
+ * 
+ * hash() is the same fingerprint as IdSet's.  A set keeps it up to date as ids are 
+ * added and removed.  A view sums its keys, and keeps the sums of each block of 
+ * BLOCK keys it covers, shared with the set it was made from, so that the next view 
+ * of the same keys only has to sum the keys at its ends.
+ * 
+ * @version $Id$
+ *
+ * @author agent
+ */
+public class PackedIdSet implements rice.p2p.commonapi.IdSet {
+  
+  static final long serialVersionUID = 3017390473295815862L;
+  
+  public static final byte VERSION = 0;
+  
+  /**
+   * The number of ints per key.
+   */
+  private static final int W = Id.nlen;
+  
+  /**
+   * The number of bytes per key.
+   */
+  private static final int B = Id.IdBitLength / 8;
+  
+  /**
+   * The number of keys per block of fingerprint sums.
+   */
+  public static final int BLOCK = 64;
+  
+  /**
+   * The keys in increasing order, W ints per key, in the same word order as Id.
+   */
+  private transient int[] keys;
+  
+  /**
+   * The slots of keys which are in this set, as [from, to) pairs in increasing 
+   * order.  A set that owns its keys has one pair which starts at 0.
+   */
+  private transient int[] bounds;
+  
+  /**
+   * The keys are shared with a view, and must be copied before they are modified.
+   */
+  private transient boolean shared;
+  
+  // the fingerprint of the members, see IdSetHash
+  private transient long hash0;
+  private transient long hash1;
+  private transient boolean validHash;
+  
+  /**
+   * The block sums of keys, shared with the views of the same keys.
+   */
+  private transient BlockSums sums;
+  
+  /**
+   * Constructor.
+   */
+  public PackedIdSet() {
+    this(16);
+  }
+  
+  /**
+   * Constructor.
+   * 
+   * @param capacity the number of ids to make room for
+   */
+  public PackedIdSet(int capacity) {
+    keys = new int[Math.max(1, capacity)*W];
+    bounds = new int[] {0, 0};
+    sums = new BlockSums();
+    validHash = true;
+  }
+  
+  /**
+   * Constructor, copies the ids in set.
+   * 
+   * @param set the ids to add
+   */
+  public PackedIdSet(rice.p2p.commonapi.IdSet set) {
+    this(set.numElements());
+    addAll(set);
+  }
+  
+  /**
+   * Constructor for a view.
+   */
+  private PackedIdSet(int[] keys, int[] bounds, BlockSums sums) {
+    this.keys = keys;
+    this.bounds = bounds;
+    this.sums = sums;
+    this.shared = true;
+  }
+  
+  /**
+   * Constructor, reads the set written by serialize().
+   * 
+   * @param buf the buffer to read from
+   */
+  public PackedIdSet(InputBuffer buf) throws IOException {
+    byte version = buf.readByte();
+    switch(version) {
+      case 0:
+        int n = buf.readInt();
+        if (n < 0) throw new IOException("Illegal size "+n);
+        keys = new int[Math.max(1, n)*W];
+        bounds = new int[] {0, n};
+        sums = new BlockSums();
+        byte[] cur = new byte[B];
+        for (int i = 0; i < n; i++) {
+          int prefix = buf.readByte() & 0xff;
+          if (prefix > B || (i == 0 && prefix > 0)) throw new IOException("Illegal prefix "+prefix);
+          int len = B - prefix;
+          int off = prefix;
+          while (len > 0) {
+            int read = buf.read(cur, off, len);
+            if (read <= 0) throw new EOFException();
+            off += read;
+            len -= read;
+          }
+          decode(cur, i);
+        }
+        break;
+      default:
+        throw new IOException("Unknown Version: "+version);
+    }
+  }
+  
+  /**
+   * Writes the ids in increasing order, each as the number of leading bytes 
+   * it shares with the previous id followed by its remaining bytes.  The ids 
+   * held by one node share their leading bytes, so this is smaller than 20 
+   * bytes per id.
+   *
+   * @param buf the buffer to write to
+   */
+  public void serialize(OutputBuffer buf) throws IOException {
+    buf.writeByte(VERSION);
+    buf.writeInt(numElements());
+    byte[] prev = null;
+    byte[] cur = new byte[B];
+    for (int b = 0; b < bounds.length; b += 2) {
+      for (int slot = bounds[b]; slot < bounds[b+1]; slot++) {
+        int prefix = encode(slot, cur, prev);
+        buf.writeByte((byte)prefix);
+        buf.write(cur, prefix, B - prefix);
+        byte[] temp = (prev == null ? new byte[B] : prev);
+        prev = cur;
+        cur = temp;
+      }
+    }
+  }
+  
+  private void writeObject(ObjectOutputStream oos) throws IOException {
+    oos.defaultWriteObject();
+    oos.writeInt(numElements());
+    byte[] prev = null;
+    byte[] cur = new byte[B];
+    for (int b = 0; b < bounds.length; b += 2) {
+      for (int slot = bounds[b]; slot < bounds[b+1]; slot++) {
+        int prefix = encode(slot, cur, prev);
+        oos.writeByte(prefix);
+        oos.write(cur, prefix, B - prefix);
+        byte[] temp = (prev == null ? new byte[B] : prev);
+        prev = cur;
+        cur = temp;
+      }
+    }
+  }
+  
+  private void readObject(ObjectInputStream ois) throws IOException, ClassNotFoundException {
+    ois.defaultReadObject();
+    int n = ois.readInt();
+    if (n < 0) throw new IOException("Illegal size "+n);
+    keys = new int[Math.max(1, n)*W];
+    bounds = new int[] {0, n};
+    sums = new BlockSums();
+    byte[] cur = new byte[B];
+    for (int i = 0; i < n; i++) {
+      int prefix = ois.readUnsignedByte();
+      if (prefix > B || (i == 0 && prefix > 0)) throw new IOException("Illegal prefix "+prefix);
+      ois.readFully(cur, prefix, B - prefix);
+      decode(cur, i);
+    }
+  }
+  
+  /**
+   * Writes the key in slot into cur, most significant byte first.
+   * 
+   * @return the number of leading bytes cur shares with prev, 0 for the first 
+   * id (prev is null), which the readers require
+   */
+  private int encode(int slot, byte[] cur, byte[] prev) {
+    int offset = slot*W;
+    for (int j = 0; j < B; j++) {
+      cur[j] = (byte)(keys[offset + W - 1 - j/4] >>> ((3 - j%4)*8));
+    }
+    if (prev == null) return 0;
+    int prefix = 0;
+    while (prefix < B && cur[prefix] == prev[prefix]) prefix++;
+    return prefix;
+  }
+  
+  /**
+   * Reads the key in cur, written by encode(), into slot.
+   */
+  private void decode(byte[] cur, int slot) {
+    int offset = slot*W;
+    for (int i = 0; i < W; i++) {
+      int j = (W - 1 - i)*4;
+      keys[offset + i] = ((cur[j] & 0xff) << 24) | ((cur[j+1] & 0xff) << 16) | ((cur[j+2] & 0xff) << 8) | (cur[j+3] & 0xff);
+    }
+  }
+
+  /**
+   * return the number of elements
+   */
+  public int numElements() {
+    int n = 0;
+    for (int b = 0; b < bounds.length; b += 2) 
+      n += bounds[b+1] - bounds[b];
+    return n;
+  }
+  
+  /**
+   * add a member
+   * @param id the id to add
+   */
+  public void addMember(Id id) {
+    int slot = search(id);
+    if (slot >= 0 && contains(slot)) return;
+    
+    own();
+    int n = bounds[1];
+    if (n == 0 || id.compareTo(keys, (n-1)*W) > 0) {
+      // the common case of adding the ids in order
+      slot = n;
+    } else {
+      slot = -search(id) - 1;
+    }
+    
+    ensureCapacity(n+1);
+    System.arraycopy(keys, slot*W, keys, (slot+1)*W, (n-slot)*W);
+    id.copyTo(keys, slot*W);
+    bounds[1]++;
+    if (validHash) {
+      hash0 += IdSetHash.mix0(keys, slot*W);
+      hash1 += IdSetHash.mix1(keys, slot*W);
+    }
+  }
+  
+  /**
+   * remove a member
+   * @param id the id to remove
+   */
+  public void removeMember(Id id) {
+    int slot = search(id);
+    if (slot < 0 || !contains(slot)) return;
+    
+    own();
+    slot = search(id);
+    if (validHash) {
+      hash0 -= IdSetHash.mix0(keys, slot*W);
+      hash1 -= IdSetHash.mix1(keys, slot*W);
+    }
+    int n = bounds[1];
+    System.arraycopy(keys, (slot+1)*W, keys, slot*W, (n-slot-1)*W);
+    bounds[1]--;
+  }
+  
+  /**
+   * test membership
+   * @param id the id to test
+   * @return true of id is a member, false otherwise
+   */
+  public boolean isMember(Id id) {
+    int slot = search(id);
+    return (slot >= 0) && contains(slot);
+  }
+  
+  /**
+   * return the smallest member id
+   * @return the smallest id in the set
+   */
+  public Id minMember() {
+    for (int b = 0; b < bounds.length; b += 2) 
+      if (bounds[b] < bounds[b+1]) 
+        return build(bounds[b]);
+    throw new NoSuchElementException();
+  }
+  
+  /**
+   * return the largest member id
+   * @return the largest id in the set
+   */
+  public Id maxMember() {
+    for (int b = bounds.length - 2; b >= 0; b -= 2) 
+      if (bounds[b] < bounds[b+1]) 
+        return build(bounds[b+1]-1);
+    throw new NoSuchElementException();
+  }
+  
+  /**
+   * return a subset of this set, consisting of the member ids in a given range
+   * @param range the range
+   * @return the subset
+   */
+  public PackedIdSet subSet(IdRange range) {
+    if (range.isEmpty()) 
+      return new PackedIdSet();
+    if (range.isFull()) 
+      return (PackedIdSet) clone();
+    
+    int start = bounds[0];
+    int end = bounds[bounds.length-1];
+    int ccw = lowerBound(range.getCCW());
+    int cw = lowerBound(range.getCW());
+    
+    int[] r;
+    if (range.getCCW().compareTo(range.getCW()) < 0) 
+      r = new int[] {ccw, cw};
+    else  // wraps around 0, so it is the ids below cw and the ids from ccw
+      r = new int[] {start, cw, ccw, end};
+    
+    int[] result = intersect(bounds, r);
+    if (result.length == 0) 
+      return new PackedIdSet();
+    
+    shared = true;
+    return new PackedIdSet(keys, result, sums);
+  }
+  
+  /**
+   * return an iterator over the elements of this set
+   * @return the interator
+   */
+  public Iterator<rice.p2p.commonapi.Id> getIterator() {
+    return new Iterator<rice.p2p.commonapi.Id>() {
+      final int[] k = keys;
+      final int[] bb = bounds;
+      int b = 0;
+      int slot = bounds[0];
+      
+      {
+        skipEmpty();
+      }
+      
+      private void skipEmpty() {
+        while (b < bb.length && slot >= bb[b+1]) {
+          b += 2;
+          if (b < bb.length) slot = bb[b];
+        }
+      }
+      
+      public boolean hasNext() {
+        return b < bb.length;
+      }
+      
+      public rice.p2p.commonapi.Id next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        Id result = build(k, slot);
+        slot++;
+        skipEmpty();
+        return result;
+      }
+      
+      public void remove() {
+        throw new UnsupportedOperationException("PackedIdSet iterators are read-only.");
+      }
+    };
+  }
+  
+  /**
+   * return this set as an array
+   * @return the array
+   */
+  public rice.p2p.commonapi.Id[] asArray() {
+    Id[] result = new Id[numElements()];
+    int i = 0;
+    for (int b = 0; b < bounds.length; b += 2) 
+      for (int slot = bounds[b]; slot < bounds[b+1]; slot++) 
+        result[i++] = build(slot);
+    return result;
+  }
+  
+  /**
+   * compute a fingerprint of the members in this set, which is the same as 
+   * the fingerprint of an IdSet with the same members
+   *
+   * @return the fingerprint of this set
+   */
+  public byte[] getHash() {
+    if (!validHash) {
+      long[] sum = new long[2];
+      for (int b = 0; b < bounds.length; b += 2) {
+        if (shared) 
+          // the keys won't change, so use the block sums
+          addBlocks(bounds[b], bounds[b+1], sum);
+        else 
+          add(bounds[b], bounds[b+1], sum);
+      }
+      hash0 = sum[0];
+      hash1 = sum[1];
+      validHash = true;
+    }
+    
+    return IdSetHash.toByteArray(hash0, hash1, numElements());
+  }
+  
+  /**
+   * Adds all of the ids in set.  This is a linear merge if set is a PackedIdSet.
+   * 
+   * @param set the ids to add
+   */
+  public void addAll(rice.p2p.commonapi.IdSet set) {
+    if (set instanceof PackedIdSet) {
+      PackedIdSet result = merge(this, (PackedIdSet) set);
+      keys = result.keys;
+      bounds = result.bounds;
+      sums = result.sums;
+      shared = false;
+      validHash = false;
+    } else {
+      Iterator<rice.p2p.commonapi.Id> i = set.getIterator();
+      while (i.hasNext()) 
+        addMember((Id) i.next());
+    }
+  }
+  
+  /**
+   * Removes all of the ids in set.  This is a linear merge if set is a PackedIdSet.
+   * 
+   * @param set the ids to remove
+   */
+  public void removeAll(rice.p2p.commonapi.IdSet set) {
+    if (set instanceof PackedIdSet) {
+      PackedIdSet result = difference(this, (PackedIdSet) set);
+      keys = result.keys;
+      bounds = result.bounds;
+      sums = result.sums;
+      shared = false;
+      validHash = false;
+    } else {
+      Iterator<rice.p2p.commonapi.Id> i = set.getIterator();
+      while (i.hasNext()) 
+        removeMember((Id) i.next());
+    }
+  }
+  
+  /**
+   * Returns a + b, in O(|a|+|b|).
+   *
+   * @param a the first set
+   * @param b the second set
+   * @return a new set with all of the members of a and b
+   */
+  public static PackedIdSet merge(PackedIdSet a, PackedIdSet b) {
+    PackedIdSet result = new PackedIdSet(a.numElements() + b.numElements());
+    Cursor i = new Cursor(a);
+    Cursor j = new Cursor(b);
+    int n = 0;
+    
+    while (i.valid() || j.valid()) {
+      int c;
+      if (!j.valid()) c = -1;
+      else if (!i.valid()) c = 1;
+      else c = compare(a.keys, i.slot*W, b.keys, j.slot*W);
+      
+      if (c <= 0) {
+        System.arraycopy(a.keys, i.slot*W, result.keys, n*W, W);
+        i.next();
+        if (c == 0) j.next();
+      } else {
+        System.arraycopy(b.keys, j.slot*W, result.keys, n*W, W);
+        j.next();
+      }
+      n++;
+    }
+    
+    result.bounds[1] = n;
+    result.validHash = false;
+    return result;
+  }
+  
+  /**
+   * Returns a - b, in O(|a|+|b|).
+   *
+   * @param a the set
+   * @param b the members to leave out
+   * @return a new set with the members of a which aren't in b
+   */
+  public static PackedIdSet difference(PackedIdSet a, PackedIdSet b) {
+    PackedIdSet result = new PackedIdSet(a.numElements());
+    Cursor i = new Cursor(a);
+    Cursor j = new Cursor(b);
+    int n = 0;
+    
+    while (i.valid()) {
+      int c = j.valid() ? compare(a.keys, i.slot*W, b.keys, j.slot*W) : -1;
+      
+      if (c < 0) {
+        System.arraycopy(a.keys, i.slot*W, result.keys, n*W, W);
+        n++;
+        i.next();
+      } else if (c == 0) {
+        i.next();
+        j.next();
+      } else {
+        j.next();
+      }
+    }
+    
+    result.bounds[1] = n;
+    result.validHash = false;
+    return result;
+  }
+  
+  /**
+   * Returns a string representation of the set.
+   */
+  public String toString() {
+    StringBuffer result = new StringBuffer("[ PackedIdSet: ");
+    Iterator<rice.p2p.commonapi.Id> i = getIterator();
+    while (i.hasNext()) 
+      result.append(i.next()).append(",");
+    result.append(" ]");
+    return result.toString();
+  }
+  
+  // ----- INTERNAL METHODS -----
+  
+  /**
+   * Binary search for id among the slots this set's bounds span.
+   * 
+   * @return the slot of id, or (-(insertion slot) - 1)
+   */
+  private int search(Id id) {
+    int lo = bounds[0];
+    int hi = bounds[bounds.length-1] - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int c = id.compareTo(keys, mid*W);
+      if (c > 0) lo = mid + 1;
+      else if (c < 0) hi = mid - 1;
+      else return mid;
+    }
+    return -(lo + 1);
+  }
+  
+  /**
+   * @return the first slot whose key is >= id
+   */
+  private int lowerBound(Id id) {
+    int slot = search(id);
+    return (slot >= 0) ? slot : -slot - 1;
+  }
+  
+  /**
+   * @return true if slot is within the bounds
+   */
+  private boolean contains(int slot) {
+    for (int b = 0; b < bounds.length; b += 2) 
+      if (slot >= bounds[b] && slot < bounds[b+1]) 
+        return true;
+    return false;
+  }
+  
+  /**
+   * Make sure that this set has its own keys, starting at slot 0, before it 
+   * is modified.
+   */
+  private void own() {
+    if (!shared && bounds.length == 2 && bounds[0] == 0) return;
+    
+    int n = numElements();
+    int[] result = new int[Math.max(16, n + (n >> 1))*W];
+    int i = 0;
+    for (int b = 0; b < bounds.length; b += 2) {
+      int len = bounds[b+1] - bounds[b];
+      System.arraycopy(keys, bounds[b]*W, result, i*W, len*W);
+      i += len;
+    }
+    keys = result;
+    bounds = new int[] {0, n};
+    sums = new BlockSums();
+    shared = false;
+  }
+  
+  /**
+   * Adds the mixes of the keys in slots [from, to) to sum.
+   */
+  private void add(int from, int to, long[] sum) {
+    for (int slot = from; slot < to; slot++) {
+      sum[0] += IdSetHash.mix0(keys, slot*W);
+      sum[1] += IdSetHash.mix1(keys, slot*W);
+    }
+  }
+  
+  /**
+   * Adds the mixes of the keys in slots [from, to) to sum, using the sums of any 
+   * whole blocks in the range.  Only call this when the keys are shared, so that 
+   * they won't change.
+   */
+  private void addBlocks(int from, int to, long[] sum) {
+    int first = (from + BLOCK - 1) / BLOCK;
+    int last = to / BLOCK;
+    if (first >= last) {
+      add(from, to, sum);
+      return;
+    }
+    
+    if (sums.valid.length < last) {
+      long[] temp = new long[2*Math.max(last, sums.valid.length*3/2)];
+      System.arraycopy(sums.sums, 0, temp, 0, sums.sums.length);
+      sums.sums = temp;
+      boolean[] valid = new boolean[temp.length/2];
+      System.arraycopy(sums.valid, 0, valid, 0, sums.valid.length);
+      sums.valid = valid;
+    }
+    
+    add(from, first*BLOCK, sum);
+    long[] block = new long[2];
+    for (int b = first; b < last; b++) {
+      if (!sums.valid[b]) {
+        block[0] = 0;
+        block[1] = 0;
+        add(b*BLOCK, (b+1)*BLOCK, block);
+        sums.sums[2*b] = block[0];
+        sums.sums[2*b+1] = block[1];
+        sums.valid[b] = true;
+      }
+      sum[0] += sums.sums[2*b];
+      sum[1] += sums.sums[2*b+1];
+    }
+    add(last*BLOCK, to, sum);
+  }
+  
+  private void ensureCapacity(int n) {
+    if (keys.length >= n*W) return;
+    int[] result = new int[Math.max(n, (keys.length/W)*3/2 + 1)*W];
+    System.arraycopy(keys, 0, result, 0, bounds[1]*W);
+    keys = result;
+  }
+  
+  private Id build(int slot) {
+    return build(keys, slot);
+  }
+  
+  private static Id build(int[] keys, int slot) {
+    int[] material = new int[W];
+    System.arraycopy(keys, slot*W, material, 0, W);
+    return Id.build(material);
+  }
+  
+  /**
+   * Compares two packed keys, the same as Id.compareTo().
+   */
+  private static int compare(int[] a, int ao, int[] b, int bo) {
+    for (int i = W - 1; i >= 0; i--) {
+      if (a[ao+i] != b[bo+i]) {
+        long t = a[ao+i] & 0x0ffffffffL;
+        long o = b[bo+i] & 0x0ffffffffL;
+        return (t < o) ? -1 : 1;
+      }
+    }
+    return 0;
+  }
+  
+  /**
+   * Intersects two lists of [from, to) pairs, both in increasing order.
+   */
+  private static int[] intersect(int[] a, int[] b) {
+    int[] result = new int[a.length + b.length];
+    int n = 0;
+    int i = 0;
+    int j = 0;
+    while (i < a.length && j < b.length) {
+      int from = Math.max(a[i], b[j]);
+      int to = Math.min(a[i+1], b[j+1]);
+      if (from < to) {
+        result[n++] = from;
+        result[n++] = to;
+      }
+      if (a[i+1] < b[j+1]) i += 2;
+      else j += 2;
+    }
+    int[] trimmed = new int[n];
+    System.arraycopy(result, 0, trimmed, 0, n);
+    return trimmed;
+  }
+  
+  /**
+   * Sums of the mixes of the keys in blocks of BLOCK slots.
+   */
+  private static final class BlockSums {
+    /**
+     * The sums of the slots in block b are in sums[2*b] and sums[2*b+1].
+     */
+    long[] sums = new long[0];
+    
+    /**
+     * Whether each block has been summed yet.
+     */
+    boolean[] valid = new boolean[0];
+  }
+  
+  /**
+   * Walks the slots of a set in order.
+   */
+  private static final class Cursor {
+    int[] bounds;
+    int b = 0;
+    int slot;
+    
+    Cursor(PackedIdSet set) {
+      this.bounds = set.bounds;
+      this.slot = bounds[0];
+      skipEmpty();
+    }
+    
+    private void skipEmpty() {
+      while (b < bounds.length && slot >= bounds[b+1]) {
+        b += 2;
+        if (b < bounds.length) slot = bounds[b];
+      }
+    }
+    
+    boolean valid() {
+      return b < bounds.length;
+    }
+    
+    void next() {
+      slot++;
+      skipEmpty();
+    }
+  }
+  
+  // Common API Support
+  
+  /**
+   * add a member
+   * @param id the id to add
+   */
+  public void addId(rice.p2p.commonapi.Id id) {
+    addMember((Id) id);
+  }
+  
+  /**
+   * remove a member
+   * @param id the id to remove
+   */
+  public void removeId(rice.p2p.commonapi.Id id) {
+    removeMember((Id) id);
+  }
+  
+  /**
+   * test membership
+   * @param id the id to test
+   * @return true of id is a member, false otherwise
+   */
+  public boolean isMemberId(rice.p2p.commonapi.Id id) {
+    return isMember((Id) id);
+  }
+  
+  /**
+   * return a subset of this set, consisting of the member ids in a given range
+   * @param range the range
+   * @return the subset
+   */
+  public rice.p2p.commonapi.IdSet subSet(rice.p2p.commonapi.IdRange range) {
+    return subSet((IdRange) range);
+  }
+  
+  /**
+   * return a hash of this set
+   *
+   * @return the hash of this set
+   */
+  public byte[] hash() {
+    return getHash();
+  }
+  
+  /**
+   * Returns a new, empty PackedIdSet
+   *
+   * @return A new IdSet
+   */
+  public rice.p2p.commonapi.IdSet build() {
+    return new PackedIdSet();
+  }
+  
+  /**
+   * Returns a view with the same members, which is O(1).
+   */
+  public Object clone() {
+    shared = true;
+    PackedIdSet result = new PackedIdSet(keys, (int[]) bounds.clone(), sums);
+    result.hash0 = hash0;
+    result.hash1 = hash1;
+    result.validHash = validHash;
+    return result;
+  }
+}
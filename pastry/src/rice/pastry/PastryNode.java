@@ -462,12 +462,27 @@ public class PastryNode extends Observable implements
   }
 
   /**
-   * message receiver interface. synchronized so that the external message
-   * processing thread and the leafset/route maintenance thread won't interfere
-   * with application messages.
+   * message receiver interface.  Messages are always dispatched on the selector 
+   * thread, so that the external message processing thread and the leafset/route 
+   * maintenance thread won't interfere with application messages.  Messages 
+   * received on any other thread (such as a local send() from an application 
+   * thread) are handed to the selector, rather than locking the node for every 
+   * message.
    */
-  public synchronized void receiveMessage(Message msg) {
+  public void receiveMessage(final Message msg) {
     if (isDestroyed) return;
+    if (!getEnvironment().getSelectorManager().isSelectorThread()) {
+      getEnvironment().getSelectorManager().invoke(new Runnable() {
+        public void run() {
+          receiveMessage(msg);
+        }
+        
+        public String toString() {
+          return "receiveMessage("+msg+")";
+        }
+      });
+      return;
+    }
     if (logger.level <= Logger.FINE) logger.log("receiveMessage("+msg+")");
     myMessageDispatch.dispatchMessage(msg);
   }
@@ -39,6 +39,7 @@ package rice.pastry.commonapi;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.mpisws.p2p.transport.priority.PriorityTransportLayer;
 import org.mpisws.p2p.transport.util.OptionsFactory;
@@ -499,7 +500,7 @@ public class PastryEndpoint extends PastryAppl implements Endpoint {
     
     if (msg instanceof PastryEndpointMessage) {
       // null for now, when RouteMessage stuff is completed, then it will be different!
-      application.deliver(null, ((PastryEndpointMessage) msg).getMessage());
+      deliver(null, ((PastryEndpointMessage) msg).getMessage());
     } else {
       if (logger.level <= Logger.WARNING) logger.log(
           "Received unknown message " + msg + " - dropping on floor");
@@ -524,6 +525,38 @@ public class PastryEndpoint extends PastryAppl implements Endpoint {
     application.update(nh, wasAdded);
   }
 
+  /**
+   * Calls application.deliver(), on the deliveryExecutor if there is one.
+   * 
+   * @param key the key the message was routed to
+   * @param msg the message
+   */
+  protected void deliver(final Id key, final Message msg) {
+    Executor executor = deliveryExecutor;
+    if (executor == null) {
+      application.deliver(key, msg);
+      return;
+    }
+    
+    try {
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            application.deliver(key, msg);
+          } catch (RuntimeException re) {
+            if (logger.level <= Logger.SEVERE) logger.logException("Error delivering "+msg+" to "+application, re);
+          }
+        }
+        
+        public String toString() {
+          return "deliver("+key+","+msg+")";
+        }
+      });
+    } catch (RejectedExecutionException ree) {
+      if (logger.level <= Logger.WARNING) logger.logException("Dropping "+msg+" because the delivery executor rejected it.", ree);
+    }
+  }
+
   // PastryAppl support
   /**
    * Called by pastry to deliver a message to this client.  Not to be overridden.
@@ -566,7 +599,7 @@ public class PastryEndpoint extends PastryAppl implements Endpoint {
             PastryEndpointMessage pMsg = (PastryEndpointMessage) rm.unwrap(deserializer);
             if (logger.level <= Logger.FINER) logger.log(
                 "[" + thePastryNode + "] deliver " + pMsg + " from " + pMsg.getSenderId());
-            application.deliver(rm.getTarget(), pMsg.getMessage());
+            deliver(rm.getTarget(), pMsg.getMessage());
             rm.sendSuccess(thePastryNode.getLocalHandle());
           } else {
             // route the message
@@ -723,6 +756,11 @@ public class PastryEndpoint extends PastryAppl implements Endpoint {
     return getAddress(); 
   } 
   
+  protected volatile Executor deliveryExecutor;
+  public void setDeliveryExecutor(Executor executor) {
+    this.deliveryExecutor = executor;
+  }
+
   boolean consistentRouting = true;
   public void setConsistentRouting(boolean val) {
     consistentRouting = val;
@@ -39,6 +39,7 @@ package rice.pastry.commonapi;
 
 import rice.environment.Environment;
 import rice.environment.logging.Logger;
+import rice.environment.params.Parameters;
 import rice.environment.random.RandomSource;
 import rice.p2p.commonapi.*;
 
@@ -57,11 +58,16 @@ import java.security.*;
 public class PastryIdFactory implements IdFactory {
 
   private MessageDigest md;
+  
+  // whether buildIdSet() builds PackedIdSets
+  protected boolean packedIdSets;
 
   /**
    * Constructor
    */
   public PastryIdFactory(Environment env) {
+    Parameters p = env.getParameters();
+    packedIdSets = p.contains("pastry_idSet_packed") && p.getBoolean("pastry_idSet_packed");
     try {
       md = MessageDigest.getInstance("SHA");
     } catch ( NoSuchAlgorithmException e ) {
@@ -196,6 +202,7 @@ public class PastryIdFactory implements IdFactory {
    * @return an empty IdSet
    */
   public IdSet buildIdSet() {
+    if (packedIdSets) return new rice.pastry.PackedIdSet();
     return new rice.pastry.IdSet();
   }
   
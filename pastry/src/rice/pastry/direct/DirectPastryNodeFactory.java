@@ -40,8 +40,10 @@ package rice.pastry.direct;
 import rice.Continuation;
 import rice.environment.Environment;
 import rice.environment.logging.*;
+import rice.environment.params.Parameters;
 import rice.p2p.commonapi.CancellableTask;
 import rice.p2p.commonapi.rawserialization.InputBuffer;
+import rice.p2p.commonapi.rawserialization.OutputBuffer;
 import rice.p2p.commonapi.rawserialization.RawMessage;
 import rice.pastry.*;
 import rice.pastry.messaging.*;
@@ -62,6 +64,7 @@ import org.mpisws.p2p.transport.liveness.LivenessListener;
 import org.mpisws.p2p.transport.liveness.LivenessProvider;
 import org.mpisws.p2p.transport.proximity.ProximityListener;
 import org.mpisws.p2p.transport.proximity.ProximityProvider;
+import org.mpisws.p2p.transport.util.Serializer;
 
 /**
  * Pastry node factory for direct connections between nodes (local instances).
@@ -167,7 +170,8 @@ public class DirectPastryNodeFactory extends TransportPastryNodeFactory {
             this.environment.getTimeSource(),
             ((CloneableLogManager)this.environment.getLogManager()).clone("0x"+nodeId.toStringBare()),
             this.environment.getParameters(), 
-            this.environment.getExceptionStrategy());
+            this.environment.getExceptionStrategy(),
+            this.environment.getMetrics());
         }
       }    
       PastryNode pn = new PastryNode(nodeId, environment);
@@ -249,12 +253,55 @@ public class DirectPastryNodeFactory extends TransportPastryNodeFactory {
     return (int)simulator.proximity((DirectNodeHandle)local, (DirectNodeHandle)remote);
   }
 
+  /**
+   * The latest incarnation of each NodeId, and how many there have been, so that a 
+   * restarted node can find its old neighbors.  Only kept when pastry_routingState_enable
+   * is set, because it holds on to dead nodes.
+   */
+  HashMap<Id, DirectNodeHandle> handleTable = new HashMap<Id, DirectNodeHandle>();
+  HashMap<Id, Integer> incarnationTable = new HashMap<Id, Integer>();
+  
   @Override
   protected NodeHandle getLocalHandle(PastryNode pn, NodeHandleFactory handleFactory) throws IOException {
     DirectNodeHandle localhandle = new DirectNodeHandle(pn, simulator);
+    Parameters p = environment.getParameters();
+    if (p.contains("pastry_routingState_enable") && p.getBoolean("pastry_routingState_enable")) {
+      synchronized(handleTable) {
+        Integer incarnation = incarnationTable.get(pn.getNodeId());
+        incarnationTable.put(pn.getNodeId(), incarnation == null ? 0 : incarnation+1);
+        handleTable.put(pn.getNodeId(), localhandle);
+      }
+    }
     return localhandle;
   }
 
+  /**
+   * DirectNodeHandles can't be serialized, so this writes the NodeId and the incarnation.  
+   * Reading it returns the node if the same incarnation is still alive, the way a 
+   * real handle with a stale epoch would be found dead.
+   */
+  @Override
+  protected Serializer<NodeHandle> getRoutingStateSerializer(PastryNode pn, NodeHandleFactory handleFactory) {
+    return new Serializer<NodeHandle>() {
+      public void serialize(NodeHandle i, OutputBuffer buf) throws IOException {
+        i.getNodeId().serialize(buf);
+        synchronized(handleTable) {
+          buf.writeInt(handleTable.get(i.getNodeId()) == i ? incarnationTable.get(i.getNodeId()) : -1);
+        }
+      }
+      
+      public NodeHandle deserialize(InputBuffer buf) throws IOException {
+        Id id = Id.build(buf);
+        int incarnation = buf.readInt();
+        synchronized(handleTable) {
+          DirectNodeHandle ret = handleTable.get(id);
+          if (ret == null || incarnationTable.get(id) != incarnation || !simulator.isAlive(ret)) return null;
+          return ret;
+        }
+      }
+    };
+  }
+
   @Override
   protected NodeHandleFactory getNodeHandleFactory(PastryNode pn) throws IOException {
     // TODO: Make this work
@@ -313,6 +360,8 @@ public class DirectPastryNodeFactory extends TransportPastryNodeFactory {
         
     NodeHandleAdapter nha = new NodeHandleAdapter(tl,simulator.getLivenessProvider(),new ProximityProvider<NodeHandle>(){          
       public int proximity(NodeHandle i, Map<String, Object> options) {
+        // once nodes restart, PNS hears about old incarnations that the simulator no longer knows
+        if (!simulator.isAlive((DirectNodeHandle)i)) return Integer.MAX_VALUE;
         return (int)simulator.proximity((DirectNodeHandle)pn.getLocalHandle(), (DirectNodeHandle)i);
       }
     
@@ -70,6 +70,20 @@ public class BroadcastLeafSet extends PRawMessage {
 
   private long requestTimeStamp;
   
+  /**
+   * The versions of the sender's leafset halves when this was sent, so that later 
+   * changes can be sent as a BroadcastLeafSetDelta.
+   */
+  private int cwVersion;
+  
+  private int ccwVersion;
+  
+  /**
+   * Write the versions (serialization version 1).  Only set when the receiver is known 
+   * to understand it, nodes that don't support deltas can't read version 1.
+   */
+  private transient boolean sendVersions;
+  
   /**
    * Constructor.
    */
@@ -93,6 +107,22 @@ public class BroadcastLeafSet extends PRawMessage {
     theLeafSet = leafSet.copy();
     theType = type;
     this.requestTimeStamp = requestTimeStamp;
+    this.cwVersion = leafSet.cwVersion();
+    this.ccwVersion = leafSet.ccwVersion();
+    setPriority(MAX_PRIORITY);
+  }
+
+  /**
+   * Used when rebuilding a leafset from a BroadcastLeafSetDelta.  Does not copy the leafset.
+   */
+  BroadcastLeafSet(NodeHandle from, LeafSet leafSet, int type, long requestTimeStamp, int cwVersion, int ccwVersion) {
+    super(LeafSetProtocolAddress.getCode());
+    fromNode = from;
+    theLeafSet = leafSet;
+    theType = type;
+    this.requestTimeStamp = requestTimeStamp;
+    this.cwVersion = cwVersion;
+    this.ccwVersion = ccwVersion;
     setPriority(MAX_PRIORITY);
   }
 
@@ -126,6 +156,40 @@ public class BroadcastLeafSet extends PRawMessage {
     return theType;
   }
 
+  /**
+   * The sender's version of the clockwise half, or -1 if unknown.
+   * 
+   * @return the version
+   */
+  public int cwVersion() {
+    return cwVersion;
+  }
+  
+  /**
+   * The sender's version of the counterclockwise half, or -1 if unknown.
+   * 
+   * @return the version
+   */
+  public int ccwVersion() {
+    return ccwVersion;
+  }
+
+  /**
+   * @return true if the sender included its versions, and so supports BroadcastLeafSetDelta
+   */
+  public boolean hasVersions() {
+    return cwVersion >= 0 && ccwVersion >= 0;
+  }
+  
+  /**
+   * Include the versions when this is serialized.
+   * 
+   * @param sendVersions true if the receiver can read serialization version 1
+   */
+  public void setSendVersions(boolean sendVersions) {
+    this.sendVersions = sendVersions;
+  }
+
   public String toString() {
     String s = "BroadcastLeafSet("+theLeafSet+","+requestTimeStamp+")";
     return s;
@@ -137,11 +201,22 @@ public class BroadcastLeafSet extends PRawMessage {
   }
   
   public void serialize(OutputBuffer buf) throws IOException {
-    buf.writeByte((byte)0); // version
-    fromNode.serialize(buf);
-    theLeafSet.serialize(buf);
-    buf.writeByte((byte) theType);
-    buf.writeLong(requestTimeStamp);
+    if (sendVersions) {
+      buf.writeByte((byte)1); // version
+      fromNode.serialize(buf);
+      theLeafSet.serialize(buf);
+      buf.writeByte((byte) theType);
+      buf.writeLong(requestTimeStamp);
+      buf.writeInt(cwVersion);
+      buf.writeInt(ccwVersion);
+    } else {
+      // readable by nodes that don't support deltas
+      buf.writeByte((byte)0); // version
+      fromNode.serialize(buf);
+      theLeafSet.serialize(buf);
+      buf.writeByte((byte) theType);
+      buf.writeLong(requestTimeStamp);
+    }
   }
   
   public BroadcastLeafSet(InputBuffer buf, NodeHandleFactory nhf) throws IOException {
@@ -154,6 +229,16 @@ public class BroadcastLeafSet extends PRawMessage {
         theLeafSet = LeafSet.build(buf, nhf);
         theType = buf.readByte();
         requestTimeStamp = buf.readLong();
+        cwVersion = -1;
+        ccwVersion = -1;
+        break;
+      case 1:
+        fromNode = nhf.readNodeHandle(buf);
+        theLeafSet = LeafSet.build(buf, nhf);
+        theType = buf.readByte();
+        requestTimeStamp = buf.readLong();
+        cwVersion = buf.readInt();
+        ccwVersion = buf.readInt();
         break;
       default:
         throw new IOException("Unknown Version: "+version);
@@ -0,0 +1,298 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.pastry.leafset;
+
+import java.io.*;
+import java.util.*;
+
+import rice.p2p.commonapi.rawserialization.*;
+import rice.pastry.*;
+import rice.pastry.messaging.*;
+
+/**
+ * The changes to a leafset since the last BroadcastLeafSet (or delta) that was sent 
+ * to the same node.  For each half it carries the indexes of the removed handles in 
+ * the old copy, and the new handles along with their index in the new copy.  When 
+ * nothing changed (the common case) this is just a lease renewal: the versions and 
+ * the hash.
+ * 
+ * The receiver rebuilds the leafset from its copy of the previous one, then checks 
+ * the versions and hash.  If they don't match, it asks for the whole leafset with a 
+ * RequestLeafSet.
+ * 
+ *   +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *   + byte version  + byte type     + byte theSize  +               +
+ *   +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+               +
+ *   + long requestTimeStamp                                         +
+ *   +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *   + int base cw version                                           +
+ *   + int base ccw version                                          +
+ *   + int cw version                                                +
+ *   + int ccw version                                               +
+ *   + int hash                                                      +
+ *   +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *   + cw changes, then ccw changes (only if the versions differ):   +
+ *   +   byte numRemoved, byte index ...                             +
+ *   +   byte numAdded, (byte index, NodeHandle) ...                 +
+ *   +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * 
+ * @version $Id$
+ * 
+ * @author agent
+ */
+public class BroadcastLeafSetDelta extends PRawMessage {
+  public static final short TYPE = 3;
+
+  private int theType;
+  
+  private int theSize;
+
+  private long requestTimeStamp;
+  
+  private int baseCwVersion;
+  
+  private int baseCcwVersion;
+  
+  private int cwVersion;
+  
+  private int ccwVersion;
+  
+  private int hash;
+  
+  /**
+   * Indexes into the old half that are no longer there, [0] is cw, [1] is ccw
+   */
+  private byte[][] removed = new byte[2][];
+  
+  /**
+   * Indexes into the new half that are new, [0] is cw, [1] is ccw
+   */
+  private byte[][] addedIndex = new byte[2][];
+  
+  private NodeHandle[][] added = new NodeHandle[2][];
+  
+  /**
+   * Constructor.
+   * 
+   * @param from the local handle
+   * @param base the copy of the leafset that was last sent to the destination
+   * @param current a copy of the leafset to send now
+   * @param type BroadcastLeafSet.Update etc
+   * @param requestTimeStamp from the RequestLeafSet, if this is a response
+   */
+  public BroadcastLeafSetDelta(NodeHandle from, LeafSet base, LeafSet current, int type, long requestTimeStamp) {
+    super(LeafSetProtocolAddress.getCode());
+    setSender(from);
+    theType = type;
+    theSize = current.maxSize();
+    this.requestTimeStamp = requestTimeStamp;
+    baseCwVersion = base.cwVersion();
+    baseCcwVersion = base.ccwVersion();
+    cwVersion = current.cwVersion();
+    ccwVersion = current.ccwVersion();
+    hash = current.contentHash();
+    if (!isRenewal()) {
+      diff(0, base.cwSize(), current.cwSize(), base, current, 1);
+      diff(1, base.ccwSize(), current.ccwSize(), base, current, -1);
+    }
+    setPriority(MAX_PRIORITY);
+  }
+  
+  /**
+   * Compute the changes to one half.
+   * 
+   * @param side 0 for cw, 1 for ccw
+   * @param sign the sign of the index into the LeafSet for this half
+   */
+  private void diff(int side, int baseSize, int currentSize, LeafSet base, LeafSet current, int sign) {
+    List<NodeHandle> baseList = new ArrayList<NodeHandle>(baseSize);
+    for (int i = 0; i < baseSize; i++) baseList.add(base.get(sign*(i+1)));
+    List<NodeHandle> currentList = new ArrayList<NodeHandle>(currentSize);
+    for (int i = 0; i < currentSize; i++) currentList.add(current.get(sign*(i+1)));
+
+    byte[] rem = new byte[baseSize];
+    int numRemoved = 0;
+    for (int i = 0; i < baseSize; i++) {
+      if (!currentList.contains(baseList.get(i))) rem[numRemoved++] = (byte)i;
+    }
+    removed[side] = Arrays.copyOf(rem, numRemoved);
+    
+    byte[] addIndex = new byte[currentSize];
+    NodeHandle[] add = new NodeHandle[currentSize];
+    int numAdded = 0;
+    for (int i = 0; i < currentSize; i++) {
+      NodeHandle nh = currentList.get(i);
+      if (!baseList.contains(nh)) {
+        addIndex[numAdded] = (byte)i;
+        add[numAdded++] = nh;
+      }
+    }
+    addedIndex[side] = Arrays.copyOf(addIndex, numAdded);
+    added[side] = Arrays.copyOf(add, numAdded);
+  }
+  
+  /**
+   * @return true if the leafset didn't change, and this only renews the lease
+   */
+  public boolean isRenewal() {
+    return baseCwVersion == cwVersion && baseCcwVersion == ccwVersion;
+  }
+  
+  /**
+   * Rebuilds the leafset that was sent.
+   * 
+   * @param base the last BroadcastLeafSet received from the sender
+   * @return the equivalent BroadcastLeafSet, or null if this delta isn't based on 
+   * that one, or the result doesn't match
+   */
+  public BroadcastLeafSet apply(BroadcastLeafSet base) {
+    if (base == null) return null;
+    if (base.cwVersion() != baseCwVersion || base.ccwVersion() != baseCcwVersion) return null;
+    
+    LeafSet ls = base.leafSet();
+    if (!isRenewal()) {
+      NodeHandle[] cw = apply(0, ls, 1, ls.cwSize());
+      NodeHandle[] ccw = apply(1, ls, -1, ls.ccwSize());
+      if (cw == null || ccw == null) return null;
+      ls = new LeafSet(ls.get(0), theSize, true, cw, ccw);
+    }
+    if (ls.contentHash() != hash) return null;
+    
+    return new BroadcastLeafSet(getSender(), ls, theType, requestTimeStamp, cwVersion, ccwVersion);
+  }
+  
+  private NodeHandle[] apply(int side, LeafSet base, int sign, int baseSize) {
+    List<NodeHandle> list = new ArrayList<NodeHandle>(baseSize);
+    for (int i = 0; i < baseSize; i++) list.add(base.get(sign*(i+1)));
+    
+    // remove from the end so the indexes stay valid
+    for (int i = removed[side].length-1; i >= 0; i--) {
+      if (removed[side][i] >= list.size()) return null;
+      list.remove(removed[side][i]);
+    }
+    
+    // the new handles are in increasing order of their final position
+    for (int i = 0; i < added[side].length; i++) {
+      if (addedIndex[side][i] > list.size()) return null;
+      list.add(addedIndex[side][i], added[side][i]);
+    }
+    return list.toArray(new NodeHandle[list.size()]);
+  }
+  
+  /**
+   * Returns the type of leaf set.
+   * 
+   * @return the type.
+   */
+  public int type() {
+    return theType;
+  }
+
+  public long getTimeStamp() {
+    return requestTimeStamp;
+  }  
+
+  public String toString() {
+    if (isRenewal()) return "BroadcastLeafSetDelta(renewal,"+requestTimeStamp+")";
+    return "BroadcastLeafSetDelta(-"+(removed[0].length+removed[1].length)+",+"+(added[0].length+added[1].length)+","+requestTimeStamp+")";
+  }
+  
+  /***************** Raw Serialization ***************************************/  
+  public short getType() {
+    return TYPE; 
+  }
+  
+  public void serialize(OutputBuffer buf) throws IOException {
+    buf.writeByte((byte)0); // version
+    buf.writeByte((byte)theType);
+    buf.writeByte((byte)theSize);
+    buf.writeLong(requestTimeStamp);
+    buf.writeInt(baseCwVersion);
+    buf.writeInt(baseCcwVersion);
+    buf.writeInt(cwVersion);
+    buf.writeInt(ccwVersion);
+    buf.writeInt(hash);
+    if (!isRenewal()) {
+      for (int side = 0; side < 2; side++) {
+        buf.writeByte((byte)removed[side].length);
+        buf.write(removed[side], 0, removed[side].length);
+        buf.writeByte((byte)added[side].length);
+        for (int i = 0; i < added[side].length; i++) {
+          buf.writeByte(addedIndex[side][i]);
+          added[side][i].serialize(buf);
+        }
+      }
+    }
+  }
+  
+  public BroadcastLeafSetDelta(NodeHandle sender, InputBuffer buf, NodeHandleFactory nhf) throws IOException {
+    super(LeafSetProtocolAddress.getCode());
+    setSender(sender);
+    setPriority(MAX_PRIORITY);
+    
+    byte version = buf.readByte();
+    switch(version) {
+      case 0:
+        theType = buf.readByte();
+        theSize = buf.readByte();
+        requestTimeStamp = buf.readLong();
+        baseCwVersion = buf.readInt();
+        baseCcwVersion = buf.readInt();
+        cwVersion = buf.readInt();
+        ccwVersion = buf.readInt();
+        hash = buf.readInt();
+        if (!isRenewal()) {
+          for (int side = 0; side < 2; side++) {
+            removed[side] = new byte[buf.readByte()];
+            for (int i = 0; i < removed[side].length; i++) {
+              removed[side][i] = buf.readByte();
+            }
+            int numAdded = buf.readByte();
+            addedIndex[side] = new byte[numAdded];
+            added[side] = new NodeHandle[numAdded];
+            for (int i = 0; i < numAdded; i++) {
+              addedIndex[side][i] = buf.readByte();
+              added[side][i] = nhf.readNodeHandle(buf);
+            }
+          }
+        }
+        break;
+      default:
+        throw new IOException("Unknown Version: "+version);
+    }
+  }
+}
@@ -298,6 +298,38 @@ public class LeafSet extends Observable implements Serializable, Iterable<NodeHa
    */
   public int ccwSize() { return ccwSet.size(); }
 
+  /**
+   * The number of changes made to the clockwise half.
+   *
+   * @return the version
+   */
+  public int cwVersion() { return cwSet.getVersion(); }
+
+  /**
+   * The number of changes made to the counterclockwise half.
+   *
+   * @return the version
+   */
+  public int ccwVersion() { return ccwSet.getVersion(); }
+
+  /**
+   * A hash over the ordered ids of both halves.  Used to verify that a leafset
+   * rebuilt from a delta matches the sender's.
+   *
+   * @return the hash
+   */
+  public synchronized int contentHash() {
+    int h = 1;
+    for (int i = 0; i < cwSet.size(); i++) {
+      h = 31*h + cwSet.get(i).getNodeId().hashCode();
+    }
+    h = 31*h + ccwSet.size();
+    for (int i = 0; i < ccwSet.size(); i++) {
+      h = 31*h + ccwSet.get(i).getNodeId().hashCode();
+    }
+    return h;
+  }
+
   /**
    * complement - given an index of a node in the leafset, produces
    * the index of the same Id in the opposite half of the
@@ -56,6 +56,11 @@ public class RequestLeafSet extends PRawMessage implements Serializable {
   
   long timeStamp;
   
+  /**
+   * The requester could not apply a BroadcastLeafSetDelta, and needs the whole leafset.
+   */
+  boolean full;
+  
   /**
    * Constructor.
    * 
@@ -66,6 +71,18 @@ public class RequestLeafSet extends PRawMessage implements Serializable {
     this(null, nh, timeStamp);
   }
 
+  /**
+   * Constructor.
+   * 
+   * @param nh the return handle.
+   * @param full don't reply with a delta
+   */
+
+  public RequestLeafSet(NodeHandle nh, long timeStamp, boolean full) {
+    this(null, nh, timeStamp);
+    this.full = full;
+  }
+
   /**
    * Constructor.
    * 
@@ -93,7 +110,7 @@ public class RequestLeafSet extends PRawMessage implements Serializable {
   public String toString() {
     String s = "";
 
-    s += "RequestLeafSet("+getSender()+","+timeStamp+")";
+    s += "RequestLeafSet("+getSender()+","+timeStamp+(full ? ",full" : "")+")";
 
     return s;
   }
@@ -104,8 +121,15 @@ public class RequestLeafSet extends PRawMessage implements Serializable {
   }
 
   public void serialize(OutputBuffer buf) throws IOException {
-    buf.writeByte((byte)0); // version    
-    buf.writeLong(timeStamp);
+    if (full) {
+      buf.writeByte((byte)1); // version    
+      buf.writeLong(timeStamp);
+      buf.writeBoolean(full);
+    } else {
+      // the common case is still readable by nodes that don't support deltas
+      buf.writeByte((byte)0); // version    
+      buf.writeLong(timeStamp);
+    }
   }
   
   public RequestLeafSet(NodeHandle sender, InputBuffer buf) throws IOException {
@@ -118,6 +142,10 @@ public class RequestLeafSet extends PRawMessage implements Serializable {
       case 0:
         timeStamp = buf.readLong();
         break;
+      case 1:
+        timeStamp = buf.readLong();
+        full = buf.readBoolean();
+        break;
       default:
         throw new IOException("Unknown Version: "+version);
     }
@@ -126,4 +154,11 @@ public class RequestLeafSet extends PRawMessage implements Serializable {
   public long getTimeStamp() {
     return timeStamp;
   }  
+
+  /**
+   * @return true if the requester needs the whole leafset rather than a delta
+   */
+  public boolean isFull() {
+    return full;
+  }
 }
\ No newline at end of file
@@ -66,12 +66,19 @@ public class SimilarSet extends Observable implements NodeSetEventSource, Serial
 
   private LeafSet leafSet;
 
+  /**
+   * Incremented on every change to the set, so that a peer can tell whether the 
+   * copy it was last sent is still current.
+   */
+  private transient int version;
+
   private SimilarSet(SimilarSet that, LeafSet ls) {
     this.ln = that.ln;
     this.clockwise = that.clockwise;
     this.nodes = new NodeHandle[that.nodes.length];
     System.arraycopy(that.nodes, 0, nodes, 0, nodes.length);
     this.theSize = that.theSize;
+    this.version = that.version;
     this.leafSet = ls;
   }
 
@@ -183,6 +190,7 @@ public class SimilarSet extends Observable implements NodeSetEventSource, Serial
 
       //index = theSize-1;
     }
+    version++;
 
     // bubble the new node into the correct position
     if (clockwise) {
@@ -506,6 +514,7 @@ public class SimilarSet extends Observable implements NodeSetEventSource, Serial
     }
 
     theSize--;
+    version++;
 
     if (leafSet.isProperlyRemoved(handle)) {
       if (leafSet.observe)
@@ -518,6 +527,15 @@ public class SimilarSet extends Observable implements NodeSetEventSource, Serial
     return handle;
   }
 
+  /**
+   * The number of changes made to this set.
+   * 
+   * @return the version
+   */
+  public int getVersion() {
+    return version;
+  }
+
   /**
    * Gets the index of the element with the given node id.
    * 
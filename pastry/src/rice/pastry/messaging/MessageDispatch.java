@@ -41,6 +41,7 @@ import java.util.*;
 
 import rice.Destructable;
 import rice.environment.logging.Logger;
+import rice.p2p.util.CopyOnWriteIntMap;
 import rice.pastry.*;
 import rice.pastry.client.PastryAppl;
 import rice.pastry.transport.Deserializer;
@@ -65,10 +66,10 @@ import rice.pastry.transport.Deserializer;
 
 public class MessageDispatch implements Destructable {
 
-  // have modified from HashMap to HashMap to use the internal representation
-  // of a LocalAddress.  Otherwise remote node cannot get its message delivered
-  // because objects constructed differently are not mapped to the same value
-  private HashMap<Integer,PastryAppl> addressBook;
+  // keyed by the int address of the application.  This is read for every message, 
+  // and only written when an application registers, so lookups are lock-free and
+  // do not box the address; registration copies the table.
+  private CopyOnWriteIntMap<PastryAppl> addressBook;
 
   protected PastryNode localNode;
   
@@ -84,7 +85,7 @@ public class MessageDispatch implements Destructable {
    */
   public MessageDispatch(PastryNode pn, Deserializer deserializer) {
     this.deserializer = deserializer;
-    addressBook = new HashMap<Integer, PastryAppl>();
+    addressBook = new CopyOnWriteIntMap<PastryAppl>();
     this.localNode = pn;
     this.logger = pn.getEnvironment().getLogManager().getLogger(getClass(), null);    
   }
@@ -95,7 +96,7 @@ public class MessageDispatch implements Destructable {
    * @param name a name for a receiver.
    * @param receiver the receiver.
    */
-  public void registerReceiver(int address, PastryAppl receiver) {
+  public synchronized void registerReceiver(int address, PastryAppl receiver) {
     // the stack trace is to figure out who registered for what, it is not an error
     
 
@@ -104,14 +105,14 @@ public class MessageDispatch implements Destructable {
         "Registering "+receiver+" for address " + address);
     if (logger.level <= Logger.FINEST) logger.logException(
         "Registering receiver for address " + address, new Exception("stack trace"));
-    if (addressBook.get(Integer.valueOf(address)) != null) {
+    if (addressBook.containsKey(address)) {
       throw new IllegalArgumentException("Registering receiver for already-registered address " + address);
 //      if (logger.level <= Logger.SEVERE) logger.logException(
 //          "ERROR - Registering receiver for already-registered address " + address, new Exception("stack trace"));
     }
 
     deserializer.setDeserializer(address, receiver.getDeserializer());
-    addressBook.put(Integer.valueOf(address), receiver);
+    addressBook.put(address, receiver);
   }
   
   public PastryAppl getDestination(Message msg) {
@@ -119,8 +120,7 @@ public class MessageDispatch implements Destructable {
   }
 
   public PastryAppl getDestinationByAddress(int addr) {
-    PastryAppl mr = (PastryAppl) addressBook.get(Integer.valueOf(addr));    
-    return mr;
+    return addressBook.get(addr);
   }
 
   /**
@@ -143,7 +143,7 @@ public class MessageDispatch implements Destructable {
     }
     // NOTE: There is no safety issue with calling localNode.isReady() because this is on the 
     // PastryThread, and the only way to set a node ready is also on the ready thread.
-    PastryAppl mr = (PastryAppl) addressBook.get(Integer.valueOf(msg.getDestination()));
+    PastryAppl mr = addressBook.get(msg.getDestination());
 
     if (mr == null) {
       if ((logger.level <= Logger.FINE) ||
@@ -114,6 +114,21 @@ public class PNSApplication extends PastryAppl implements ProximityNeighborSelec
   protected Timer timer;
 
   final short depth; // = (Id.IdBitLength / rtBase);
+  
+  /**
+   * Fetch all of the route rows at once, see PipelinedNearest.
+   */
+  public final boolean PIPELINED;
+  
+  /**
+   * Give up improving the result after this many millis, and return what we have.
+   */
+  public final int DEADLINE;
+  
+  /**
+   * Timeout for each proximity probe.
+   */
+  public static final int PROBE_TIMEOUT = 10000;
 
   public PNSApplication(PastryNode pn) {
     this(pn, pn.getEnvironment().getLogManager().getLogger(PNSApplication.class, null));
@@ -125,6 +140,12 @@ public class PNSApplication extends PastryAppl implements ProximityNeighborSelec
     this.environment = pn.getEnvironment();
     rtBase = (byte)environment.getParameters().getInt("pastry_rtBaseBitLength");
     depth = (short)(Id.IdBitLength / rtBase);
+    PIPELINED = environment.getParameters().contains("pns_pipelined") && environment.getParameters().getBoolean("pns_pipelined");
+    if (environment.getParameters().contains("pns_deadline")) {
+      DEADLINE = environment.getParameters().getInt("pns_deadline");
+    } else {
+      DEADLINE = 20000;
+    }
   }
 
   /**
@@ -176,11 +197,8 @@ public class PNSApplication extends PastryAppl implements ProximityNeighborSelec
         Collection<Tuple<Continuation<RouteSet[], Exception>, Cancellable>>[] waiters = waitingForRouteRow.get(response.getSender());
         if (waiters != null) {
           if (waiters[response.index] != null) {
-            for (Tuple<Continuation<RouteSet[], Exception>, Cancellable> w : new ArrayList<Tuple<Continuation<RouteSet[], Exception>, Cancellable>>(waiters[response.index])) {
-              w.b().cancel();
-              w.a().receiveResult(response.row);            
-            }
-            waiters[response.index].clear();
+            // detach the waiters before calling them, they may cancel/make other requests
+            Collection<Tuple<Continuation<RouteSet[], Exception>, Cancellable>> rowWaiters = waiters[response.index];
             waiters[response.index] = null;
             
             // remove the entry if all rows empty
@@ -193,6 +211,11 @@ public class PNSApplication extends PastryAppl implements ProximityNeighborSelec
             }
           
             if (deleteIt) waitingForRouteRow.remove(response.getSender());
+
+            for (Tuple<Continuation<RouteSet[], Exception>, Cancellable> w : rowWaiters) {
+              w.b().cancel();
+              w.a().receiveResult(response.row);            
+            }
           }
         }
       }
@@ -219,6 +242,38 @@ public class PNSApplication extends PastryAppl implements ProximityNeighborSelec
     // our best candidate so far, initiall null
     final MutableTuple<NodeHandle, Cancellable> best = new MutableTuple<NodeHandle, Cancellable>();
     
+    // return what we have, only once
+    final Runnable finish = new Runnable() {
+      boolean finished = false;
+      
+      public void run() {
+        synchronized(this) {
+          if (finished) return;
+          finished = true;
+        }
+        ret.cancel();
+        thePastryNode.removeProximityListener(PNSApplication.this);
+        List<NodeHandle> result = sortedProximityCache();
+        purgeProximityCache();
+        if (result.isEmpty()) result = new ArrayList<NodeHandle>(bootHandles);
+        if (logger.level <= Logger.INFO) logger.log("getNearHandles("+bootHandles+"):"+result.size()+result);
+        deliverResultToMe.receiveResult(getNearHandlesHelper(result));        
+      }
+    };
+    
+    if (PIPELINED) {
+      // don't let a slow or dead node hold up the join
+      TimerTask deadline = new TimerTask() {
+        @Override
+        public void run() {
+          if (logger.level <= Logger.INFO) logger.log("getNearHandles("+bootHandles+") deadline expired");
+          finish.run();
+        }
+      };
+      ret.attach(deadline);
+      environment.getSelectorManager().schedule(deadline, DEADLINE);
+    }
+    
     // get the proximity of everyone in the list
     for (NodeHandle nh : bootHandles) {
       final NodeHandle handle = nh;
@@ -242,22 +297,13 @@ public class PNSApplication extends PastryAppl implements ProximityNeighborSelec
     
             public void receiveResult(Collection<NodeHandle> result) {
               if (logger.level <= Logger.FINE) logger.log("receiveResult("+result+") in getNearHandles()");
-              ret.cancel(); // go ahead and cancel everything
-              finish();
+              finish.run(); // cancels everything
             }
     
             public void receiveException(Exception exception) {        
               logger.logException("PNS got an exception in getNearHandles() returning what we got.",exception);
-              finish();
+              finish.run();
             }    
-      
-            public void finish() {
-              thePastryNode.removeProximityListener(PNSApplication.this);
-              List<NodeHandle> ret = sortedProximityCache();
-              purgeProximityCache();
-              if (logger.level <= Logger.INFO) logger.log("getNearHandles("+bootHandles+"):"+ret.size()+ret);
-              deliverResultToMe.receiveResult(getNearHandlesHelper(ret));        
-            }
           });
 
           ret.attach(cancellable);
@@ -268,7 +314,7 @@ public class PNSApplication extends PastryAppl implements ProximityNeighborSelec
           remaining.remove(handle);
         }      
       };
-      getProximity(handle, c, 10000); // TODO: Make configurable
+      ret.attach(getProximity(handle, c, PROBE_TIMEOUT));
     }
     return ret;
   }
@@ -665,6 +711,10 @@ public class PNSApplication extends PastryAppl implements ProximityNeighborSelec
       return null;
     }
     
+    if (PIPELINED) {
+      return new PipelinedNearest(retToMe).start(seed);
+    }
+    
     final AttachableCancellable ret = new AttachableCancellable();
     
     // get closest node in leafset
@@ -691,15 +741,7 @@ public class PNSApplication extends PastryAppl implements ProximityNeighborSelec
               // -- impact correctness, but we're going to walk up from the bottom
               // -- of the routing table, even through some of the rows are probably
               // -- unfilled.  We'll optimize this in a later iteration.
-              short i = 0;
-              
-              // make "ALL" work
-              if (!environment.getParameters().getString("pns_num_rows_to_use").equalsIgnoreCase("all")) {
-                i = (short)(depth-(short)(environment.getParameters().getInt("pns_num_rows_to_use")));
-              }
-              
-              // fix it up to not throw an error if the number is too big
-              if (i < 0) i = 0;                                              
+              short i = getFirstRow();
               
               ret.attach(seekThroughRouteRows(i,depth,nearNode,new Continuation<NodeHandle, Exception>(){
               
@@ -736,6 +778,235 @@ public class PNSApplication extends PastryAppl implements ProximityNeighborSelec
   }
 
   
+  /**
+   * @return the lowest route row to consider, from pns_num_rows_to_use
+   */
+  protected short getFirstRow() {
+    short i = 0;
+    
+    // make "ALL" work
+    if (!environment.getParameters().getString("pns_num_rows_to_use").equalsIgnoreCase("all")) {
+      i = (short)(depth-(short)(environment.getParameters().getInt("pns_num_rows_to_use")));
+    }
+    
+    // fix it up to not throw an error if the number is too big
+    if (i < 0) i = 0;
+    return i;
+  }
+  
+  /**
+   * The pipelined version of getNearest().  Rather than walking up the route rows one 
+   * at a time (2 RTTs per row), asks the seed for its leafset and all of its route rows 
+   * at once, and probes each candidate as soon as it arrives.  When everything is in, 
+   * asks the closest node for all of its rows, and so on until the closest node stops 
+   * changing, or DEADLINE passes.
+   * 
+   * Each candidate is probed at most once, and not at all if we already know its 
+   * proximity (the pingCache, or the ProximityProvider's cached RTT).  Concurrent 
+   * probes of the same node share one ping (see getProximity()).
+   * 
+   * @author agent
+   */
+  class PipelinedNearest {
+    Continuation<Collection<NodeHandle>, Exception> retToMe;
+    AttachableCancellable ret = new AttachableCancellable();
+    short firstRow = getFirstRow();
+    
+    /**
+     * The lowest row that anyone returned entries for.  After the first round, we don't 
+     * ask for rows below this, they are empty in all but the biggest rings.
+     */
+    short lowestNonEmptyRow;
+
+    NodeHandle best;
+    int bestProx = Integer.MAX_VALUE;
+    
+    Set<NodeHandle> probed = new HashSet<NodeHandle>();
+    Set<NodeHandle> fetched = new HashSet<NodeHandle>();
+    
+    /**
+     * The requests and probes of this round that haven't come back.
+     */
+    int outstanding = 0;
+    boolean done = false;
+    boolean gotResponse = false;
+    Exception lastException;
+    
+    public PipelinedNearest(Continuation<Collection<NodeHandle>, Exception> retToMe) {
+      this.retToMe = retToMe;
+      this.lowestNonEmptyRow = depth;
+    }
+    
+    public Cancellable start(NodeHandle seed) {
+      TimerTask deadline = new TimerTask() {
+        @Override
+        public void run() {
+          if (logger.level <= Logger.INFO) logger.log("getNearest() deadline expired, best:"+best+" prox:"+bestProx);
+          finish();
+        }
+      };
+      ret.attach(deadline);
+      environment.getSelectorManager().schedule(deadline, DEADLINE);
+
+      synchronized(this) {
+        best = seed;
+        outstanding++; // so a cached probe of the seed doesn't end the round
+      }
+      probe(seed);
+      fetch(seed, true);
+      requestDone();
+      return ret;
+    }
+    
+    /**
+     * Ask handle for all of its rows (and its leafset) at once.
+     */
+    void fetch(final NodeHandle handle, boolean leafSet) {
+      synchronized(this) {
+        if (done) return;
+        fetched.add(handle);
+        outstanding++; // hold the round open until all of the requests are sent
+      }
+      short row = firstRow;
+      if (!leafSet) {
+        synchronized(this) {
+          row = (short)Math.max(firstRow, lowestNonEmptyRow);
+        }
+      }
+      if (logger.level <= Logger.FINE) logger.log("getNearest() fetching rows "+row+"-"+(depth-1)+" of "+handle);
+      
+      if (leafSet) {
+        synchronized(this) {
+          outstanding++;
+        }
+        ret.attach(getLeafSet(handle, new Continuation<LeafSet, Exception>() {
+          public void receiveResult(LeafSet result) {
+            synchronized(PipelinedNearest.this) {
+              gotResponse = true;
+            }
+            for (int i = -result.ccwSize(); i <= result.cwSize(); i++) {
+              if (i != 0) probe(result.get(i));
+            }
+            requestDone();
+          }
+        
+          public void receiveException(Exception exception) {
+            synchronized(PipelinedNearest.this) {
+              lastException = exception;
+            }
+            requestDone();
+          }
+        }));
+      }
+      
+      for (; row < depth; row++) {
+        final short theRow = row;
+        synchronized(this) {
+          outstanding++;
+        }
+        ret.attach(getRouteRow(handle, row, new Continuation<RouteSet[], Exception>() {
+          public void receiveResult(RouteSet[] result) {
+            synchronized(PipelinedNearest.this) {
+              gotResponse = true;
+              if (theRow < lowestNonEmptyRow) {
+                for (int i = 0; i < result.length; i++) {
+                  if (result[i] != null && result[i].size() > 0) {
+                    lowestNonEmptyRow = theRow;
+                    break;
+                  }
+                }
+              }
+            }
+            for (int i = 0; i < result.length; i++) {
+              RouteSet set = result[i];
+              if (set != null) {
+                for (int j = 0; j < set.size(); j++) {
+                  probe(set.get(j));
+                }
+              }
+            }
+            requestDone();
+          }
+          
+          public void receiveException(Exception exception) {
+            synchronized(PipelinedNearest.this) {
+              lastException = exception;
+            }
+            requestDone();
+          }
+        }));
+      }
+      
+      requestDone();
+    }
+    
+    void probe(final NodeHandle handle) {
+      Integer cached;
+      synchronized(this) {
+        if (done || handle == null || !probed.add(handle)) return;
+        outstanding++;
+      }
+      synchronized(pingCache) {
+        cached = pingCache.get(handle);
+      }
+      if (cached != null) {
+        probeResult(handle, cached.intValue());
+        return;
+      }
+      
+      ret.attach(getProximity(handle, new Continuation<Integer, IOException>() {
+        public void receiveResult(Integer result) {
+          probeResult(handle, result.intValue());
+        }
+      
+        public void receiveException(IOException exception) {
+          requestDone();
+        }
+      }, PROBE_TIMEOUT));
+    }
+    
+    void probeResult(NodeHandle handle, int prox) {
+      synchronized(this) {
+        if ((prox >= 0) && (prox < bestProx) && handle.isAlive()) {
+          bestProx = prox;
+          best = handle;
+        }
+      }
+      requestDone();
+    }
+    
+    /**
+     * When the round is over, start the next one with the closest node, or finish if 
+     * we already asked it.
+     */
+    void requestDone() {
+      NodeHandle next;
+      synchronized(this) {
+        outstanding--;
+        if (done || outstanding > 0) return;
+        next = fetched.contains(best) ? null : best;
+      }
+      if (next == null) {
+        finish();
+      } else {
+        fetch(next, false);
+      }
+    }
+    
+    void finish() {
+      synchronized(this) {
+        if (done) return;
+        done = true;
+      }
+      ret.cancel();
+      if (!gotResponse && lastException != null) {
+        retToMe.receiveException(lastException);
+      } else {
+        retToMe.receiveResult(sortedProximityCache());
+      }
+    }
+  }
+  
   /**
    * This method recursively seeks through the routing tables of the other nodes, always taking the closest node.  
    * When it gets to the top, it keeps taking the top row of the cloest node.  Tail recursion with the continuation.
@@ -871,7 +1142,7 @@ public class PNSApplication extends PastryAppl implements ProximityNeighborSelec
     for (NodeHandle nh : temp) {
       final NodeHandle tempNode = nh;
       if (logger.level <= Logger.FINER) logger.log("closestToMe checking prox on "+tempNode+"("+handle+","+handles+")");      
-      ret.attach(getProximity(handle, new Continuation<Integer, IOException>(){
+      ret.attach(getProximity(tempNode, new Continuation<Integer, IOException>(){
       
         public void receiveResult(Integer result) {
           if (logger.level <= Logger.FINEST) logger.log("closestToMe got prox("+result.intValue()+") on "+tempNode+"("+handle+","+handles+")");      
@@ -39,6 +39,7 @@ package rice.pastry.routing;
 import rice.p2p.commonapi.Cancellable;
 import rice.p2p.commonapi.rawserialization.*;
 import rice.p2p.util.rawserialization.SimpleInputBuffer;
+import rice.p2p.util.rawserialization.SimpleOutputBuffer;
 
 import rice.pastry.*;
 import rice.pastry.commonapi.PastryEndpointMessage;
@@ -47,8 +48,13 @@ import rice.pastry.transport.PMessageNotification;
 import rice.pastry.transport.PMessageReceipt;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
+import rice.environment.metrics.TraceContext;
+
+import org.mpisws.p2p.transport.commonapi.CutThroughMessage;
+
 /**
  * A route message contains a pastry message that has been wrapped to be sent to
  * another pastry node.
@@ -59,7 +65,7 @@ import java.util.Map;
  */
 
 public class RouteMessage extends PRawMessage implements Serializable,
-    rice.p2p.commonapi.RouteMessage {
+    rice.p2p.commonapi.RouteMessage, CutThroughMessage {
   private static final long serialVersionUID = 3492981895989180093L;
 
   public static final short TYPE = -23525;
@@ -86,11 +92,33 @@ public class RouteMessage extends PRawMessage implements Serializable,
   byte internalPriority;
   short internalType;
   
+  /**
+   * Where this message was received, if it was received serialized: the buffer, 
+   * where the transport header, our header and the payload start, and where the 
+   * message ends.  Used to forward the message without copying the payload.
+   */
+  private transient byte[] receivedBytes;
+  private transient int receivedStart;
+  private transient int receivedHeaderStart;
+  private transient int receivedPayloadStart;
+  private transient int receivedEnd;
+  
   /**
    * This is used by the Rerouter to keep track of how many attempted reroutes of the message.
    */
   public transient int numRetries = 0;
   
+  /**
+   * Non-null if this message is being traced, sent as version 2.
+   */
+  private transient TraceContext trace;
+  
+  /**
+   * True once the first node has decided whether to trace this message, or it came 
+   * off the wire.
+   */
+  private transient boolean sampled = false;
+  
   private RMDeserializer endpointDeserializer = new RMDeserializer();
   
   /**
@@ -320,6 +348,20 @@ public class RouteMessage extends PRawMessage implements Serializable,
   }
 
   /**
+   * version 2: (only used for messages that are being traced)
+   *   +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+   *   +            auxAddress, hasHandle, target/destinationHandle    +
+   *   +  (same as version 1)                                          +
+   *        ...                                                         
+   *   +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+   *   +            long traceId                                       +
+   *   +                                                               +
+   *   +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+   *   +   byte hop    +
+   *   +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+   *   +            Internal Message                                   + 
+   *        ...                                                         
+   * 
    * version 1:
    *   +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
    *   +            int auxAddress                                     +
@@ -371,6 +413,11 @@ public class RouteMessage extends PRawMessage implements Serializable,
    * @return
    */
   public static RouteMessage build(InputBuffer buf, byte priority, PastryNode pn, NodeHandle prev, byte outputVersion) throws IOException {
+    int headerStart = -1;
+    if (buf instanceof SimpleInputBuffer && pn.getEnvironment().getParameters().getBoolean("pastry_protocol_router_cutThrough")) {
+      headerStart = ((SimpleInputBuffer)buf).getPosition();
+    }
+    RouteMessage ret;
   
     byte version = buf.readByte();
     switch(version) {
@@ -379,9 +426,11 @@ public class RouteMessage extends PRawMessage implements Serializable,
         int auxAddress = buf.readInt();
         Id target = Id.build(buf);
 //        NodeHandle prev = pn.readNodeHandle(buf);
-        return new RouteMessage(target, auxAddress, prev, buf, priority, pn, null, outputVersion);
+        ret = new RouteMessage(target, auxAddress, prev, buf, priority, pn, null, outputVersion);
+        break;
       }
     case 1:
+    case 2:
       {
         int auxAddress = buf.readInt();
         NodeHandle destHandle = null;
@@ -395,11 +444,31 @@ public class RouteMessage extends PRawMessage implements Serializable,
         }
 //        NodeHandle prev = pn.readNodeHandle(buf);
 //        System.out.println("RM.build() v:"+version+" aux:"+auxAddress+" t:"+target+" d:"+destHandle+" hDh:"+hasDestHandle); 
-        return new RouteMessage(target, auxAddress, prev, buf, priority, pn, destHandle, outputVersion);
+        TraceContext trace = null;
+        if (version == 2) {
+          long traceId = buf.readLong();
+          int hop = buf.readByte() & 0xFF;
+          trace = pn.getEnvironment().getMetrics().getTracer().received(traceId, hop, pn.getNodeId());
+          if (trace != null) trace.record("receive");
+        }
+        ret = new RouteMessage(target, auxAddress, prev, buf, priority, pn, destHandle, outputVersion);
+        ret.trace = trace;
+        ret.sampled = true;
+        break;
       }
       default:
         throw new IOException("Unknown Version: "+version);
     }
+    
+    if (headerStart >= 0) {
+      SimpleInputBuffer sib = (SimpleInputBuffer)buf;
+      ret.receivedBytes = sib.getBackingArray();
+      ret.receivedStart = sib.getStartOffset();
+      ret.receivedHeaderStart = headerStart;
+      ret.receivedPayloadStart = sib.getPosition();
+      ret.receivedEnd = sib.getLimit();
+    }
+    return ret;
   }
   
   public RouteMessage(Id target, int auxAddress, NodeHandle prev, InputBuffer buf, byte priority, PastryNode pn, NodeHandle destinationHandle, byte serializeVersion) throws IOException {
@@ -418,20 +487,7 @@ public class RouteMessage extends PRawMessage implements Serializable,
 
   public void serialize(OutputBuffer buf) throws IOException {
 //    System.out.println(this+".serialize()");
-    buf.writeByte(version); // version (deserialized in build())
-    buf.writeInt(auxAddress); // (deserialized in build())
-    switch (version) {
-    case 0:
-      target.serialize(buf); // (deserialized in build())
-      break;
-    case 1:
-      buf.writeBoolean(destinationHandle != null); // (deserialized in build())
-      if (destinationHandle != null) {
-        destinationHandle.serialize(buf); // (deserialized in build())
-      } else {
-        target.serialize(buf); // (deserialized in build())        
-      }            
-    } // switch
+    serializeHeader(buf);
     
 //    prevNode.serialize(buf); // (deserialized in build())
     if (serializedMsg != null) { // pri, sdr
@@ -442,54 +498,113 @@ public class RouteMessage extends PRawMessage implements Serializable,
       
       buf.writeShort(internalType);
       
-      // optimize this, possibly by extending InternalBuffer interface to access the raw underlieing bytes
-      byte[] raw = new byte[serializedMsg.bytesRemaining()]; 
-      serializedMsg.read(raw);
-      buf.write(raw,0,raw.length);
-      serializedMsg = new SimpleInputBuffer(raw);
-    } else {
-//      System.out.println(this+".serialize() 2");
-      if (rawInternalMsg == null) {
-        rawInternalMsg = convert(internalMsg); 
+      if (receivedBytes != null) {
+        // nobody has read the payload, write it straight out of the buffer we received it in
+        buf.write(receivedBytes, receivedPayloadStart, receivedEnd-receivedPayloadStart);
+      } else {
+        byte[] raw = new byte[serializedMsg.bytesRemaining()]; 
+        serializedMsg.read(raw);
+        buf.write(raw,0,raw.length);
+        serializedMsg = new SimpleInputBuffer(raw);
       }
-//    address was already peeled off as the auxAddress
-//    different wire to deserialize the Address and eliminate unneeded junk
-//    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
-//    +bool hasSender +   Priority    +  Type (Application specifc)   + // zero is java serialization
-//    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
-//     
-//    optional      
-//    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
-//    +            NodeHandle sender                                  + 
-//    +                                                               +
-//                      ...  flexable size  
-//    +                                                               +
-//    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
-      NodeHandle sender = rawInternalMsg.getSender();
-      boolean hasSender = (sender != null);
-      if (hasSender) {
-        buf.writeBoolean(true);
+    } else {
+      serializeInternalMsg(buf);
+    }
+  }
+  
+  /**
+   * Returns the bytes this message was received in, with our header rewritten in 
+   * place, so that forwarding the message doesn't copy the payload.  Only the 
+   * header can change: the prevNode and options aren't sent, and the payload is 
+   * untouched as long as nobody unwrapped the internal message.  The transport 
+   * header in front of ours is unchanged, as a serialized RouteMessage can't change 
+   * its address, type or priority.
+   */
+  public ByteBuffer getCutThroughBuffer() {
+    if (serializedMsg == null || receivedBytes == null) return null;
+    
+    try {
+      int headerLength = receivedPayloadStart-receivedHeaderStart;
+      SimpleOutputBuffer sob = new SimpleOutputBuffer(headerLength);
+      serializeHeader(sob);
+      sob.writeBoolean(hasSender);
+      sob.writeShort(internalType);
+      
+      // the header changed size (for example a different version), must reserialize
+      if (sob.getWritten() != headerLength) return null;
+      System.arraycopy(sob.getBytes(), 0, receivedBytes, receivedHeaderStart, headerLength);
+    } catch (IOException ioe) {
+      return null;
+    }
+    
+    return ByteBuffer.wrap(receivedBytes, receivedStart, receivedEnd-receivedStart);
+  }
+  
+  private void serializeHeader(OutputBuffer buf) throws IOException {
+    byte v = (trace == null) ? version : 2;
+    buf.writeByte(v); // version (deserialized in build())
+    buf.writeInt(auxAddress); // (deserialized in build())
+    switch (v) {
+    case 0:
+      target.serialize(buf); // (deserialized in build())
+      break;
+    case 1:
+    case 2:
+      buf.writeBoolean(destinationHandle != null); // (deserialized in build())
+      if (destinationHandle != null) {
+        destinationHandle.serialize(buf); // (deserialized in build())
       } else {
-        buf.writeBoolean(false);
+        target.serialize(buf); // (deserialized in build())        
+      }            
+      if (v == 2) {
+        buf.writeLong(trace.traceId); // (deserialized in build())
+        buf.writeByte((byte)Math.min(trace.hop, 255)); // (deserialized in build())
       }
+    } // switch
+  }
+  
+  private void serializeInternalMsg(OutputBuffer buf) throws IOException {
+//    System.out.println(this+".serialize() 2");
+    if (rawInternalMsg == null) {
+      rawInternalMsg = convert(internalMsg); 
+    }
+//  address was already peeled off as the auxAddress
+//  different wire to deserialize the Address and eliminate unneeded junk
+//  +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//  +bool hasSender +   Priority    +  Type (Application specifc)   + // zero is java serialization
+//  +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//   
+//  optional      
+//  +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//  +            NodeHandle sender                                  + 
+//  +                                                               +
+//                    ...  flexable size  
+//  +                                                               +
+//  +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    NodeHandle sender = rawInternalMsg.getSender();
+    boolean hasSender = (sender != null);
+    if (hasSender) {
+      buf.writeBoolean(true);
+    } else {
+      buf.writeBoolean(false);
+    }
 
-      // range check priority
-      int priority = rawInternalMsg.getPriority();
-      if (priority > Byte.MAX_VALUE) throw new IllegalStateException("Priority must be in the range of "+Byte.MIN_VALUE+" to "+Byte.MAX_VALUE+".  Lower values are higher priority. Priority of "+rawInternalMsg+" was "+priority+".");
-      if (priority < Byte.MIN_VALUE) throw new IllegalStateException("Priority must be in the range of "+Byte.MIN_VALUE+" to "+Byte.MAX_VALUE+".  Lower values are higher priority. Priority of "+rawInternalMsg+" was "+priority+".");
-//      buf.writeByte((byte)priority);
+    // range check priority
+    int priority = rawInternalMsg.getPriority();
+    if (priority > Byte.MAX_VALUE) throw new IllegalStateException("Priority must be in the range of "+Byte.MIN_VALUE+" to "+Byte.MAX_VALUE+".  Lower values are higher priority. Priority of "+rawInternalMsg+" was "+priority+".");
+    if (priority < Byte.MIN_VALUE) throw new IllegalStateException("Priority must be in the range of "+Byte.MIN_VALUE+" to "+Byte.MAX_VALUE+".  Lower values are higher priority. Priority of "+rawInternalMsg+" was "+priority+".");
+//    buf.writeByte((byte)priority);
 
-      short type = rawInternalMsg.getType();
-      buf.writeShort(type);
-      
-//      System.out.println("RouteMessage.serialize(): v:"+version+" addr:"+auxAddress+" dest:"+destinationHandle+" target:"+target+" prev:"+prevNode+" pri:"+priority+" type:"+type+" sender:"+sender);
+    short type = rawInternalMsg.getType();
+    buf.writeShort(type);
+    
+//    System.out.println("RouteMessage.serialize(): v:"+version+" addr:"+auxAddress+" dest:"+destinationHandle+" target:"+target+" prev:"+prevNode+" pri:"+priority+" type:"+type+" sender:"+sender);
 
-      if (hasSender) {
-        sender.serialize(buf);
-      }
+    if (hasSender) {
+      sender.serialize(buf);
+    }
 
-      rawInternalMsg.serialize(buf);       
-    }    
+    rawInternalMsg.serialize(buf);       
   }
 
   public Message unwrap(MessageDeserializer md) throws IOException {
@@ -588,6 +703,29 @@ public class RouteMessage extends PRawMessage implements Serializable,
     return destinationHandle;
   }
 
+  /**
+   * @return null unless this message is being traced
+   */
+  public TraceContext getTrace() {
+    return trace;
+  }
+  
+  /**
+   * Traced messages are sent as version 2, which older nodes can't read.
+   */
+  public void setTrace(TraceContext trace) {
+    this.trace = trace;
+    sampled = true;
+  }
+  
+  public boolean isSampled() {
+    return sampled;
+  }
+  
+  public void setSampled() {
+    sampled = true;
+  }
+  
   private transient Map<String, Object> options;
   public Map<String, Object> getTLOptions() {
     return options;
@@ -49,6 +49,7 @@ import org.mpisws.p2p.transport.priority.PriorityTransportLayer;
 import rice.environment.logging.Logger;
 import rice.p2p.commonapi.rawserialization.InputBuffer;
 import rice.p2p.commonapi.rawserialization.OutputBuffer;
+import rice.p2p.util.rawserialization.MarkingOutputBuffer;
 import rice.pastry.Id;
 import rice.pastry.NodeHandle;
 import rice.pastry.PastryNode;
@@ -329,8 +330,11 @@ public class SocketNodeHandle extends DistNodeHandle<MultiInetSocketAddress> {
   }
 
   public void serialize(OutputBuffer buf) throws IOException {
+    // let the PriorityTransportLayer send this as an index if it was already sent on the connection
+    int mark = (buf instanceof MarkingOutputBuffer) ? ((MarkingOutputBuffer)buf).beginMark() : -1;
     eaddress.serialize(buf);
     buf.writeLong(epoch);
     nodeId.serialize(buf);
+    if (mark >= 0) ((MarkingOutputBuffer)buf).endMark(mark, eaddress);
   }
 }
@@ -75,6 +75,7 @@ import org.mpisws.p2p.transport.liveness.LivenessProvider;
 import org.mpisws.p2p.transport.liveness.LivenessTransportLayer;
 import org.mpisws.p2p.transport.liveness.LivenessTransportLayerImpl;
 import org.mpisws.p2p.transport.liveness.OverrideLiveness;
+import org.mpisws.p2p.transport.liveness.PhysicalAddressMapper;
 import org.mpisws.p2p.transport.liveness.Pinger;
 import org.mpisws.p2p.transport.multiaddress.AddressStrategy;
 import org.mpisws.p2p.transport.multiaddress.MultiInetAddressTransportLayer;
@@ -111,7 +112,6 @@ import rice.environment.logging.LogManager;
 import rice.environment.logging.Logger;
 import rice.environment.params.Parameters;
 import rice.environment.processing.Processor;
-import rice.environment.processing.simple.SimpleProcessor;
 import rice.environment.random.RandomSource;
 import rice.environment.random.simple.SimpleRandomSource;
 import rice.p2p.commonapi.Cancellable;
@@ -651,6 +651,16 @@ public class SocketPastryNodeFactory extends TransportPastryNodeFactory {
 
     final LivenessTransportLayerImpl<SourceRoute<MultiInetSocketAddress>> ltl = 
       new LivenessTransportLayerImpl<SourceRoute<MultiInetSocketAddress>>(tl,environment, null, checkDeadThrottle);
+    if (environment.getParameters().contains("pastry_socket_scm_share_host_liveness") &&
+        environment.getParameters().getBoolean("pastry_socket_scm_share_host_liveness")) {
+      ltl.setPhysicalAddressMapper(new PhysicalAddressMapper<SourceRoute<MultiInetSocketAddress>>() {
+        public Object getPhysicalAddress(SourceRoute<MultiInetSocketAddress> i) {
+          // nodes behind the same NAT share its public address
+          if (!i.isDirect()) return null;
+          return i.getLastHop().getOutermostAddress().getAddress();
+        }
+      });
+    }
 
     return new TransLiveness<SourceRoute<MultiInetSocketAddress>, ByteBuffer>(){    
         public TransportLayer<SourceRoute<MultiInetSocketAddress>, ByteBuffer> getTransportLayer() {
@@ -730,6 +740,9 @@ public class SocketPastryNodeFactory extends TransportPastryNodeFactory {
           environment.getParameters().getInt("pastry_socket_writer_max_msg_size"),
           environment.getParameters().getInt("pastry_socket_writer_max_queue_length"),
           null);
+    if (environment.getParameters().contains("pastry_socket_writer_dictionary_size")) {
+      ((PriorityTransportLayerImpl<MultiInetSocketAddress>)priorityTL).DICTIONARY_SIZE = environment.getParameters().getInt("pastry_socket_writer_dictionary_size");
+    }
     pn.getVars().put(PRIORITY_TL, priorityTL);
 
     return priorityTL;
@@ -1422,7 +1435,7 @@ public class SocketPastryNodeFactory extends TransportPastryNodeFactory {
       
       // build the environment
       ret = new Environment(sman, proc, rand, rootEnvironment.getTimeSource(), lman,
-          rootEnvironment.getParameters(), rootEnvironment.getExceptionStrategy());
+          rootEnvironment.getParameters(), rootEnvironment.getExceptionStrategy(), rootEnvironment.getMetrics());
     
       // gain shared fate with the rootEnvironment
       rootEnvironment.addDestructable(ret);     
@@ -1452,7 +1465,7 @@ public class SocketPastryNodeFactory extends TransportPastryNodeFactory {
   protected Processor cloneProcessor(Environment rootEnvironment, Id nodeId, LogManager lman) {
     Processor proc = rootEnvironment.getProcessor();
     if (rootEnvironment.getParameters().getBoolean("pastry_factory_processorPerNode")) {
-      proc = new SimpleProcessor(nodeId.toString() + " Processor");
+      proc = Environment.generateDefaultProcessor(nodeId.toString() + " Processor", rootEnvironment.getParameters());
     }
 
     return proc;
@@ -49,6 +49,7 @@ import rice.p2p.util.TimerWeakHashMap;
 import rice.pastry.*;
 import rice.pastry.client.PastryAppl;
 import rice.pastry.leafset.BroadcastLeafSet;
+import rice.pastry.leafset.BroadcastLeafSetDelta;
 import rice.pastry.leafset.InitiateLeafSetMaintenance;
 import rice.pastry.leafset.LeafSet;
 import rice.pastry.leafset.LeafSetProtocol;
@@ -82,6 +83,29 @@ public class PeriodicLeafSetProtocol extends PastryAppl implements ReadyStrategy
   protected Map<NodeHandle, Long> lastTimeReceivedBLS; // the leases you have
   protected Map<NodeHandle, Long> lastTimeSentBLS; // the leases you have issued
 
+  /**
+   * NodeHandle -> copy of the LeafSet we last sent them, so we can send a 
+   * BroadcastLeafSetDelta next time
+   */
+  protected Map<NodeHandle, LeafSet> lastLeafSetSent;
+  
+  /**
+   * NodeHandle -> the last BroadcastLeafSet we received from them (or rebuilt from
+   * a BroadcastLeafSetDelta), to apply the next delta to
+   */
+  protected Map<NodeHandle, BroadcastLeafSet> lastLeafSetReceived;
+  
+  /**
+   * NodeHandle -> Boolean.TRUE if they sent us a version 1 message (a BroadcastLeafSet
+   * with versions, a BroadcastLeafSetDelta, or a full RequestLeafSet), so they can read one
+   */
+  protected Map<NodeHandle, Boolean> supportsDelta;
+  
+  /**
+   * Send changes to the leafset rather than the whole thing when possible.
+   */
+  public final boolean USE_DELTA;
+  
   /**
    * Related to rapidly determining direct neighbor liveness.
    */
@@ -109,6 +133,8 @@ public class PeriodicLeafSetProtocol extends PastryAppl implements ReadyStrategy
           return new RequestLeafSet(sender, buf);
         case BroadcastLeafSet.TYPE:
           return new BroadcastLeafSet(buf, pn);
+        case BroadcastLeafSetDelta.TYPE:
+          return new BroadcastLeafSetDelta(sender, buf, pn);
       }
       return null;
     }
@@ -160,6 +186,10 @@ public class PeriodicLeafSetProtocol extends PastryAppl implements ReadyStrategy
     LEASE_PERIOD = p.getInt("pastry_protocol_periodicLeafSet_lease_period");  // 30 seconds
     BLS_THROTTLE = p.getInt("pastry_protocol_periodicLeafSet_request_lease_throttle");// 10 seconds
     this.lastTimeRenewedLease = new TimerWeakHashMap<NodeHandle, Long>(ln.getEnvironment().getSelectorManager().getTimer(), LEASE_PERIOD*2);
+    USE_DELTA = p.contains("pastry_protocol_periodicLeafSet_delta") && p.getBoolean("pastry_protocol_periodicLeafSet_delta");
+    this.lastLeafSetSent = new TimerWeakHashMap<NodeHandle, LeafSet>(ln.getEnvironment().getSelectorManager().getTimer(), 300000);
+    this.lastLeafSetReceived = new TimerWeakHashMap<NodeHandle, BroadcastLeafSet>(ln.getEnvironment().getSelectorManager().getTimer(), 300000);
+    this.supportsDelta = new TimerWeakHashMap<NodeHandle, Boolean>(ln.getEnvironment().getSelectorManager().getTimer(), 300000);
 
     // Removed after meeting on 5/5/2005 Don't know if this is always the
     // appropriate policy.
@@ -197,44 +227,27 @@ public class PeriodicLeafSetProtocol extends PastryAppl implements ReadyStrategy
     if (msg instanceof BroadcastLeafSet) {
       // receive a leafset from another node
       BroadcastLeafSet bls = (BroadcastLeafSet) msg;
-
-      // if we have now successfully joined the ring, set the local node ready
-      if (bls.type() == BroadcastLeafSet.JoinInitial) {
-        // merge the received leaf set into our own
-        leafSet.merge(bls.leafSet(), bls.from(), routeTable, false,
-            null);
-
-        // localNode.setReady();
-        broadcastAll();
-      } else {
-        // first check for missing entries in their leafset
-        NodeSet set = leafSet.neighborSet(Integer.MAX_VALUE);
-
-        // don't need to remove any nodes that we already found faulty, because leafset.merge does not accept them
-        
-        // if we find any missing entries, check their liveness
-        for (int i = 0; i < set.size(); i++)
-          if (bls.leafSet().test(set.get(i)))
-            set.get(i).checkLiveness();
-
-        // now check for assumed-dead entries in our leafset
-        set = bls.leafSet().neighborSet(Integer.MAX_VALUE);
-
-        // if we find any missing entries, check their liveness
-        for (int i = 0; i < set.size(); i++)
-          if (!set.get(i).isAlive())
-            set.get(i).checkLiveness();
-
-        // merge the received leaf set into our own
-        leafSet.merge(bls.leafSet(), bls.from(), routeTable, false,
-            null);
+      if (bls.hasVersions()) {
+        supportsDelta.put(bls.from(), Boolean.TRUE);
       }
-      // do this only if you are his proper neighbor !!!
-      if ((bls.leafSet().get(1) == localHandle) ||
-          (bls.leafSet().get(-1) == localHandle)) {
-        updateRecBLS(bls.from(), bls.getTimeStamp());
+      if (bls.type() == BroadcastLeafSet.Update) {
+        lastLeafSetReceived.put(bls.from(), bls);
       }
-      
+      receiveLeafSet(bls);
+    } else if (msg instanceof BroadcastLeafSetDelta) {
+      BroadcastLeafSetDelta delta = (BroadcastLeafSetDelta) msg;
+      supportsDelta.put(delta.getSender(), Boolean.TRUE);
+      BroadcastLeafSet bls = delta.apply(lastLeafSetReceived.get(delta.getSender()));
+      if (bls == null) {
+        // we lost track of their leafset, ask for the whole thing, renewing the lease if this was a response
+        if (logger.level <= Logger.FINE) logger.log("Couldn't apply "+delta+" from "+delta.getSender()+", requesting the full leafset.");
+        lastLeafSetReceived.remove(delta.getSender());
+        thePastryNode.send(delta.getSender(), 
+            new RequestLeafSet(localHandle, delta.getTimeStamp(), true), null, options);
+        return;
+      }
+      lastLeafSetReceived.put(bls.from(), bls);
+      receiveLeafSet(bls);
     } else if (msg instanceof RequestLeafSet) {
       // request for leaf set from a remote node
       RequestLeafSet rls = (RequestLeafSet) msg;
@@ -257,13 +270,17 @@ public class PeriodicLeafSetProtocol extends PastryAppl implements ReadyStrategy
         }
       }
       
+      if (rls.isFull()) {
+        supportsDelta.put(rls.returnHandle(), Boolean.TRUE);
+        lastLeafSetSent.remove(rls.returnHandle());
+      }
+      
       // I don't like that we're sending the message after setting lastTimeRenewedLease, becuase there
       // could be a delay between here and above, but this should still be fine, because with
       // the assumption that the clocks are both advancing normally, we still should not get inconsistency
       // because the other node will stop receiving 30 seconds after he requested the lease, and we
       // wont receive until 30 seconds after the lastTimeRenewedLease.put() above
-      thePastryNode.send(rls.returnHandle(),
-          new BroadcastLeafSet(localHandle, leafSet, BroadcastLeafSet.Update, rls.getTimeStamp()),null, options);
+      sendLeafSet(rls.returnHandle(), rls.getTimeStamp());
       
     } else if (msg instanceof InitiateLeafSetMaintenance) {
       // perform leafset maintenance
@@ -273,8 +290,7 @@ public class PeriodicLeafSetProtocol extends PastryAppl implements ReadyStrategy
         NodeHandle handle = set.get(random.nextInt(set.size() - 1) + 1);
         thePastryNode.send(handle,
             new RequestLeafSet(localHandle, timeSource.currentTimeMillis()),null, options);
-        thePastryNode.send(handle,
-            new BroadcastLeafSet(localHandle, leafSet, BroadcastLeafSet.Update, 0),null, options);
+        sendLeafSet(handle, 0);
 
         NodeHandle check = set.get(random
             .nextInt(set.size() - 1) + 1);
@@ -296,6 +312,77 @@ public class PeriodicLeafSetProtocol extends PastryAppl implements ReadyStrategy
     }
   }
 
+  /**
+   * Process a leafset from another node, whether it was sent whole or as a delta.
+   * 
+   * @param bls the leafset
+   */
+  protected void receiveLeafSet(BroadcastLeafSet bls) {
+    // if we have now successfully joined the ring, set the local node ready
+    if (bls.type() == BroadcastLeafSet.JoinInitial) {
+      // merge the received leaf set into our own
+      leafSet.merge(bls.leafSet(), bls.from(), routeTable, false,
+          null);
+
+      // localNode.setReady();
+      broadcastAll();
+    } else {
+      // first check for missing entries in their leafset
+      NodeSet set = leafSet.neighborSet(Integer.MAX_VALUE);
+
+      // don't need to remove any nodes that we already found faulty, because leafset.merge does not accept them
+      
+      // if we find any missing entries, check their liveness
+      for (int i = 0; i < set.size(); i++)
+        if (bls.leafSet().test(set.get(i)))
+          set.get(i).checkLiveness();
+
+      // now check for assumed-dead entries in our leafset
+      set = bls.leafSet().neighborSet(Integer.MAX_VALUE);
+
+      // if we find any missing entries, check their liveness
+      for (int i = 0; i < set.size(); i++)
+        if (!set.get(i).isAlive())
+          set.get(i).checkLiveness();
+
+      // merge the received leaf set into our own
+      leafSet.merge(bls.leafSet(), bls.from(), routeTable, false,
+          null);
+    }
+    // do this only if you are his proper neighbor !!!
+    if ((bls.leafSet().get(1) == localHandle) ||
+        (bls.leafSet().get(-1) == localHandle)) {
+      updateRecBLS(bls.from(), bls.getTimeStamp());
+    }
+  }
+
+  /**
+   * Sends our leafset as an Update.  If the destination has a recent copy, only sends 
+   * what changed since then (usually nothing).
+   * 
+   * @param sendTo the destination
+   * @param requestTimeStamp the timestamp of the RequestLeafSet we are responding to, or 0
+   */
+  protected void sendLeafSet(NodeHandle sendTo, long requestTimeStamp) {
+    if (!USE_DELTA) {
+      thePastryNode.send(sendTo,
+          new BroadcastLeafSet(localHandle, leafSet, BroadcastLeafSet.Update, requestTimeStamp), null, options);
+      return;
+    }
+    
+    LeafSet current = leafSet.copy();
+    LeafSet base = lastLeafSetSent.put(sendTo, current);
+    if (base == null || !supportsDelta.containsKey(sendTo)) {
+      // we're configured to use deltas, so announce that we support them by sending the versions
+      BroadcastLeafSet bls = new BroadcastLeafSet(localHandle, current, BroadcastLeafSet.Update, requestTimeStamp);
+      bls.setSendVersions(true);
+      thePastryNode.send(sendTo, bls, null, options);
+    } else {
+      thePastryNode.send(sendTo, 
+          new BroadcastLeafSetDelta(localHandle, base, current, BroadcastLeafSet.Update, requestTimeStamp), null, options);
+    }
+  }
+
   /**
    * Broadcast the leaf set to all members of the local leaf set.
    * 
@@ -468,7 +555,7 @@ public class PeriodicLeafSetProtocol extends PastryAppl implements ReadyStrategy
         logger.log("PeriodicLeafSetProtocol: Checking liveness on neighbor:"+ sendTo+" "+time+" cl:"+checkLiveness);
       lastTimeSentBLS.put(sendTo, new Long(currentTime));
 
-      thePastryNode.send(sendTo, new BroadcastLeafSet(localHandle, leafSet, BroadcastLeafSet.Update, 0), null, options);
+      sendLeafSet(sendTo, 0);
       thePastryNode.send(sendTo, new RequestLeafSet(localHandle, currentTime), null, options);
       if (checkLiveness) {
         sendTo.checkLiveness();
@@ -535,6 +622,9 @@ public class PeriodicLeafSetProtocol extends PastryAppl implements ReadyStrategy
     lastTimeReceivedBLS.clear();
     lastTimeRenewedLease.clear();
     lastTimeSentBLS.clear();
+    lastLeafSetSent.clear();
+    lastLeafSetReceived.clear();
+    supportsDelta.clear();
 //    deadLeases.clear();
   }
 
@@ -551,6 +641,9 @@ public class PeriodicLeafSetProtocol extends PastryAppl implements ReadyStrategy
     } else {
       if (logger.level <= Logger.FINE) logger.log("Removed "+nh+" from the LeafSet.");
       nh.deleteObserver(this); 
+      // the values refer to the key, so the weak map won't drop them on its own
+      lastLeafSetSent.remove(nh);
+      lastLeafSetReceived.remove(nh);
     }
   }
 
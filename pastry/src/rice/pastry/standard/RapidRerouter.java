@@ -47,6 +47,8 @@ import org.mpisws.p2p.transport.liveness.LivenessListener;
 import org.mpisws.p2p.transport.priority.QueueOverflowException;
 
 import rice.environment.logging.Logger;
+import rice.environment.metrics.Counter;
+import rice.environment.metrics.MetricsRegistry;
 import rice.p2p.commonapi.Cancellable;
 import rice.pastry.NodeHandle;
 import rice.pastry.PastryNode;
@@ -76,10 +78,20 @@ public class RapidRerouter extends StandardRouter implements LivenessListener<No
    */
   Map<NodeHandle, Collection<RouterNotification>> pending;
   
+  /**
+   * Reroute attempts, and messages dropped after MAX_RETRIES of them.
+   */
+  protected Counter reroutes;
+  protected Counter rerouteDrops;
+  
   public RapidRerouter(PastryNode thePastryNode, MessageDispatch dispatch, RouterStrategy strategy) {
     super(thePastryNode, dispatch, strategy);
     pending = new HashMap<NodeHandle, Collection<RouterNotification>>();
     
+    MetricsRegistry metrics = thePastryNode.getEnvironment().getMetrics();
+    reroutes = metrics.counter("routing.reroutes");
+    rerouteDrops = metrics.counter("routing.rerouteDrops");
+    
     thePastryNode.addLivenessListener(this);
   }
   
@@ -98,7 +110,7 @@ public class RapidRerouter extends StandardRouter implements LivenessListener<No
       RouterNotification notifyMe = new RouterNotification(rm, handle);
       addToPending(notifyMe, handle);
       rm.setTLCancellable(notifyMe);
-      notifyMe.setCancellable(thePastryNode.send(handle, rm, notifyMe, rm.getTLOptions()));
+      notifyMe.setCancellable(thePastryNode.send(handle, rm, notifyMe, getSendOptions(rm)));
     } else {
       super.sendTheMessage(rm, handle);
     }
@@ -109,6 +121,7 @@ public class RapidRerouter extends StandardRouter implements LivenessListener<No
 
     rm.numRetries++;
     if (rm.numRetries > MAX_RETRIES) {
+      rerouteDrops.inc();
       // TODO: Notify some kind of Error Handler
       boolean dontPrint = false;
       if (ioe == null) {
@@ -124,6 +137,8 @@ public class RapidRerouter extends StandardRouter implements LivenessListener<No
       return;
     }
 
+    reroutes.inc();
+    if (rm.getTrace() != null) rm.getTrace().record("reroute");
     // give the selector a chance to do some IO before trying to schedule again
     thePastryNode.getEnvironment().getSelectorManager().invoke(new Runnable() {
       public void run() {
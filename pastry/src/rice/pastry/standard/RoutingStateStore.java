@@ -0,0 +1,425 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.pastry.standard;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import org.mpisws.p2p.transport.util.Serializer;
+
+import rice.Continuation;
+import rice.Destructable;
+import rice.environment.Environment;
+import rice.environment.logging.Logger;
+import rice.environment.params.Parameters;
+import rice.environment.processing.WorkRequest;
+import rice.p2p.commonapi.Cancellable;
+import rice.p2p.util.rawserialization.SimpleInputBuffer;
+import rice.p2p.util.rawserialization.SimpleOutputBuffer;
+import rice.pastry.NodeHandle;
+import rice.pastry.PastryNode;
+import rice.pastry.leafset.LeafSet;
+import rice.pastry.routing.BroadcastRouteRow;
+import rice.pastry.routing.RouteSet;
+import rice.pastry.routing.RoutingTable;
+import rice.selector.TimerTask;
+
+/**
+ * Keeps the LeafSet and RoutingTable of a node on disk, so that the node can 
+ * come back warm after a restart (with the same NodeId).
+ * 
+ * A snapshot is written every SNAPSHOT_INTERVAL millis while the node is ready, 
+ * and when the node is destroyed.  It holds each live member of the leafset and 
+ * routing table with the proximity and liveness that the node had for it.
+ * 
+ * On restart, this wraps the node's ProximityNeighborSelector.  When the node boots 
+ * the remembered handles are put in the RoutingTable right away (nearest first, so 
+ * they get the slots they had before), and the join goes via the old leafset (then
+ * the rest of the remembered nodes) rather than searching for a near node again.  This is optimistic: RouteSet.put() pings 
+ * every handle it accepts, so entries that went away (or came back with a new epoch)
+ * are declared dead and replaced by the normal maintenance.  The LeafSet itself is 
+ * left to the join protocol, which has to probe it for consistency anyway.
+ * 
+ * Once the node is ready, it sends its rows to the remembered nodes (see announce()), 
+ * so that the rest of the ring stops pointing at the last incarnation sooner.
+ * 
+ * The proximity is only used to order the entries, it isn't pushed down into the 
+ * transport layer's RTT cache, which only ever lowers an estimate.
+ * 
+ * @author agent
+ */
+public class RoutingStateStore implements ProximityNeighborSelector, Destructable {
+  public static final byte VERSION = 0;
+  
+  public static final byte IN_LEAFSET = 1;
+  public static final byte IN_ROUTINGTABLE = 2;
+  
+  /**
+   * Millis between snapshots, 0 only writes one on shutdown.
+   */
+  public final int SNAPSHOT_INTERVAL;
+  
+  /**
+   * Snapshots older than this are ignored.
+   */
+  public final long MAX_AGE;
+  
+  protected PastryNode pn;
+  
+  protected Environment environment;
+  
+  protected Logger logger;
+  
+  protected File file;
+  
+  protected Serializer<NodeHandle> serializer;
+  
+  protected ProximityNeighborSelector pns;
+  
+  protected TimerTask snapshotTask;
+  
+  protected boolean destroyed = false;
+  
+  /**
+   * Set once the node is ready, so we don't replace a good snapshot with the state of 
+   * a node that never finished joining.  (The node may no longer be ready by the time 
+   * we are destroyed.)
+   */
+  protected boolean joined = false;
+  
+  /**
+   * A remembered handle.
+   */
+  public static class Entry {
+    public NodeHandle handle;
+    public int proximity;
+    public int liveness;
+    public byte flags;
+    
+    public Entry(NodeHandle handle, int proximity, int liveness, byte flags) {
+      this.handle = handle;
+      this.proximity = proximity;
+      this.liveness = liveness;
+      this.flags = flags;
+    }
+    
+    public String toString() {
+      return "Entry["+handle+" prox:"+proximity+" liveness:"+liveness+" flags:"+flags+"]";
+    }
+  }
+  
+  /**
+   * @param pn the node
+   * @param file where to keep the snapshot
+   * @param serializer reads/writes the handles
+   * @param pns used when there is nothing to restore
+   */
+  public RoutingStateStore(PastryNode pn, File file, Serializer<NodeHandle> serializer, ProximityNeighborSelector pns) {
+    this.pn = pn;
+    this.environment = pn.getEnvironment();
+    this.logger = environment.getLogManager().getLogger(RoutingStateStore.class, null);
+    this.file = file;
+    this.serializer = serializer;
+    this.pns = pns;
+    
+    Parameters p = environment.getParameters();
+    SNAPSHOT_INTERVAL = p.contains("pastry_routingState_snapshotInterval") ? p.getInt("pastry_routingState_snapshotInterval") : 600000;
+    MAX_AGE = p.contains("pastry_routingState_maxAge") ? p.getLong("pastry_routingState_maxAge") : 3600000L;
+    
+    if (SNAPSHOT_INTERVAL > 0) {
+      snapshotTask = new TimerTask() {
+        @Override
+        public void run() {
+          if (!RoutingStateStore.this.pn.isReady()) return;
+          final byte[] bytes;
+          try {
+            bytes = snapshot();
+          } catch (IOException ioe) {
+            if (logger.level <= Logger.WARNING) logger.logException("Error taking snapshot of the routing state", ioe);
+            return;
+          }
+          environment.getProcessor().processBlockingIO(new WorkRequest<Object>(new Continuation<Object, Exception>() {
+            public void receiveResult(Object result) {
+            }
+            public void receiveException(Exception exception) {
+              if (logger.level <= Logger.WARNING) logger.logException("Error writing "+RoutingStateStore.this.file, exception);
+            }
+          }, environment.getSelectorManager(), RoutingStateStore.this) {
+            @Override
+            public Object doWork() throws Exception {
+              write(bytes);
+              return null;
+            }
+          });
+        }
+      };
+      environment.getSelectorManager().schedule(snapshotTask, SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL);
+    }
+    pn.addObserver(new Observer() {
+      public void update(Observable o, Object arg) {
+        if (Boolean.TRUE.equals(arg)) {
+          joined = true;
+          RoutingStateStore.this.pn.deleteObserver(this);
+        }
+      }
+    });
+    pn.addDestructable(this);
+  }
+  
+  /**
+   * Seeds the RoutingTable with what we remembered, and joins via the old leafset, 
+   * the rest of the remembered nodes, then bootHandles.  If there is nothing to restore, or 
+   * we are starting a new ring, defers to the real ProximityNeighborSelector.
+   * 
+   * The snapshot isn't read until now, because reading the handles coalesces them 
+   * in the transport layer, which gets in the way of discovering the bootstrap nodes.
+   */
+  public Cancellable getNearHandles(Collection<NodeHandle> bootHandles, Continuation<Collection<NodeHandle>, Exception> deliverResultToMe) {
+    if (bootHandles == null || bootHandles.isEmpty()) {
+      return pns.getNearHandles(bootHandles, deliverResultToMe);
+    }
+    List<Entry> entries = null;
+    try {
+      entries = read();
+    } catch (IOException ioe) {
+      if (logger.level <= Logger.WARNING) logger.logException("Ignoring routing state in "+file, ioe);
+    }
+    if (entries == null || entries.isEmpty()) {
+      return pns.getNearHandles(bootHandles, deliverResultToMe);
+    }
+    
+    RoutingTable rt = pn.getRoutingTable();
+    int seeded = 0;
+    final LinkedHashSet<NodeHandle> ret = new LinkedHashSet<NodeHandle>();
+    // join via our old leafset, it's only one hop to where we belong
+    for (Entry e : entries) {
+      if (e.handle.equals(pn.getLocalHandle())) continue;
+      if (rt.put(e.handle)) seeded++;
+      if ((e.flags & IN_LEAFSET) != 0) ret.add(e.handle);
+    }
+    for (Entry e : entries) {
+      if (!e.handle.equals(pn.getLocalHandle())) ret.add(e.handle);
+    }
+    final Collection<NodeHandle> remembered = new ArrayList<NodeHandle>(ret);
+    pn.addObserver(new Observer() {
+      public void update(Observable o, Object arg) {
+        if (Boolean.TRUE.equals(arg)) {
+          pn.deleteObserver(this);
+          announce(remembered);
+        }
+      }
+    });
+    ret.addAll(bootHandles);
+    if (logger.level <= Logger.INFO) logger.log("Restored "+entries.size()+" handles from "+file+", seeded "+seeded+" routing table entries");
+    deliverResultToMe.receiveResult(new ArrayList<NodeHandle>(ret));
+    return null;
+  }
+  
+  /**
+   * Sends each remembered node the row of our RoutingTable that it belongs in.  Those 
+   * are the nodes most likely to still have our last incarnation in their own tables, 
+   * and this lets them replace it now, rather than at their next route set maintenance.
+   * 
+   * @param remembered
+   */
+  protected void announce(Collection<NodeHandle> remembered) {
+    RoutingTable rt = pn.getRoutingTable();
+    int sent = 0;
+    for (NodeHandle nh : remembered) {
+      if (!nh.isAlive()) continue;
+      int row = pn.getNodeId().indexOfMSDD(nh.getNodeId(), rt.baseBitLength());
+      if (row < 0) continue;
+      pn.send(nh, new BroadcastRouteRow(pn.getLocalHandle(), rt.getRow(row)), null, null);
+      sent++;
+    }
+    if (logger.level <= Logger.FINE) logger.log("Announced ourself to "+sent+" remembered nodes");
+  }
+
+  /**
+   * Writes a final snapshot (if the node got as far as joining).
+   */
+  public void destroy() {
+    synchronized(this) {
+      if (destroyed) return;
+      destroyed = true;
+    }
+    if (snapshotTask != null) snapshotTask.cancel();
+    if (!joined) return;
+    try {
+      write(snapshot());
+    } catch (IOException ioe) {
+      if (logger.level <= Logger.WARNING) logger.logException("Error writing "+file, ioe);
+    }
+  }
+  
+  /**
+   * The live members of the LeafSet and RoutingTable.
+   */
+  public Collection<Entry> getEntries() {
+    Map<NodeHandle, Entry> ret = new LinkedHashMap<NodeHandle, Entry>();
+    LeafSet ls = pn.getLeafSet();
+    for (NodeHandle nh : ls.getUniqueSet()) {
+      addEntry(ret, nh, IN_LEAFSET);
+    }
+    RoutingTable rt = pn.getRoutingTable();
+    for (int row = 0; row < rt.numRows(); row++) {
+      RouteSet[] sets = rt.getRow(row);
+      for (int col = 0; col < sets.length; col++) {
+        if (sets[col] == null) continue;
+        for (int i = 0; i < sets[col].size(); i++) {
+          addEntry(ret, sets[col].get(i), IN_ROUTINGTABLE);
+        }
+      }
+    }
+    return ret.values();
+  }
+  
+  protected void addEntry(Map<NodeHandle, Entry> entries, NodeHandle nh, byte flag) {
+    if (nh.equals(pn.getLocalHandle())) return;
+    Entry e = entries.get(nh);
+    if (e != null) {
+      e.flags |= flag;
+      return;
+    }
+    int liveness = pn.getLiveness(nh);
+    if (liveness >= NodeHandle.LIVENESS_DEAD) return;
+    entries.put(nh, new Entry(nh, pn.proximity(nh), liveness, flag));
+  }
+  
+  /**
+   * version, time, count, entries..., CRC
+   */
+  public byte[] snapshot() throws IOException {
+    Collection<Entry> entries = getEntries();
+    SimpleOutputBuffer buf = new SimpleOutputBuffer();
+    buf.writeByte(VERSION);
+    buf.writeLong(environment.getTimeSource().currentTimeMillis());
+    buf.writeInt(entries.size());
+    for (Entry e : entries) {
+      buf.writeByte(e.flags);
+      buf.writeInt(e.proximity);
+      buf.writeByte((byte)e.liveness);
+      serializer.serialize(e.handle, buf);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(buf.getBytes(), 0, buf.getWritten());
+    buf.writeLong(crc.getValue());
+    byte[] ret = new byte[buf.getWritten()];
+    System.arraycopy(buf.getBytes(), 0, ret, 0, ret.length);
+    return ret;
+  }
+  
+  /**
+   * @return file.new, which the snapshot is written to before it replaces file
+   */
+  protected File getTempFile() {
+    return new File(file.getPath()+".new");
+  }
+  
+  /**
+   * Replaces the file, via file.new, so a crash never leaves half a snapshot.
+   */
+  protected synchronized void write(byte[] bytes) throws IOException {
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (parent != null && !parent.exists()) parent.mkdirs();
+    File temp = getTempFile();
+    FileOutputStream fos = new FileOutputStream(temp);
+    try {
+      fos.write(bytes);
+      fos.getFD().sync();
+    } finally {
+      fos.close();
+    }
+    if (!temp.renameTo(file)) {
+      // windows won't rename over an existing file, read() falls back to file.new 
+      // if we crash before the rename
+      file.delete();
+      if (!temp.renameTo(file)) throw new IOException("Couldn't rename "+temp+" to "+file);
+    }
+    if (logger.level <= Logger.FINE) logger.log("Wrote "+bytes.length+" bytes to "+file);
+  }
+  
+  /**
+   * @return the live entries in the file (or file.new if a crash left only that), 
+   * nearest first, null if there is no (recent) snapshot
+   */
+  protected List<Entry> read() throws IOException {
+    File file = this.file;
+    if (!file.exists()) file = getTempFile();
+    if (!file.exists()) return null;
+    byte[] bytes = new byte[(int)file.length()];
+    DataInputStream dis = new DataInputStream(new FileInputStream(file));
+    try {
+      dis.readFully(bytes);
+    } finally {
+      dis.close();
+    }
+    if (bytes.length < 8) throw new IOException("Snapshot is truncated");
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length-8);
+    SimpleInputBuffer buf = new SimpleInputBuffer(bytes, bytes.length-8);
+    if (buf.readLong() != crc.getValue()) throw new IOException("Snapshot checksum mismatch");
+    
+    buf = new SimpleInputBuffer(bytes, 0, bytes.length-8);
+    byte version = buf.readByte();
+    if (version != VERSION) throw new IOException("Unknown snapshot version "+version);
+    long age = environment.getTimeSource().currentTimeMillis()-buf.readLong();
+    if (age > MAX_AGE) {
+      if (logger.level <= Logger.INFO) logger.log("Ignoring "+file+", it is "+age+" millis old");
+      return null;
+    }
+    int num = buf.readInt();
+    List<Entry> ret = new ArrayList<Entry>(num);
+    for (int i = 0; i < num; i++) {
+      byte flags = buf.readByte();
+      int proximity = buf.readInt();
+      int liveness = buf.readByte();
+      NodeHandle nh = serializer.deserialize(buf);
+      // unknown, or already suspected before we went down
+      if (nh == null || liveness != NodeHandle.LIVENESS_ALIVE) continue;
+      ret.add(new Entry(nh, proximity, liveness, flags));
+    }
+    Collections.sort(ret, new Comparator<Entry>() {
+      public int compare(Entry a, Entry b) {
+        return a.proximity < b.proximity ? -1 : (a.proximity == b.proximity ? 0 : 1);
+      }
+    });
+    if (logger.level <= Logger.FINE) logger.log("Read "+ret.size()+"/"+num+" entries from "+file+" age:"+age);
+    return ret;
+  }
+}
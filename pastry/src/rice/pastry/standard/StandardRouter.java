@@ -49,6 +49,10 @@ import java.util.NoSuchElementException;
 import org.mpisws.p2p.transport.exception.NodeIsFaultyException;
 
 import rice.environment.logging.Logger;
+import rice.environment.metrics.Counter;
+import rice.environment.metrics.MetricsRegistry;
+import rice.environment.metrics.TraceContext;
+import rice.environment.metrics.Tracer;
 import rice.p2p.commonapi.exception.AppNotRegisteredException;
 import rice.p2p.commonapi.rawserialization.InputBuffer;
 import rice.p2p.commonapi.rawserialization.MessageDeserializer;
@@ -74,6 +78,21 @@ public class StandardRouter extends PastryAppl implements Router {
   MessageDispatch dispatch;
   protected RouterStrategy routerStrategy;
   
+  /**
+   * Messages sent on to another node, and those that reached their root here.  
+   * The registry is shared by all of the nodes in a simulation, so there 
+   * forwarded/delivered is the mean number of hops.
+   */
+  protected Counter forwarded;
+  protected Counter delivered;
+  
+  /**
+   * Messages dropped because there was no way to make progress.
+   */
+  protected Counter noRoute;
+  
+  protected Tracer tracer;
+  
   /**
    * Try to return someone who isn't suspected.  If they're all suspected, 
    * choose the first candidate, but set the rerouteIfSuspected option to false.
@@ -131,6 +150,11 @@ public class StandardRouter extends PastryAppl implements Router {
     if (routerStrategy == null) {
       routerStrategy = new AliveRouterStrategy();
     }
+    MetricsRegistry metrics = thePastryNode.getEnvironment().getMetrics();
+    forwarded = metrics.counter("routing.forwarded");
+    delivered = metrics.counter("routing.delivered");
+    noRoute = metrics.counter("routing.noRoute");
+    tracer = metrics.getTracer();
   }
   
   public void setRouterStrategy(RouterStrategy strategy) {
@@ -167,10 +191,32 @@ public class StandardRouter extends PastryAppl implements Router {
       return;
     }
     if (logger.level <= Logger.FINE) logger.log("route("+rm+")");
+    if (tracer.enabled) traceRoute(rm);
     if (routeMessage(rm) == false)
       receiveRouteMessage(rm);    
   }
   
+  /**
+   * Samples messages that start here, and records the route event on traced ones.
+   */
+  protected void traceRoute(RouteMessage rm) {
+    Id localId = thePastryNode.getNodeId();
+    TraceContext trace = rm.getTrace();
+    if (trace == null) {
+      // only trace from the start
+      if (rm.isSampled()) return;
+      rm.setSampled();
+      trace = tracer.sample(localId);
+      if (trace == null) return;
+      rm.setTrace(trace);
+    } else if (!trace.isAt(localId)) {
+      // the simulator hands the same message to the next node
+      trace = trace.nextHop(localId);
+      rm.setTrace(trace);
+    }
+    trace.record("route");
+  }
+  
   /**
    * Routes the messages if the next hop has been set up.
    * 
@@ -196,12 +242,14 @@ public class StandardRouter extends PastryAppl implements Router {
         // no idea how to contact the destination, drop
         if (logger.level <= Logger.FINE) logger.log("Message "+rm+" has destination "+rm.getDestinationHandle()+" but I'm the root of the id.  Dropping.  This could happen if the destination has died while the route message was in transit, or if the local node does not yet have logging state because it is boostrapping.");
 
+        noRoute.inc();
         rm.sendFailed(new NoRouteToHostException(rm.getDestinationHandle().toString()));
         return true;
       }
       thePastryNode.receiveMessage(rm.internalMsg);
       rm.sendSuccess(thePastryNode.getLocalHandle());
     } else {
+      forwarded.inc();
       sendTheMessage(rm, handle);
     }
     return true;
@@ -228,7 +276,21 @@ public class StandardRouter extends PastryAppl implements Router {
           }
         }
       }    
-    }, rm.getTLOptions())); 
+    }, getSendOptions(rm))); 
+  }
+  
+  /**
+   * The options to send the message with.  If it is being traced, records the send, 
+   * and adds the TraceContext so the transport layers can find it.
+   */
+  protected Map<String, Object> getSendOptions(RouteMessage rm) {
+    Map<String, Object> options = rm.getTLOptions();
+    TraceContext trace = rm.getTrace();
+    if (trace == null) return options;
+    trace.record("send");
+    options = (options == null) ? new HashMap<String, Object>() : new HashMap<String, Object>(options);
+    options.put(TraceContext.OPTION_TRACE, trace);
+    return options;
   }
 
   
@@ -251,6 +313,8 @@ public class StandardRouter extends PastryAppl implements Router {
 
     if (lsPos == 0) {
       // message is for the local node so deliver it
+      delivered.inc();
+      if (msg.getTrace() != null) msg.getTrace().record("deliver");
       msg.setNextHop(thePastryNode.getLocalHandle());
       
       // don't return, we want to check for routing table hole
@@ -261,6 +325,7 @@ public class StandardRouter extends PastryAppl implements Router {
       // the next hop
       NodeHandle nextHop = routerStrategy.pickNextHop(msg, i);
       if (nextHop == null) {
+        noRoute.inc();
         msg.sendFailed(new NoLegalRouteToMakeProgressException(target));
         return;
       }
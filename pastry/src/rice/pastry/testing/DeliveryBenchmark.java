@@ -0,0 +1,225 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.pastry.testing;
+
+import java.io.IOException;
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+
+import rice.environment.Environment;
+import rice.p2p.commonapi.*;
+import rice.pastry.NodeIdFactory;
+import rice.pastry.PastryNode;
+import rice.pastry.socket.*;
+import rice.pastry.standard.RandomNodeIdFactory;
+
+/**
+ * Measures the node-level receive path with several applications on one node, each 
+ * of which has its own thread routing messages to the local node, and whose deliver()
+ * blocks for a while (as if it touched the disk).  Compares delivering on the selector
+ * against delivering on an executor (Endpoint.setDeliveryExecutor()), and reports how
+ * long the selector was unavailable to everything else while the applications were busy.
+ * 
+ * Usage: DeliveryBenchmark [-port p] [-apps a] [-msgs m] [-work micros] [-rounds r]
+ * 
+ * @author agent
+ */
+public class DeliveryBenchmark {
+  Environment env;
+  PastryNode node;
+  DeliveryApp[] apps;
+  
+  // the current run
+  int toReceive;
+  int received;
+  long workNanos;
+  
+  public DeliveryBenchmark(Environment env, int port, int numApps) throws Exception {
+    this.env = env;
+    NodeIdFactory nidFactory = new RandomNodeIdFactory(env);
+    InetAddress localAddress = InetAddress.getByName("127.0.0.1");
+    SocketPastryNodeFactory factory = new SocketPastryNodeFactory(nidFactory, localAddress, port, env);
+    
+    node = factory.newNode();
+    apps = new DeliveryApp[numApps];
+    for (int i = 0; i < numApps; i++) {
+      apps[i] = new DeliveryApp(node, i);
+    }
+    node.boot(new InetSocketAddress(localAddress, port));
+    synchronized(node) {
+      while(!node.isReady() && !node.joinFailed()) {
+        node.wait(500);
+      }
+    }
+    if (!node.isReady()) throw new IOException("Could not start the ring: "+node.joinFailedReason());
+  }
+  
+  /**
+   * Has every application route num messages to the local node from its own thread,
+   * and returns {elapsed millis, worst selector delay in micros}.
+   */
+  public long[] run(final int num, long workMicros, Executor executor) throws InterruptedException {
+    synchronized(this) {
+      this.toReceive = num*apps.length;
+      this.received = 0;
+      this.workNanos = workMicros*1000;
+    }
+    for (int i = 0; i < apps.length; i++) {
+      apps[i].endpoint.setDeliveryExecutor(executor);
+    }
+    
+    long start = System.currentTimeMillis();
+    Thread[] senders = new Thread[apps.length];
+    for (int i = 0; i < apps.length; i++) {
+      final DeliveryApp app = apps[i];
+      senders[i] = new Thread("Sender "+i) {
+        public void run() {
+          for (int j = 0; j < num; j++) {
+            app.endpoint.route(node.getNodeId(), new DeliveryMessage(j), null);
+          }
+        }
+      };
+      senders[i].start();
+    }
+    
+    // probe how long it takes the selector to get to a new task while the applications are busy
+    long worstDelay = 0;
+    while (!done()) {
+      final CountDownLatch latch = new CountDownLatch(1);
+      long probe = System.nanoTime();
+      env.getSelectorManager().invoke(new Runnable() {
+        public void run() {
+          latch.countDown();
+        }
+      });
+      latch.await();
+      worstDelay = Math.max(worstDelay, System.nanoTime()-probe);
+      Thread.sleep(5);
+      if (System.currentTimeMillis()-start > 300000) throw new RuntimeException("Timed out after "+received+" of "+toReceive+" messages.");
+    }
+    long time = System.currentTimeMillis()-start;
+    for (int i = 0; i < senders.length; i++) senders[i].join();
+    return new long[] {time, worstDelay/1000};
+  }
+  
+  // called on the selector, or on the delivery executor
+  void delivered() {
+    if (workNanos > 0) LockSupport.parkNanos(workNanos);
+    synchronized(this) {
+      received++;
+    }
+  }
+  
+  synchronized boolean done() {
+    return received >= toReceive;
+  }
+  
+  class DeliveryApp implements Application {
+    Endpoint endpoint;
+    
+    public DeliveryApp(PastryNode node, int i) {
+      endpoint = node.buildEndpoint(this, "delivery"+i);
+      endpoint.register();
+    }
+
+    public boolean forward(RouteMessage message) {
+      return true;
+    }
+
+    public void deliver(Id id, Message message) {
+      delivered();
+    }
+
+    public void update(NodeHandle handle, boolean joined) {
+    }
+  }
+  
+  static class DeliveryMessage implements Message {
+    int seq;
+    
+    public DeliveryMessage(int seq) {
+      this.seq = seq;
+    }
+    
+    public int getPriority() {
+      return LOW_PRIORITY;
+    }
+  }
+  
+  public static void main(String[] args) throws Exception {
+    int port = 9300;
+    int numApps = 8;
+    int msgs = 500;
+    long work = 200;
+    int rounds = 3;
+    for (int i = 0; i < args.length - 1; i++) {
+      if (args[i].equals("-port")) port = Integer.parseInt(args[i+1]);
+      if (args[i].equals("-apps")) numApps = Integer.parseInt(args[i+1]);
+      if (args[i].equals("-msgs")) msgs = Integer.parseInt(args[i+1]);
+      if (args[i].equals("-work")) work = Long.parseLong(args[i+1]);
+      if (args[i].equals("-rounds")) rounds = Integer.parseInt(args[i+1]);
+    }
+    
+    Environment env = new Environment();
+    DeliveryBenchmark bench = new DeliveryBenchmark(env, port, numApps);
+    ExecutorService executor = Executors.newFixedThreadPool(numApps);
+    
+    // warm up
+    bench.run(msgs/5, 0, null);
+    bench.run(msgs/5, 0, executor);
+    
+    long[] workLoads = {0, work};
+    for (int w = 0; w < workLoads.length; w++) {
+      // alternate the modes, and keep the best of each
+      long[][] best = {{Long.MAX_VALUE, 0}, {Long.MAX_VALUE, 0}};
+      for (int r = 0; r < rounds*2; r++) {
+        System.gc();
+        long[] result = bench.run(msgs, workLoads[w], r%2 == 0 ? null : executor);
+        if (result[0] < best[r%2][0]) best[r%2] = result;
+      }
+      for (int c = 0; c < 2; c++) {
+        long time = Math.max(1, best[c][0]);
+        long total = msgs*(long)numApps;
+        System.out.println("RESULT: apps="+numApps+" work="+workLoads[w]+"us delivery="+(c == 0 ? "selector" : "executor")+
+            " msgs="+total+" time="+time+"ms "+(total*1000L/time)+" msgs/s worstSelectorDelay="+best[c][1]+"us");
+      }
+    }
+    executor.shutdown();
+    env.destroy();
+  }
+}
@@ -0,0 +1,241 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.pastry.testing;
+
+import java.io.IOException;
+import java.net.*;
+
+import rice.environment.Environment;
+import rice.p2p.commonapi.*;
+import rice.p2p.commonapi.rawserialization.*;
+import rice.pastry.NodeIdFactory;
+import rice.pastry.PastryNode;
+import rice.pastry.socket.*;
+import rice.pastry.standard.RandomNodeIdFactory;
+
+/**
+ * Measures how fast RouteMessages are forwarded through a chain of socket nodes on 
+ * the local machine, with and without cut-through forwarding 
+ * (pastry_protocol_router_cutThrough).  Each node's application overrides the next 
+ * hop so that every message takes exactly HOPS hops, without unwrapping the message.
+ * 
+ * Usage: ForwardingBenchmark [-port p] [-mbytes m] [-window w] [-rounds r]
+ * 
+ * @author agent
+ */
+public class ForwardingBenchmark {
+  public static final int HOPS = 5;
+  public static final int[] SIZES = {1024, 16*1024, 64*1024, 256*1024, 1024*1024};
+  
+  Environment env;
+  PastryNode[] nodes = new PastryNode[HOPS+1];
+  ForwardingApp[] apps = new ForwardingApp[HOPS+1];
+  
+  // the current run
+  int window;
+  int toSend;
+  int sent;
+  int received;
+  byte[] payload;
+  
+  public ForwardingBenchmark(Environment env, int port) throws Exception {
+    this.env = env;
+    NodeIdFactory nidFactory = new RandomNodeIdFactory(env);
+    InetAddress localAddress = InetAddress.getByName("127.0.0.1");
+    SocketPastryNodeFactory factory = new SocketPastryNodeFactory(nidFactory, localAddress, port, env);
+    
+    InetSocketAddress bootaddress = new InetSocketAddress(localAddress, port);
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = factory.newNode();
+      apps[i] = new ForwardingApp(nodes[i]);
+      nodes[i].boot(bootaddress);
+      synchronized(nodes[i]) {
+        while(!nodes[i].isReady() && !nodes[i].joinFailed()) {
+          nodes[i].wait(500);
+        }
+      }
+      if (!nodes[i].isReady()) throw new IOException("Could not join the ring: "+nodes[i].joinFailedReason());
+    }
+    for (int i = 0; i < HOPS; i++) {
+      apps[i].next = nodes[i+1].getLocalHandle();
+    }
+  }
+  
+  /**
+   * Routes num messages of the given size from the first node to the last, keeping 
+   * window messages in flight, and returns the elapsed time in millis.
+   */
+  public long run(int size, int num, int window) throws InterruptedException {
+    synchronized(this) {
+      this.payload = new byte[size];
+      this.window = window;
+      this.toSend = num;
+      this.sent = 0;
+      this.received = 0;
+    }
+    long start = System.currentTimeMillis();
+    env.getSelectorManager().invoke(new Runnable() {
+      public void run() {
+        sendMore();
+      }
+    });
+    synchronized(this) {
+      while (received < toSend) {
+        wait(1000);
+        if (System.currentTimeMillis()-start > 300000) throw new RuntimeException("Timed out after "+received+" of "+toSend+" messages.");
+      }
+    }
+    return System.currentTimeMillis()-start;
+  }
+  
+  // called on the selector
+  void sendMore() {
+    Id key = nodes[HOPS].getNodeId();
+    while (true) {
+      synchronized(this) {
+        if (sent >= toSend || sent - received >= window) return;
+        sent++;
+      }
+      apps[0].endpoint.route(key, new PayloadMessage(payload), null);
+    }
+  }
+  
+  // called on the selector
+  void delivered() {
+    synchronized(this) {
+      received++;
+      notifyAll();
+    }
+    sendMore();
+  }
+  
+  class ForwardingApp implements Application {
+    Endpoint endpoint;
+    NodeHandle next;
+    
+    public ForwardingApp(PastryNode node) {
+      endpoint = node.buildEndpoint(this, "forwarding");
+      endpoint.setDeserializer(new MessageDeserializer() {
+        public Message deserialize(InputBuffer buf, short type, int priority, NodeHandle sender) throws IOException {
+          byte[] data = new byte[buf.readInt()];
+          buf.read(data);
+          return new PayloadMessage(data);
+        }
+      });
+      endpoint.register();
+    }
+
+    public boolean forward(RouteMessage message) {
+      // don't look at the message, just pick the next node in the chain
+      if (next != null) message.setNextHopHandle(next);
+      return true;
+    }
+
+    public void deliver(Id id, Message message) {
+      if (((PayloadMessage)message).data.length != payload.length) throw new RuntimeException("Received "+((PayloadMessage)message).data.length+" bytes, expected "+payload.length);
+      delivered();
+    }
+
+    public void update(NodeHandle handle, boolean joined) {
+    }
+  }
+  
+  static class PayloadMessage implements RawMessage {
+    byte[] data;
+    
+    public PayloadMessage(byte[] data) {
+      this.data = data;
+    }
+    
+    public short getType() {
+      return 1;
+    }
+
+    public void serialize(OutputBuffer buf) throws IOException {
+      buf.writeInt(data.length);
+      buf.write(data, 0, data.length);
+    }
+
+    public int getPriority() {
+      return LOW_PRIORITY;
+    }
+  }
+  
+  public static void main(String[] args) throws Exception {
+    int port = 9300;
+    int mbytes = 64;
+    int window = 2;
+    int rounds = 3;
+    for (int i = 0; i < args.length - 1; i++) {
+      if (args[i].equals("-port")) port = Integer.parseInt(args[i+1]);
+      if (args[i].equals("-mbytes")) mbytes = Integer.parseInt(args[i+1]);
+      if (args[i].equals("-window")) window = Integer.parseInt(args[i+1]);
+      if (args[i].equals("-rounds")) rounds = Integer.parseInt(args[i+1]);
+    }
+    
+    Environment env = new Environment();
+    env.getParameters().setInt("pastry_socket_reader_selector_deserialization_max_size", 4*1024*1024);
+    // measure forwarding, not Nagle's algorithm
+    env.getParameters().setBoolean("transport_tcp_no_delay", true);
+    ForwardingBenchmark bench = new ForwardingBenchmark(env, port);
+    
+    // warm up
+    env.getParameters().setBoolean("pastry_protocol_router_cutThrough", false);
+    bench.run(64*1024, 500, window);
+    env.getParameters().setBoolean("pastry_protocol_router_cutThrough", true);
+    bench.run(64*1024, 500, window);
+    
+    for (int i = 0; i < SIZES.length; i++) {
+      int size = SIZES[i];
+      int num = Math.max(200, Math.min(20000, (int)(mbytes*1024L*1024L/size)));
+      
+      // alternate the modes, and keep the best of each
+      long[] best = {Long.MAX_VALUE, Long.MAX_VALUE};
+      for (int r = 0; r < rounds*2; r++) {
+        env.getParameters().setBoolean("pastry_protocol_router_cutThrough", r%2 == 1);
+        System.gc();
+        best[r%2] = Math.min(best[r%2], Math.max(1, bench.run(size, num, window)));
+      }
+      for (int c = 0; c < 2; c++) {
+        long time = best[c];
+        System.out.println("RESULT: size="+size+" hops="+HOPS+" cutThrough="+(c == 1)+" msgs="+num+" time="+time+"ms "+
+            (num*1000L/time)+" msgs/s "+((num*(long)size*1000L/time)/(1024*1024))+" MB/s");
+      }
+    }
+    env.destroy();
+  }
+}
@@ -0,0 +1,223 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.pastry.testing;
+
+import java.io.IOException;
+import java.net.*;
+import java.util.*;
+
+import org.mpisws.p2p.transport.priority.PriorityTransportLayerImpl;
+
+import rice.environment.Environment;
+import rice.environment.random.RandomSource;
+import rice.p2p.commonapi.*;
+import rice.p2p.commonapi.rawserialization.*;
+import rice.p2p.scribe.*;
+import rice.p2p.scribe.rawserialization.*;
+import rice.pastry.NodeIdFactory;
+import rice.pastry.PastryNode;
+import rice.pastry.socket.*;
+import rice.pastry.standard.RandomNodeIdFactory;
+import rice.selector.TimerTask;
+
+/**
+ * Measures how much the NodeHandle dictionary on the primary sockets 
+ * (pastry_socket_writer_dictionary_size) saves, and what it costs.  Builds a ring 
+ * of socket nodes on the local machine, subscribes each node to some Scribe topics, 
+ * then publishes to random topics while the usual leafset/routing table maintenance 
+ * runs.  Prints the bytes of the messages before and after encoding, and the time 
+ * spent encoding and decoding, summed over all of the nodes.
+ * 
+ * Usage: HandleDictionaryBenchmark [-port p] [-nodes n] [-topics t] [-seconds s] [-dictionary d]
+ * 
+ * -dictionary defaults to 256, use 0 to measure plain sockets.
+ * 
+ * @author agent
+ */
+public class HandleDictionaryBenchmark {
+  public static final int TOPICS_PER_NODE = 5;
+  public static final int PUBLISH_PERIOD = 100;
+  
+  Environment env;
+  ArrayList<PastryNode> nodes = new ArrayList<PastryNode>();
+  ArrayList<Scribe> scribes = new ArrayList<Scribe>();
+  Topic[] topics;
+  int published = 0;
+  int delivered = 0;
+  
+  public HandleDictionaryBenchmark(Environment env, int port, int numNodes, int numTopics) throws Exception {
+    this.env = env;
+    NodeIdFactory nidFactory = new RandomNodeIdFactory(env);
+    InetAddress localAddress = InetAddress.getByName("127.0.0.1");
+    SocketPastryNodeFactory factory = new SocketPastryNodeFactory(nidFactory, localAddress, port, env);
+    
+    topics = new Topic[numTopics];
+    for (int i = 0; i < numTopics; i++) {
+      topics[i] = new Topic(new rice.pastry.commonapi.PastryIdFactory(env), "topic"+i);
+    }
+    
+    InetSocketAddress bootaddress = new InetSocketAddress(localAddress, port);
+    for (int i = 0; i < numNodes; i++) {
+      PastryNode node = factory.newNode();
+      nodes.add(node);
+      ScribeImpl scribe = new ScribeImpl(node, "dictionary");
+      scribe.setContentDeserializer(new ScribeContentDeserializer() {
+        public ScribeContent deserializeScribeContent(InputBuffer buf, Endpoint endpoint, short contentType) throws IOException {
+          return new BenchContent(buf);
+        }
+      });
+      scribes.add(scribe);
+      node.boot(bootaddress);
+      synchronized(node) {
+        while(!node.isReady() && !node.joinFailed()) {
+          node.wait(500);
+        }
+      }
+      if (!node.isReady()) throw new IOException("Could not join the ring: "+node.joinFailedReason());
+    }
+  }
+  
+  public void run(int seconds) throws InterruptedException {
+    final RandomSource rand = env.getRandomSource();
+    final ScribeClient client = new BenchClient();
+    env.getSelectorManager().invoke(new Runnable() {
+      public void run() {
+        for (Scribe scribe : scribes) {
+          for (int i = 0; i < TOPICS_PER_NODE; i++) {
+            scribe.subscribe(topics[rand.nextInt(topics.length)], client);
+          }
+        }
+      }
+    });
+    
+    TimerTask publisher = new TimerTask() {
+      public void run() {
+        Scribe scribe = scribes.get(rand.nextInt(scribes.size()));
+        scribe.publish(topics[rand.nextInt(topics.length)], new BenchContent(published++));
+      }
+    };
+    env.getSelectorManager().getTimer().schedule(publisher, 5000, PUBLISH_PERIOD);
+    Thread.sleep(seconds*1000L);
+    publisher.cancel();
+    Thread.sleep(2000);
+  }
+  
+  public void printResults() {
+    long in = 0, out = 0, encodeNanos = 0, decodeNanos = 0;
+    int encoded = 0, decoded = 0;
+    for (PastryNode node : nodes) {
+      PriorityTransportLayerImpl<?> tl = (PriorityTransportLayerImpl<?>)node.getVars().get(SocketPastryNodeFactory.PRIORITY_TL);
+      in+=tl.getDictionaryBytesIn();
+      out+=tl.getDictionaryBytesOut();
+      encodeNanos+=tl.getDictionaryEncodeNanos();
+      decodeNanos+=tl.getDictionaryDecodeNanos();
+      encoded+=tl.getDictionaryMessagesEncoded();
+      decoded+=tl.getDictionaryMessagesDecoded();
+    }
+    System.out.println("published:"+published+" delivered:"+delivered);
+    if (encoded == 0) {
+      System.out.println("RESULT: no messages were sent with a dictionary");
+      return;
+    }
+    System.out.println("RESULT: msgs="+encoded+" bytesBefore="+in+" bytesAfter="+out+
+        " saved="+(100*(in-out)/in)+"% encode="+(encodeNanos/encoded)+"ns/msg decode="+(decodeNanos/Math.max(1, decoded))+"ns/msg");
+  }
+  
+  class BenchClient implements ScribeClient {
+    public boolean anycast(Topic topic, ScribeContent content) {
+      return false;
+    }
+
+    public void deliver(Topic topic, ScribeContent content) {
+      synchronized(HandleDictionaryBenchmark.this) {
+        delivered++;
+      }
+    }
+
+    public void childAdded(Topic topic, NodeHandle child) {
+    }
+
+    public void childRemoved(Topic topic, NodeHandle child) {
+    }
+
+    public void subscribeFailed(Topic topic) {
+    }
+  }
+  
+  static class BenchContent implements RawScribeContent {
+    int seq;
+    
+    public BenchContent(int seq) {
+      this.seq = seq;
+    }
+    
+    public BenchContent(InputBuffer buf) throws IOException {
+      seq = buf.readInt();
+    }
+    
+    public short getType() {
+      return 1;
+    }
+
+    public void serialize(OutputBuffer buf) throws IOException {
+      buf.writeInt(seq);
+    }
+  }
+  
+  public static void main(String[] args) throws Exception {
+    int port = 9400;
+    int numNodes = 20;
+    int numTopics = 20;
+    int seconds = 120;
+    int dictionary = 256;
+    for (int i = 0; i < args.length - 1; i++) {
+      if (args[i].equals("-port")) port = Integer.parseInt(args[i+1]);
+      if (args[i].equals("-nodes")) numNodes = Integer.parseInt(args[i+1]);
+      if (args[i].equals("-topics")) numTopics = Integer.parseInt(args[i+1]);
+      if (args[i].equals("-seconds")) seconds = Integer.parseInt(args[i+1]);
+      if (args[i].equals("-dictionary")) dictionary = Integer.parseInt(args[i+1]);
+    }
+    
+    Environment env = new Environment();
+    env.getParameters().setInt("pastry_socket_writer_dictionary_size", dictionary);
+    HandleDictionaryBenchmark bench = new HandleDictionaryBenchmark(env, port, numNodes, numTopics);
+    System.out.println("Created "+numNodes+" nodes.");
+    bench.run(seconds);
+    bench.printResults();
+    env.destroy();
+  }
+}
@@ -0,0 +1,171 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.pastry.testing;
+
+import java.security.MessageDigest;
+import java.util.*;
+
+import rice.pastry.*;
+
+/**
+ * Measures the cost of IdSet.hash() on a large set under churn.  Each round 
+ * removes and adds some ids, then takes the fingerprint of the whole set and of a 
+ * random range of it.  Then takes the fingerprints of more ranges without changing 
+ * the set.  Prints the time per round of the incremental fingerprint of 
+ * an IdSet and a PackedIdSet, and of recomputing a SHA digest over every member, 
+ * which is what hash() used to do once the set had changed.
+ * 
+ * Usage: IdSetHashBenchmark [-ids n] [-rounds r] [-churn c]
+ * 
+ * @version $Id$
+ * 
+ * @author agent
+ */
+public class IdSetHashBenchmark {
+  
+  Random rng = new Random(1);
+  
+  ArrayList<Id> members = new ArrayList<Id>();
+  
+  public IdSetHashBenchmark(int n) {
+    for (int i = 0; i < n; i++) 
+      members.add(randomId());
+  }
+  
+  private Id randomId() {
+    byte[] material = new byte[Id.IdBitLength / 8];
+    rng.nextBytes(material);
+    return Id.build(material);
+  }
+  
+  /**
+   * The old hash(), a digest of every member in order.
+   */
+  private static byte[] digest(rice.p2p.commonapi.IdSet set) throws Exception {
+    MessageDigest md = MessageDigest.getInstance("SHA");
+    Iterator i = set.getIterator();
+    byte[] raw = new byte[Id.IdBitLength / 8];
+    while (i.hasNext()) {
+      ((Id) i.next()).blit(raw);
+      md.update(raw);
+    }
+    return md.digest();
+  }
+  
+  /**
+   * Runs the rounds against set, and prints the average times.
+   * 
+   * @param sha whether to time the digest of every member instead of hash()
+   */
+  public void run(String name, rice.p2p.commonapi.IdSet set, int rounds, int churn, boolean sha) throws Exception {
+    // add the ids in order, so that building a PackedIdSet appends
+    ArrayList<Id> present = new ArrayList<Id>(members);
+    Collections.sort(present);
+    for (Id id : present) 
+      set.addId(id);
+    
+    long churnTime = 0, hashTime = 0, rangeTime = 0;
+    int rangeSize = 0;
+    for (int r = 0; r < rounds; r++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < churn; i++) {
+        int index = rng.nextInt(present.size());
+        Id id = randomId();
+        set.removeId(present.set(index, id));
+        set.addId(id);
+      }
+      long now = System.nanoTime();
+      churnTime += now - start;
+      
+      start = now;
+      if (sha)
+        digest(set);
+      else
+        set.hash();
+      now = System.nanoTime();
+      hashTime += now - start;
+      
+      // a range of about 1/16 of the ring
+      Id from = randomId();
+      IdRange range = new IdRange(from, from.getAlternateId(16, 4, 1));
+      start = System.nanoTime();
+      rice.p2p.commonapi.IdSet sub = set.subSet(range);
+      rangeSize += sub.numElements();
+      if (sha)
+        digest(sub);
+      else
+        sub.hash();
+      rangeTime += System.nanoTime() - start;
+    }
+    
+    // then ranges of the same ids, which can reuse the sums of a PackedIdSet's blocks
+    long repeatTime = 0;
+    for (int r = 0; r < rounds; r++) {
+      Id from = randomId();
+      IdRange range = new IdRange(from, from.getAlternateId(16, 4, 1));
+      long start = System.nanoTime();
+      rice.p2p.commonapi.IdSet sub = set.subSet(range);
+      if (sha)
+        digest(sub);
+      else
+        sub.hash();
+      repeatTime += System.nanoTime() - start;
+    }
+    
+    System.out.println(name + ": " + set.numElements() + " ids, churn " + (churnTime / rounds / 1000) + "us, hash " + 
+        (hashTime / rounds / 1000) + "us, range of " + (rangeSize / rounds) + " ids " + (rangeTime / rounds / 1000) + 
+        "us, unchanged range " + (repeatTime / rounds / 1000) + "us per round");
+  }
+  
+  public static void main(String args[]) throws Exception {
+    int n = 1000000;
+    int rounds = 20;
+    int churn = 100;
+    
+    for (int i = 0; i + 1 < args.length; i++) {
+      if (args[i].equals("-ids")) n = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-rounds")) rounds = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-churn")) churn = Integer.parseInt(args[++i]);
+    }
+    
+    IdSetHashBenchmark bench = new IdSetHashBenchmark(n);
+    bench.run("PackedIdSet SHA", new PackedIdSet(n), rounds, churn, true);
+    bench.run("PackedIdSet", new PackedIdSet(n), rounds, churn, false);
+    bench.run("IdSet SHA", new IdSet(), rounds, churn, true);
+    bench.run("IdSet", new IdSet(), rounds, churn, false);
+  }
+}
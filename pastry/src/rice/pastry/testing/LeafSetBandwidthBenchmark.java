@@ -0,0 +1,181 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.pastry.testing;
+
+import java.io.IOException;
+import java.util.*;
+
+import rice.environment.Environment;
+import rice.p2p.commonapi.rawserialization.RawMessage;
+import rice.pastry.*;
+import rice.pastry.direct.*;
+import rice.pastry.leafset.*;
+import rice.pastry.standard.RandomNodeIdFactory;
+import rice.selector.TimerTask;
+
+/**
+ * Measures the bandwidth of the periodic leafset protocol in the direct simulator, 
+ * with and without pastry_protocol_periodicLeafSet_delta.  Builds a ring, lets it 
+ * settle, then counts the serialized size of every BroadcastLeafSet, 
+ * BroadcastLeafSetDelta and RequestLeafSet for a while, optionally replacing a 
+ * few nodes every minute.
+ * 
+ * Usage: LeafSetBandwidthBenchmark [-nodes n] [-minutes m] [-churn nodesPerMinute] [-seed s]
+ * 
+ * @author agent
+ */
+public class LeafSetBandwidthBenchmark implements GenericSimulatorListener<DirectNodeHandle, RawMessage> {
+  Environment env;
+  DirectPastryNodeFactory factory;
+  Vector<PastryNode> nodes = new Vector<PastryNode>();
+  DirectSizeChecker sizeChecker = new DirectSizeChecker();
+  
+  boolean counting = false;
+  long bytes;
+  long fullMessages;
+  long deltaMessages;
+  long renewalMessages;
+  long requestMessages;
+  long fullRequestMessages;
+  
+  public LeafSetBandwidthBenchmark(int seed, boolean delta) {
+    env = Environment.directEnvironment(seed);
+    env.getParameters().setBoolean("pastry_protocol_periodicLeafSet_delta", delta);
+    factory = new DirectPastryNodeFactory(new RandomNodeIdFactory(env), new EuclideanNetwork<DirectNodeHandle, RawMessage>(env), env);
+    factory.getNetworkSimulator().addSimulatorListener(this);
+    factory.getNetworkSimulator().setFullSpeed();
+  }
+  
+  public void createNodes(int num) throws InterruptedException, IOException {
+    for (int i = 0; i < num; i++) {
+      PastryNode node = factory.newNode();
+      node.boot(nodes.isEmpty() ? null : nodes.get(env.getRandomSource().nextInt(nodes.size())).getLocalHandle());
+      synchronized(node) {
+        while(!node.isReady() && !node.joinFailed()) {
+          node.wait(500);
+        }
+      }
+      nodes.add(node);
+      if ((i+1) % 100 == 0) System.out.println("Created "+(i+1)+" nodes.");
+    }
+  }
+  
+  /**
+   * Destroy a random node, and boot a new one in its place every 60/perMinute seconds.
+   */
+  public void startChurn(final int perMinute) {
+    if (perMinute <= 0) return;
+    env.getSelectorManager().getTimer().schedule(new TimerTask() {    
+      public void run() {
+        PastryNode dead = nodes.remove(env.getRandomSource().nextInt(nodes.size()));
+        dead.destroy();
+        try {
+          PastryNode node = factory.newNode();
+          node.boot(nodes.get(env.getRandomSource().nextInt(nodes.size())).getLocalHandle());
+          nodes.add(node);
+        } catch (IOException ioe) {
+          throw new RuntimeException(ioe);
+        }
+      }    
+    }, 60000/perMinute, 60000/perMinute);
+  }
+  
+  /**
+   * @return bytes/node/minute
+   */
+  public double measure(int minutes) throws InterruptedException {
+    counting = true;
+    env.getTimeSource().sleep(minutes*60000L);
+    counting = false;
+    return bytes/(double)nodes.size()/minutes;
+  }
+  
+  // called on the selector
+  public void messageSent(RawMessage m, DirectNodeHandle from, DirectNodeHandle to, int delay) {
+    if (!counting) return;
+    if (m instanceof BroadcastLeafSet) {
+      fullMessages++;
+    } else if (m instanceof BroadcastLeafSetDelta) {
+      if (((BroadcastLeafSetDelta)m).isRenewal()) {
+        renewalMessages++;
+      } else {
+        deltaMessages++;
+      }
+    } else if (m instanceof RequestLeafSet) {
+      requestMessages++;
+      if (((RequestLeafSet)m).isFull()) fullRequestMessages++;
+    } else {
+      return;
+    }
+    int before = sizeChecker.bytesWritten();
+    try {
+      m.serialize(sizeChecker);
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+    bytes += sizeChecker.bytesWritten()-before;
+  }
+
+  public void messageReceived(RawMessage m, DirectNodeHandle from, DirectNodeHandle to) {
+  }
+  
+  public static void main(String[] args) throws Exception {
+    int numNodes = 1000;
+    int minutes = 10;
+    int churn = 0;
+    int seed = 1;
+    for (int i = 0; i < args.length-1; i++) {
+      if (args[i].equals("-nodes")) numNodes = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-minutes")) minutes = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-churn")) churn = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-seed")) seed = Integer.parseInt(args[++i]);
+    }
+
+    for (boolean delta : new boolean[] {false, true}) {
+      LeafSetBandwidthBenchmark b = new LeafSetBandwidthBenchmark(seed, delta);
+      b.createNodes(numNodes);
+      // let the leafsets settle
+      b.env.getTimeSource().sleep(120000);
+      b.startChurn(churn);
+      double perNodeMinute = b.measure(minutes);
+      System.out.println("RESULT: delta="+delta+" nodes="+numNodes+" churn="+churn+"/min minutes="+minutes+
+          " bytes/node/min="+Math.round(perNodeMinute)+" full="+b.fullMessages+" deltas="+b.deltaMessages+
+          " renewals="+b.renewalMessages+" requests="+b.requestMessages+" (full="+b.fullRequestMessages+")");
+      b.env.destroy();
+    }
+  }
+}
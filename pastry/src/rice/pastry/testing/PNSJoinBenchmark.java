@@ -0,0 +1,186 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.pastry.testing;
+
+import java.io.IOException;
+import java.util.*;
+
+import rice.environment.Environment;
+import rice.p2p.commonapi.rawserialization.RawMessage;
+import rice.pastry.*;
+import rice.pastry.direct.*;
+import rice.pastry.pns.messages.*;
+import rice.pastry.standard.RandomNodeIdFactory;
+
+/**
+ * Measures how long it takes nodes to join in the direct simulator (on a SphereNetwork), 
+ * with and without pns_pipelined.  Builds a ring, then boots a batch of nodes at the 
+ * same time (as when many nodes restart at once), and reports the virtual time until 
+ * each is ready, and how many messages were sent while they joined.
+ * 
+ * Usage: PNSJoinBenchmark [-nodes n] [-join j] [-seed s]
+ * 
+ * @author agent
+ */
+public class PNSJoinBenchmark implements GenericSimulatorListener<DirectNodeHandle, RawMessage> {
+  Environment env;
+  DirectPastryNodeFactory factory;
+  Vector<PastryNode> nodes = new Vector<PastryNode>();
+  
+  boolean counting = false;
+  long pnsMessages;
+  long totalMessages;
+  
+  public PNSJoinBenchmark(int seed, boolean pipelined) {
+    env = Environment.directEnvironment(seed);
+    env.getParameters().setBoolean("pns_pipelined", pipelined);
+    factory = new DirectPastryNodeFactory(new RandomNodeIdFactory(env), new SphereNetwork<DirectNodeHandle, RawMessage>(env), env);
+    factory.getNetworkSimulator().addSimulatorListener(this);
+    factory.getNetworkSimulator().setFullSpeed();
+  }
+  
+  public void createNodes(int num) throws InterruptedException, IOException {
+    for (int i = 0; i < num; i++) {
+      PastryNode node = factory.newNode();
+      node.boot(nodes.isEmpty() ? null : nodes.get(env.getRandomSource().nextInt(nodes.size())).getLocalHandle());
+      waitForReady(node);
+      nodes.add(node);
+    }
+  }
+  
+  void waitForReady(PastryNode node) throws InterruptedException {
+    synchronized(node) {
+      while(!node.isReady() && !node.joinFailed()) {
+        node.wait(500);
+      }
+    }
+  }
+  
+  /**
+   * Boots num nodes at once.  This happens on the selector, otherwise the simulator 
+   * would advance the clock while we create the nodes.
+   * 
+   * @return the virtual millis each node took to become ready
+   */
+  public long[] join(final int num) throws InterruptedException, IOException {
+    final long[] latency = new long[num];
+    final PastryNode[] joining = new PastryNode[num];
+    final IOException[] error = new IOException[1];
+    final boolean[] booted = {false};
+    counting = true;
+    env.getSelectorManager().invoke(new Runnable() {
+      public void run() {
+        final long start = env.getTimeSource().currentTimeMillis();
+        try {
+          for (int i = 0; i < num; i++) {
+            final int index = i;
+            joining[i] = factory.newNode();
+            joining[i].addObserver(new Observer() {
+              public void update(Observable o, Object arg) {
+                if (Boolean.TRUE.equals(arg) && latency[index] == 0) {
+                  latency[index] = env.getTimeSource().currentTimeMillis()-start;
+                }
+              }
+            });
+          }
+          for (int i = 0; i < num; i++) {
+            joining[i].boot(nodes.get(env.getRandomSource().nextInt(nodes.size())).getLocalHandle());
+          }
+        } catch (IOException ioe) {
+          error[0] = ioe;
+        }
+        synchronized(joining) {
+          booted[0] = true;
+          joining.notifyAll();
+        }
+      }
+    });
+    synchronized(joining) {
+      while (!booted[0]) {
+        joining.wait(500);
+      }
+    }
+    if (error[0] != null) throw error[0];
+    for (int i = 0; i < num; i++) {
+      waitForReady(joining[i]);
+    }
+    counting = false;
+    nodes.addAll(Arrays.asList(joining));
+    return latency;
+  }
+  
+  // called on the selector
+  public void messageSent(RawMessage m, DirectNodeHandle from, DirectNodeHandle to, int delay) {
+    if (!counting) return;
+    totalMessages++;
+    if (m instanceof LeafSetRequest || m instanceof LeafSetResponse || 
+        m instanceof RouteRowRequest || m instanceof RouteRowResponse) {
+      pnsMessages++;
+    }
+  }
+
+  public void messageReceived(RawMessage m, DirectNodeHandle from, DirectNodeHandle to) {
+  }
+
+  public static void main(String[] args) throws Exception {
+    int numNodes = 500;
+    int numJoin = 100;
+    int seed = 1;
+    for (int i = 0; i < args.length - 1; i++) {
+      if (args[i].equals("-nodes")) numNodes = Integer.parseInt(args[i+1]);
+      if (args[i].equals("-join")) numJoin = Integer.parseInt(args[i+1]);
+      if (args[i].equals("-seed")) seed = Integer.parseInt(args[i+1]);
+    }
+    
+    for (int mode = 0; mode < 2; mode++) {
+      boolean pipelined = (mode == 1);
+      PNSJoinBenchmark bench = new PNSJoinBenchmark(seed, pipelined);
+      bench.createNodes(numNodes);
+      
+      // let the ring settle
+      bench.env.getTimeSource().sleep(60000);
+      long[] latency = bench.join(numJoin);
+      Arrays.sort(latency);
+      long sum = 0;
+      for (long l : latency) sum+=l;
+      System.out.println("RESULT: pipelined="+pipelined+" nodes="+numNodes+" joined="+numJoin+
+          " mean="+(sum/numJoin)+"ms median="+latency[numJoin/2]+"ms max="+latency[numJoin-1]+"ms"+
+          " pnsMsgs/join="+(bench.pnsMessages/numJoin)+" msgs/join="+(bench.totalMessages/numJoin));
+      bench.env.destroy();
+    }
+  }
+}
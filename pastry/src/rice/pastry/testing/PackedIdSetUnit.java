@@ -0,0 +1,401 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.pastry.testing;
+
+import java.io.*;
+import java.util.*;
+
+import rice.environment.random.RandomSource;
+import rice.environment.random.simple.SimpleRandomSource;
+import rice.p2p.util.rawserialization.*;
+import rice.pastry.*;
+
+/**
+ * PackedIdSetUnit tests the PackedIdSet class against IdSet, and compares 
+ * the heap they use.
+ * 
+ * Usage: PackedIdSetUnit [number of ids for the heap comparison]
+ * 
+ * @version $Id$
+ * 
+ * @author agent
+ */
+public class PackedIdSetUnit {
+  private RandomSource rng;
+  
+  private int failures = 0;
+  
+  public PackedIdSetUnit() {
+    rng = new SimpleRandomSource(null);
+  }
+  
+  public void check(boolean condition, String message) {
+    if (!condition) {
+      failures++;
+      System.out.println("ALERT: " + message);
+    }
+  }
+  
+  /**
+   * Checks that the sets have the same members, in the same order, with the same hash.
+   */
+  public void compare(rice.p2p.commonapi.IdSet packed, rice.p2p.commonapi.IdSet set, String name) {
+    check(packed.numElements() == set.numElements(), name + " size " + packed.numElements() + " != " + set.numElements());
+    Iterator i = packed.getIterator();
+    Iterator j = set.getIterator();
+    while (i.hasNext() && j.hasNext()) {
+      Object a = i.next();
+      Object b = j.next();
+      if (!a.equals(b)) {
+        check(false, name + " member " + a + " != " + b);
+        return;
+      }
+    }
+    check(!i.hasNext() && !j.hasNext(), name + " iterators ended at different members");
+    check(Arrays.equals(packed.hash(), set.hash()), name + " hash differs");
+  }
+  
+  public void randomTest(int n) {
+    PackedIdSet packed = new PackedIdSet();
+    IdSet set = new IdSet();
+    ArrayList<Id> ids = new ArrayList<Id>();
+    
+    for (int i = 0; i < n; i++) {
+      Id id = Id.makeRandomId(rng);
+      ids.add(id);
+      packed.addMember(id);
+      set.addMember(id);
+      if (i % 5 == 0) {
+        // re-adding is a no-op
+        packed.addMember(id);
+      }
+    }
+    compare(packed, set, "random add");
+    
+    for (int i = 0; i < n / 4; i++) {
+      Id id = ids.get(rng.nextInt(ids.size()));
+      packed.removeMember(id);
+      set.removeMember(id);
+    }
+    compare(packed, set, "random remove");
+    
+    for (int i = 0; i < 100; i++) {
+      Id id = (rng.nextInt(2) == 0) ? ids.get(rng.nextInt(ids.size())) : Id.makeRandomId(rng);
+      check(packed.isMember(id) == set.isMember(id), "membership of " + id);
+    }
+    
+    check(packed.minMember().equals(set.minMember()), "min member");
+    check(packed.maxMember().equals(set.maxMember()), "max member");
+    
+    // ranges, including ranges which wrap around 0, and ranges of ranges
+    for (int i = 0; i < 200; i++) {
+      IdRange range = new IdRange(Id.makeRandomId(rng), Id.makeRandomId(rng));
+      PackedIdSet view = packed.subSet(range);
+      compare(view, set.subSet(range), "subSet " + range);
+      
+      IdRange inner = new IdRange(Id.makeRandomId(rng), Id.makeRandomId(rng));
+      compare(view.subSet(inner), set.subSet(range).subSet(inner), "subSet of subSet");
+      
+      Id id = Id.makeRandomId(rng);
+      check(view.isMember(id) == (packed.isMember(id) && range.contains(id)), "view membership");
+    }
+    
+    Id id = Id.makeRandomId(rng);
+    compare(packed.subSet(new IdRange(id, id)), set, "full range");
+    check(packed.subSet(new IdRange()).numElements() == 0, "empty range");
+    
+    // views are snapshots, and modifying either side doesn't change the other
+    IdRange range = new IdRange(Id.makeRandomId(rng), Id.makeRandomId(rng));
+    PackedIdSet view = packed.subSet(range);
+    IdSet expected = new IdSet();
+    for (Iterator i = set.subSet(range).getIterator(); i.hasNext(); ) 
+      expected.addMember((Id) i.next());
+    int size = packed.numElements();
+    
+    Id added = Id.makeRandomId(rng);
+    view.addMember(added);
+    check(packed.numElements() == size, "adding to a view changed the set");
+    expected.addMember(added);
+    compare(view, expected, "modified view");
+    
+    PackedIdSet view2 = packed.subSet(range);
+    Id removed = packed.minMember();
+    packed.removeMember(removed);
+    set.removeMember(removed);
+    compare(packed, set, "set modified after a view");
+    check(view2.numElements() == set.subSet(range).numElements() + (range.contains(removed) ? 1 : 0), "removing from the set changed a view");
+    
+    PackedIdSet clone = (PackedIdSet) packed.clone();
+    compare(clone, set, "clone");
+    if (clone.numElements() > 0) {
+      clone.removeMember(clone.maxMember());
+      compare(packed, set, "set after modifying its clone");
+    }
+  }
+  
+  public void bulkTest(int n) {
+    PackedIdSet a = new PackedIdSet();
+    PackedIdSet b = new PackedIdSet();
+    IdSet union = new IdSet();
+    IdSet diff = new IdSet();
+    
+    for (int i = 0; i < n; i++) {
+      Id id = Id.makeRandomId(rng);
+      switch (rng.nextInt(3)) {
+        case 0:
+          a.addMember(id);
+          diff.addMember(id);
+          break;
+        case 1:
+          b.addMember(id);
+          break;
+        default:
+          a.addMember(id);
+          b.addMember(id);
+      }
+      union.addMember(id);
+    }
+    
+    compare(PackedIdSet.merge(a, b), union, "merge");
+    compare(PackedIdSet.difference(a, b), diff, "difference");
+    
+    // the same on views which wrap around 0
+    IdRange range = new IdRange(Id.makeRandomId(rng), Id.makeRandomId(rng));
+    if (range.getCCW().compareTo(range.getCW()) < 0)
+      range = new IdRange(range.getCW(), range.getCCW());
+    compare(PackedIdSet.merge(a.subSet(range), b.subSet(range)), union.subSet(range), "merge of views");
+    compare(PackedIdSet.difference(a.subSet(range), b.subSet(range)), diff.subSet(range), "difference of views");
+    
+    PackedIdSet c = (PackedIdSet) a.clone();
+    c.addAll(b);
+    compare(c, union, "addAll");
+    c.removeAll(b);
+    compare(c, diff, "removeAll");
+    
+    PackedIdSet d = new PackedIdSet(union);
+    compare(d, union, "copy of an IdSet");
+    d.removeAll(new PackedIdSet(b));
+    compare(d, diff, "removeAll of a copy");
+  }
+  
+  public void serializationTest(int n) throws Exception {
+    PackedIdSet packed = new PackedIdSet();
+    for (int i = 0; i < n; i++) 
+      packed.addMember(Id.makeRandomId(rng));
+    IdRange range = new IdRange(Id.makeRandomId(rng), Id.makeRandomId(rng));
+    PackedIdSet view = packed.subSet(range);
+    
+    SimpleOutputBuffer sob = new SimpleOutputBuffer();
+    view.serialize(sob);
+    PackedIdSet raw = new PackedIdSet(new SimpleInputBuffer(sob.getBytes(), 0, sob.getWritten()));
+    compare(raw, view, "raw serialization");
+    
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(baos);
+    oos.writeObject(view);
+    oos.close();
+    PackedIdSet java = (PackedIdSet) new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray())).readObject();
+    compare(java, view, "java serialization");
+    
+    sob = new SimpleOutputBuffer();
+    packed.serialize(sob);
+    baos = new ByteArrayOutputStream();
+    oos = new ObjectOutputStream(baos);
+    IdSet set = new IdSet();
+    for (Iterator i = packed.getIterator(); i.hasNext(); ) 
+      set.addMember((Id) i.next());
+    oos.writeObject(set);
+    oos.close();
+    System.out.println("Serialized " + packed.numElements() + " ids in " + sob.getWritten() + " bytes, " + 
+        baos.size() + " bytes as a java serialized IdSet");
+  }
+  
+  /**
+   * Ids whose most significant bytes are 0 share a prefix with the all-zero id, 
+   * which the first id must not be written against.
+   */
+  public void zeroPrefixTest() throws Exception {
+    PackedIdSet packed = new PackedIdSet();
+    packed.addMember(Id.build(new byte[Id.IdBitLength / 8]));
+    for (int zeros = 1; zeros < 4; zeros++) {
+      byte[] material = new byte[Id.IdBitLength / 8];
+      rng.nextBytes(material);
+      for (int j = 0; j < zeros; j++) 
+        material[material.length - 1 - j] = 0;
+      packed.addMember(Id.build(material));
+    }
+    
+    while (packed.numElements() > 0) {
+      SimpleOutputBuffer sob = new SimpleOutputBuffer();
+      packed.serialize(sob);
+      PackedIdSet raw = new PackedIdSet(new SimpleInputBuffer(sob.getBytes(), 0, sob.getWritten()));
+      compare(raw, packed, "raw serialization of 0x00 ids");
+      
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      ObjectOutputStream oos = new ObjectOutputStream(baos);
+      oos.writeObject(packed);
+      oos.close();
+      PackedIdSet java = (PackedIdSet) new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray())).readObject();
+      compare(java, packed, "java serialization of 0x00 ids");
+      
+      // the smallest id goes, so the next one is first
+      packed.removeMember((Id) packed.getIterator().next());
+    }
+  }
+  
+  /**
+   * Checks that the fingerprints don't depend on the order ids were added in, 
+   * go back to their old value when a change is undone, and that a subset has 
+   * the fingerprint of a set built from its members.
+   */
+  public void hashTest(int n) {
+    ArrayList<Id> ids = new ArrayList<Id>();
+    for (int i = 0; i < n; i++) 
+      ids.add(Id.makeRandomId(rng));
+    
+    PackedIdSet packed = new PackedIdSet();
+    IdSet set = new IdSet();
+    for (int i = 0; i < n; i++) {
+      packed.addMember(ids.get(i));
+      set.addMember(ids.get(n - i - 1));
+    }
+    compare(packed, set, "hash order");
+    
+    byte[] hash = packed.hash();
+    Id extra = Id.makeRandomId(rng);
+    packed.addMember(extra);
+    set.addMember(extra);
+    check(!Arrays.equals(hash, packed.hash()), "hash unchanged by add");
+    compare(packed, set, "hash add");
+    packed.removeMember(extra);
+    set.removeMember(extra);
+    check(Arrays.equals(hash, packed.hash()), "hash not restored by remove");
+    check(Arrays.equals(hash, set.hash()), "IdSet hash not restored by remove");
+    
+    for (int i = 0; i < 50; i++) {
+      IdRange range = new IdRange(Id.makeRandomId(rng), Id.makeRandomId(rng));
+      PackedIdSet sub = (PackedIdSet) packed.subSet(range);
+      compare(sub, fresh(sub), "subset hash");
+      compare(sub, set.subSet(range), "subset hash vs IdSet");
+      
+      // a subset of a subset, and a subset which has been changed
+      IdRange inner = new IdRange(Id.makeRandomId(rng), Id.makeRandomId(rng));
+      PackedIdSet subsub = (PackedIdSet) sub.subSet(inner);
+      compare(subsub, fresh(subsub), "subset of subset hash");
+      sub.addMember(Id.makeRandomId(rng));
+      compare(sub, fresh(sub), "changed subset hash");
+    }
+    
+    // changing the set must not change the hash of a subset taken earlier
+    IdRange range = new IdRange(Id.makeRandomId(rng), Id.makeRandomId(rng));
+    PackedIdSet sub = (PackedIdSet) packed.subSet(range);
+    byte[] subHash = sub.hash();
+    for (int i = 0; i < 10; i++) 
+      packed.addMember(Id.makeRandomId(rng));
+    check(Arrays.equals(subHash, sub.hash()), "subset hash changed by set");
+    check(Arrays.equals(subHash, ((PackedIdSet) packed.subSet(range)).hash()) == 
+      (packed.subSet(range).numElements() == sub.numElements()), "subset hash after set change");
+    compare(packed, fresh(packed), "changed set hash");
+  }
+  
+  private static PackedIdSet fresh(PackedIdSet set) {
+    PackedIdSet result = new PackedIdSet();
+    Iterator i = set.getIterator();
+    while (i.hasNext())
+      result.addMember((Id) i.next());
+    return result;
+  }
+  
+  /**
+   * Prints the heap used by n ids in an IdSet and a PackedIdSet, and the time to 
+   * do a range scan and a difference of each.
+   */
+  public void heapTest(int n) {
+    long base = usedHeap();
+    IdSet set = new IdSet();
+    Random r = new Random(1);
+    for (int i = 0; i < n; i++) {
+      byte[] material = new byte[Id.IdBitLength / 8];
+      r.nextBytes(material);
+      set.addMember(Id.build(material));
+    }
+    long setHeap = usedHeap() - base;
+    
+    base = usedHeap();
+    PackedIdSet packed = new PackedIdSet(set);
+    long packedHeap = usedHeap() - base;
+    
+    System.out.println(n + " ids: IdSet " + (setHeap / n) + " bytes/id, PackedIdSet " + (packedHeap / n) + " bytes/id");
+    
+    IdRange range = new IdRange(Id.makeRandomId(rng), Id.makeRandomId(rng));
+    long start = System.nanoTime();
+    int a = set.subSet(range).numElements();
+    long setScan = System.nanoTime() - start;
+    start = System.nanoTime();
+    int b = packed.subSet(range).numElements();
+    long packedScan = System.nanoTime() - start;
+    check(a == b, "heap test scan " + a + " != " + b);
+    System.out.println("scan of " + a + " ids: IdSet " + (setScan / 1000) + "us, PackedIdSet " + (packedScan / 1000) + "us");
+  }
+  
+  private static long usedHeap() {
+    Runtime rt = Runtime.getRuntime();
+    for (int i = 0; i < 4; i++) {
+      System.gc();
+      try { Thread.sleep(50); } catch (InterruptedException ie) {}
+    }
+    return rt.totalMemory() - rt.freeMemory();
+  }
+  
+  public static void main(String args[]) throws Exception {
+    PackedIdSetUnit unit = new PackedIdSetUnit();
+    
+    for (int i = 0; i < 5; i++) {
+      unit.randomTest(1 + unit.rng.nextInt(2000));
+      unit.bulkTest(1 + unit.rng.nextInt(2000));
+    }
+    unit.randomTest(2);
+    unit.bulkTest(0);
+    unit.serializationTest(10000);
+    unit.zeroPrefixTest();
+    unit.hashTest(1000);
+    unit.hashTest(5000);
+    unit.heapTest((args.length > 0) ? Integer.parseInt(args[0]) : 200000);
+    
+    System.out.println(unit.failures == 0 ? "PackedIdSetUnit passed" : "PackedIdSetUnit failed " + unit.failures + " checks");
+  }
+}
@@ -0,0 +1,341 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.pastry.testing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import rice.environment.Environment;
+import rice.p2p.commonapi.rawserialization.RawMessage;
+import rice.pastry.*;
+import rice.pastry.direct.*;
+import rice.pastry.pns.messages.*;
+import rice.pastry.routing.RouteSet;
+import rice.pastry.routing.RoutingTable;
+import rice.pastry.standard.RandomNodeIdFactory;
+
+/**
+ * Measures how long restarted nodes take to get their routing back, in the direct 
+ * simulator (on a SphereNetwork), with and without pastry_routingState_enable.  
+ * 
+ * Builds a ring and lets it settle, then takes down a batch of nodes, and brings them 
+ * back with the same NodeIds.  Every 10 (virtual) seconds it compares the routing 
+ * tables of the restarted nodes to what they had before the restart: the number of 
+ * entries, and the mean proximity of the entries.  The steady state is when the 
+ * entries are back to 95% and the proximity within 5% of what it was.  It also 
+ * counts the entries that the rest of the ring has for the restarted nodes ("ring"),
+ * as they have to replace the entries for the last incarnation, and reports when 
+ * that is back to 90%.
+ * 
+ * Usage: RoutingStateBenchmark [-nodes n] [-restart r] [-seed s]
+ * 
+ * @author agent
+ */
+public class RoutingStateBenchmark implements GenericSimulatorListener<DirectNodeHandle, RawMessage> {
+  Environment env;
+  DirectPastryNodeFactory factory;
+  Vector<PastryNode> nodes = new Vector<PastryNode>();
+  
+  boolean counting = false;
+  long messages;
+  long pnsMessages;
+  
+  public RoutingStateBenchmark(int seed, boolean warm, File dir) {
+    env = Environment.directEnvironment(seed);
+    env.getParameters().setBoolean("pastry_routingState_enable", warm);
+    env.getParameters().setString("pastry_routingState_directory", dir.getPath());
+    factory = new DirectPastryNodeFactory(new RandomNodeIdFactory(env), new SphereNetwork<DirectNodeHandle, RawMessage>(env), env);
+    factory.getNetworkSimulator().addSimulatorListener(this);
+    factory.getNetworkSimulator().setFullSpeed();
+  }
+  
+  public void createNodes(int num) throws InterruptedException, IOException {
+    for (int i = 0; i < num; i++) {
+      PastryNode node = factory.newNode();
+      node.boot(nodes.isEmpty() ? null : nodes.get(env.getRandomSource().nextInt(nodes.size())).getLocalHandle());
+      waitForReady(node);
+      nodes.add(node);
+    }
+  }
+  
+  void waitForReady(PastryNode node) throws InterruptedException {
+    synchronized(node) {
+      while(!node.isReady() && !node.joinFailed()) {
+        node.wait(500);
+      }
+    }
+  }
+  
+  /**
+   * Runs r on the selector, and waits for it, so the clock doesn't move while it runs.
+   */
+  void onSelector(final Runnable r) throws InterruptedException {
+    final boolean[] done = {false};
+    env.getSelectorManager().invoke(new Runnable() {
+      public void run() {
+        try {
+          r.run();
+        } finally {
+          synchronized(done) {
+            done[0] = true;
+            done.notifyAll();
+          }
+        }
+      }
+    });
+    synchronized(done) {
+      while (!done[0]) {
+        done.wait(500);
+      }
+    }
+  }
+  
+  /**
+   * @return {entries, sum of the proximity of the entries}
+   */
+  static long[] measure(PastryNode node) {
+    long[] ret = new long[2];
+    RoutingTable rt = node.getRoutingTable();
+    HashSet<NodeHandle> seen = new HashSet<NodeHandle>();
+    for (int row = 0; row < rt.numRows(); row++) {
+      RouteSet[] sets = rt.getRow(row);
+      for (int col = 0; col < sets.length; col++) {
+        if (sets[col] == null) continue;
+        for (int i = 0; i < sets[col].size(); i++) {
+          NodeHandle nh = sets[col].get(i);
+          if (!nh.isAlive() || !seen.add(nh)) continue;
+          ret[0]++;
+          ret[1]+=node.proximity(nh);
+        }
+      }
+    }
+    return ret;
+  }
+  
+  /**
+   * @return {entries, sum of the proximity of the entries} over all the nodes
+   */
+  long[] measure(final List<PastryNode> list) throws InterruptedException {
+    final long[] ret = new long[2];
+    onSelector(new Runnable() {
+      public void run() {
+        for (PastryNode node : list) {
+          long[] m = measure(node);
+          ret[0]+=m[0];
+          ret[1]+=m[1];
+        }
+      }
+    });
+    return ret;
+  }
+  
+  /**
+   * @return how many live entries the routing tables of from have for the nodes in to
+   */
+  int references(final List<PastryNode> from, List<PastryNode> to) throws InterruptedException {
+    final HashSet<Id> ids = new HashSet<Id>();
+    for (PastryNode node : to) ids.add(node.getNodeId());
+    final int[] ret = new int[1];
+    onSelector(new Runnable() {
+      public void run() {
+        for (PastryNode node : from) {
+          RoutingTable rt = node.getRoutingTable();
+          for (int row = 0; row < rt.numRows(); row++) {
+            RouteSet[] sets = rt.getRow(row);
+            for (int col = 0; col < sets.length; col++) {
+              if (sets[col] == null) continue;
+              for (int i = 0; i < sets[col].size(); i++) {
+                NodeHandle nh = sets[col].get(i);
+                if (nh.isAlive() && ids.contains(nh.getNodeId())) ret[0]++;
+              }
+            }
+          }
+        }
+      }
+    });
+    return ret[0];
+  }
+  
+  /**
+   * Takes num random nodes out of nodes.
+   */
+  public List<PastryNode> pick(int num) {
+    List<PastryNode> ret = new ArrayList<PastryNode>();
+    while (ret.size() < num) {
+      ret.add(nodes.remove(env.getRandomSource().nextInt(nodes.size())));
+    }
+    return ret;
+  }
+  
+  /**
+   * Kills the victims, waits downTime, and starts them again with the same ids, 
+   * each booting off of a random node that stayed up.
+   * 
+   * @param latency filled in with the millis until each restarted node is ready
+   * @return the restarted nodes
+   */
+  public List<PastryNode> restart(final List<PastryNode> victims, long downTime, final long[] latency) throws InterruptedException {
+    onSelector(new Runnable() {
+      public void run() {
+        for (PastryNode node : victims) {
+          node.destroy();
+        }
+      }
+    });
+    env.getTimeSource().sleep(downTime);
+    
+    final List<PastryNode> ret = new ArrayList<PastryNode>();
+    final IOException[] error = new IOException[1];
+    counting = true;
+    onSelector(new Runnable() {
+      public void run() {
+        final long start = env.getTimeSource().currentTimeMillis();
+        try {
+          for (int i = 0; i < victims.size(); i++) {
+            final int index = i;
+            PastryNode node = factory.newNode(victims.get(i).getNodeId());
+            node.addObserver(new Observer() {
+              public void update(Observable o, Object arg) {
+                if (Boolean.TRUE.equals(arg) && latency[index] == 0) {
+                  latency[index] = env.getTimeSource().currentTimeMillis()-start;
+                }
+              }
+            });
+            ret.add(node);
+          }
+          for (PastryNode node : ret) {
+            node.boot(nodes.get(env.getRandomSource().nextInt(nodes.size())).getLocalHandle());
+          }
+        } catch (IOException ioe) {
+          error[0] = ioe;
+        }
+      }
+    });
+    if (error[0] != null) throw new RuntimeException(error[0]);
+    return ret;
+  }
+  
+  // called on the selector
+  public void messageSent(RawMessage m, DirectNodeHandle from, DirectNodeHandle to, int delay) {
+    if (!counting) return;
+    messages++;
+    if (m instanceof LeafSetRequest || m instanceof LeafSetResponse || 
+        m instanceof RouteRowRequest || m instanceof RouteRowResponse) {
+      pnsMessages++;
+    }
+  }
+
+  public void messageReceived(RawMessage m, DirectNodeHandle from, DirectNodeHandle to) {
+  }
+
+  static void delete(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) f.delete();
+    }
+    dir.delete();
+  }
+  
+  public static void main(String[] args) throws Exception {
+    int numNodes = 500;
+    int numRestart = 50;
+    int seed = 1;
+    for (int i = 0; i < args.length - 1; i++) {
+      if (args[i].equals("-nodes")) numNodes = Integer.parseInt(args[i+1]);
+      if (args[i].equals("-restart")) numRestart = Integer.parseInt(args[i+1]);
+      if (args[i].equals("-seed")) seed = Integer.parseInt(args[i+1]);
+    }
+    int sampleInterval = 10000;
+    int window = 30*60*1000;
+    
+    for (int mode = 0; mode < 2; mode++) {
+      boolean warm = (mode == 1);
+      File dir = new File("RoutingStateBenchmark-"+System.currentTimeMillis());
+      RoutingStateBenchmark bench = new RoutingStateBenchmark(seed, warm, dir);
+      bench.createNodes(numNodes);
+      
+      // let the ring settle, including a couple of rounds of route set maintenance
+      bench.env.getTimeSource().sleep(window);
+      
+      List<PastryNode> victims = bench.pick(numRestart);
+      long[] before = bench.measure(victims);
+      double entriesBefore = (double)before[0]/numRestart;
+      double proxBefore = (double)before[1]/before[0];
+      int refsBefore = bench.references(bench.nodes, victims);
+      
+      // stay down longer than the leafset lease, otherwise the join waits for it to expire
+      long[] latency = new long[numRestart];
+      List<PastryNode> restarted = bench.restart(victims, 35000, latency);
+      for (PastryNode node : restarted) bench.waitForReady(node);
+      
+      int refsAtReady = bench.references(bench.nodes, restarted);
+      int refs = refsAtReady;
+      long steady = -1;
+      long ringSteady = -1;
+      StringBuffer curve = new StringBuffer();
+      for (int t = 0; t <= window; t+=sampleInterval) {
+        long[] m = bench.measure(restarted);
+        double entries = (double)m[0]/numRestart;
+        double prox = m[0] == 0 ? 0 : (double)m[1]/m[0];
+        refs = bench.references(bench.nodes, restarted);
+        if (t % 120000 == 0) curve.append(" "+(t/1000)+"s:"+(int)(100*entries/entriesBefore)+"/"+
+            (int)(100*prox/proxBefore)+"/"+(int)(100.0*refs/refsBefore));
+        if (steady < 0 && entries >= 0.95*entriesBefore && prox <= 1.05*proxBefore) {
+          steady = t;
+        }
+        if (ringSteady < 0 && refs >= 0.9*refsBefore) {
+          ringSteady = t;
+        }
+        bench.env.getTimeSource().sleep(sampleInterval);
+      }
+      
+      Arrays.sort(latency);
+      long sum = 0;
+      for (long l : latency) sum+=l;
+      System.out.println("RESULT: warm="+warm+" nodes="+numNodes+" restarted="+numRestart+
+          " join mean="+(sum/numRestart)+"ms max="+latency[numRestart-1]+"ms"+
+          " steady="+(steady < 0 ? "never" : (steady/1000)+"s")+
+          " ring="+(int)(100.0*refsAtReady/refsBefore)+"%->"+(int)(100.0*refs/refsBefore)+"%"+
+          " ring90="+(ringSteady < 0 ? "never" : (ringSteady/1000)+"s")+
+          " pnsMsgs="+bench.pnsMessages+" msgs in "+(window/60000)+"min="+bench.messages);
+      System.out.println("  % of before, entries/proximity/entries in the rest of the ring:"+curve);
+      bench.env.destroy();
+      delete(dir);
+    }
+  }
+}
@@ -38,9 +38,11 @@ package rice.pastry.transport;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import org.mpisws.p2p.transport.P2PSocket;
 import org.mpisws.p2p.transport.P2PSocketReceiver;
+import org.mpisws.p2p.transport.ZeroCopySocket;
 import org.mpisws.p2p.transport.multiaddress.MultiInetSocketAddress;
 
 import rice.environment.Environment;
@@ -50,7 +52,7 @@ import rice.p2p.commonapi.appsocket.AppSocketReceiver;
 import rice.pastry.NodeHandle;
 import rice.pastry.socket.TransportLayerNodeHandle;
 
-public class SocketAdapter<Identifier> implements AppSocket, P2PSocketReceiver<Identifier> {
+public class SocketAdapter<Identifier> implements AppSocket, P2PSocketReceiver<Identifier>, ZeroCopySocket {
   P2PSocket<Identifier> internal;
   Logger logger;
   Environment environment;
@@ -162,6 +164,14 @@ public class SocketAdapter<Identifier> implements AppSocket, P2PSocketReceiver<I
     return internal.write(src);
   }
   
+  public boolean canZeroCopy() {
+    return (internal instanceof ZeroCopySocket) && ((ZeroCopySocket)internal).canZeroCopy();
+  }
+  
+  public long transferFrom(FileChannel file, long position, long count) throws IOException {
+    return ((ZeroCopySocket)internal).transferFrom(file, position, count);
+  }
+  
   public String toString() {
     return "SA["+internal+"]";
   }
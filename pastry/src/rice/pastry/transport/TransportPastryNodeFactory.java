@@ -36,10 +36,13 @@ advised of the possibility of such damage.
 *******************************************************************************/ 
 package rice.pastry.transport;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 
+import org.mpisws.p2p.transport.util.Serializer;
+
 import rice.Continuation;
 import rice.environment.Environment;
 import rice.environment.logging.Logger;
@@ -47,6 +50,8 @@ import rice.environment.params.Parameters;
 import rice.environment.random.RandomSource;
 import rice.p2p.commonapi.Cancellable;
 import rice.p2p.commonapi.CancellableTask;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
+import rice.p2p.commonapi.rawserialization.OutputBuffer;
 import rice.pastry.Id;
 import rice.pastry.NodeHandle;
 import rice.pastry.NodeHandleFactory;
@@ -67,6 +72,7 @@ import rice.pastry.standard.ConsistentJoinProtocol;
 import rice.pastry.standard.PeriodicLeafSetProtocol;
 import rice.pastry.standard.ProximityNeighborSelector;
 import rice.pastry.standard.RapidRerouter;
+import rice.pastry.standard.RoutingStateStore;
 import rice.pastry.standard.StandardJoinProtocol;
 import rice.pastry.standard.StandardLeafSetProtocol;
 import rice.pastry.standard.StandardRouteSetProtocol;
@@ -139,6 +145,7 @@ public abstract class TransportPastryNodeFactory extends PastryNodeFactory {
   
   protected void registerApps(PastryNode pn, LeafSet leafSet, RoutingTable routeTable, NodeHandleAdapter nha, NodeHandleFactory handleFactory) {
     ProximityNeighborSelector pns = getProximityNeighborSelector(pn);
+    pns = getRoutingStateStore(pn, handleFactory, pns);
     
     Bootstrapper bootstrapper = getBootstrapper(pn, nha, handleFactory, pns);          
 
@@ -207,6 +214,43 @@ public abstract class TransportPastryNodeFactory extends PastryNodeFactory {
     };
   }
     
+  /**
+   * Wraps pns in a RoutingStateStore if pastry_routingState_enable is set, so the node 
+   * restarts with the routing state it had when it went down.  Can be overridden.
+   * 
+   * @param pn
+   * @param handleFactory
+   * @param pns
+   * @return
+   */
+  protected ProximityNeighborSelector getRoutingStateStore(PastryNode pn, NodeHandleFactory handleFactory, ProximityNeighborSelector pns) {
+    Parameters p = environment.getParameters();
+    if (!p.contains("pastry_routingState_enable") || !p.getBoolean("pastry_routingState_enable")) return pns;
+    File dir = new File(p.contains("pastry_routingState_directory") ? 
+        p.getString("pastry_routingState_directory") : "FreePastry-RoutingState");
+    return new RoutingStateStore(pn, new File(dir, pn.getId().toStringFull()+".rtstate"), 
+        getRoutingStateSerializer(pn, handleFactory), pns);
+  }
+  
+  /**
+   * How the RoutingStateStore writes NodeHandles, the default is their normal serialization.
+   * 
+   * @param pn
+   * @param handleFactory
+   * @return
+   */
+  protected Serializer<NodeHandle> getRoutingStateSerializer(PastryNode pn, final NodeHandleFactory handleFactory) {
+    return new Serializer<NodeHandle>() {
+      public void serialize(NodeHandle i, OutputBuffer buf) throws IOException {
+        i.serialize(buf);
+      }
+      
+      public NodeHandle deserialize(InputBuffer buf) throws IOException {
+        return (NodeHandle)handleFactory.readNodeHandle(buf);
+      }
+    };
+  }
+    
   protected abstract NodeHandle getLocalHandle(PastryNode pn, 
       NodeHandleFactory handleFactory) throws IOException;
   protected abstract NodeHandleAdapter getNodeHandleAdapter(PastryNode pn, 
@@ -47,12 +47,14 @@ package rice.persistence;
  */
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.locks.*;
 import java.util.zip.*;
 
 import rice.*;
 import rice.Continuation.*;
 import rice.environment.Environment;
 import rice.environment.logging.Logger;
+import rice.environment.metrics.Histogram;
 import rice.environment.processing.WorkRequest;
 import rice.p2p.commonapi.*;
 import rice.p2p.util.*;
@@ -110,6 +112,13 @@ public class PersistentStorage implements Storage {
   private long numDeletes = 0;
   private long numMetadataWrites = 0;
   
+  /**
+   * The time from a request being made to its work being done, and how much of that 
+   * it waited for an IO thread, in micros.
+   */
+  private Histogram opLatency;
+  private Histogram queueLatency;
+  
   /**
    * Static variables defining the layout of the on-disk storage 
    */
@@ -165,6 +174,9 @@ public class PersistentStorage implements Storage {
   private long storageSize;         // The amount of storage allowed to be used 
   private long usedSize;            // The amount of storage currently in use
 
+  private ReentrantReadWriteLock lock; // the lock over the files and directories on disk
+  private HashMap pending;             // ordering key -> number of unfinished StorageRequests with it
+
   Environment environment;
   Logger logger;
   
@@ -213,7 +225,11 @@ public class PersistentStorage implements Storage {
     this.index = index;
     this.directories = new HashMap();
     this.prefixes = new HashMap();
+    this.lock = new ReentrantReadWriteLock();
+    this.pending = new HashMap();
     statsLastWritten = environment.getTimeSource().currentTimeMillis();
+    opLatency = environment.getMetrics().histogram("persistence."+name+".opMicros");
+    queueLatency = environment.getMetrics().histogram("persistence."+name+".queueMicros");
     if (index) {
       this.dirty = new HashSet();
       this.metadata = new ReverseTreeMap();
@@ -250,9 +266,9 @@ public class PersistentStorage implements Storage {
       timer.scheduleAtFixedRate(new rice.selector.TimerTask() {
         public String toString() { return "persistence dirty purge enqueue"; }
         public void run() {
-          environment.getProcessor().processBlockingIO(new WorkRequest(new ListenerContinuation("Enqueue of writeMetadataFile", environment), environment.getSelectorManager()) {
+          environment.getProcessor().processBlockingIO(new StorageRequest(new ListenerContinuation("Enqueue of writeMetadataFile", environment), true) {
             public String toString() { return "persistence dirty purge"; }
-            public Object doWork() throws Exception {
+            public Object doStorageWork() throws Exception {
               writeDirty();
               return Boolean.TRUE;
             }
@@ -273,9 +289,9 @@ public class PersistentStorage implements Storage {
   public void rename(final Id oldId, final Id newId, Continuation c) {
     printStats();
     
-    environment.getProcessor().processBlockingIO(new WorkRequest(c, environment.getSelectorManager()) {
+    environment.getProcessor().processBlockingIO(new StorageRequest(c, new Id[] {oldId, newId}, true) {
       public String toString() { return "rename " + oldId + " " + newId; }
-      public Object doWork() throws Exception {
+      public Object doStorageWork() throws Exception {
         synchronized(statLock) { numRenames++; }
         
         File f = getFile(oldId);
@@ -329,9 +345,9 @@ public class PersistentStorage implements Storage {
     
     printStats();
     
-    environment.getProcessor().processBlockingIO(new WorkRequest(c, environment.getSelectorManager()) { 
+    environment.getProcessor().processBlockingIO(new StorageRequest(c, id, true) { 
       public String toString() { return "store " + id; }
-      public Object doWork() throws Exception {
+      public Object doStorageWork() throws Exception {
         synchronized(statLock) { numWrites++; }
         
         if (logger.level <= Logger.FINER) logger.log("Storing object " + obj + " under id " + id.toStringFull() + " in root " + appDirectory);
@@ -402,9 +418,9 @@ public class PersistentStorage implements Storage {
   public void unstore(final Id id, Continuation c) {
     printStats();
     
-    environment.getProcessor().processBlockingIO(new WorkRequest(c, environment.getSelectorManager()) { 
+    environment.getProcessor().processBlockingIO(new StorageRequest(c, id, true) { 
       public String toString() { return "unstore " + id; }
-      public Object doWork() throws Exception {
+      public Object doStorageWork() throws Exception {
         synchronized(statLock) { numDeletes++; }
         
         /* first get the file */
@@ -482,9 +498,9 @@ public class PersistentStorage implements Storage {
     if (! exists(id)) {
       c.receiveResult(new Boolean(false));
     } else {    
-      environment.getProcessor().processBlockingIO(new WorkRequest(c, environment.getSelectorManager()) { 
+      environment.getProcessor().processBlockingIO(new StorageRequest(c, id, true) { 
         public String toString() { return "setMetadata " + id; }
-        public Object doWork() throws Exception {
+        public Object doStorageWork() throws Exception {
           synchronized(statLock) { numMetadataWrites++; }
           
           if (logger.level <= Logger.FINER) logger.log("COUNT: Updating metadata for " + id.toStringFull() + " in " + name);
@@ -521,13 +537,16 @@ public class PersistentStorage implements Storage {
     if (index && (! exists(id))) {
       c.receiveResult(null);
     } else {    
-      environment.getProcessor().processBlockingIO(new WorkRequest(c, environment.getSelectorManager()) { 
+      environment.getProcessor().processBlockingIO(new StorageRequest(c, id, ! index) { 
         public String toString() { return "getObject " + id; }
-        public Object doWork() throws Exception {
+        public Object doStorageWork() throws Exception {
           synchronized(statLock) { numReads++; }
           
-          /* get the file */
-          File objFile = getFile(id);
+          /* get the file (other readers may be using the directory map) */
+          File objFile;
+          synchronized (directories) {
+            objFile = getFile(id);
+          }
           
           try { 
             /* and make sure that it exists */
@@ -546,7 +565,9 @@ public class PersistentStorage implements Storage {
             }
             
             /* if there's a problem, move the file to the lost+found */
-            moveToLost(objFile);
+            synchronized (directories) {
+              moveToLost(objFile);
+            }
 
             throw e;
           }
@@ -700,9 +721,9 @@ public class PersistentStorage implements Storage {
    * @param c The command to run once done
    */
   public void flush(Continuation c) {
-    environment.getProcessor().processBlockingIO(new WorkRequest(c, environment.getSelectorManager()) { 
+    environment.getProcessor().processBlockingIO(new StorageRequest(c, true) { 
       public String toString() { return "flush"; }
-      public Object doWork() throws Exception {
+      public Object doStorageWork() throws Exception {
         if (logger.level <= Logger.FINER) logger.log("COUNT: Flushing all data in " + name);
 
         flushDirectory(appDirectory);
@@ -1237,6 +1258,9 @@ public class PersistentStorage implements Storage {
         /* delete the dir */
         deleteFile(dirs[i]);
       }      
+      
+      /* the directory is now empty, so it holds the files again */
+      directories.put(dir, new File[0]);
     }
   }
    
@@ -2049,6 +2073,108 @@ public class PersistentStorage implements Storage {
     }
   }
   
+  /**
+   * A blocking IO request on this storage.  Requests are ordered per id, and 
+   * those which only read an existing object share the lock over the files on 
+   * disk, so that several reads may proceed at once on a Processor with several 
+   * blocking IO threads.  All other requests may move files or split 
+   * directories, and so hold the lock exclusively.
+   * 
+   * Requests which touch everything (flush and the metadata sync) are barriers:
+   * they are ordered after every unfinished request of this storage, and while 
+   * a barrier is unfinished, every new request is ordered after it.
+   */
+  protected abstract class StorageRequest extends WorkRequest {
+    protected boolean exclusive;
+    
+    /**
+     * nanoTime when this was made, 0 if the metrics are off
+     */
+    protected long created;
+    
+    public StorageRequest(Continuation c, Id id, boolean exclusive) {
+      this(c, new Id[] {id}, exclusive);
+    }
+    
+    public StorageRequest(Continuation c, Id[] ids, boolean exclusive) {
+      super(c, environment.getSelectorManager(), reserveOrderingKeys(ids));
+      this.exclusive = exclusive;
+      if (opLatency.isEnabled()) created = System.nanoTime();
+    }
+    
+    /**
+     * Builds a barrier
+     */
+    public StorageRequest(Continuation c, boolean exclusive) {
+      super(c, environment.getSelectorManager(), reserveOrderingKeys(null));
+      this.exclusive = exclusive;
+      if (opLatency.isEnabled()) created = System.nanoTime();
+    }
+    
+    public void run() {
+      try {
+        super.run();
+      } finally {
+        Object[] keys = getOrderingKeys();
+        synchronized (pending) {
+          for (int i=0; i<keys.length; i++) {
+            int count = ((Integer) pending.get(keys[i])).intValue();
+            if (count == 1)
+              pending.remove(keys[i]);
+            else
+              pending.put(keys[i], new Integer(count-1));
+          }
+        }
+      }
+    }
+    
+    public Object doWork() throws Exception {
+      if (created != 0) queueLatency.record((System.nanoTime()-created)/1000);
+      Lock l = (exclusive ? lock.writeLock() : lock.readLock());
+      l.lock();
+      
+      try {
+        return doStorageWork();
+      } finally {
+        l.unlock();
+        if (created != 0) opLatency.record((System.nanoTime()-created)/1000);
+      }
+    }
+    
+    public abstract Object doStorageWork() throws Exception;
+  }
+  
+  /**
+   * Internal method which returns the ordering keys of a new StorageRequest,
+   * and counts it as unfinished under each of them.  These are the ids, plus 
+   * this storage if a barrier is unfinished.  A barrier (ids is null) gets this
+   * storage and the keys of all unfinished requests.
+   *
+   * @param ids The ids of the request, or null for a barrier
+   * @return The keys
+   */
+  private Object[] reserveOrderingKeys(Id[] ids) {
+    synchronized (pending) {
+      HashSet keys = new HashSet();
+      if (ids == null) {
+        keys.addAll(pending.keySet());
+        keys.add(this);
+      } else {
+        keys.addAll(Arrays.asList(ids));
+        if (pending.containsKey(this))
+          keys.add(this);
+      }
+      
+      Object[] result = keys.toArray();
+      for (int i=0; i<result.length; i++) {
+        Integer count = (Integer) pending.get(result[i]);
+        pending.put(result[i], new Integer(count == null ? 1 : count.intValue()+1));
+      }
+      
+      return result;
+    }
+  }
+  
   /**
    * Class for a hashtable of primitive characters
    */
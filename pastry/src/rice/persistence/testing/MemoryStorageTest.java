@@ -795,8 +795,7 @@ public class MemoryStorageTest extends Test {
                           stepDone(SUCCESS);
                           sectionEnd();
                           
-                          System.out.println("All tests completed successfully - exiting.");
-                          System.exit(0);
+                          testOrdering();
                         }
                       }
                       public void receiveException(Exception e) { stepException(e); }
@@ -814,6 +813,51 @@ public class MemoryStorageTest extends Test {
     });
   }
   
+  /**
+   * Issues stores, a rename, a flush and another store without waiting for 
+   * any of them, which must take effect in that order even if the storage 
+   * runs its IO concurrently.  This is the last test, as it erases everything.
+   */
+  public void testOrdering() {
+    final int num = 10;
+    
+    sectionStart("Testing Ordering");
+    stepStart("Store, rename, flush and store");
+    
+    Continuation done = new Continuation() {
+      int count = 0;
+      
+      public void receiveResult(Object o) {
+        count++;
+        if (count < num + 3)
+          return;
+        
+        boolean ok = (! store) || storage.exists(data[411]);
+        for (int i=400; i<=410; i++)
+          ok = ok && (! storage.exists(data[i]));
+        
+        if (! ok) {
+          stepDone(FAILURE, "Only the store after the flush should remain");
+          return;
+        }
+        
+        stepDone(SUCCESS);
+        sectionEnd();
+        
+        System.out.println("All tests completed successfully - exiting.");
+        System.exit(0);
+      }
+      
+      public void receiveException(Exception e) { stepException(e); }
+    };
+    
+    for (int i=0; i<num; i++) 
+      storage.store(data[400+i], null, "ordering " + i, done);
+    storage.rename(data[400], data[410], done);
+    storage.flush(done);
+    storage.store(data[411], null, "after flush", done);
+  }
+  
   public void start() {
     testVariableLength();
   try{  Thread.sleep(20000);}catch(InterruptedException ie){;}
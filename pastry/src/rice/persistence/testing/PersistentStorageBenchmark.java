@@ -0,0 +1,241 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.persistence.testing;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import rice.*;
+import rice.environment.Environment;
+import rice.environment.params.simple.SimpleParameters;
+import rice.environment.processing.Processor;
+import rice.environment.processing.simple.*;
+import rice.p2p.commonapi.*;
+import rice.pastry.commonapi.*;
+import rice.persistence.*;
+
+/**
+ * Measures the throughput of a PersistentStorage on an artificially slow disk,
+ * with objects of mixed sizes, using the SimpleProcessor's single blocking IO
+ * thread and PooledProcessors allowing more and more concurrent IO.  
+ * 
+ * The slow disk is simulated by the objects themselves, which sleep for a 
+ * fixed latency plus a per-KB transfer time whenever they're written or read,
+ * so the delay is incurred inside the storage's own IO (and under its locks).
+ * 
+ * There are three phases: storing all of the objects, reading all of them back
+ * at once, and a mix of 80% reads of random objects and 20% overwrites.
+ * 
+ * usage: PersistentStorageBenchmark [objects latencyMillis microsPerKB maxConcurrency]
+ * 
+ * @version $Id$
+ * @author agent
+ */
+@SuppressWarnings("unchecked")
+public class PersistentStorageBenchmark {
+  
+  // the sizes of the objects, cycled through
+  public static final int[] SIZES = new int[] {512, 2048, 8192, 32768};
+  
+  /**
+   * An object which is slow to write and read
+   */
+  public static class SlowObject implements Serializable {
+    static int latency;
+    static int microsPerKB;
+    
+    byte[] data;
+    
+    public SlowObject(int size) {
+      data = new byte[size];
+    }
+    
+    protected void pause() throws IOException {
+      long micros = (latency * 1000L) + (microsPerKB * (long) data.length) / 1024;
+      try {
+        Thread.sleep(micros / 1000, (int) (micros % 1000) * 1000);
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+    }
+    
+    private void writeObject(ObjectOutputStream oos) throws IOException {
+      oos.defaultWriteObject();
+      pause();
+    }
+    
+    private void readObject(ObjectInputStream ois) throws IOException, ClassNotFoundException {
+      ois.defaultReadObject();
+      pause();
+    }
+  }
+  
+  Environment environment;
+  PersistentStorage storage;
+  Id[] ids;
+  int[] sizes;
+  
+  public PersistentStorageBenchmark(Environment environment, String name, int objects) throws IOException {
+    this.environment = environment;
+    IdFactory factory = new PastryIdFactory(environment);
+    storage = new PersistentStorage(factory, name, ".", -1, environment);
+    
+    ids = new Id[objects];
+    sizes = new int[objects];
+    Random rand = new Random(objects);
+    for (int i=0; i<objects; i++) {
+      byte[] bytes = new byte[20];
+      rand.nextBytes(bytes);
+      ids[i] = factory.buildId(bytes);
+      sizes[i] = SIZES[i % SIZES.length];
+    }
+  }
+  
+  /**
+   * A continuation which counts down a latch, and remembers any failure
+   */
+  protected class Counter implements Continuation {
+    CountDownLatch latch;
+    Exception failure;
+    
+    Counter(int count) {
+      latch = new CountDownLatch(count);
+    }
+    
+    public void receiveResult(Object o) {
+      if ((o == null) || Boolean.FALSE.equals(o))
+        failure = new IOException("Operation failed, returned " + o);
+      latch.countDown();
+    }
+    
+    public void receiveException(Exception e) {
+      failure = e;
+      latch.countDown();
+    }
+    
+    void await() throws Exception {
+      latch.await();
+      if (failure != null)
+        throw failure;
+    }
+  }
+  
+  /**
+   * Stores all of the objects, and returns the elapsed milliseconds
+   */
+  public long store() throws Exception {
+    Counter c = new Counter(ids.length);
+    long start = System.currentTimeMillis();
+    for (int i=0; i<ids.length; i++) 
+      storage.store(ids[i], null, new SlowObject(sizes[i]), c);
+    c.await();
+    return System.currentTimeMillis() - start;
+  }
+  
+  /**
+   * Reads all of the objects, and returns the elapsed milliseconds
+   */
+  public long read() throws Exception {
+    Counter c = new Counter(ids.length);
+    long start = System.currentTimeMillis();
+    for (int i=0; i<ids.length; i++) 
+      storage.getObject(ids[i], c);
+    c.await();
+    return System.currentTimeMillis() - start;
+  }
+  
+  /**
+   * Does ids.length random operations, 80% reads and 20% overwrites, and 
+   * returns the elapsed milliseconds
+   */
+  public long mixed() throws Exception {
+    Counter c = new Counter(ids.length);
+    Random rand = new Random(42);
+    long start = System.currentTimeMillis();
+    for (int i=0; i<ids.length; i++) {
+      int which = rand.nextInt(ids.length);
+      if (rand.nextInt(5) == 0)
+        storage.store(ids[which], null, new SlowObject(sizes[which]), c);
+      else
+        storage.getObject(ids[which], c);
+    }
+    c.await();
+    return System.currentTimeMillis() - start;
+  }
+  
+  public void destroy() throws Exception {
+    Counter c = new Counter(1);
+    storage.flush(c);
+    c.await();
+  }
+  
+  public static void main(String[] args) throws Exception {
+    int objects = (args.length > 0 ? Integer.parseInt(args[0]) : 400);
+    SlowObject.latency = (args.length > 1 ? Integer.parseInt(args[1]) : 10);
+    SlowObject.microsPerKB = (args.length > 2 ? Integer.parseInt(args[2]) : 100);
+    int max = (args.length > 3 ? Integer.parseInt(args[3]) : 64);
+    
+    long bytes = 0;
+    for (int i=0; i<objects; i++)
+      bytes += SIZES[i % SIZES.length];
+    
+    System.out.println("objects=" + objects + " (" + (bytes/1024) + "KB) latency=" + SlowObject.latency + "ms transfer=" + 
+        SlowObject.microsPerKB + "us/KB");
+    
+    for (int io=1; io<=max; io*=4) {
+      Processor processor = (io == 1 ? new SimpleProcessor("Benchmark") : new PooledProcessor("Benchmark", 1, io, true));
+      Environment env = new Environment(null, processor, null, null, null, new SimpleParameters(Environment.defaultParamFileArray, null), null);
+      PersistentStorageBenchmark test = new PersistentStorageBenchmark(env, "PersistentStorageBenchmark-" + io, objects);
+      
+      long store = test.store();
+      long read = test.read();
+      long mixed = test.mixed();
+      
+      System.out.println("RESULT: " + processor.getClass().getSimpleName() + " io=" + io + 
+          " store=" + store + "ms (" + (objects * 1000L / Math.max(1, store)) + " ops/s)" +
+          " read=" + read + "ms (" + (objects * 1000L / Math.max(1, read)) + " ops/s, " + (bytes * 1000L / 1024 / Math.max(1, read)) + " KB/s)" + 
+          " mixed=" + mixed + "ms (" + (objects * 1000L / Math.max(1, mixed)) + " ops/s)");
+      if (processor instanceof PooledProcessor)
+        System.out.println("  " + processor);
+      
+      test.destroy();
+      env.destroy();
+      processor.destroy();
+    }
+  }
+}
@@ -165,6 +165,39 @@ public class CoalescedLog extends EncryptedLog {
     super.getTopEntry(command);
   }
   
+  /**
+   * This method fetches all of the entries in this log, most recent first,
+   * including the yet-to-be-coalesced ones, and expands the coalesced
+   * entries before returning.
+   *
+   * @param command The command to run once done
+   */
+  public void prefetchEntries(Continuation command) {
+    super.prefetchEntries(new StandardContinuation(command) {
+      public void receiveResult(Object o) {
+        LogEntry[] entries = (LogEntry[]) o;
+        Vector result = new Vector();
+        
+        for (int i=pending.getNumEntries()-1; i>=0; i--)
+          result.add(pending.getEntries()[i]);
+        
+        for (int i=0; i<entries.length; i++) {
+          if (entries[i] instanceof CoalescedLogEntry) {
+            LogEntry[] coalesced = ((CoalescedLogEntry) entries[i]).getEntries();
+            
+            for (int j=coalesced.length-1; j>=0; j--) 
+              if (coalesced[j] != null)
+                result.add(coalesced[j]);
+          } else if (entries[i] != null) {
+            result.add(entries[i]);
+          }
+        }
+        
+        parent.receiveResult(result.toArray(new LogEntry[0]));
+      }
+    });
+  }
+  
   /**
    * Method which resets the nuber of entries to be zero.
    */
@@ -147,6 +147,28 @@ public class EncryptedLog extends Log {
     });
   }
   
+  /**
+   * This method fetches all of the entries in this log, most recent first,
+   * and decrypts them before returning.
+   *
+   * @param command The command to run once done
+   */
+  public void prefetchEntries(Continuation command) {
+    super.prefetchEntries(new StandardContinuation(command) {
+      public void receiveResult(Object o) {
+        LogEntry[] entries = (LogEntry[]) o;
+        LogEntry[] result = new LogEntry[entries.length];
+
+        for (int i=0; i<entries.length; i++) {
+          ((EncryptedLogEntry) entries[i]).setKey(key);
+          result[i] = ((EncryptedLogEntry) entries[i]).getEntry();
+        }
+
+        parent.receiveResult(result);
+      }
+    });
+  }
+  
   /**
    * Internal method for writing out this data object
    *
@@ -43,6 +43,7 @@ import java.util.*;
 import rice.*;
 import rice.Continuation.*;
 import rice.environment.logging.Logger;
+import rice.environment.params.Parameters;
 import rice.p2p.commonapi.*;
 import rice.post.*;
 import rice.post.storage.*;
@@ -112,6 +113,18 @@ public class Log implements PostData {
    */
   protected transient LogEntry topEntry;
 
+  /**
+   * A reference to the most recent snapshot of this log, or null if
+   * no snapshot has been written yet
+   */
+  protected LogEntryReference snapShotReference;
+
+  /**
+   * The number of entries which have been added since the most recent
+   * snapshot
+   */
+  protected int entriesSinceSnapShot;
+
   /**
    * A cache of references to our children
    */
@@ -181,6 +194,24 @@ public class Log implements PostData {
     this.post = post;
   }
 
+  /**
+   * @return The number of entries to add between snapshots of this log, 
+   * post_log_snapshotInterval
+   */
+  protected int getSnapShotInterval() {
+    Parameters p = post.getEnvironment().getParameters();
+    return p.contains("post_log_snapshotInterval") ? p.getInt("post_log_snapshotInterval") : 100;
+  }
+
+  /**
+   * @return The maximum number of entries to fetch in parallel in 
+   * prefetchEntries(), post_log_prefetchWindow
+   */
+  protected int getPrefetchWindow() {
+    Parameters p = post.getEnvironment().getParameters();
+    return p.contains("post_log_prefetchWindow") ? p.getInt("post_log_prefetchWindow") : 32;
+  }
+
   /**
    * Helper method to sync this log object on the network.
    *
@@ -443,6 +474,78 @@ public class Log implements PostData {
     }
   }
 
+  /**
+   * This method fetches all of the entries in this log, most recent first.
+   * Entries added since the last snapshot are fetched by walking the chain,
+   * and the entries covered by the snapshots are then fetched in parallel,
+   * at most post_log_prefetchWindow at a time.  Any older entries which predate the
+   * first snapshot are again fetched by walking the chain.  Once done, the
+   * fetched entries are cached, so that subsequent calls to getTopEntry()
+   * and getPreviousEntry() do not touch the network.
+   *
+   * Once this method is finished, it will call the command.receiveResult()
+   * method with a LogEntry[] of the entries, or it may call
+   * receiveException if an exception occurred.
+   *
+   * @param command The command to run once done
+   */
+  public void prefetchEntries(Continuation command) {
+    new PrefetchTask(command).start();
+  }
+
+  /**
+   * Internal method which writes a snapshot covering the entries added since
+   * the previous snapshot.  Once the snapshot has been stored, the snapshot
+   * reference is updated and the count of entries is reset.  This log is not
+   * synced by this method.
+   *
+   * @param command The command to run once done
+   */
+  protected void writeSnapShot(final Continuation command) {
+    final LogEntryReference[] references = new LogEntryReference[entriesSinceSnapShot];
+    references[0] = getTopEntryReference();
+
+    final Continuation store = new StandardContinuation(command) {
+      public void receiveResult(Object o) {
+        SnapShotLogEntry snapshot = new SnapShotLogEntry(references, snapShotReference);
+        snapshot.setPost(post);
+
+        post.getStorageService().storeContentHash(snapshot, new StandardContinuation(parent) {
+          public void receiveResult(Object o) {
+            snapShotReference = (LogEntryReference) o;
+            entriesSinceSnapShot = 0;
+            parent.receiveResult(Boolean.TRUE);
+          }
+        });
+      }
+    };
+
+    if (references.length == 1) {
+      store.receiveResult(null);
+      return;
+    }
+
+    getRealTopEntry(new StandardContinuation(command) {
+      protected int i = 1;
+
+      public void receiveResult(Object o) {
+        LogEntry entry = (LogEntry) o;
+
+        if ((entry == null) || (entry.getPreviousEntryReference() == null)) {
+          parent.receiveException(new StorageException("Log ended after " + i + " entries while writing snapshot of " + Log.this));
+          return;
+        }
+
+        references[i++] = entry.getPreviousEntryReference();
+
+        if (i == references.length)
+          store.receiveResult(null);
+        else
+          entry.getRealPreviousEntry(this);
+      }
+    });
+  }
+
   /**
    * Builds a LogReference object to this log, given a location.
    * Used by the StorageService when storing the log.
@@ -503,6 +606,8 @@ public class Log implements PostData {
     private LogEntry entry;
     private LogEntryReference[] previousTopReferences;
     private LogEntry previousTop;
+    private LogEntryReference previousSnapShot;
+    private int previousEntriesSinceSnapShot;
     private Continuation command;
     private int state;
     
@@ -531,6 +636,8 @@ public class Log implements PostData {
         previousTopReferences = topEntryReferences;
       }
       previousTop = topEntry;
+      previousSnapShot = snapShotReference;
+      previousEntriesSinceSnapShot = entriesSinceSnapShot;
       state = STATE_1;
       entry.setPost(post);
       entry.setUser(post.getEntityAddress());
@@ -557,8 +664,23 @@ public class Log implements PostData {
       topEntryReferences = temp;
       topEntryReference = reference;
       topEntry = entry;
+      entriesSinceSnapShot++;
       state = STATE_2;
-      sync(this);
+
+      if (entriesSinceSnapShot >= getSnapShotInterval()) {
+        writeSnapShot(new Continuation() {
+          public void receiveResult(Object o) {
+            sync(AddLogEntryTask.this);
+          }
+
+          public void receiveException(Exception e) {
+            if (logger.level <= Logger.WARNING) logger.logException("Unable to write snapshot of " + Log.this + " - continuing without", e);
+            sync(AddLogEntryTask.this);
+          }
+        });
+      } else {
+        sync(this);
+      }
     }
 
     private void startState2() {
@@ -588,10 +710,232 @@ public class Log implements PostData {
       topEntryReferences = previousTopReferences;
       topEntryReference = previousTopReferences[0];
       topEntry = previousTop;
+      snapShotReference = previousSnapShot;
+      entriesSinceSnapShot = previousEntriesSinceSnapShot;
       command.receiveException(result);
     }
   }
 
+  /**
+   * This class encapsulates the logic needed to fetch all of the entries
+   * of the current log, using the snapshots to fetch in parallel.
+   */
+  protected class PrefetchTask {
+
+    // the fetched (raw) entries, most recent first, null while outstanding
+    protected Vector entries;
+
+    // the references of the entries, null for entries found by walking
+    protected Vector references;
+
+    // the index of the next reference to fetch
+    protected int next;
+
+    // the number of outstanding fetches
+    protected int outstanding;
+
+    // the maximum number of outstanding fetches
+    protected int window;
+
+    // whether or not all of the snapshots have been fetched
+    protected boolean snapShotsDone;
+
+    // whether or not we have returned a result
+    protected boolean done;
+
+    protected Continuation command;
+
+    /**
+     * This construct will build an object which will call the given
+     * command once processing has been completed, and will provide
+     * a result.
+     *
+     * @param command The command to call
+     */
+    protected PrefetchTask(Continuation command) {
+      this.command = command;
+      this.window = getPrefetchWindow();
+      this.entries = new Vector();
+      this.references = new Vector();
+    }
+
+    public void start() {
+      if (getTopEntryReference() == null)
+        finish();
+      else if ((snapShotReference != null) && (entriesSinceSnapShot == 0))
+        fetchSnapShot(snapShotReference, getTopEntryReference());
+      else
+        walk(true);
+    }
+
+    /**
+     * Walks the chain from the oldest entry fetched so far (or the top), either
+     * until the snapshots are reached or until the end of the log
+     */
+    protected void walk(final boolean head) {
+      Continuation next = new Continuation() {
+        public void receiveResult(Object o) {
+          if (o == null) {
+            fail(new StorageException("Log entry was unexpectedly null while prefetching " + Log.this));
+          } else {
+            entries.add(o);
+            references.add(null);
+            step((LogEntry) o, head);
+          }
+        }
+
+        public void receiveException(Exception e) {
+          fail(e);
+        }
+      };
+
+      if (entries.size() == 0)
+        getRealTopEntry(next);
+      else
+        ((LogEntry) entries.lastElement()).getRealPreviousEntry(next);
+    }
+
+    /**
+     * Decides what to do after the given entry has been walked to
+     */
+    protected void step(LogEntry last, boolean head) {
+      if (last.getPreviousEntryReference() == null)
+        finish();
+      else if (head && (snapShotReference != null) && (entries.size() >= entriesSinceSnapShot))
+        fetchSnapShot(snapShotReference, last.getPreviousEntryReference());
+      else
+        walk(head);
+    }
+
+    /**
+     * Fetches the given snapshot, and queues fetches for all of the entries
+     * it covers.  If expected is non-null, the snapshot must start with the
+     * given reference, or we fall back to walking the chain.
+     */
+    protected void fetchSnapShot(LogEntryReference reference, final LogEntryReference expected) {
+      post.getStorageService().retrieveContentHash(reference, new Continuation() {
+        public void receiveResult(Object o) {
+          if (done)
+            return;
+
+          if (! (o instanceof SnapShotLogEntry)) {
+            fail(new StorageException("Could not fetch snapshot of " + Log.this + " - got " + o));
+            return;
+          }
+
+          SnapShotLogEntry snapshot = (SnapShotLogEntry) o;
+          LogEntryReference[] refs = snapshot.getReferences();
+
+          if ((expected != null) && ((refs.length == 0) || (! expected.equals(refs[0])))) {
+            if (logger == null) logger = post.getEnvironment().getLogManager().getLogger(Log.class, null);
+            if (logger.level <= Logger.WARNING) logger.log("Snapshot of " + Log.this + " does not match log - walking log instead");
+            walk(false);
+            return;
+          }
+
+          for (int i=0; i<refs.length; i++) {
+            entries.add(null);
+            references.add(refs[i]);
+          }
+
+          pump();
+
+          if (snapshot.getPreviousSnapShotReference() != null) {
+            fetchSnapShot(snapshot.getPreviousSnapShotReference(), null);
+          } else {
+            snapShotsDone = true;
+            checkDone();
+          }
+        }
+
+        public void receiveException(Exception e) {
+          fail(e);
+        }
+      });
+    }
+
+    /**
+     * Starts as many queued fetches as the window allows
+     */
+    protected void pump() {
+      while ((! done) && (outstanding < window) && (next < references.size())) {
+        final int slot = next++;
+        final LogEntryReference reference = (LogEntryReference) references.get(slot);
+        
+        // entries found by walking have already been fetched
+        if (reference == null)
+          continue;
+        
+        outstanding++;
+
+        post.getStorageService().retrieveContentHash(reference, new Continuation() {
+          public void receiveResult(Object o) {
+            outstanding--;
+
+            if (o == null) {
+              fail(new StorageException("Could not fetch log entry " + reference + " of " + Log.this));
+            } else {
+              // walking on from the oldest entry needs its post
+              ((LogEntry) o).setPost(post);
+              entries.set(slot, o);
+              pump();
+              checkDone();
+            }
+          }
+
+          public void receiveException(Exception e) {
+            outstanding--;
+            fail(e);
+          }
+        });
+      }
+    }
+
+    /**
+     * Checks whether all of the snapshot entries have arrived, and if so
+     * walks any entries older than the first snapshot
+     */
+    protected void checkDone() {
+      if ((! done) && snapShotsDone && (outstanding == 0) && (next == references.size())) {
+        if ((entries.size() > 0) && (((LogEntry) entries.lastElement()).getPreviousEntryReference() != null))
+          walk(false);
+        else
+          finish();
+      }
+    }
+
+    protected void finish() {
+      if (done)
+        return;
+
+      done = true;
+      LogEntry[] result = (LogEntry[]) entries.toArray(new LogEntry[0]);
+
+      if ((result.length > 0) && (topEntry != null) && (topEntry != result[0]))
+        result[0] = topEntry;
+
+      for (int i=0; i<result.length; i++) {
+        result[i].setPost(post);
+
+        if (i < result.length - 1)
+          result[i].setCachedPreviousEntry(result[i+1]);
+      }
+
+      if ((result.length > 0) && (topEntry == null))
+        topEntry = result[0];
+
+      command.receiveResult(result);
+    }
+
+    protected void fail(Exception e) {
+      if (done)
+        return;
+
+      done = true;
+      command.receiveException(e);
+    }
+  }
+
   private String topEntryReferencesToString() {
     StringBuffer result = new StringBuffer();
     result.append("[ ");
@@ -249,6 +249,14 @@ public abstract class LogEntry implements PostData {
     }
   }
 
+  /**
+   * Protected method which replaces the cached previous entry in the log,
+   * used when the entries are fetched in bulk.
+   */
+  void setCachedPreviousEntry(LogEntry entry) {
+    previousEntry = new SoftReference(entry);
+  }
+
   /**
    * This method is not supported (you CAN NOT store a log entry as a
    * public-key signed block).
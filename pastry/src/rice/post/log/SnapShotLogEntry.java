@@ -0,0 +1,98 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+
+package rice.post.log;
+
+import rice.post.storage.*;
+
+/**
+ * Checkpoint which is periodically written alongside a log.  A snapshot
+ * records the references of all of the entries which were added since
+ * the previous snapshot (most recent first), as well as a reference to
+ * the previous snapshot.  Snapshots are stored as content-hash blocks, but
+ * are not part of the chain of log entries - they allow readers to learn
+ * the references to many entries at once, and thus fetch them in parallel
+ * instead of walking the chain one entry at a time.
+ * 
+ * @version $Id$
+ */
+public class SnapShotLogEntry extends LogEntry {
+
+  // serialver for backward compatibility
+  private static final long serialVersionUID = -4620986723146523041L;
+  
+  // the references to the entries covered by this snapshot, most recent first
+  protected LogEntryReference[] references;
+  
+  // the reference to the previous snapshot of the log, if any
+  protected LogEntryReference previousSnapShotReference;
+  
+  /**
+   * Constructs a SnapShotLogEntry
+   *
+   * @param references The references to the covered entries, most recent first
+   * @param previousSnapShotReference The previous snapshot, or null
+   */
+  public SnapShotLogEntry(LogEntryReference[] references, LogEntryReference previousSnapShotReference) {
+    this.references = references;
+    this.previousSnapShotReference = previousSnapShotReference;
+  }
+  
+  /**
+   * Returns the references to the entries covered by this snapshot,
+   * most recent first
+   *
+   * @return The covered references
+   */
+  public LogEntryReference[] getReferences() {
+    return references;
+  }
+  
+  /**
+   * Returns the reference to the previous snapshot, or null if this
+   * is the first snapshot of the log
+   *
+   * @return The previous snapshot reference
+   */
+  public LogEntryReference getPreviousSnapShotReference() {
+    return previousSnapShotReference;
+  }
+  
+  public String toString() {
+    return "SnapShotLogEntry[" + references.length + " entries]";
+  }
+}
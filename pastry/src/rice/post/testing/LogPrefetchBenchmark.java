@@ -0,0 +1,441 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+
+package rice.post.testing;
+
+import java.io.*;
+import java.security.*;
+
+import rice.*;
+import rice.environment.Environment;
+import rice.p2p.commonapi.*;
+import rice.p2p.commonapi.testing.CommonAPITest;
+import rice.p2p.multiring.MultiringIdFactory;
+import rice.p2p.past.*;
+import rice.p2p.util.SecurityUtils;
+import rice.persistence.*;
+import rice.post.*;
+import rice.post.log.*;
+import rice.post.messaging.*;
+import rice.post.rawserialization.NotificationMessageDeserializer;
+import rice.post.storage.*;
+
+/**
+ * @(#) LogPrefetchBenchmark.java Compares the time needed to open a large
+ * POST log on a remote node by walking the chain of entries one at a time
+ * with the time needed by Log.prefetchEntries(), which uses the snapshots
+ * of the log to fetch the entries in parallel.
+ *
+ * One node writes a log of the given number of entries, and two other nodes
+ * then read all of the entries, one with each method.  Caching is disabled
+ * in PAST, so that every entry has to be fetched over the (simulated)
+ * network.  The benchmark reports the simulated time of each.  It then 
+ * checks that a log whose oldest entries were written before snapshots 
+ * existed is prefetched completely.
+ *
+ * Usage: LogPrefetchBenchmark [-nodes n] [-entries e] [-interval i] [-window w]
+ *
+ * @version $Id$
+ * @author agent
+ */
+@SuppressWarnings("unchecked")
+public class LogPrefetchBenchmark extends CommonAPITest {
+
+  /**
+   * The replication factor to use
+   */
+  public static final int REPLICATION_FACTOR = 3;
+  
+  /**
+   * the instance name to use
+   */
+  public static String INSTANCE = "LogPrefetchBenchmark";
+  
+  /**
+   * The size of the payload of each entry
+   */
+  public static int ENTRY_SIZE = 256;
+  
+  /**
+   * The maximum (simulated) time to wait for any step
+   */
+  public static int MAX_TIME = 6 * 60 * 60 * 1000;
+  
+  /**
+   * the number of entries to write
+   */
+  protected int numEntries;
+  
+  /**
+   * the past impls and posts in the ring
+   */
+  protected PastImpl[] pasts;
+  protected BenchmarkPost[] posts;
+  
+  /**
+   * The result of the current step
+   */
+  protected Object result;
+  
+  /**
+   * Constructor which sets up all local variables
+   */
+  public LogPrefetchBenchmark(Environment env, int numEntries) throws IOException {
+    super(env);
+    this.numEntries = numEntries;
+    this.pasts = new PastImpl[NUM_NODES];
+    this.posts = new BenchmarkPost[NUM_NODES];
+  }
+
+  public static void main(String args[]) throws IOException {
+    int entries = 1000;
+    Environment env = parseArgs(args);
+    
+    for (int i = 0; i < args.length - 1; i++) {
+      if (args[i].equals("-entries")) 
+        entries = Integer.parseInt(args[i+1]);
+      if (args[i].equals("-interval")) 
+        env.getParameters().setInt("post_log_snapshotInterval", Integer.parseInt(args[i+1]));
+      if (args[i].equals("-window")) 
+        env.getParameters().setInt("post_log_prefetchWindow", Integer.parseInt(args[i+1]));
+    }
+    
+    LogPrefetchBenchmark test = new LogPrefetchBenchmark(env, entries);
+    test.start();
+    env.destroy();
+  }
+
+  /**
+   * Method which should process the given newly-created node
+   *
+   * @param node The newly created node
+   * @param num The number of this node
+   */
+  protected void processNode(int num, Node node) {
+    StorageManager storage = new StorageManagerImpl(FACTORY,
+                                                    new MemoryStorage(FACTORY),
+                                                    new LRUCache(new MemoryStorage(FACTORY), 0, environment));
+    pasts[num] = new PastImpl(node, storage, REPLICATION_FACTOR, INSTANCE);
+    posts[num] = new BenchmarkPost(node, pasts[num], "user" + num);
+  }
+
+  /**
+   * Method which should run the test - this is called once all of the
+   * nodes have been created and are ready.
+   */
+  protected void runTest() {
+    if (NUM_NODES < REPLICATION_FACTOR + 2) {
+      System.out.println("The LogPrefetchBenchmark must be run with at least " + (REPLICATION_FACTOR + 2) + " nodes.  Use the '-nodes n' to specify the number of nodes.");
+      return;
+    }
+    
+    waitOnClock(10000);
+    
+    sectionStart("Setup");
+    stepStart("Writing log of " + numEntries + " entries with snapshot interval " + environment.getParameters().getInt("post_log_snapshotInterval"));
+    
+    byte[] location = new byte[20];
+    environment.getRandomSource().nextBytes(location);
+    final Log log = new Log("benchmark", FACTORY.buildId(location), posts[0]);
+    
+    long start = environment.getTimeSource().currentTimeMillis();
+    write(log, 0, numEntries);
+    stepDone(SUCCESS, "took " + (environment.getTimeSource().currentTimeMillis() - start) + "ms");
+    sectionDone();
+    
+    sectionStart("Opening log remotely");
+    
+    stepStart("Walking the log entry by entry");
+    final Log walkLog = copy(log, posts[1]);
+    start = environment.getTimeSource().currentTimeMillis();
+    result = null;
+    environment.getSelectorManager().invoke(new Runnable() {
+      public void run() {
+        walkLog.getTopEntry(new Continuation() {
+          protected int num = 0;
+          
+          public void receiveResult(Object o) {
+            if (o == null) {
+              result = new Integer(num);
+              return;
+            }
+            
+            LogEntry entry = (LogEntry) o;
+            
+            if (((BenchmarkLogEntry) entry).num != numEntries - 1 - num) {
+              result = new Exception("Found entry " + ((BenchmarkLogEntry) entry).num + " at position " + num);
+              return;
+            }
+            
+            num++;
+            
+            if (entry.getPreviousEntryReference() != null)
+              entry.getPreviousEntry(this);
+            else
+              result = new Integer(num);
+          }
+          
+          public void receiveException(Exception e) {
+            result = e;
+          }
+        });
+      }
+    });
+    
+    waitForResult();
+    long walk = environment.getTimeSource().currentTimeMillis() - start;
+    assertTrue("Walking should find all entries, got " + result, new Integer(numEntries).equals(result));
+    stepDone(SUCCESS, "took " + walk + "ms");
+    
+    stepStart("Prefetching the log with a window of " + environment.getParameters().getInt("post_log_prefetchWindow"));
+    start = environment.getTimeSource().currentTimeMillis();
+    LogEntry[] entries = prefetch(copy(log, posts[2]), numEntries);
+    long prefetch = environment.getTimeSource().currentTimeMillis() - start;
+    stepDone(SUCCESS, "took " + prefetch + "ms");
+    
+    stepStart("Walking the prefetched log");
+    checkCached(entries);
+    stepDone(SUCCESS);
+    
+    System.out.println("RESULT: entries=" + numEntries + " interval=" + environment.getParameters().getInt("post_log_snapshotInterval") + " window=" + environment.getParameters().getInt("post_log_prefetchWindow") + 
+                       " walk=" + walk + "ms prefetch=" + prefetch + "ms speedup=" + (prefetch == 0 ? 0 : walk / prefetch) + "x");
+    
+    sectionDone();
+    
+    sectionStart("Opening a log written before snapshots");
+    int interval = environment.getParameters().getInt("post_log_snapshotInterval");
+    int legacy = interval + interval / 2;
+    
+    stepStart("Writing " + legacy + " entries without snapshots, then " + (2 * interval) + " with");
+    environment.getRandomSource().nextBytes(location);
+    final LegacyLog legacyLog = new LegacyLog("legacy", FACTORY.buildId(location), posts[0]);
+    environment.getParameters().setInt("post_log_snapshotInterval", Integer.MAX_VALUE);
+    write(legacyLog, 0, legacy);
+    environment.getParameters().setInt("post_log_snapshotInterval", interval);
+    legacyLog.forgetSnapShots();
+    write(legacyLog, legacy, legacy + 2 * interval);
+    stepDone(SUCCESS);
+    
+    stepStart("Prefetching the log");
+    entries = prefetch(copy(legacyLog, posts[3]), legacy + 2 * interval);
+    stepDone(SUCCESS);
+    
+    stepStart("Walking the prefetched log");
+    checkCached(entries);
+    stepDone(SUCCESS);
+    
+    sectionDone();
+  }
+  
+  /**
+   * Adds the entries numbered from (inclusive) to to (exclusive) to the log
+   */
+  protected void write(final Log log, final int from, final int to) {
+    result = null;
+    environment.getSelectorManager().invoke(new Runnable() {
+      public void run() {
+        log.addLogEntry(new BenchmarkLogEntry(from), new Continuation() {
+          protected int num = from + 1;
+          
+          public void receiveResult(Object o) {
+            if (num < to) 
+              log.addLogEntry(new BenchmarkLogEntry(num++), this);
+            else
+              result = Boolean.TRUE;
+          }
+          
+          public void receiveException(Exception e) {
+            result = e;
+          }
+        });
+      }
+    });
+    
+    waitForResult();
+    assertTrue("Writing the log should succeed, got " + result, Boolean.TRUE.equals(result));
+  }
+  
+  /**
+   * Prefetches the log, and checks that it has the given number of entries, 
+   * most recent first
+   */
+  protected LogEntry[] prefetch(final Log log, int num) {
+    result = null;
+    environment.getSelectorManager().invoke(new Runnable() {
+      public void run() {
+        log.prefetchEntries(new Continuation() {
+          public void receiveResult(Object o) {
+            result = o;
+          }
+          
+          public void receiveException(Exception e) {
+            result = e;
+          }
+        });
+      }
+    });
+    
+    waitForResult();
+    assertTrue("Prefetching should succeed, got " + result, result instanceof LogEntry[]);
+    
+    LogEntry[] entries = (LogEntry[]) result;
+    assertTrue("Prefetching should find all entries, got " + entries.length, entries.length == num);
+    
+    for (int i=0; i<entries.length; i++) 
+      assertTrue("Found entry " + ((BenchmarkLogEntry) entries[i]).num + " at position " + i, 
+                 ((BenchmarkLogEntry) entries[i]).num == num - 1 - i);
+    
+    return entries;
+  }
+  
+  /**
+   * Checks that all of the prefetched entries are cached
+   */
+  protected void checkCached(LogEntry[] entries) {
+    LogEntry entry = entries[0];
+    int cached = 1;
+    
+    while ((entry = entry.getCachedPreviousEntry()) != null) 
+      cached++;
+    
+    assertTrue("All prefetched entries should be cached, only " + cached + " were", cached == entries.length);
+  }
+  
+  /**
+   * Waits until the result of the current step is available
+   */
+  protected void waitForResult() {
+    long start = environment.getTimeSource().currentTimeMillis();
+    
+    while ((result == null) && (environment.getTimeSource().currentTimeMillis() - start < MAX_TIME))
+      waitOnClock(100);
+  }
+  
+  /**
+   * Returns a copy of the given log, as it would be read from the network
+   * by the given post
+   *
+   * @param log The log to copy
+   * @param post The reading post
+   * @return The copy
+   */
+  protected Log copy(Log log, Post post) {
+    try {
+      Log result = (Log) SecurityUtils.deserialize(SecurityUtils.serialize(log));
+      result.setPost(post);
+      return result;
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+  
+  /**
+   * A log which can be made to look like one written before snapshots existed
+   */
+  public static class LegacyLog extends Log {
+    
+    public LegacyLog(Object name, Id location, Post post) {
+      super(name, location, post);
+    }
+    
+    /**
+     * Clears the snapshot state, as it reads back from a log written before 
+     * snapshots existed
+     */
+    public void forgetSnapShots() {
+      snapShotReference = null;
+      entriesSinceSnapShot = 0;
+    }
+  }
+  
+  /**
+   * The log entries written by the benchmark
+   */
+  public static class BenchmarkLogEntry extends LogEntry {
+    
+    protected int num;
+    
+    protected byte[] data;
+    
+    public BenchmarkLogEntry(int num) {
+      this.num = num;
+      this.data = new byte[ENTRY_SIZE];
+    }
+  }
+  
+  /**
+   * Minimal Post which provides only the storage service, as needed by
+   * the log
+   */
+  protected class BenchmarkPost implements Post, Application {
+    
+    protected PostEntityAddress address;
+    
+    protected StorageService storage;
+    
+    public BenchmarkPost(Node node, Past past, String name) {
+      Endpoint endpoint = node.buildEndpoint(this, INSTANCE + "-post");
+      KeyPair keyPair = SecurityUtils.generateKeyAsymmetric();
+      
+      // entity addresses are always built using a multiring factory
+      this.address = new PostUserAddress(new MultiringIdFactory(FACTORY.buildId(new byte[20]), FACTORY), name, environment);
+      this.storage = new StorageService(endpoint, address, past, past, FACTORY, keyPair, 60 * 60 * 1000);
+      endpoint.register();
+    }
+    
+    public PostEntityAddress getEntityAddress() { return address; }
+    public PublicKey getCAPublicKey() { return null; }
+    public void getPostLog(Continuation command) { command.receiveResult(null); }
+    public void getAndVerifyPostLog(Continuation command) { command.receiveResult(null); }
+    public void getPostLog(PostEntityAddress entity, Continuation command) { command.receiveResult(null); }
+    public StorageService getStorageService() { return storage; }
+    public void addClient(PostClient client) {}
+    public void removeClient(PostClient client) {}
+    public void announcePresence() {}
+    public void sendNotification(NotificationMessage message, Continuation command) { command.receiveResult(null); }
+    public void sendNotificationDirect(NodeHandle handle, NotificationMessage message, Continuation command) { command.receiveResult(null); }
+    public void joinGroup(PostGroupAddress address, byte[] key) {}
+    public void sendGroup(NotificationMessage message, Continuation command) { command.receiveResult(null); }
+    public Environment getEnvironment() { return environment; }
+    public NotificationMessageDeserializer getNotificationMessageDeserializer() { return null; }
+    public void setNotificationMessageDeserializer(NotificationMessageDeserializer deserializer) {}
+    
+    public boolean forward(RouteMessage message) { return true; }
+    public void deliver(Id id, Message message) {}
+    public void update(NodeHandle handle, boolean joined) {}
+  }
+}
@@ -43,6 +43,8 @@ import java.util.*;
 import rice.Destructable;
 import rice.environment.Environment;
 import rice.environment.logging.*;
+import rice.environment.metrics.*;
+import rice.environment.params.Parameters;
 import rice.environment.random.RandomSource;
 import rice.environment.random.simple.SimpleRandomSource;
 import rice.environment.time.TimeSource;
@@ -99,6 +101,23 @@ public class SelectorManager extends Thread implements Timer, Destructable {
   
   protected RandomSource random;
   
+  /**
+   * The work done per loop (everything but the select()), in micros.
+   */
+  protected Histogram loopTime = Histogram.NULL;
+  
+  /**
+   * How late each TimerTask ran, in millis.
+   */
+  protected Histogram timerLag = Histogram.NULL;
+  
+  protected Counter invocationCount = Counter.NULL;
+  
+  /**
+   * Null unless selector_watchdog_enable.
+   */
+  protected SelectorWatchdog watchdog;
+  
   /**
    * Constructor, which is private since there is only one selector per JVM.
    */
@@ -145,7 +164,40 @@ public class SelectorManager extends Thread implements Timer, Destructable {
     if (environment != null) return;
     environment = env;
     environment.addDestructable(this);
+    initMetrics(env.getMetrics());
+    Parameters p = env.getParameters();
+    if (p.contains("selector_watchdog_enable") && p.getBoolean("selector_watchdog_enable")) {
+      watchdog = new SelectorWatchdog(this, p, env.getMetrics());
+    }
     start();
+    if (watchdog != null) watchdog.start();
+  }
+  
+  /**
+   * @return null unless selector_watchdog_enable
+   */
+  public SelectorWatchdog getWatchdog() {
+    return watchdog;
+  }
+  
+  protected void initMetrics(MetricsRegistry metrics) {
+    if (!metrics.enabled) return;
+    String base = (instance == null ? "selector." : "selector."+instance+".");
+    loopTime = metrics.histogram(base+"loopMicros");
+    timerLag = metrics.histogram(base+"timerLagMillis");
+    invocationCount = metrics.counter(base+"invocations");
+    metrics.gauge(base+"pendingInvocations", new Gauge() {
+      public long getValue() {
+        LinkedList<Runnable> temp = invocations;
+        return temp == null ? 0 : temp.size();
+      }
+    });
+    metrics.gauge(base+"pendingTimers", new Gauge() {
+      public long getValue() {
+        Queue<TimerTask> temp = timerQueue;
+        return temp == null ? 0 : temp.size();
+      }
+    });
   }
   
   /**
@@ -259,11 +311,19 @@ public class SelectorManager extends Thread implements Timer, Destructable {
         // NOTE: This is so we aren't always holding the selector lock when we
         // get context switched
         Thread.yield();
+        long loopStart = (loopTime.isEnabled() ? System.nanoTime() : 0);
+        if (watchdog != null) watchdog.loopStart();
         executeDueTasks();
         onLoop();
         doInvocations();
+        if (!select) {
+          if (loopStart != 0) loopTime.record((System.nanoTime()-loopStart)/1000);
+          if (watchdog != null) watchdog.loopEnd();
+        }
         if (select) {
           doSelections();
+          if (loopStart != 0) loopTime.record((System.nanoTime()-loopStart)/1000);
+          if (watchdog != null) watchdog.loopEnd();
           int selectTime = SelectorManager.TIMEOUT;
           if (timerQueue.size() > 0) {
             TimerTask first = (TimerTask) timerQueue.peek();
@@ -319,6 +379,7 @@ public class SelectorManager extends Thread implements Timer, Destructable {
       logger.log("destroying SelectorManager");
     }
     running = false; 
+    if (watchdog != null) watchdog.stop();
   }
   
   /**
@@ -398,24 +459,29 @@ public class SelectorManager extends Thread implements Timer, Destructable {
         SelectionKeyHandler skh = (SelectionKeyHandler) keys[i].attachment();
 
         if (skh != null) {
-          // accept
-          if (keys[i].isValid() && keys[i].isAcceptable()) {
-            skh.accept(keys[i]);
-          }
-
-          // connect
-          if (keys[i].isValid() && keys[i].isConnectable()) {
-            skh.connect(keys[i]);
-          }
-
-          // read
-          if (keys[i].isValid() && keys[i].isReadable()) {
-            skh.read(keys[i]);
-          }
-
-          // write
-          if (keys[i].isValid() && keys[i].isWritable()) {
-            skh.write(keys[i]);
+          if (watchdog != null) watchdog.enter(SelectorWatchdog.KEY, skh);
+          try {
+            // accept
+            if (keys[i].isValid() && keys[i].isAcceptable()) {
+              skh.accept(keys[i]);
+            }
+  
+            // connect
+            if (keys[i].isValid() && keys[i].isConnectable()) {
+              skh.connect(keys[i]);
+            }
+  
+            // read
+            if (keys[i].isValid() && keys[i].isReadable()) {
+              skh.read(keys[i]);
+            }
+  
+            // write
+            if (keys[i].isValid() && keys[i].isWritable()) {
+              skh.write(keys[i]);
+            }
+          } finally {
+            if (watchdog != null) watchdog.exit();
           }
         } else {
           keys[i].channel().close();
@@ -433,6 +499,7 @@ public class SelectorManager extends Thread implements Timer, Destructable {
     if (logger.level <= Logger.FINEST) logger.log("SM.doInvocations()");
     Iterator<Runnable> i;
     synchronized (this) {
+      invocationCount.add(invocations.size());
       i = new ArrayList<Runnable>(invocations).iterator();
       invocations.clear();
     }
@@ -440,7 +507,12 @@ public class SelectorManager extends Thread implements Timer, Destructable {
     while (i.hasNext()) {
       Runnable run = (Runnable) i.next();
       try {
-        run.run();
+        if (watchdog != null) watchdog.enter(SelectorWatchdog.INVOCATION, run);
+        try {
+          run.run();
+        } finally {
+          if (watchdog != null) watchdog.exit();
+        }
       } catch (RuntimeException e) {
         // place the rest of the items back into invocations
         synchronized(this) {
@@ -464,8 +536,14 @@ public class SelectorManager extends Thread implements Timer, Destructable {
 
     while (i2.hasNext()) {
       SelectionKey key = (SelectionKey) i2.next();
-      if (key.isValid() && (key.attachment() != null))
-        ((SelectionKeyHandler) key.attachment()).modifyKey(key);
+      if (key.isValid() && (key.attachment() != null)) {
+        if (watchdog != null) watchdog.enter(SelectorWatchdog.MODIFY_KEY, key.attachment());
+        try {
+          ((SelectionKeyHandler) key.attachment()).modifyKey(key);
+        } finally {
+          if (watchdog != null) watchdog.exit();
+        }
+      }
     }
   }
 
@@ -721,10 +799,18 @@ public class SelectorManager extends Thread implements Timer, Destructable {
     Iterator<TimerTask> i = executeNow.iterator();
     while (i.hasNext()) {
       TimerTask next = i.next();
+      timerLag.record(now-next.scheduledExecutionTime());
       try {
         if (logger.level <= Logger.FINER) logger.log("executing task "+next);
         
-        if (executeTask(next)) {
+        boolean again;
+        if (watchdog != null) watchdog.enter(SelectorWatchdog.TIMER, next);
+        try {
+          again = executeTask(next);
+        } finally {
+          if (watchdog != null) watchdog.exit();
+        }
+        if (again) {
           addBack.add(next);
         }
       } catch (RuntimeException e) {
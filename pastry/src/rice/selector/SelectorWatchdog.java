@@ -0,0 +1,337 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.selector;
+
+import java.util.*;
+
+import rice.environment.logging.Logger;
+import rice.environment.metrics.Counter;
+import rice.environment.metrics.Histogram;
+import rice.environment.metrics.MetricsRegistry;
+import rice.environment.params.Parameters;
+import rice.environment.time.TimeSource;
+
+/**
+ * Finds the callbacks that hold up the selector thread.  Turned on with 
+ * selector_watchdog_enable.
+ * 
+ * The SelectorManager calls enter()/exit() around each callback (a Runnable from 
+ * invoke(), a TimerTask, a SelectionKeyHandler) and loopStart()/loopEnd() around 
+ * each loop.  A daemon thread looks at the selector every 
+ * selector_watchdog_interval millis, and when a callback has been running for 
+ * selector_watchdog_threshold millis, logs the selector thread's stack, so a 
+ * callback that never returns is still found.  When a slow callback returns, it is 
+ * logged again with how long it took, and kept in getStalls().  A loop that was 
+ * slow without any single slow callback is logged too.  A callback that waits on 
+ * purpose calls pause()/resume() around the wait.
+ * 
+ * The times are System.nanoTime(), also in the simulator, where a callback 
+ * doesn't take any simulated time, but still holds up the simulation.  The 
+ * TimeSource's time is logged with each stall, to line it up with the rest of the 
+ * log.
+ * 
+ * If metrics are enabled, each callback's time goes to the 
+ * "selector.<instance>.site.<kind>.<class>" histogram (in micros), and the stalls 
+ * are counted in selector.<instance>.stalls and slowLoops.
+ * 
+ * @author agent
+ */
+public class SelectorWatchdog implements Runnable {
+  public static final int INVOCATION = 0;
+  public static final int TIMER = 1;
+  public static final int KEY = 2;
+  public static final int MODIFY_KEY = 3;
+  public static final String[] KIND_NAMES = {"invocation", "timer", "key", "modifyKey"};
+  
+  /**
+   * How many Stalls to keep.
+   */
+  public static final int MAX_STALLS = 32;
+  
+  /**
+   * A callback that took longer than the threshold.
+   */
+  public static class Stall {
+    /**
+     * One of KIND_NAMES
+     */
+    public String kind;
+    /**
+     * The callback's toString()
+     */
+    public String callback;
+    public Class<?> site;
+    /**
+     * The TimeSource's time when it started.
+     */
+    public long startTime;
+    public long durationMillis;
+    /**
+     * The selector's stack while it was running, null if the watchdog thread 
+     * didn't catch it.
+     */
+    public StackTraceElement[] stack;
+    
+    public String toString() {
+      return "Stall{"+kind+" "+callback+" at:"+startTime+" "+durationMillis+"ms}";
+    }
+  }
+  
+  protected SelectorManager selector;
+  
+  protected TimeSource timeSource;
+  
+  protected Logger logger;
+  
+  protected long thresholdNanos;
+  
+  protected int interval;
+  
+  protected volatile boolean running = true;
+  
+  // written by the selector thread, seq last, so the watchdog thread can tell if they 
+  // changed while it was looking
+  protected Object site;
+  protected int kind;
+  protected long startNanos;
+  protected long startTime;
+  protected volatile long seq = 0;
+  
+  /**
+   * The stack the watchdog thread caught, and the seq of the callback it was in.
+   */
+  protected volatile StackTraceElement[] caughtStack;
+  protected volatile long caughtSeq = -1;
+  
+  // per loop, only touched by the selector thread
+  protected long loopStartNanos;
+  protected int loopCallbacks;
+  protected long slowestNanos;
+  protected Object slowestSite;
+  protected boolean reportedThisLoop;
+  protected long idleNanos;
+  protected long pauseNanos;
+  
+  protected LinkedList<Stall> stalls = new LinkedList<Stall>();
+  
+  protected MetricsRegistry metrics;
+  protected String metricsBase;
+  protected Counter stallCount = Counter.NULL;
+  protected Counter slowLoops = Counter.NULL;
+  
+  /**
+   * site class -> Histogram per kind, only touched by the selector thread
+   */
+  protected HashMap<Class<?>, Histogram[]> siteTimes = new HashMap<Class<?>, Histogram[]>();
+  
+  public SelectorWatchdog(SelectorManager selector, Parameters params, MetricsRegistry metrics) {
+    this.selector = selector;
+    this.timeSource = selector.timeSource;
+    this.logger = selector.getEnvironment().getLogManager().getLogger(SelectorWatchdog.class, selector.instance);
+    int threshold = params.contains("selector_watchdog_threshold") ? params.getInt("selector_watchdog_threshold") : 200;
+    this.thresholdNanos = threshold*1000000L;
+    this.interval = params.contains("selector_watchdog_interval") ? params.getInt("selector_watchdog_interval") : 50;
+    if (metrics.enabled) {
+      this.metrics = metrics;
+      metricsBase = (selector.instance == null ? "selector." : "selector."+selector.instance+".");
+      stallCount = metrics.counter(metricsBase+"stalls");
+      slowLoops = metrics.counter(metricsBase+"slowLoops");
+    }
+  }
+  
+  /**
+   * Starts the watchdog thread, unless selector_watchdog_interval is 0.
+   */
+  public void start() {
+    if (interval <= 0) return;
+    Thread t = new Thread(this, "Selector Watchdog -- "+selector.instance);
+    t.setDaemon(true);
+    t.start();
+  }
+  
+  public void stop() {
+    running = false;
+  }
+  
+  public void loopStart() {
+    loopStartNanos = System.nanoTime();
+    loopCallbacks = 0;
+    slowestNanos = 0;
+    slowestSite = null;
+    reportedThisLoop = false;
+    idleNanos = 0;
+  }
+  
+  public void loopEnd() {
+    long nanos = System.nanoTime()-loopStartNanos-idleNanos;
+    if (nanos < thresholdNanos || reportedThisLoop) return;
+    slowLoops.inc();
+    if (logger.level <= Logger.WARNING) logger.log("Selector loop took "+(nanos/1000000)+"ms for "+loopCallbacks+
+        " callbacks, the slowest was "+slowestSite+" "+(slowestNanos/1000000)+"ms");
+  }
+  
+  /**
+   * Called by the selector thread before running a callback.
+   * 
+   * @param kind INVOCATION, TIMER, KEY or MODIFY_KEY
+   * @param site the Runnable, TimerTask or SelectionKeyHandler
+   */
+  public void enter(int kind, Object site) {
+    this.site = site;
+    this.kind = kind;
+    this.startNanos = System.nanoTime();
+    this.startTime = timeSource.currentTimeMillis();
+    seq++;
+  }
+  
+  /**
+   * Called by the selector thread after running the callback.
+   */
+  public void exit() {
+    Object site = this.site;
+    if (site == null) return;
+    long nanos = System.nanoTime()-startNanos;
+    long mySeq = seq;
+    this.site = null;
+    seq++;
+    
+    loopCallbacks++;
+    if (nanos > slowestNanos) {
+      slowestNanos = nanos;
+      slowestSite = site;
+    }
+    
+    if (metrics != null) siteTime(kind, site.getClass()).record(nanos/1000);
+    
+    if (nanos < thresholdNanos) return;
+    Stall stall = new Stall();
+    stall.kind = KIND_NAMES[kind];
+    stall.site = site.getClass();
+    stall.callback = String.valueOf(site);
+    stall.startTime = startTime;
+    stall.durationMillis = nanos/1000000;
+    if (caughtSeq == mySeq) stall.stack = caughtStack;
+    synchronized(stalls) {
+      stalls.addLast(stall);
+      if (stalls.size() > MAX_STALLS) stalls.removeFirst();
+    }
+    stallCount.inc();
+    reportedThisLoop = true;
+    if (logger.level <= Logger.WARNING) logger.log("Selector stalled for "+stall.durationMillis+"ms by "+stall.kind+" "+stall.callback+" at "+stall.startTime);
+  }
+  
+  /**
+   * Called by the selector thread when a callback is going to wait on purpose, 
+   * ex: the simulator waiting for the real clock, so the wait isn't reported.
+   */
+  public void pause() {
+    exit();
+    pauseNanos = System.nanoTime();
+  }
+  
+  /**
+   * Called by the selector thread after pause(), the rest of the callback is 
+   * timed as site.
+   */
+  public void resume(int kind, Object site) {
+    idleNanos+=System.nanoTime()-pauseNanos;
+    enter(kind, site);
+  }
+  
+  protected Histogram siteTime(int kind, Class<?> c) {
+    Histogram[] h = siteTimes.get(c);
+    if (h == null) {
+      h = new Histogram[KIND_NAMES.length];
+      siteTimes.put(c, h);
+    }
+    if (h[kind] == null) {
+      h[kind] = metrics.histogram(metricsBase+"site."+KIND_NAMES[kind]+"."+c.getName());
+    }
+    return h[kind];
+  }
+  
+  /**
+   * The most recent slow callbacks, oldest first.
+   */
+  public List<Stall> getStalls() {
+    synchronized(stalls) {
+      return new ArrayList<Stall>(stalls);
+    }
+  }
+  
+  /**
+   * The watchdog thread.
+   */
+  public void run() {
+    while (running && selector.isAlive()) {
+      try {
+        Thread.sleep(interval);
+      } catch (InterruptedException ie) {
+        return;
+      }
+      check();
+    }
+  }
+  
+  /**
+   * Called by the watchdog thread, catches the stack of a callback that has been 
+   * running longer than the threshold (once per callback).
+   */
+  protected void check() {
+    long mySeq = seq;
+    Object site = this.site;
+    if (site == null || caughtSeq == mySeq) return;
+    long nanos = System.nanoTime()-startNanos;
+    if (nanos < thresholdNanos) return;
+    int kind = this.kind;
+    long startTime = this.startTime;
+    StackTraceElement[] stack = selector.getStackTrace();
+    // it returned while we were looking, the stack is of something else
+    if (seq != mySeq) return;
+    caughtStack = stack;
+    caughtSeq = mySeq;
+    if (logger.level <= Logger.WARNING) {
+      StringBuilder sb = new StringBuilder();
+      sb.append("Selector has been in "+KIND_NAMES[kind]+" "+site.getClass().getName()+" for "+(nanos/1000000)+"ms since "+startTime+":");
+      for (StackTraceElement e : stack) {
+        sb.append("\n\tat ");
+        sb.append(e);
+      }
+      logger.log(sb.toString());
+    }
+  }
+}
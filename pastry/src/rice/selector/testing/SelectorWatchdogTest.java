@@ -0,0 +1,222 @@
+/*******************************************************************************
+
+"FreePastry" Peer-to-Peer Application Development Substrate
+
+Copyright 2002-2007, Rice University. Copyright 2006-2007, Max Planck Institute 
+for Software Systems.  All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+- Redistributions of source code must retain the above copyright
+notice, this list of conditions and the following disclaimer.
+
+- Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+- Neither the name of Rice  University (RICE), Max Planck Institute for Software 
+Systems (MPI-SWS) nor the names of its contributors may be used to endorse or 
+promote products derived from this software without specific prior written 
+permission.
+
+This software is provided by RICE, MPI-SWS and the contributors on an "as is" 
+basis, without any representations or warranties of any kind, express or implied 
+including, but not limited to, representations or warranties of 
+non-infringement, merchantability or fitness for a particular purpose. In no 
+event shall RICE, MPI-SWS or contributors be liable for any direct, indirect, 
+incidental, special, exemplary, or consequential damages (including, but not 
+limited to, procurement of substitute goods or services; loss of use, data, or 
+profits; or business interruption) however caused and on any theory of 
+liability, whether in contract, strict liability, or tort (including negligence
+or otherwise) arising in any way out of the use of this software, even if 
+advised of the possibility of such damage.
+
+*******************************************************************************/ 
+package rice.selector.testing;
+
+import java.util.List;
+
+import rice.environment.Environment;
+import rice.environment.exception.ExceptionStrategy;
+import rice.environment.metrics.Histogram;
+import rice.environment.params.Parameters;
+import rice.environment.params.simple.SimpleParameters;
+import rice.p2p.commonapi.rawserialization.RawMessage;
+import rice.pastry.direct.*;
+import rice.selector.SelectorManager;
+import rice.selector.SelectorWatchdog;
+import rice.selector.TimerTask;
+
+/**
+ * Stalls the selector with an invoke()d Runnable and a TimerTask, and checks that 
+ * the SelectorWatchdog catches them with their stacks, and times the callbacks by 
+ * site.  Then checks callbacks that throw, and does the same in the simulator, 
+ * where the stall is at a simulated time.
+ * 
+ * @version $Id$
+ * @author agent
+ */
+public class SelectorWatchdogTest {
+  
+  static boolean failed = false;
+  
+  static void check(String name, boolean ok, String detail) {
+    System.out.println("  "+name+(ok ? " [SUCCESS]" : " [FAILURE] "+detail));
+    if (!ok) failed = true;
+  }
+  
+  /**
+   * Holds the selector for millis.
+   */
+  static class SlowRunnable implements Runnable {
+    int millis;
+    
+    SlowRunnable(int millis) {
+      this.millis = millis;
+    }
+    
+    public void run() {
+      spin(millis);
+    }
+    
+    public String toString() {
+      return "SlowRunnable "+millis;
+    }
+  }
+  
+  /**
+   * Holds the selector for millis, then throws.
+   */
+  static class ThrowingRunnable extends SlowRunnable {
+    ThrowingRunnable(int millis) {
+      super(millis);
+    }
+    
+    public void run() {
+      super.run();
+      throw new RuntimeException("ThrowingRunnable");
+    }
+  }
+  
+  static class SlowTask extends TimerTask {
+    int millis;
+    
+    SlowTask(int millis) {
+      this.millis = millis;
+    }
+    
+    public void run() {
+      spin(millis);
+    }
+  }
+  
+  /**
+   * Busy, so it also holds up the simulator.
+   */
+  static void spin(int millis) {
+    long end = System.nanoTime()+millis*1000000L;
+    while (System.nanoTime() < end) {
+      Thread.yield();
+    }
+  }
+  
+  static Parameters getParams() {
+    Parameters params = new SimpleParameters(Environment.defaultParamFileArray, null);
+    params.setBoolean("metrics_enable", true);
+    params.setBoolean("selector_watchdog_enable", true);
+    params.setInt("selector_watchdog_threshold", 100);
+    params.setInt("selector_watchdog_interval", 20);
+    return params;
+  }
+  
+  static boolean hasFrame(StackTraceElement[] stack, String method) {
+    if (stack == null) return false;
+    for (StackTraceElement e : stack) {
+      if (e.getClassName().startsWith(SelectorWatchdogTest.class.getName()) && e.getMethodName().equals(method)) return true;
+    }
+    return false;
+  }
+  
+  public static void testRealTime() throws Exception {
+    Environment env = new Environment(null,null,null,null,null,getParams(),null);
+    SelectorManager sm = env.getSelectorManager();
+    SelectorWatchdog watchdog = sm.getWatchdog();
+    
+    for (int i = 0; i < 100; i++) {
+      sm.invoke(new SlowRunnable(0));
+    }
+    sm.invoke(new SlowRunnable(300));
+    sm.schedule(new SlowTask(300), 500);
+    Thread.sleep(1500);
+    
+    List<SelectorWatchdog.Stall> stalls = watchdog.getStalls();
+    check("Stalls "+stalls, stalls.size() == 2, "");
+    if (stalls.size() == 2) {
+      SelectorWatchdog.Stall s = stalls.get(0);
+      check("Invocation "+s, s.kind.equals("invocation") && s.site == SlowRunnable.class && 
+          s.durationMillis >= 300 && hasFrame(s.stack, "spin"), "");
+      s = stalls.get(1);
+      check("Timer "+s, s.kind.equals("timer") && s.site == SlowTask.class && 
+          s.durationMillis >= 300 && hasFrame(s.stack, "spin"), "");
+    }
+    Histogram.Snapshot h = env.getMetrics().histogram("selector.Default.site.invocation."+SlowRunnable.class.getName()).getSnapshot();
+    check("Site histogram "+h, h.getCount() == 101 && h.getMax() >= 300000, "");
+    check("selector.Default.stalls", env.getMetrics().counter("selector.Default.stalls").get() == 2, "");
+    env.destroy();
+  }
+  
+  /**
+   * A callback that throws is still timed, and doesn't leave the watchdog 
+   * thinking the selector is stuck in it.
+   */
+  public static void testException() throws Exception {
+    Environment env = new Environment(null,null,null,null,null,getParams(),new ExceptionStrategy() {
+      public void handleException(Object source, Throwable t) {
+        // keep the selector running
+      }
+    });
+    SelectorManager sm = env.getSelectorManager();
+    SelectorWatchdog watchdog = sm.getWatchdog();
+    
+    sm.invoke(new ThrowingRunnable(0));
+    Thread.sleep(500);
+    check("Fast exception", watchdog.getStalls().isEmpty(), watchdog.getStalls().toString());
+    
+    sm.invoke(new ThrowingRunnable(300));
+    Thread.sleep(1000);
+    List<SelectorWatchdog.Stall> stalls = watchdog.getStalls();
+    check("Slow exception "+stalls, stalls.size() == 1 && stalls.get(0).site == ThrowingRunnable.class && 
+        stalls.get(0).durationMillis >= 300 && stalls.get(0).durationMillis < 500, "");
+    env.destroy();
+  }
+  
+  public static void testSimulated() throws Exception {
+    Environment env = Environment.directEnvironment(null, getParams());
+    SelectorWatchdog watchdog = env.getSelectorManager().getWatchdog();
+    // runs the clock
+    NetworkSimulator<DirectNodeHandle, RawMessage> sim = new EuclideanNetwork<DirectNodeHandle, RawMessage>(env);
+    sim.setFullSpeed();
+    
+    long start = env.getTimeSource().currentTimeMillis();
+    env.getSelectorManager().schedule(new SlowTask(300), 60000);
+    env.getTimeSource().sleep(120000);
+    
+    List<SelectorWatchdog.Stall> stalls = watchdog.getStalls();
+    check("Simulated stalls "+stalls, stalls.size() == 1, "");
+    if (stalls.size() == 1) {
+      SelectorWatchdog.Stall s = stalls.get(0);
+      check("Simulated time "+(s.startTime-start), s.startTime-start == 60000 && hasFrame(s.stack, "spin"), "");
+    }
+    env.destroy();
+  }
+  
+  public static void main(String[] args) throws Exception {
+    testRealTime();
+    testException();
+    testSimulated();
+    System.out.println(failed ? "FAILURE" : "SUCCESS");
+    System.exit(failed ? 1 : 0);
+  }
+}